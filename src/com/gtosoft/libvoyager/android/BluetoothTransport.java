@@ -0,0 +1,324 @@
+/**
+ * (C) 2011 libvoyager is licensed under a Creative Commons Attribution-NonCommercial 3.0 Unported License.
+ * Permissions beyond the scope of this license may be available at http://www.gtosoft.com. You can download,
+ * use, modify the code as long as you do not include it as part of commercial software.
+ */
+
+package com.gtosoft.libvoyager.android;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.util.UUID;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+import android.util.Log;
+
+import com.gtosoft.libvoyager.transport.ELMTransport;
+import com.gtosoft.libvoyager.util.EasyTime;
+import com.gtosoft.libvoyager.util.EventCallback;
+import com.gtosoft.libvoyager.util.GeneralStats;
+
+/**
+ * Bluetooth RFCOMM implementation of ELMTransport. This is the connect/socket code that used to live in ELMBT.
+ * @author brad
+ */
+
+public class BluetoothTransport implements ELMTransport {
+
+	final boolean DEBUG = false;
+
+	// HTC Droid, HTC Thunderbolt, And many more. All have bugs that prevent normal Bluetooth logic to fail so we are forced to work around the bugs by some simple reflection statements.
+	//   http://stackoverflow.com/questions/4444235/problems-connecting-with-bluetooth-android
+	//   http://code.google.com/p/backport-android-bluetooth/issues/detail?id=5
+	final boolean USE_REFLECTION = true;
+
+	// Define the UUID which specifies that we want to make an RFCOMM connection with the peer.
+	static final UUID UUID_RFCOMM_GENERIC = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+
+	GeneralStats mgStats = new GeneralStats();
+
+	// Bluetooth MAC address of our peer.
+	String 	mPeerMAC 	= "";
+
+	// bluetooth adapter which provides access to bluetooth functionality.
+	BluetoothAdapter 	mBTAdapter 	= null;
+	// socket represents the open connection.
+	BluetoothSocket		mBTSocket   = null;
+	// device represents the peer
+	BluetoothDevice 	mBTDevice 	= null;
+
+	// streams
+	InputStream			mBTInputStream  = null;
+	OutputStream 		mBTOutputStream = null;
+
+	EventCallback mStateChangeCallback = null;
+
+	/**
+	 * Constructor.
+	 * @param defaultAdapter - the local bluetooth adapter. We don't have a context so the caller has to hand it to us.
+	 * @param peerMACAddress - MAC address, all uppercase, of the Bluetooth peer for which we are to connect.
+	 */
+	public BluetoothTransport (BluetoothAdapter defaultAdapter, String peerMACAddress) {
+		mBTAdapter 	= defaultAdapter;
+		mPeerMAC 	= peerMACAddress;
+	}
+
+	/**
+	 * Try to establish a connection with the peer.
+	 * This method runs synchronously and blocks for one or more seconds while it does its thing
+	 * SO CALL IT FROM A NON-UI THREAD!
+	 * @return - returns true if the connection has been established and is ready for use. False otherwise.
+	 */
+	public synchronized boolean connect() {
+
+		if (isOpen() == true) {
+			if (DEBUG) msg ("Warning: connect() called while we're already connected to peer " + mPeerMAC + ". Returning true.");
+			return true;
+		}
+
+		if (checkBluetoothSettings() != true) {
+			msg ("connect(): ERROR: bluetooth NOT enabled and ready. Unable to connect().");
+			return false;
+		}
+
+		if (BluetoothAdapter.checkBluetoothAddress(mPeerMAC) != true) {
+			msg ("connect(): ERROR: bluetooth MAC is INVALID: " + mPeerMAC);
+			return false;
+		}
+
+		// Reset all streams and socket.
+		close();
+
+		// make sure peer is defined as a valid device based on their MAC. If not then do it.
+		if (mBTDevice == null)
+			mBTDevice = mBTAdapter.getRemoteDevice(mPeerMAC);
+
+		// Use reflection, maybe. It doesn't help.
+		// As described here: http://stackoverflow.com/questions/2660968/
+		// And complained about here: http://code.google.com/p/android/issues/detail?id=5427
+		if (USE_REFLECTION==true) {
+			try {
+				if (DEBUG) msg ("Creating socket binding using reflection...");
+				Method m = mBTDevice.getClass().getMethod("createRfcommSocket", new Class[] { int.class });
+				BluetoothSocket sock = (BluetoothSocket) m.invoke(mBTDevice, 1);
+				if (DEBUG) msg ("Socket binding with reflection was successful!");
+				mBTSocket = sock;
+			} catch (Exception e) {
+				msg ("Error during rfcomm reflection: " + e.getMessage());
+				return false;
+			}
+		} else {
+			// Make an RFCOMM binding.
+			try {mBTSocket = mBTDevice.createRfcommSocketToServiceRecord(UUID_RFCOMM_GENERIC);
+			} catch (Exception e1) {
+				msg ("connect(): Failed to bind to RFCOMM by UUID. msg=" + e1.getMessage());
+				return false;
+			}
+		}
+
+		// They say it is good to cancel discovery before connect, but does this cause us trouble if we try to connect to two different adapters at the same time?
+		if (mBTAdapter.isDiscovering()) {
+			if (DEBUG) msg ("Cancelling active discovery session...");
+			cancelDiscovery();
+		}
+
+		if (DEBUG) msg ("connect(): Trying to connect...");
+
+		try {
+			mBTSocket.connect();
+		} catch (Exception e) {
+			msg ("connect(): Failed while connecting to " + mPeerMAC + "(" + mBTDevice.getName() + "). Error was: " + e.getMessage());
+			close();
+			return false;
+		}
+
+		if (DEBUG) msg ("connect(): CONNECTED! Peer=" + mBTDevice.getAddress() + "(" + mBTDevice.getName() + ")");
+
+		try {
+			mBTOutputStream = mBTSocket.getOutputStream();
+			mBTInputStream  = mBTSocket.getInputStream();
+		} catch (Exception e) {
+			msg ("connect(): Error attaching i/o streams to socket. msg=" + e.getMessage());
+			close();
+			return false;
+		}
+
+		sendStateChangeCallback(0,1);
+
+		return true;
+	}
+
+	/**
+	 * Close streams and socket. Fires the state change callback if we were open.
+	 */
+	public synchronized void close() {
+		boolean wasOpen = isOpen();
+
+		if (mBTInputStream != null) {
+			try {mBTInputStream.close();} catch (Exception e) {}
+			mBTInputStream = null;
+		}
+
+		if (mBTOutputStream != null) {
+			try {mBTOutputStream.close();} catch (Exception e) {}
+			mBTOutputStream = null;
+		}
+
+		if (mBTSocket != null) {
+			try {mBTSocket.close();} catch (Exception e) {}
+			mBTSocket = null;
+		}
+
+		if (wasOpen) sendStateChangeCallback(1,0);
+	}
+
+	/**
+	 * @return - true if the socket and both streams are in place.
+	 */
+	public boolean isOpen() {
+		if (mBTAdapter == null || mBTSocket == null || mBTInputStream == null || mBTOutputStream == null)
+			return false;
+
+		return true;
+	}
+
+	public int read(byte[] buffer, int offset, int length) throws IOException {
+		InputStream in = mBTInputStream;
+		if (in == null) throw new IOException("not connected");
+
+		return in.read(buffer, offset, length);
+	}
+
+	public void write(byte[] buffer, int offset, int length) throws IOException {
+		OutputStream out = mBTOutputStream;
+		if (out == null) throw new IOException("not connected");
+
+		out.write(buffer, offset, length);
+	}
+
+	public int available() throws IOException {
+		InputStream in = mBTInputStream;
+		if (in == null) throw new IOException("not connected");
+
+		return in.available();
+	}
+
+	public void registerStateChangeCallback(EventCallback eventCallback) {
+		mStateChangeCallback = eventCallback;
+	}
+
+	private void sendStateChangeCallback (int oldState, int newState) {
+		try {
+			if (mStateChangeCallback != null)
+				mStateChangeCallback.onStateChange(oldState, newState);
+		} catch (Exception e) {
+			msg ("!bt_statechange e=" + e.getMessage());
+		}
+	}
+
+	/**
+	 * - Check the system bluetooth settings and make sure bluetooth is enabled and ready for use!
+	 * @return - true if its available right now, false otherwise.
+	 */
+	public boolean checkBluetoothSettings() {
+		if (mBTAdapter == null) {
+			msg ("WARNING: checkBluetoothSettings() was called without first initializing mbtadapter.");
+			return false;
+		}
+
+		String name = mBTAdapter.getName();
+
+		// If we can get the name of the local bluetooth device then bt is definitely enabled and ready for use.
+		if (name != null && name.length() > 0) {
+			return true;
+		} else {
+			msg ("Unable to determine name of local BT Adapter.");
+		}
+
+		return false;
+	}
+
+	/**
+	 * Cancels discovery session, if one is in progress.
+	 * NOTE: Canceling a discovery actually takes a bit of time! like +/- 8 seconds.
+	 */
+	public void cancelDiscovery() {
+		// is a discovery even in progress?
+		if (! mBTAdapter.isDiscovering()) {
+			return;
+		}
+
+		if (DEBUG) msg ("Cancelling discovery...");
+
+		// send the official cancel signal.
+		mBTAdapter.cancelDiscovery();
+
+		// Loop while we wait for discovery to cease.
+		int x = 0;
+		while (mBTAdapter.isDiscovering() && x < 100) {
+			EasyTime.safeSleep(200);
+			x++;
+		}
+
+		mgStats.setStat("discovery.timeToCancel", "" + (x * 200) + "ms");
+		if (DEBUG) msg ("Cancel-Discovery operation blocked for " + (x*200) + "ms");
+	}
+
+	/**
+	 * Returns true if the local bt adapter is in active discovery mode.
+	 * @return - true if we're discovering, false if we're not, or an error occurred.
+	 */
+	public boolean isDiscovering () {
+		boolean x = false;
+		try {
+			x = mBTAdapter.isDiscovering();
+		} catch (Exception e) {
+			msg ("ERROR while trying to check discovery status. E=" + e.getMessage());
+		}
+
+		return x;
+	}
+
+	/**
+	 * @return - returns a string representation of the local bluetooth adapter's MAC address.
+	 */
+	public String getAdapterMAC () {
+		return mBTAdapter.getAddress();
+	}
+
+	public String getPeerAddress() {
+		return mPeerMAC;
+	}
+
+	public String getPeerName() {
+		if (mBTDevice != null)
+			return mBTDevice.getName();
+		else
+			return "";
+	}
+
+	public GeneralStats getStats() {
+		mgStats.setStat("useReflection","" + USE_REFLECTION);
+
+		try {
+			mgStats.setStat("localMAC","" + mBTAdapter.getAddress());
+			mgStats.setStat("localName","" + mBTAdapter.getName());
+			mgStats.setStat("peerName","" + mBTDevice.getName());
+			mgStats.setStat("peerClass","" + mBTDevice.getBluetoothClass().getDeviceClass());
+			mgStats.setStat("peerBondState","" + mBTDevice.getBondState());
+			mgStats.setStat("socketReady","" + (mBTSocket != null));
+		} catch (Exception e) {
+			mgStats.setStat("statError","" + e.getMessage());
+		}
+
+		return mgStats;
+	}
+
+	private void msg (String message) {
+		Log.d("BTT",message);
+	}
+}
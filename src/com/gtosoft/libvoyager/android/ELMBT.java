@@ -6,17 +6,11 @@
 
 package com.gtosoft.libvoyager.android;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.lang.reflect.Method;
-import java.util.UUID;
-
 import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothSocket;
 import android.util.Log;
 
+import com.gtosoft.libvoyager.transport.ELMFramer;
+import com.gtosoft.libvoyager.transport.ELMTransport;
 import com.gtosoft.libvoyager.util.OOBMessageTypes;
 import com.gtosoft.libvoyager.util.EasyTime;
 import com.gtosoft.libvoyager.util.EventCallback;
@@ -30,6 +24,7 @@ import com.gtosoft.libvoyager.util.GeneralStats;
 
 /**
  * This class connects to, and remains connected to, the given bluetooth device.
+ * The actual link is an ELMTransport - Bluetooth by default, but it can be anything that moves bytes (see TCPTransport).
  * This class DOES NOT send any data to the device on its own accord. Instead, data must be sent by a parent class. - 
  * This ensures that the calling class can be in any state such as ATMA monitor-all, and we won't disrupt that.
  * Exception 1: Upon connecting, we may go out and query the connected device with a few AT commands for statistical purposes.
@@ -43,17 +38,8 @@ public class ELMBT {
 	
 	final boolean DEBUG=true;
 
-	// HTC Droid, HTC Thunderbolt, And many more. All have bugs that prevent normal Bluetooth logic to fail so we are forced to work around the bugs by some simple reflection statements.
-	//   http://stackoverflow.com/questions/4444235/problems-connecting-with-bluetooth-android
-	//   http://code.google.com/p/backport-android-bluetooth/issues/detail?id=5
-	final boolean USE_REFLECTION = true;
-	
 	GeneralStats mGenStats = new GeneralStats();
 
-	// Define the UUID which specifies that we want to make an RFCOMM connection with the peer.
-	//static final UUID UUID_RFCOMM_GENERIC = new UUID(0x0000110100001000L,0x800000805F9B34FBL);
-	static final UUID UUID_RFCOMM_GENERIC = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
-
 	// keeps track of number of sequential connect() failures. reset to 0 upon successful connect.
 	int mSuccessiveFailedConnects = 0;
 	// defines the maximum number of failures we allow ourself before giving up completely and shutting ourself down. 
@@ -65,27 +51,31 @@ public class ELMBT {
 	// maximum number of bytes to accept in the input buffer before we start blocking/dropping. 
 	final int INPUT_BUFFER_SIZE = 32767;
 
+	// maximum number of characters handed out by a single readInputBuffer() call. In sniff mode we'd read forever otherwise. 
+	final int MAX_READ_CHUNK = 4096;
+
 	// Max sequential Input or Output errors that can occur before we consider the connection DEAD. 
 	final int MAX_IO_ERRORS = 1;
 	
 	// Number of milliseconds to pause between loops of our main thread.  
 	final int STATUS_THREAD_UPDATE_INTERVAL = 1000;
 	
-	// Bluetooth MAC address of our peer. Provided to us by calling class via our constructor.  
-	String 	mPeerMAC 	= "";
-
-	// bluetooth adapter which provides access to bluetooth functionality. 
-	BluetoothAdapter 	mBTAdapter 	= null;
-	// socket represents the open connection.
-	BluetoothSocket		mBTSocket   = null;
-	// device represents the peer
-	BluetoothDevice 	mBTDevice 	= null; 
-	
-	// streams
-//	BufferedInputStream mBTInputStream 	= null;
-	BufferedReader		mBTReader		= null;
-	//InputStream 		mBTInputStream  = null;
-	OutputStream 		mBTOutputStream = null;
+	// The byte-stream link to the device. Provided to us by calling class via our constructor.  
+	ELMTransport		mTransport	= null;
+	// Same object as mTransport when we're running over bluetooth, otherwise null. Used for the bluetooth-only stuff like discovery. 
+	BluetoothTransport	mBluetooth	= null;
+
+	// Optional command queue in front of sendOBDCommand(). Created on first use by getCommandQueue(). 
+	// Guarded by its own lock, not our monitor - sendOBDCommand() holds that for the whole round trip, and getting the queue mustn't wait on it. 
+	volatile ELMCommandQueue	mCommandQueue = null;
+	private final Object mCommandQueueLock = new Object();
+
+	// Tunes ATST/ATAT from measured response times. Fed by sendOBDCommand(). 
+	final boolean ADAPTIVE_TIMING = true;
+	ELMTimingController	mTiming		= new ELMTimingController();
+
+	// Input bytes land here in bulk, already cleaned up (CR/LF converted to '|', junk thrown away). 
+	ELMFramer			mFramer		= new ELMFramer(INPUT_BUFFER_SIZE);
 
 
 	// if true, then if we are disconnected we try to reconnect every so often.
@@ -93,6 +83,10 @@ public class ELMBT {
 
 	// The reconnect Thread.
 	Thread 	mtOverallStatus = null;
+
+	// The input reader thread. It's the only thing that reads from the transport. It blocks on the transport, files 
+	// what it gets into mFramer, and wakes up anybody waiting on mFramer. 
+	Thread	mtInputReader = null;
 	
 	// number of seconds between each overall-Status check.
 //	int		mOASDelay = 15;
@@ -122,10 +116,14 @@ public class ELMBT {
 
 	
 	// Stringbuilder, used ONLY by the IO Input reader. Defined here so that it doesn't have to get allocated each time. 
-	StringBuilder sbuf = new StringBuilder(INPUT_BUFFER_SIZE + 32);
+	StringBuilder sbuf = new StringBuilder(MAX_READ_CHUNK + 32);
 
 	// STATS
 	long mBytesIn = 0;
+	// readUpToCharacter() calls that saw their stop character, how long they waited in total, and how many gave up. 
+	long mReadsCompleted = 0;
+	long mReadMillisTotal = 0;
+	long mReadTimeouts = 0;
 	
 	// used to tell if we have just started or stopped discovering. 
 	private boolean mLastDiscoveryState = false;
@@ -142,15 +140,33 @@ public class ELMBT {
 	
 	/**
 	 * Constructor... 
-	 * @param numHeaderBits - 11 or 29
 	 * @param defaultAdapter - just pass us an adapter. You can do it since you have the context. We're just a java class without the context to grab the default adapter. 
 	 * @param peerMACAddress - MAC address, all uppercase, of the Bluetooth peer for which we are to connect.
 	 */
 	public ELMBT(BluetoothAdapter defaultAdapter,
 			String peerMACAddress) {
-		
-		mPeerMAC 	= peerMACAddress;
-		mBTAdapter 	= defaultAdapter;
+		this (new BluetoothTransport(defaultAdapter, peerMACAddress));
+	}
+
+	/**
+	 * Constructor for any transport, for example a TCPTransport pointed at a WiFi ELM327.  
+	 * @param transport - the (not yet connected) link to the device. We take care of connecting it. 
+	 */
+	public ELMBT(ELMTransport transport) {
+		mTransport = transport;
+		if (transport instanceof BluetoothTransport)
+			mBluetooth = (BluetoothTransport) transport;
+
+		// if the link dies underneath us, find out about it right away instead of waiting for the I/O error count to climb. 
+		mTransport.registerStateChangeCallback(new EventCallback () {
+			@Override
+			public void onStateChange(int oldState, int newState) {
+				if (newState == 0 && mConnected == true) {
+					if (DEBUG) msg ("Transport reports the link is down.");
+					setConnected(false);
+				}
+			}
+		});
 
 		init();
 	}
@@ -164,6 +180,7 @@ public class ELMBT {
 		if (DEBUG) msg ("init(): Initializing");
 		resetConnection();
 		startOverallStatusThread();
+		startInputReaderThread();
 		
 		mUTLastStateChange = eTime.getUptimeSeconds();
 		mUTLastConnectionAttempt = eTime.getUptimeSeconds() - 60;
@@ -183,27 +200,11 @@ public class ELMBT {
 	
 	
 	/**
-	 * @return - true if bluetooth is connected and ready for IO, false otherwise. 
+	 * @return - true if the transport is connected and ready for IO, false otherwise. 
 	 */
 	private boolean isBTConnected() {
 		
-		if (mBTSocket == null) {
-			if (DEBUG==true) msg ("Not connected: btsocket");
-			return false;
-		}
-		
-		if (mBTAdapter == null) {
-			if (DEBUG==true) msg ("Not connected: btAdapter");
-			return false;
-		}
-
-		if (mBTReader == null) {
-//			msg ("Not connected: i.stream");
-			return false;
-		}
-
-		if (mBTOutputStream == null) {
-//			msg ("Not connected: o.stream");
+		if (mTransport.isOpen() != true) {
 			return false;
 		}
 		
@@ -258,6 +259,70 @@ public class ELMBT {
 		return true;
 	}
 
+	/**
+	 * Starts the thread which reads from the transport. Reads block until data arrives, so callers waiting for 
+	 * a prompt get woken up as soon as it shows up rather than at the next sleep-poll interval. 
+	 * @return - true on success, false otherwise. 
+	 */
+	private boolean startInputReaderThread() {
+
+		if (mtInputReader != null) {
+			return false;
+		}
+
+		mtInputReader = new Thread() {
+
+			public void run () {
+				// raw bytes land here before being filtered into the framer. 
+				byte [] chunk = new byte[MAX_READ_CHUNK];
+				int n;
+
+				while (mThreadsOn == true) {
+					// Nothing to read if we're not connected. Wait until we are. 
+					// Also wait if the framer doesn't have room for a full chunk - readers notify us when they take data out. 
+					synchronized (mFramer) {
+						if (isConnected() == false || mFramer.free() < chunk.length) {
+							try {mFramer.wait(STATUS_THREAD_UPDATE_INTERVAL);} catch (InterruptedException e) {break;}
+							continue;
+						}
+					}
+
+					// blocks until the device sends us something. 
+					try {
+						n = mTransport.read(chunk, 0, chunk.length);
+						if (n < 0) throw new java.io.IOException("end of stream");
+					} catch (Exception e) {
+						if (isConnected() == true) {
+							msg ("IO_IN_ERR=" + e.getMessage());
+							ioErrorOccurredDuringInput();
+						}
+						// don't spin if the link is dead but nobody has noticed yet. 
+						if (EasyTime.safeSleep(100) == false) break;
+						continue;
+					}
+
+					if (n == 0) continue;
+
+					synchronized (mFramer) {
+						long droppedBefore = mFramer.getDroppedChars();
+						mFramer.put(chunk, 0, n);
+						mBytesIn += n;
+						if (mFramer.getDroppedChars() != droppedBefore)
+							msg ("Input Reader Thread: Threw out " + (mFramer.getDroppedChars() - droppedBefore) + " INVALID character(s).");
+
+						mFramer.notifyAll();
+					}
+				}// end of main while loop. 
+
+				if (DEBUG) msg ("Input Reader Thread: The party's over.");
+			}// end of run()
+		};
+
+		mtInputReader.start();
+
+		return true;
+	}
+
 	/**
 	 * This gets kicked off if bluetooth discovery is observed to have started or ended. 
 	 * @param newDiscoveryState
@@ -375,113 +440,32 @@ public class ELMBT {
 	private synchronized boolean connect() {
 		
 		if (isBTConnected() == true) {
-			if (DEBUG) msg ("Warning: connect() called while we're already connected to peer " + mPeerMAC + ". Returning true.");
+			if (DEBUG) msg ("Warning: connect() called while we're already connected to peer " + getPeerMAC() + ". Returning true.");
 			return true;
 		}
 		
-		if (checkBluetoothSettings() != true) {
-			msg ("connect(): ERROR: bluetooth NOT enabled and ready. Unable to connect().");
-			return false;
-		}
-		
-		if (BluetoothAdapter.checkBluetoothAddress(mPeerMAC) != true) {
-			msg ("connect(): ERROR: bluetooth MAC is INVALID: " + mPeerMAC);
-			return false;
-		}
-		
 		// Reset all streams and socket.
 		resetConnection();
 
-		// make sure peer is defined as a valid device based on their MAC. If not then do it. 
-		if (mBTDevice == null) 
-			mBTDevice = mBTAdapter.getRemoteDevice(mPeerMAC);
-		
-
-		// Use reflection, maybe. It doesn't help. 
-		// As described here: http://stackoverflow.com/questions/2660968/
-		// And complained about here: http://code.google.com/p/android/issues/detail?id=5427
-		if (USE_REFLECTION==true) {
-			try {
-				if (DEBUG) msg ("Creating socket binding using reflection...");
-				Method m = mBTDevice.getClass().getMethod("createRfcommSocket", new Class[] { int.class });
-				if (DEBUG) msg ("Creating sock");
-				BluetoothSocket sock = (BluetoothSocket) m.invoke(mBTDevice, 1);
-				if (DEBUG) msg ("Socket binding with reflection was successful!");
-				mBTSocket = sock;
-			} catch (Exception e) {
-				msg ("Error during rfcomm reflection: " + e.getMessage());
-				return false;
-			}
-		} else {
-			// Make an RFCOMM binding. 
-			try {mBTSocket = mBTDevice.createRfcommSocketToServiceRecord(UUID_RFCOMM_GENERIC);
-			} catch (Exception e1) {
-				msg ("connect(): Failed to bind to RFCOMM by UUID. msg=" + e1.getMessage());
-				return false;
-			}
-		}
-
-
-		// They say it is good to cancel discovery before connect, but does this cause us trouble if we try to connect to two different adapters at the same time? 
-		if (mBTAdapter.isDiscovering()) {
-			if (DEBUG) msg ("Cancelling active discovery session...");
-			cancelDiscovery();
-		}
-		
-		
 		if (DEBUG) msg ("connect(): Trying to connect...");
 
-		try {
-			mBTSocket.connect();
-		} catch (Exception e) {
-			msg ("connect(): Failed attempt number " + (mSuccessiveFailedConnects+1) + " of " + mMaxSuccessiveConnectFails + " while connecting to " + mPeerMAC + "(" + mBTDevice.getName() + "). Error was: " + e.getMessage());
+		if (mTransport.connect() != true) {
+			msg ("connect(): Failed attempt number " + (mSuccessiveFailedConnects+1) + " of " + mMaxSuccessiveConnectFails + " while connecting to " + getPeerMAC() + "(" + getPeerName() + ")");
 			return false;
-			// there was a problem connecting... make a note of the particulars and move on. 
 		}
 
-		if (DEBUG) msg ("connect(): CONNECTED! Peer=" + mBTDevice.getAddress() + "(" + mBTDevice.getName() + ")");
-		
-		try {
-			mBTOutputStream = mBTSocket.getOutputStream();
-			//mBTInputStream  = new BufferedInputStream (mBTSocket.getInputStream(),INPUT_BUFFER_SIZE);
-			mBTReader = new BufferedReader(new InputStreamReader(mBTSocket.getInputStream()));
-			//msg ("Connecting non-buffered input stream...");
-			//mBTInputStream  = mBTSocket.getInputStream();
-		} catch (Exception e) {
-			msg ("connect(): Error attaching i/o streams to socket. msg=" + e.getMessage());
-			return false;
-		}
-		
+		if (DEBUG) msg ("connect(): CONNECTED! Peer=" + getPeerMAC() + "(" + getPeerName() + ")");
 		
 		return true;
 	}
 	
 	/**
-	 * Cancels discovery session, if one is in progress. 
+	 * Cancels discovery session, if one is in progress. Only applies to bluetooth transports.  
 	 * NOTE: Canceling a discovery actually takes a bit of time! like +/- 8 seconds. 
 	 */
 	public void cancelDiscovery() {
-		// is a discovery even in progress? 
-		if (! mBTAdapter.isDiscovering()) {
-			return;
-		}
-		
-		if (DEBUG) msg ("Cancelling discovery...");
-		
-		// send the official cancel signal. 
-		mBTAdapter.cancelDiscovery();
-
-		// Loop while we wait for discovery to cease. 
-		int x = 0;
-		while (mBTAdapter.isDiscovering() && x < 100) {
-			// testing: pause for two seconds to see if we can fix the issue where immediately after discovering a device, we have to try about 5-10 times to connect to it!
-			EasyTime.safeSleep(200);
-			x++;
-//			if (DEBUG) msg ("ELMBT loop# " + x + " waiting for discovery to end...");
-		}
-		
-		mGenStats.setStat("discovery.timeToCancel", "" + (x * 200) + "ms");
-		if (DEBUG) msg ("Cancel-Discovery operation blocked for " + (x*200) + "ms");
+		if (mBluetooth != null) 
+			mBluetooth.cancelDiscovery();
 	}
 
 
@@ -497,20 +481,7 @@ public class ELMBT {
 		// do a quick thing that will kick the tool out of ATMA mode. also submitted hardware feature request to scantool.net for this. 
 		sendRaw("X");
 		
-		if (mBTReader != null) {
-			try {mBTReader.close();} catch (Exception e) {}
-			mBTReader = null;
-		}
-		
-		if (mBTOutputStream != null) {
-			try {mBTOutputStream.close();} catch (Exception e) {}
-			mBTOutputStream = null;
-		}
-		
-		if (mBTSocket != null) {
-			try {mBTSocket.close();} catch (Exception e) {}
-			mBTSocket = null;
-		}
+		mTransport.close();
 
 		setConnected(false);
 
@@ -582,6 +553,11 @@ public class ELMBT {
 			if (DEBUG) msg ("connectionStateChanged(): We just connected!");
 			resetErrorCounters();
 			mBytesIn = 0;
+			synchronized (mFramer) {
+				mFramer.clear();
+				// get the input reader thread going. 
+				mFramer.notifyAll();
+			}
 
 			// Collect a few initial stats. 
 			// Send this warmstart with retries, so we can clear the stream and get to a clean I/O state with no buffers or junk on the stream.
@@ -594,6 +570,10 @@ public class ELMBT {
 		} else {
 			// we just disconnected. 
 			if (DEBUG) msg ("connectionStateChanged(): We just disconnected.");
+			// anybody waiting for input isn't going to get any. 
+			synchronized (mFramer) {
+				mFramer.notifyAll();
+			}
 		}
 
 		msg ("new connection state: " + mConnected + " last state lasted for " + getTimeInCurrentState() + " seconds.");
@@ -643,38 +623,23 @@ public class ELMBT {
 		cancelCurrentSleeps();
 
 		mtOverallStatus = null;
+		mtInputReader = null;
+
+		ELMCommandQueue q = mCommandQueue;
+		if (q != null) q.shutdown();
 		
 		eTime.shutdown();
 	}
 
 	/**
 	 * - Check the system bluetooth settings and make sure bluetooth is enabled and ready for use!
-	 * - This method may kick off a dialog to the user to request that bluetooth be enabled. 
-	 * @return - true if its available right now, false otherwise. 
+	 * @return - true if its available right now, false otherwise. Always true for non-bluetooth transports. 
 	 */
 	public boolean checkBluetoothSettings() {
-		// Check the 
-		if (mBTAdapter == null) {
-			msg ("WARNING: checkBluetoothSettings() was called without first initializing mbtadapter.");
-			return false;
-		}
-
-		String name = mBTAdapter.getName();
-		
-		// If we can get the name of the local bluetooth device then bt is definitely enabled and ready for use.  
-		if (name != null && name.length() > 0) {
-			//msg ("We are " + name);
+		if (mBluetooth == null)
 			return true;
-		} else {
-			msg ("Unable to determine name of local BT Adapter.");
-		}
-		
-		if (mBTAdapter.isEnabled() != true) {
-			// An activity could, at this point, display a system dialog requesting Bluetooth be activated...
-			return false;
-		}
-		
-		return false;
+
+		return mBluetooth.checkBluetoothSettings();
 	}
 
 
@@ -731,6 +696,7 @@ public class ELMBT {
 		}
 
 		long startTime = eTime.getUptimeSeconds();
+		long startMillis = ELMCommandQueue.now();
 		
 		clearInputBuffer();
 		sendRaw(Command + "\r");
@@ -753,10 +719,67 @@ public class ELMBT {
 
 		if (responseTime > 3)
 			msg ("OBD delayed response (" + responseTime + "s) request=" + Command + " response=" + response);
+
+		if (ADAPTIVE_TIMING == true)
+			updateTiming(Command, response, ELMCommandQueue.now() - startMillis);
 		
 		return response;
 	}
+
+	/**
+	 * Feed the timing controller with the outcome of a request, and send any timing changes it comes up with. 
+	 * AT commands don't count, except that a reset means the adapter forgot our timing settings. 
+	 */
+	private void updateTiming (String Command, String response, long elapsedMillis) {
+		String cmd = Command.replace(" ","").toUpperCase();
+
+		if (cmd.startsWith("AT") || cmd.startsWith("ST")) {
+			if (cmd.equals("ATZ") || cmd.equals("ATWS") || cmd.equals("ATD"))
+				mTiming.deviceReset();
+			return;
+		}
+
+		// An OBD request is an even number of hex digits. If there's one more, it's the response count digit, and the ELM didn't wait out its timeout. 
+		boolean countTerminated = (cmd.length() % 2 == 1);
+		boolean noData 		= response.contains("NO DATA");
+		boolean truncated 	= !response.endsWith(">") || response.contains("BUFFER FULL") || response.contains("DATA ERROR") || response.contains("CAN ERROR") || response.contains("STOPPED");
+
+		mTiming.recordResponse(elapsedMillis, countTerminated, noData, truncated);
+
+		String [] cmds = mTiming.takePendingCommands();
+		if (cmds == null)
+			return;
+
+		for (int i=0;i<cmds.length;i++) {
+			String r = sendATCommand(cmds[i]);
+			if (DEBUG) msg ("Timing: " + cmds[i] + "=" + r);
+		}
+	}
+
+	/**
+	 * @return - the controller that tunes the adapter's response timeout. 
+	 */
+	public ELMTimingController getTimingController () {
+		return mTiming;
+	}
 	
+	/**
+	 * Returns the command queue which sits in front of sendOBDCommand(). Use it instead of calling sendOBDCommand() directly 
+	 * if you'd rather not block behind whoever is using the device right now, or if your request is more (or less) urgent than others.  
+	 * @return - our command queue. Created on first call. 
+	 */
+	public ELMCommandQueue getCommandQueue () {
+		ELMCommandQueue q = mCommandQueue;
+		if (q != null)
+			return q;
+
+		synchronized (mCommandQueueLock) {
+			if (mCommandQueue == null)
+				mCommandQueue = new ELMCommandQueue(this);
+			return mCommandQueue;
+		}
+	}
+
 	/**
 	 * Send a single AT command and return the response. 
 	 * @param ATCommand - the AT command without \r. 
@@ -915,7 +938,7 @@ public class ELMBT {
 		
 		byte bsendThis[] = sendThis.getBytes();
 		
-		try {mBTOutputStream.write(bsendThis);} catch (Exception e) {
+		try {mTransport.write(bsendThis, 0, bsendThis.length);} catch (Exception e) {
 			msg ("IO_OUT_ERR=" + e.getMessage());
 			ioErrorOccurredDuringOutput();
 			return false;
@@ -928,35 +951,17 @@ public class ELMBT {
 	
 	/**
 	 * Wrapper method for getting number of bytes in the input buffer. 
-	 * We log errors if they occur. 
 	 * @return - the number of bytes waiting in the input buffer. 
-	 * TODO: .available() might not work on all devices so try using a bufferedReader and utilizing the boolean .available(). 
 	 */
 	public int inputBytesAvailable () {
-		int avail = 0; 
 
 		// there ain't nothing there if we're not connected!
 		if (isConnected() == false)
 			return 0;
 
-		try {
-			if (mBTReader.ready()) avail = 1; else avail = 0;
-		} catch (Exception e) {
-			msg ("IO_IN_ERR=" + e.getMessage());
-			ioErrorOccurredDuringInput();
+		synchronized (mFramer) {
+			return mFramer.size();
 		}
-		
-		
-		return avail;
-	}
-
-	/**
-	 * A convenience method for sleeping the current thread. 
-	 * Exceptions are caught by this method so you don't have to. 
-	 * @param millis
-	 */
-	private void safeSleep (int millis) {
-		try {Thread.sleep(millis);} catch (InterruptedException e) { }
 	}
 
 	/**
@@ -968,156 +973,100 @@ public class ELMBT {
 	}
 
 	/**
-	 * Shall return the number of bytes currently queued within the inputStream buffer.
+	 * Shall return the number of bytes currently queued within the input buffer.
 	 * @return
 	 */
 	public int getNumInputBytesBuffered () {
-		int avail = 0;
-		
-		try {
-			if (mBTReader.ready()) avail = 1; else avail = 0;
-		} catch (Exception e) {
-			// silent error. we'll have other opportunities to see an io problem. 
+		synchronized (mFramer) {
+			return mFramer.size();
 		}
-		
-		return avail;
 	}
 	
 	/**
-	 * Loop if necessary (limited by a timeout value) to read data from input buffer up to and including the prompt character. 
+	 * Wait (limited by a timeout value) for data up to and including the given character. 
+	 * We don't poll: the input reader thread wakes us up every time new data arrives, so we return as soon as the character shows up. 
 	 * This method is used by the sniffer logic, while in sniff mode.
-	 * @return
+	 * @return - everything read, up to and including the stop character. If we time out, whatever we got. 
 	 */
 	public String readUpToCharacter (char stopAtThisCharacter, int maxWaitSeconds) {
-		String ret = "";
-		int loops=0;
-		
-		// maximum number of seconds we allow ourselves to spend waiting to see the prompt character. This may block the caller so keep it low. 
-		final int READ_TIMEOUT = maxWaitSeconds;
-		// If no data is waiting in the input buffer, pause this number of milliseconds.
-		// Higher numbers like 300 seem to result in about a throughput of 3 ELM commands per second. 
-		// value 100 results in: Like 10 ELM commands per second!
-		// value 50 results in: 
-		final int MIN_READ_INTERVAL = 10;
-		final int MAX_READ_INTERVAL = 300;
-		
-		long upTimeLimit = eTime.getUptimeSeconds() + READ_TIMEOUT;
-		
-		long TEMPTIMESTART = EasyTime.getUnixTime();
-
-		long timeLeft = 1;
-		int loopCount = 0;
-		while (mThreadsOn == true && !ret.endsWith("" + stopAtThisCharacter) && isConnected() != false) {
-			loopCount++;
-			timeLeft = upTimeLimit - eTime.getUptimeSeconds();
-
-			// tracking down bugs. 
-			if (timeLeft > READ_TIMEOUT ) {
-				msg ("WTFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFF - timeleft=" + timeLeft + " and timeout=" + READ_TIMEOUT + " THIS SHIT SHOULD NOT FUCKING HAPPEN. BAILING OUT.");
-				timeLeft = 0;
-			}
-			
-			
-			// slow down the looping in the case when there is no data waiting in the buffer.
-			if (inputBytesAvailable() == 0) {
-				if (loopCount < 100)
-					safeSleep(MIN_READ_INTERVAL);
-				else
-					safeSleep(MAX_READ_INTERVAL);
-				
-			}
-			
-			ret = ret + readInputBuffer(stopAtThisCharacter); 
+		StringBuilder ret = new StringBuilder();
+		boolean sawStop = false;
+		int waits = 0;
+
+		long startTime = eTime.getUptimeMillis();
+		long deadline = startTime + maxWaitSeconds * 1000L;
+		long timeLeft;
+
+		synchronized (mFramer) {
+			while (mThreadsOn == true && isConnected() == true) {
+				sawStop = mFramer.drainTo(ret, stopAtThisCharacter, Integer.MAX_VALUE);
+				// we just made room. let the reader thread know in case it was waiting on us. 
+				mFramer.notifyAll();
+				if (sawStop) break;
+
+				timeLeft = deadline - eTime.getUptimeMillis();
+				if (timeLeft <= 0) {
+					if (DEBUG) msg ("Timeout during read: didn't see prompt within " + maxWaitSeconds + " seconds. RETURNING " + ret.length() + " bytes, waits=" + waits);
+					break;
+				}
 
-			// don't loop for too long. 
-//			if (timeLeft > 0) {
-			if (timeLeft <= 0) {
-				if (DEBUG) msg ("Timeout during read: didn't see prompt within " + READ_TIMEOUT + " seconds. RETURNING " + ret.length() + " bytes, timeout=" + READ_TIMEOUT + " loops=" + loops);
-				break;
+				try {mFramer.wait(timeLeft);} catch (InterruptedException e) {break;}
+				waits++;
 			}
-			
-			loops++;
 		}
 
-		if (DEBUG) {
-			long elpsd =TEMPTIMESTART - EasyTime.getUnixTime(); 
-			if (elpsd < 5 && ret.length() < 1) {
-				if (DEBUG) msg ("ebt.readuptocharacter: No bytes were read by elapsed time seems to be too low... elapsed=" + elpsd);
-			}
-				
-		}
-		
-		if (loops>30) {
-			if (DEBUG) msg ("readUpToPrompt(): Looped " + loops + " times waiting for prompt (that was probably too many). ");
+		if (ret.length() > 0)
+			ioResetInputErrorCount();
+
+		// stats. 
+		if (sawStop) {
+			mReadsCompleted++;
+			mReadMillisTotal += eTime.getUptimeMillis() - startTime;
 		} else {
-//			if (DEBUG) msg ("readuptoprompt(): Good read. Loops=" + loops + " read " + ret.length() + " bytes.");
+			mReadTimeouts++;
 		}
-		
-		return ret;
+
+		return ret.toString();
 	}
 	
 	/**
-	 * Read the contents of the input buffer and return it as a nicely formatted string. 
-	 * Note that CR/LF characters are converted into '|' by this method. 
-	 * null characters and other invalid things are thrown away. 
-	 * NEW: Pass it a character value upon which reading we'll stop reading from the input buffer.
-	 * NOTE: This method does not wait for new data to arrive. It just reads from the existing input buffer.  
-	 * This may be useful for reading individual messages during a sniff session. 
-	 * @return - returns the contents of the input buffer as a string.  
-	 * @param UpToThisCharacter - set to '\0' to disable, or set it to the character at which we will read and stop reading. 
+	 * Wait (limited by a timeout value) for the next complete line of input and copy it into the given frame.
+	 * Same idea as readUpToCharacter but nothing gets allocated, so it's what the sniffer uses at full bus load.
+	 * @return - true if f now holds a line, false if we timed out or disconnected (f is untouched).
 	 */
-	private String readInputBuffer_stringbuilder(char UpToThisCharacter) {
-		char thisByte = 0;
-
-		// sbuf will contain the bytes that we read from the input buffer. We read them one at 
-		//    a time, and for that reason I've chosen to go with a string builder because it is 
-		//    mutable, whereas a String is immutable and inevidebly slower. 
-		sbuf.setLength(0);
-		
-		// convert the input buffer bytes, one-by-one, into a string, which we'll return. 
-		try {
-			while (mBTReader != null && inputBytesAvailable() > 0) {
-				thisByte = (char)mBTReader.read();
-
-				//msg ("HALLALUGJAH THERE WAS A BYTE IN THE BUFFER!");
-				// for stats. 
-				mBytesIn++;
-				
-				// is it a valid printable character? 
-				if (thisByte >= 32 && thisByte <=  127)  {
-					sbuf.append(thisByte);
-				} else {
-					// convert CR/LF into vertical bar, other nonprintable characters get thrown away to preserve formatting.
-					if (thisByte == 13 || thisByte == 10) {
-						sbuf.append("|");
-						// a hack, for later comparison.
-						thisByte = '|';
-					}
-					
-					else // must have been a bad character. throw it away. 
-						msg ("readInputBuffer(): Threw out one INVALID character. code=" + (int)thisByte);
+	public boolean readFrame (ELMFramer.Frame f, int maxWaitSeconds) {
+		boolean gotOne = false;
+
+		long startTime = eTime.getUptimeMillis();
+		long deadline = startTime + maxWaitSeconds * 1000L;
+		long timeLeft;
+
+		synchronized (mFramer) {
+			while (mThreadsOn == true && isConnected() == true) {
+				gotOne = mFramer.nextFrame(f);
+				if (gotOne) {
+					// we just made room. let the reader thread know in case it was waiting on us.
+					mFramer.notifyAll();
+					break;
 				}
-				
-				// if we just processed the "stop here" character then break out of the loop!
-				if (UpToThisCharacter != 0 && thisByte == UpToThisCharacter) {
-					//msg ("Got sentinel. String=" + sbuf.toString());
+
+				timeLeft = deadline - eTime.getUptimeMillis();
+				if (timeLeft <= 0)
 					break;
-				} 
-				
-				
-			}// end of while. 
-		} catch (Exception e) {
-			msg ("IO_IN_ERR=" + e.getMessage());
-			ioErrorOccurredDuringInput();
-			// return whatever bytes we were able to read. 
-			return sbuf.toString();
+
+				try {mFramer.wait(timeLeft);} catch (InterruptedException e) {break;}
+			}
 		}
 
-		// if we got something then reset input error count.
-		if (sbuf.length()>0)
+		if (gotOne) {
 			ioResetInputErrorCount();
-		
-		return sbuf.toString();
+			mReadsCompleted++;
+			mReadMillisTotal += eTime.getUptimeMillis() - startTime;
+		} else {
+			mReadTimeouts++;
+		}
+
+		return gotOne;
 	}
 
 	public String readInputBuffer (char UpToThisCharacter) {
@@ -1125,60 +1074,29 @@ public class ELMBT {
 	}
 
 	/**
-	 * Reads all bytes from the input buffer UP TO 4K. 
-	 * In the case of a device that is in sniff mode, it would read forever unless we put the byte limit (4k) on it.  
-	 * @param UpToThisCharacter
-	 * @return
+	 * Read the contents of the input buffer and return it as a nicely formatted string. 
+	 * Note that CR/LF characters are converted into '|' by this method. 
+	 * null characters and other invalid things are thrown away. 
+	 * Pass it a character value upon which reading we'll stop reading from the input buffer; anything after it stays buffered for next time.
+	 * NOTE: This method does not wait for new data to arrive. It just reads from the existing input buffer.  
+	 * Reads at most 4K. In the case of a device that is in sniff mode, it would read forever unless we put the byte limit (4k) on it.  
+	 * @param UpToThisCharacter - set to '\0' to disable, or set it to the character at which we will read and stop reading. 
+	 * @return - returns the contents of the input buffer as a string.  
 	 */
 	public String readInputBuffer_string(char UpToThisCharacter) {
-		char thisByte = 0;
 
-		String sbuf = "";
-		
-		// convert the input buffer bytes, one-by-one, into a string, which we'll return. 
-		try {
-			while (mBTReader != null && inputBytesAvailable() > 0 && sbuf.length() < 4096) {
-				thisByte = (char)mBTReader.read();
+		synchronized (mFramer) {
+			sbuf.setLength(0);
+
+			mFramer.drainTo(sbuf, UpToThisCharacter, MAX_READ_CHUNK);
+			mFramer.notifyAll();
+
+			// if we got something then reset input error count.
+			if (sbuf.length()>0)
+				ioResetInputErrorCount();
 
-				//msg ("HALLALUGJAH THERE WAS A BYTE IN THE BUFFER!");
-				// for stats. 
-				mBytesIn++;
-				
-				// is it a valid printable character? 
-				if (thisByte >= 32 && thisByte <=  127)  {
-					sbuf = sbuf + thisByte;
-				} else {
-					// convert CR/LF into vertical bar, other nonprintable characters get thrown away to preserve formatting.
-					if (thisByte == 13 || thisByte == 10) {
-						sbuf = sbuf + "|";
-						// a hack, for later comparison.
-						thisByte = '|';
-					}
-					
-					else // must have been a bad character. throw it away. 
-						msg ("readInputBuffer_String(): Threw out one INVALID character. code=" + (int)thisByte);
-				}
-				
-				// if we just processed the "stop here" character then break out of the loop!
-				if (UpToThisCharacter != 0 && thisByte == UpToThisCharacter) {
-					//msg ("Got sentinel. String=" + sbuf.toString());
-					break;
-				} 
-				
-				
-			}// end of while. 
-		} catch (Exception e) {
-			msg ("IO_IN_ERR=" + e.getMessage());
-			ioErrorOccurredDuringInput();
-			// return whatever bytes we were able to read. 
 			return sbuf.toString();
 		}
-
-		// if we got something then reset input error count.
-		if (sbuf.length()>0)
-			ioResetInputErrorCount();
-		
-		return sbuf;
 	}
 
 	
@@ -1319,24 +1237,24 @@ public class ELMBT {
 	 * @return - returns a string representation of the bluetooth device's MAC address. 
 	 */
 	public String getAdapterMAC () {
-		return mBTAdapter.getAddress();
+		if (mBluetooth == null)
+			return "";
+
+		return mBluetooth.getAdapterMAC();
 	}
 
 	/**
-	 * @return - the name of the bluetooth peer device as found through discovery. 
+	 * @return - the name of the peer device as found through discovery. 
 	 */
 	public String getPeerName() {
-		if (mBTDevice != null) 
-			return mBTDevice.getName();
-		else
-			return "";
+		return mTransport.getPeerName();
 	}
 	
 	/**
-	 * @return - the MAC of the bluetooth peer device as found through discovery. 
+	 * @return - the MAC of the bluetooth peer device, or host:port for a TCP transport. 
 	 */
 	public String getPeerMAC() {
-		return mPeerMAC;
+		return mTransport.getPeerAddress();
 	}
 
 	/**
@@ -1380,7 +1298,7 @@ public class ELMBT {
 	 */
 	public void notifyBluetoothDisconnected(String address) {
 		// Does the specified MAC match our own? 
-		if (address.equals(mPeerMAC)) 
+		if (address.equals(getPeerMAC())) 
 			// force the connected state to "disconnected" so that we have to re-connect.
 			disconnect();
 	}
@@ -1399,37 +1317,31 @@ public class ELMBT {
 		mGenStats.setStat("connected","" + mConnected);
 		mGenStats.setStat("connectStopped", "" + isIODoneTrying());
 
-		mGenStats.setStat("useReflection","" + USE_REFLECTION);
-		
 		mGenStats.setStat("errorsIn","" + mErrorsIn);
 		mGenStats.setStat("errorsOut","" + mErrorsOut);
 		mGenStats.setStat("bytesIn","" + mBytesIn);
+		mGenStats.setStat("inputBuffered","" + mFramer.size());
+		mGenStats.setStat("invalidCharsIn","" + mFramer.getDroppedChars());
+		mGenStats.setStat("reads.completed","" + mReadsCompleted);
+		mGenStats.setStat("reads.timeouts","" + mReadTimeouts);
+		if (mReadsCompleted > 0)
+			mGenStats.setStat("reads.avgMillis","" + (mReadMillisTotal / mReadsCompleted));
 		
-		mGenStats.setStat("peerMAC","" + mPeerMAC);
+		mGenStats.setStat("peerMAC","" + getPeerMAC());
 		
 		mGenStats.setStat("state","" + isConnected());
 		mGenStats.setStat("stateTime", "" + getTimeInCurrentState());
 		mGenStats.setStat("timeSinceLastConnect", "" + getTimeSinceLastConnect());
 
 
-		try {
-			mGenStats.setStat("localMAC","" + mBTAdapter.getAddress());
-			mGenStats.setStat("localName","" + mBTAdapter.getName());
-			mGenStats.setStat("peerName","" + mBTDevice.getName());
-			mGenStats.setStat("peerClass","" + mBTDevice.getBluetoothClass().getDeviceClass());
-			mGenStats.setStat("peerBondState","" + mBTDevice.getBondState());
-			if (mBTSocket != null) {
-				mGenStats.setStat("socketReady","true");
-			} else {
-				mGenStats.setStat("socketReady","false");
-			}
-			
-		} catch (Exception e) {
-			msg ("Error while fetching peer device stats: " + e.getMessage());
-			mGenStats.setStat("statError","" + e.getMessage());
-		}
-		
-		
+		mGenStats.merge("transport", mTransport.getStats());
+
+		ELMCommandQueue q = mCommandQueue;
+		if (q != null)
+			mGenStats.merge("queue", q.getStats());
+
+		if (ADAPTIVE_TIMING == true)
+			mGenStats.merge("timing", mTiming.getStats());
 	}
 	
 	public GeneralStats getStats () {
@@ -1442,6 +1354,7 @@ public class ELMBT {
 	 */
 	public void cancelCurrentSleeps () {
 		mtOverallStatus.interrupt();
+		if (mtInputReader != null) mtInputReader.interrupt();
 	}
 
 
@@ -1518,15 +1431,10 @@ public class ELMBT {
 	 * @return - true if we're discovering, false if we're not, or an error occurred. 
 	 */
 	public boolean isDiscovering () {
+		if (mBluetooth == null)
+			return false;
 
-		boolean x = false;
-		try {
-			x = mBTAdapter.isDiscovering();
-		} catch (Exception e) {
-			msg ("ERROR while trying to check discovery status. E=" + e.getMessage());
-		}
-
-		return x;
+		return mBluetooth.isDiscovering();
 	}
 	
 }
@@ -0,0 +1,280 @@
+/**
+ * (C) 2011 libvoyager is licensed under a Creative Commons Attribution-NonCommercial 3.0 Unported License.
+ * Permissions beyond the scope of this license may be available at http://www.gtosoft.com. You can download,
+ * use, modify the code as long as you do not include it as part of commercial software.
+ */
+
+package com.gtosoft.libvoyager.android;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import android.util.Log;
+
+import com.gtosoft.libvoyager.util.GeneralStats;
+
+/**
+ * A single-writer command queue in front of ELMBT.sendOBDCommand().
+ * Callers submit a command and get back a Request (a Future) instead of parking their thread on the ELMBT monitor.
+ * One writer thread takes requests off the queue in priority order and sends them to the device one at a time.
+ *
+ * Priorities: lower number goes first. Within a priority, first come first served.
+ * Deadlines: a request that hasn't been sent by its deadline is dropped and completes with a blank response.
+ * Once a request has been sent to the device it always runs to completion.
+ * @author brad
+ */
+
+public class ELMCommandQueue {
+
+	final boolean DEBUG = false;
+
+	// Priority classes.
+	public static final int PRIORITY_INTERACTIVE 	= 0;	// someone is looking at a screen waiting for this.
+	public static final int PRIORITY_NORMAL 		= 5;	// default.
+	public static final int PRIORITY_BACKGROUND 	= 10;	// routine scans and such.
+
+	ELMBT ebt;
+
+	PriorityBlockingQueue<Request> mQueue = new PriorityBlockingQueue<Request>();
+
+	Thread mtWriter = null;
+	// only changed while holding our monitor, so submit() and shutdown() agree on it. 
+	volatile boolean mThreadsOn = true;
+
+	// tie-breaker so equal priorities stay in submission order.
+	long mNextSeq = 0;
+
+	GeneralStats mgStats = new GeneralStats();
+
+	// stats. Only touched by the writer thread except where noted.
+	long mSubmitted 	= 0; // touched by submit() - synchronized.
+	long mSent 			= 0;
+	long mCancelled 	= 0;
+	long mExpired 		= 0;
+	long mWaitMillisTotal 	= 0;
+	long mWaitMillisMax 	= 0;
+	long mExecMillisTotal 	= 0;
+	long mExecMillisMax 	= 0;
+
+	/**
+	 * One queued command. Use it like any Future - get() blocks until the device responds.
+	 */
+	public class Request extends FutureTask<String> implements Comparable<Request> {
+		final String mCommand;
+		final int mPriority;
+		// absolute deadline (ms, see now()) by which we must have started sending this, or 0 for none.
+		final long mDeadline;
+		final long mSeq;
+		final long mEnqueuedAt;
+
+		Request (final String command, int priority, long deadline, long seq) {
+			super (new Callable<String>() {
+				public String call() {
+					return ebt.sendOBDCommand(command);
+				}
+			});
+
+			mCommand 	= command;
+			mPriority 	= priority;
+			mDeadline 	= deadline;
+			mSeq 		= seq;
+			mEnqueuedAt = now();
+		}
+
+		public int compareTo(Request other) {
+			if (mPriority != other.mPriority)
+				return mPriority < other.mPriority ? -1 : 1;
+
+			if (mSeq == other.mSeq) return 0;
+			return mSeq < other.mSeq ? -1 : 1;
+		}
+
+		public String getCommand () {
+			return mCommand;
+		}
+
+		public int getPriority () {
+			return mPriority;
+		}
+
+		/**
+		 * Complete without ever sending, because we missed the deadline or are shutting down.
+		 */
+		void drop () {
+			set("");
+		}
+	}
+
+	public ELMCommandQueue (ELMBT e) {
+		ebt = e;
+		startWriterThread();
+	}
+
+	/**
+	 * Queue up a command.
+	 * @param command - for example "01 0C". Same as ELMBT.sendOBDCommand().
+	 * @param priority - one of the PRIORITY_ constants (any int works, lower goes first).
+	 * @param timeoutMillis - drop the request if it hasn't been sent within this many ms. 0 means wait as long as it takes.
+	 * @return - a Request whose get() returns the raw response.
+	 */
+	public synchronized Request submit (String command, int priority, long timeoutMillis) {
+		long deadline = 0;
+		if (timeoutMillis > 0)
+			deadline = now() + timeoutMillis;
+
+		Request r = new Request(command, priority, deadline, mNextSeq++);
+
+		if (mThreadsOn != true) {
+			r.drop();
+			return r;
+		}
+
+		mSubmitted++;
+		mQueue.add(r);
+		return r;
+	}
+
+	/**
+	 * Convenience method: submit and wait for the response.
+	 * If the deadline passes before the request gets sent, we cancel it and return a blank string.
+	 * @return - the raw response, or "" if the request was dropped, cancelled or interrupted.
+	 */
+	public String sendAndWait (String command, int priority, long timeoutMillis) {
+		Request r = submit(command, priority, timeoutMillis);
+
+		try {
+			if (timeoutMillis > 0) {
+				try {
+					return r.get(timeoutMillis, TimeUnit.MILLISECONDS);
+				} catch (TimeoutException e) {
+					// not done yet. If it hasn't been sent we can pull it, otherwise it's already on the wire so wait for it.
+					if (r.cancel(false))
+						return "";
+				}
+			}
+
+			return r.get();
+		} catch (Exception e) {
+			// cancelled, or interrupted.
+			return "";
+		}
+	}
+
+	private void startWriterThread () {
+		if (mtWriter != null)
+			return;
+
+		mtWriter = new Thread() {
+			public void run () {
+				Request r;
+				while (mThreadsOn == true) {
+					try {
+						r = mQueue.poll(1000, TimeUnit.MILLISECONDS);
+					} catch (InterruptedException e) {
+						break;
+					}
+
+					if (r == null) continue;
+
+					sendOne(r);
+				}
+
+				// anything that got in while we were on our way out.
+				dropLeftovers();
+
+				if (DEBUG) msg ("Writer thread: The party's over.");
+			}
+		};
+
+		mtWriter.start();
+	}
+
+	/**
+	 * Send one request, unless it was cancelled or its deadline passed while it sat in the queue.
+	 */
+	private void sendOne (Request r) {
+		if (r.isCancelled()) {
+			mCancelled++;
+			return;
+		}
+
+		long startTime = now();
+
+		if (r.mDeadline > 0 && startTime > r.mDeadline) {
+			if (DEBUG) msg ("Dropped expired request " + r.mCommand + " after " + (startTime - r.mEnqueuedAt) + "ms in queue.");
+			mExpired++;
+			r.drop();
+			return;
+		}
+
+		long waited = startTime - r.mEnqueuedAt;
+		mWaitMillisTotal += waited;
+		if (waited > mWaitMillisMax) mWaitMillisMax = waited;
+
+		// runs ebt.sendOBDCommand(). If someone cancelled at the last moment, FutureTask won't run it.
+		r.run();
+
+		long exec = now() - startTime;
+		mExecMillisTotal += exec;
+		if (exec > mExecMillisMax) mExecMillisMax = exec;
+		mSent++;
+	}
+
+	/**
+	 * @return - number of requests waiting to be sent.
+	 */
+	public int getDepth () {
+		return mQueue.size();
+	}
+
+	/**
+	 * Stop the writer and drop anything still queued. Callers waiting on dropped requests get a blank response.
+	 * Synchronized with submit(), so once the flag is down nothing else gets queued, and whatever was queued before gets dropped here.
+	 */
+	public synchronized void shutdown () {
+		mThreadsOn = false;
+
+		if (mtWriter != null) mtWriter.interrupt();
+		mtWriter = null;
+
+		dropLeftovers();
+	}
+
+	private void dropLeftovers () {
+		ArrayList<Request> leftovers = new ArrayList<Request>();
+		mQueue.drainTo(leftovers);
+		for (Request r : leftovers)
+			r.drop();
+	}
+
+	public GeneralStats getStats () {
+		mgStats.setStat("depth", getDepth());
+		mgStats.setStat("submitted", mSubmitted);
+		mgStats.setStat("sent", mSent);
+		mgStats.setStat("cancelled", mCancelled);
+		mgStats.setStat("expired", mExpired);
+		mgStats.setStat("waitMillisMax", mWaitMillisMax);
+		mgStats.setStat("execMillisMax", mExecMillisMax);
+		if (mSent > 0) {
+			mgStats.setStat("waitMillisAvg", mWaitMillisTotal / mSent);
+			mgStats.setStat("execMillisAvg", mExecMillisTotal / mSent);
+		}
+
+		return mgStats;
+	}
+
+	/**
+	 * Monotonic milliseconds. Safe to call from any thread (unlike an EasyTime instance).
+	 */
+	static long now () {
+		return System.nanoTime() / 1000000L;
+	}
+
+	private void msg (String message) {
+		Log.d("ECQ",message);
+	}
+}
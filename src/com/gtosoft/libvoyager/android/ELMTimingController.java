@@ -0,0 +1,269 @@
+/**
+ * (C) 2011 libvoyager is licensed under a Creative Commons Attribution-NonCommercial 3.0 Unported License.
+ * Permissions beyond the scope of this license may be available at http://www.gtosoft.com. You can download,
+ * use, modify the code as long as you do not include it as part of commercial software.
+ */
+
+package com.gtosoft.libvoyager.android;
+
+import java.util.Arrays;
+
+import android.util.Log;
+
+import com.gtosoft.libvoyager.util.GeneralStats;
+
+/**
+ * Tunes the ELM's response timeout (ATST) and adaptive timing mode (ATAT) based on how fast the ECUs actually answer.
+ *
+ * ELMBT tells us about every OBD request: how long it took from send to prompt, and whether it came back as NO DATA
+ * or truncated. Every so often we look at the recent latencies, take the 99th percentile, add some margin, and
+ * if that's meaningfully different from what the adapter is set to, we hand ELMBT a couple of AT commands to send.
+ *
+ * If NO DATA or truncated responses start climbing above what we saw at the default timeout, we double the
+ * timeout, drop back to normal adaptive timing, and leave it alone for a while.
+ *
+ * Latency notes: unless the request carried a response count digit, the ELM keeps waiting after the last response. How long
+ * depends on the adaptive timing mode (ATAT1, the power-up default, and ATAT2 both cut it short by however much they feel like),
+ * so send to prompt says nothing useful about the ECU. Only count-terminated requests give us latency samples. The others
+ * still count towards the bad-response rate.
+ * @author brad
+ */
+
+public class ELMTimingController {
+
+	final boolean DEBUG = false;
+
+	// ATST units are 4.096ms. 0x32 (~205ms) is the ELM's power-up default, FF (~1044ms) is the max.
+	static final double ST_UNIT_MILLIS 	= 4.096;
+	static final int DEFAULT_TIMEOUT 	= 205;
+	static final int MIN_TIMEOUT 		= 40;
+	static final int MAX_TIMEOUT 		= 1044;
+
+	// p99 gets multiplied by this, plus a fixed pad, to get the timeout.
+	final double MARGIN 		= 1.5;
+	final int PAD_MILLIS 		= 15;
+
+	// look at things every this-many requests.
+	final int EVALUATE_EVERY 	= 50;
+
+	// recent samples for the percentile math. Power of two.
+	final int WINDOW 			= 256;
+
+	// back off if the bad-response rate rises this far above the baseline.
+	final double BACKOFF_THRESHOLD = 0.05;
+
+	// after a back-off, don't tighten again for this many evaluations.
+	final int BACKOFF_HOLD 		= 10;
+
+	// Use aggressive adaptive timing (ATAT2) when the timeout is this tight and things are going well.
+	final int AGGRESSIVE_BELOW 	= 100;
+
+	// Histogram bucket upper bounds (ms). The last bucket catches everything slower.
+	static final int [] BUCKETS = {10, 20, 30, 50, 75, 100, 150, 200, 300, 500, 750, 1000, 2000};
+	long [] mHistogram = new long[BUCKETS.length + 1];
+
+	// ring of the most recent ECU latencies.
+	int [] mWindow 		= new int[WINDOW];
+	int [] mSorted 		= new int[WINDOW];
+	int mWindowCount 	= 0;
+	long mWindowPos 	= 0;
+
+	// bad-response accounting for the current evaluation period.
+	int mPeriodRequests = 0;
+	int mPeriodBad 		= 0;
+
+	// bad-response rate at the default timeout. -1 until we've measured it.
+	double mBaselineBadRate = -1;
+
+	// what the adapter is (or soon will be) set to.
+	int mTimeoutMillis 	= DEFAULT_TIMEOUT;
+	int mATMode 		= 1;
+
+	// commands ELMBT needs to send. null if nothing to do.
+	String [] mPending 	= null;
+
+	int mHoldRemaining 	= 0;
+
+	GeneralStats mgStats = new GeneralStats();
+	long mSamples 		= 0;
+	long mUnmeasured 	= 0;
+	long mNoData 		= 0;
+	long mTruncated 	= 0;
+	long mBackoffs 		= 0;
+	long mAdjustments 	= 0;
+
+	/**
+	 * Record the outcome of one OBD request.
+	 * @param elapsedMillis - send to prompt.
+	 * @param countTerminated - true if the request carried a response count digit, so the prompt came right after the last answer. 
+	 *   Only those give us a latency sample.
+	 * @param noData - true if the response was NO DATA.
+	 * @param truncated - true if the response was cut off or garbled (no prompt, BUFFER FULL, DATA ERROR and so on).
+	 */
+	public synchronized void recordResponse (long elapsedMillis, boolean countTerminated, boolean noData, boolean truncated) {
+		mPeriodRequests++;
+
+		if (noData) mNoData++;
+		if (truncated) mTruncated++;
+		if (noData || truncated) {
+			mPeriodBad++;
+		} else if (countTerminated) {
+			addSample((int) elapsedMillis);
+		} else {
+			mUnmeasured++;
+		}
+
+		if (mPeriodRequests >= EVALUATE_EVERY)
+			evaluate();
+	}
+
+	private void addSample (int millis) {
+		mSamples++;
+		mWindow[(int)(mWindowPos++ & (WINDOW - 1))] = millis;
+		if (mWindowCount < WINDOW) mWindowCount++;
+
+		int b = 0;
+		while (b < BUCKETS.length && millis > BUCKETS[b]) b++;
+		mHistogram[b]++;
+	}
+
+	/**
+	 * @return - the given percentile (0-100) of the recent ECU latencies, or -1 if we have none.
+	 */
+	public synchronized int getPercentile (int pct) {
+		if (mWindowCount < 1)
+			return -1;
+
+		System.arraycopy(mWindow, 0, mSorted, 0, mWindowCount);
+		Arrays.sort(mSorted, 0, mWindowCount);
+
+		int idx = (int) Math.ceil(pct / 100.0 * mWindowCount) - 1;
+		if (idx < 0) idx = 0;
+		if (idx >= mWindowCount) idx = mWindowCount - 1;
+		return mSorted[idx];
+	}
+
+	private void evaluate () {
+		double badRate = (double) mPeriodBad / mPeriodRequests;
+		mPeriodRequests = 0;
+		mPeriodBad = 0;
+
+		// the first period runs at the default timeout. Whatever NO DATA rate we see there is normal for this car (unsupported PIDs and such).
+		if (mBaselineBadRate < 0) {
+			mBaselineBadRate = badRate;
+			if (DEBUG) msg ("Baseline bad-response rate: " + badRate);
+		} else if (badRate > mBaselineBadRate + BACKOFF_THRESHOLD) {
+			backOff(badRate);
+			return;
+		}
+
+		if (mHoldRemaining > 0) {
+			mHoldRemaining--;
+			return;
+		}
+
+		int p99 = getPercentile(99);
+		if (p99 < 0)
+			return;
+
+		int target = (int) (p99 * MARGIN) + PAD_MILLIS;
+		if (target < MIN_TIMEOUT) target = MIN_TIMEOUT;
+		if (target > MAX_TIMEOUT) target = MAX_TIMEOUT;
+
+		// don't tighten by more than half in one step.
+		if (target < mTimeoutMillis / 2)
+			target = mTimeoutMillis / 2;
+
+		int mode = (target < AGGRESSIVE_BELOW) ? 2 : 1;
+
+		// only bother the adapter if it's a real change - at least 10%, or the mode changed.
+		if (mode == mATMode && Math.abs(target - mTimeoutMillis) * 10 < mTimeoutMillis)
+			return;
+
+		if (DEBUG) msg ("Timeout " + mTimeoutMillis + "ms -> " + target + "ms, ATAT" + mode + " (p99=" + p99 + "ms)");
+		apply(target, mode);
+		mAdjustments++;
+	}
+
+	private void backOff (double badRate) {
+		int target = mTimeoutMillis * 2;
+		if (target > MAX_TIMEOUT) target = MAX_TIMEOUT;
+
+		msg ("Bad response rate " + badRate + " (baseline " + mBaselineBadRate + "). Backing off timeout " + mTimeoutMillis + "ms -> " + target + "ms");
+		apply(target, 1);
+		mHoldRemaining = BACKOFF_HOLD;
+		mBackoffs++;
+	}
+
+	private void apply (int timeoutMillis, int mode) {
+		mTimeoutMillis = timeoutMillis;
+		mATMode = mode;
+		mPending = getCurrentSettingsCommands();
+	}
+
+	/**
+	 * @return - the AT commands that put the adapter in our current settings.
+	 */
+	private String [] getCurrentSettingsCommands () {
+		int st = (int) Math.ceil(mTimeoutMillis / ST_UNIT_MILLIS);
+		if (st < 1) st = 1;
+		if (st > 0xFF) st = 0xFF;
+
+		String hex = Integer.toHexString(st).toUpperCase();
+		if (hex.length() < 2) hex = "0" + hex;
+
+		String [] cmds = {"ATAT" + mATMode, "ATST" + hex};
+		return cmds;
+	}
+
+	/**
+	 * ELMBT calls this after each request. If there's something to send, we hand it over (once).
+	 * @return - AT commands to send, or null.
+	 */
+	public synchronized String [] takePendingCommands () {
+		String [] ret = mPending;
+		mPending = null;
+		return ret;
+	}
+
+	/**
+	 * The adapter was reset or reconnected and lost its settings. Re-send ours, unless they're the defaults anyways.
+	 */
+	public synchronized void deviceReset () {
+		if (mTimeoutMillis != DEFAULT_TIMEOUT || mATMode != 1)
+			mPending = getCurrentSettingsCommands();
+	}
+
+	/**
+	 * @return - the response timeout (ms) the adapter is set to.
+	 */
+	public synchronized int getTimeoutMillis () {
+		return mTimeoutMillis;
+	}
+
+	public synchronized GeneralStats getStats () {
+		mgStats.setStat("timeoutMillis", mTimeoutMillis);
+		mgStats.setStat("atMode", mATMode);
+		mgStats.setStat("samples", mSamples);
+		mgStats.setStat("unmeasured", mUnmeasured);
+		mgStats.setStat("noData", mNoData);
+		mgStats.setStat("truncated", mTruncated);
+		mgStats.setStat("backoffs", mBackoffs);
+		mgStats.setStat("adjustments", mAdjustments);
+		mgStats.setStat("baselineBadRate", mBaselineBadRate);
+		mgStats.setStat("p50", getPercentile(50));
+		mgStats.setStat("p90", getPercentile(90));
+		mgStats.setStat("p99", getPercentile(99));
+
+		for (int i=0;i<mHistogram.length;i++) {
+			String bucket = (i < BUCKETS.length) ? ("le" + BUCKETS[i]) : ("gt" + BUCKETS[BUCKETS.length-1]);
+			mgStats.setStat("hist." + bucket, mHistogram[i]);
+		}
+
+		return mgStats;
+	}
+
+	private void msg (String message) {
+		Log.d("ETC",message);
+	}
+}
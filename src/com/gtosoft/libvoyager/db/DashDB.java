@@ -14,6 +14,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -29,8 +30,14 @@ import android.os.Environment;
 import android.util.Log;
 import android.widget.Toast;
 
+import com.gtosoft.libvoyager.util.CANFrame;
+import com.gtosoft.libvoyager.util.DPDecoderPlan;
+import com.gtosoft.libvoyager.util.DPFormula;
 import com.gtosoft.libvoyager.util.EasyTime;
+import com.gtosoft.libvoyager.util.FormulaRegistry;
 import com.gtosoft.libvoyager.util.GeneralStats;
+import com.gtosoft.libvoyager.util.LongHashMap;
+import com.gtosoft.libvoyager.util.PreparedRequest;
 import com.gtosoft.libvoyager.util.UnitConverter;
 
 //import com.android.vending.licensing.AESObfuscator;
@@ -69,11 +76,16 @@ public class DashDB extends SQLiteOpenHelper {
 	public static final int OBD_CACHEFIELD_DESCRIPTION= 4;
 	public static final int OBD_CACHEFIELD_MINVALUE 	= 5;
 	public static final int OBD_CACHEFIELD_MAXVALUE 	= 6;
+	public static final int OBD_CACHEFIELD_NUMDATABYTES = 7;
+	public static final int OBD_CACHEFIELD_MODEID 	= 8;
+	public static final int OBD_CACHEFIELD_PID 		= 9;
+	public static final int OBD_CACHEFIELD_FROMHEADER = 10;
+	public static final int OBD_CACHEFIELD_FREQUENCY = 11;
 	
 	
 	// To store the network for which we're getting PID data for in passive mode.
 	// We store it so that we can tell if the caller has changed the network ID for which they are making requests. 
-	String mPIDNetwork = "";
+	volatile String mPIDNetwork = "";
 	
 	private boolean mIsReady = true;
 
@@ -103,11 +115,6 @@ public class DashDB extends SQLiteOpenHelper {
 	// 21 -> 22 - Added a sleep in between FOB_STARTER commands. Needed to offset improved I/O throughput. 
 	// 22 -> 23 - adjusted DB wake commands based on recent research. 
 	
-	// Used by the passive data notification logic. our method "getDPSForHDR" returns a string array where the Y indices are these fields. 
-	public static final int DPS_FIELD_SIGBYTES 	= 0; // significant bytes, if any. 
-	public static final int DPS_FIELD_DPN 			= 1; // aka dataname, datapointname, etc. 
-	public static final int DPS_FIELD_FORMULA	= 2; // decode formula
-	
 	// caches number of sig bytes used for each data point name. 
 	HashMap <String,Integer>mhmSigByteCount = null;
 //	// caches formulas for data point names. 
@@ -123,11 +130,23 @@ public class DashDB extends SQLiteOpenHelper {
 //	// dataPointNames by header
 //	HashMap <String,String> mhmDataPointNameByHeader  = null;
 	
-	// For passive Datapoint extraction logic. HDR=CAN Header,DPS=Datapoints and formulas.   
-	HashMap<String,String[][]> mhmHDRToDPS = null;
+	// For passive Datapoint extraction logic. key=CAN Header (CANFrame.key()),DPS=Datapoints and formulas.   
+	// Copy on write (see cacheDPS) so the sniff threads can read it without a lock. 
+	volatile LongHashMap<DPDecoderPlan[]> mhmHDRToDPS = null;
+
+	// DPN -> small unique number, handed out as DPNs are first seen. Never reset, so the numbers stay good for the life of this instance. 
+	// Copy on write like mhmHDRToDPS - new DPNs are rare, lookups happen on every value. 
+	volatile HashMap<String,Integer> mhmDPNIndex = new HashMap<String,Integer>();
+
+	// formula name -> decoder, for compiling passive datapoints. 
+	FormulaRegistry mFormulas = new FormulaRegistry();
+	volatile String [] mDPNByIndex = new String[0];
 	
 	// This will cache various OBDRequest things based on DPN as the key. Mainly intended to simplify Unit conversions. 
 	HashMap<String,String[]> mhmDPNCache = null;
+
+	// DPN -> prepared request, built from mhmDPNCache. Copy on write, looked up on every OBD request. 
+	volatile HashMap<String,PreparedRequest> mhmPrepared = new HashMap<String,PreparedRequest>();
 	
 	Context mctx = null;
 
@@ -137,6 +156,7 @@ public class DashDB extends SQLiteOpenHelper {
 	
 	private void resetHashmaps () {
 		mhmDPNCache			=  new HashMap<String,String[]>();
+		resetPreparedRequests();
 		mhmSigByteCount  	=  new HashMap<String,Integer>();
 		mhmFormulas		 	=  new HashMap<String,String> ();
 		mhmHeaderAndSigs 	=  new HashMap<String,String> ();
@@ -144,7 +164,7 @@ public class DashDB extends SQLiteOpenHelper {
 //		mhmOBDFormula    	=  new HashMap<String,String> ();
 		mhmCommands		 	=  new HashMap<String,String> ();
 //		mhmDataPointNameByHeader  = new HashMap<String,String> ();
-		mhmHDRToDPS 		= new HashMap<String,String[][]>();
+		mhmHDRToDPS 		= new LongHashMap<DPDecoderPlan[]>();
 		mNumDPNHeaderFails = 0;
 	}
 	
@@ -646,6 +666,34 @@ public class DashDB extends SQLiteOpenHelper {
 		return getOBDCacheDouble(DPN,OBD_CACHEFIELD_MAXVALUE);
 	}
 	
+	/**
+	 * @return - the OBD mode of the request for the given DPN, for example "01". Blank for AT commands and unknown DPNs. 
+	 */
+	public String getOBDModeIDByName (String DPN) {
+		return getOBDCacheString(DPN,OBD_CACHEFIELD_MODEID);
+	}
+
+	/**
+	 * @return - the PID portion of the request for the given DPN, for example "0C". Blank if there isn't one. 
+	 */
+	public String getOBDPIDByName (String DPN) {
+		return getOBDCacheString(DPN,OBD_CACHEFIELD_PID);
+	}
+
+	/**
+	 * @return - number of data bytes the vehicle sends back for the given DPN (not counting mode/pid bytes), or 0 if we don't know. 
+	 */
+	public int getOBDNumDataBytes (String DPN) {
+		return (int) safeStringToDouble(getOBDCacheString(DPN,OBD_CACHEFIELD_NUMDATABYTES));
+	}
+
+	/**
+	 * @return - the obdRequest.frequency column for the given DPN: how often it's worth polling, 1 being as often as possible, bigger is less often. 0 if it's not set. 
+	 */
+	public int getOBDFrequency (String DPN) {
+		return (int) safeStringToDouble(getOBDCacheString(DPN,OBD_CACHEFIELD_FREQUENCY));
+	}
+	
 	public void setUSUnits (boolean trueIfConvertToUS) {
 		CONVERT_TO_US_UNITS = trueIfConvertToUS;
 //		msg ("DPN=" + DPN + " use US units? " + CONVERT_TO_US_UNITS + " Thread=" + Thread.currentThread().getId());
@@ -654,6 +702,50 @@ public class DashDB extends SQLiteOpenHelper {
 		
 		// invalidate the cache, so that formulas get re-calculated from the DB.
 		mhmDPNCache = new HashMap<String,String[]>();
+		resetPreparedRequests();
+	}
+
+	/**
+	 * @return - everything needed to request the given DPN and decode the answer, built once and cached. Null if the DPN isn't in the obdRequest table. 
+	 */
+	public PreparedRequest getPreparedRequest (String DPN) {
+		PreparedRequest pr = mhmPrepared.get(DPN);
+		if (pr != null)
+			return pr;
+
+		synchronized (this) {
+			pr = mhmPrepared.get(DPN);
+			if (pr != null)
+				return pr;
+
+			if (!cacheOBDRequestFormulaStuff(DPN))
+				return null;
+
+			pr = new PreparedRequest(DPN, 
+					getOBDRequestByName(DPN), 
+					getOBDFormulaByName(DPN), 
+					getOBDNumDataBytes(DPN), 
+					getOBDCacheString(DPN, OBD_CACHEFIELD_FROMHEADER),
+					getOBDFrequency(DPN));
+
+			HashMap<String,PreparedRequest> hmNew = new HashMap<String,PreparedRequest>(mhmPrepared);
+			hmNew.put(DPN, pr);
+			mhmPrepared = hmNew;
+		}
+
+		return pr;
+	}
+
+	/**
+	 * Throw out the prepared requests. Anybody holding one will see that it's stale and get a new one. 
+	 */
+	private synchronized void resetPreparedRequests () {
+		if (mhmPrepared != null) {
+			Iterator<PreparedRequest> i = mhmPrepared.values().iterator();
+			while (i.hasNext())
+				i.next().setStale();
+		}
+		mhmPrepared = new HashMap<String,PreparedRequest>();
 	}
 
 	/**
@@ -676,7 +768,7 @@ public class DashDB extends SQLiteOpenHelper {
 		
 		// Use a Cursor to pull up the desired record. 
 		Cursor c = null;
-		String SQL = "SELECT dataPointName, dataShortName, request, formula, description, minValue, maxValue FROM obdRequest where dataPointName = ?";
+		String SQL = "SELECT dataPointName, dataShortName, request, formula, description, minValue, maxValue, numDataBytes, modeID, pid, fromHeader, frequency FROM obdRequest where dataPointName = ?";
 		String [] selectionArgs = {DPN};
 		try {
 			c = getReadableDatabase().rawQuery(SQL, selectionArgs);
@@ -706,6 +798,12 @@ public class DashDB extends SQLiteOpenHelper {
 		String description = c.getString(OBD_CACHEFIELD_DESCRIPTION);
 		double minValue = safeStringToDouble (c.getString(OBD_CACHEFIELD_MINVALUE));
 		double maxValue = safeStringToDouble (c.getString(OBD_CACHEFIELD_MAXVALUE));
+		// these aren't touched by unit conversion. NULL for AT commands and such. 
+		String numDataBytes = c.getString(OBD_CACHEFIELD_NUMDATABYTES);
+		String modeID = c.getString(OBD_CACHEFIELD_MODEID);
+		String pid = c.getString(OBD_CACHEFIELD_PID);
+		String fromHeader = c.getString(OBD_CACHEFIELD_FROMHEADER);
+		String frequency = c.getString(OBD_CACHEFIELD_FREQUENCY);
 			
 		// The setData method takes all the DPN attributes, converts them if necessary, and makes them available immediately. 
 		uc.setData (
@@ -734,7 +832,12 @@ public class DashDB extends SQLiteOpenHelper {
 				formula,
 				description,
 				"" + minValue,
-				"" + maxValue
+				"" + maxValue,
+				numDataBytes != null ? numDataBytes : "",
+				modeID != null ? modeID : "",
+				pid != null ? pid : "",
+				fromHeader != null ? fromHeader : "",
+				frequency != null ? frequency : ""
 				};
 		
 		mhmDPNCache.put(DPN,DPNCacheEntry);
@@ -1172,33 +1275,64 @@ public class DashDB extends SQLiteOpenHelper {
 	}
 
 	/**
-	 * This method will look up the given header in the dataPoint table of the database. It will return a 2-dimensional  (say X and Y) string array: 
-	 * X = zero or more instances of block Y to be searched for the given PID. 
-	 * Y = Sigbytes, DPN (Datapoint Name), Formula
-	 * - The String array indices will be defined in DashDB.DPS_FIELD_XXXX
+	 * This method will look up the given header in the dataPoint table of the database and return the compiled decoder plan
+	 * for each datapoint defined for it (sigbytes, DPN, and the formula already parsed into bit positions and a decode operation). 
 	 * - This will be used by the PIDDecoder class to extract data points from data packets. 
+	 * - Formulas that don't parse are logged here, once, and left out. 
 	 * @param HDR - the 29 or 11-bit CAN header such as "10 00 20 40" or "199"... 
 	 * @return - 
-	 *  - Returns a reference to the string array containing key information necessary for decoding/identifying the datapoint. 
+	 *  - Returns a reference to the (cached) array of plans. Don't modify it. 
 	 * 	- Returns null if there are no DPNs for the given header. 
 	 */
-	public String[][] getDPSForHDR (String networkID, String HDR) {
+	public DPDecoderPlan[] getDPSForHDR (String networkID, String HDR) {
+		long key = CANFrame.headerKey(HDR);
+		if (key < 0)
+			return null;
+
+		return getDPSForHDR(networkID, key);
+	}
+
+	/**
+	 * Same as above, with the header as a number (see CANFrame.key()). This is the one the sniff path uses: 
+	 * once the header has been loaded, the lookup doesn't touch a String. 
+	 */
+	public DPDecoderPlan[] getDPSForHDR (String networkID, long headerKey) {
 		// If the Network ID changed, that's bad - because we aren't storing the cached data by network ID, so in the interest of not mixing up stuff from different network IDs, we just invalidate the cache if necessary and generate a log message. 
-		if (!networkID.equals(mPIDNetwork)) {
-			// only spit out a message if we're NOT setting the network for the first time.
-			if (mPIDNetwork.length() > 0) 
-				msg ("WARNING: Network ID changed from " + mPIDNetwork + " TO " + networkID + " Optimizations are being restored.");
-			 mPIDNetwork = networkID;
-			 // invalidate all cached data (with the point being that we're invalidating any cache data we generated with the other network ID. 
-			 resetHashmaps();
-		}
+		if (!networkID.equals(mPIDNetwork))
+			setPIDNetwork(networkID);
 
 		// Does the HDR exist in local cache? If so, return it from the cache!
-		if (mhmHDRToDPS != null && mhmHDRToDPS.containsKey(HDR))
-			return mhmHDRToDPS.get(HDR);
-		
-		// Not cached yet - need to query the database and produce a string array. 
-		String [][] ret = null;
+		LongHashMap<DPDecoderPlan[]> cache = mhmHDRToDPS;
+		DPDecoderPlan [] ret = cache.get(headerKey);
+		if (ret != null || cache.containsKey(headerKey))
+			return ret;
+
+		// Not cached yet - need to query the database and compile the plans. 
+		return loadDPSForHDR(networkID, headerKey);
+	}
+
+	private synchronized void setPIDNetwork (String networkID) {
+		if (networkID.equals(mPIDNetwork))
+			return;
+
+		// only spit out a message if we're NOT setting the network for the first time.
+		if (mPIDNetwork.length() > 0) 
+			msg ("WARNING: Network ID changed from " + mPIDNetwork + " TO " + networkID + " Optimizations are being restored.");
+		 mPIDNetwork = networkID;
+		 // invalidate all cached data (with the point being that we're invalidating any cache data we generated with the other network ID. 
+		 resetHashmaps();
+	}
+
+	/**
+	 * Once per header: query the DB and compile the plans. Synchronized so two sniff threads don't load the same header at once. 
+	 */
+	private synchronized DPDecoderPlan[] loadDPSForHDR (String networkID, long headerKey) {
+		// somebody may have loaded it while we waited for the lock. 
+		DPDecoderPlan [] ret = mhmHDRToDPS.get(headerKey);
+		if (ret != null || mhmHDRToDPS.containsKey(headerKey))
+			return ret;
+
+		String HDR = CANFrame.formatHeader(headerKey);
 		Cursor c = null;
 
 		
@@ -1219,7 +1353,7 @@ public class DashDB extends SQLiteOpenHelper {
 		
 		// at least one record? If not, enter a stub to prevent future db scans. 
 		if (c.getCount() < 1) {
-			mhmHDRToDPS.put(HDR, null); // enter a stub to signify that we've scanned the DB but there were no matches for this HDR.
+			cacheDPS(headerKey, null); // enter a stub to signify that we've scanned the DB but there were no matches for this HDR.
 			if (DEBUG==true) msg ("No DPNs defined for HDR=" + HDR + " Network=" + networkID);
 			mNumDPNHeaderFails++;
 			mgStats.setStat("numHeadersWithoutDPNs", "" + mNumDPNHeaderFails);
@@ -1230,8 +1364,8 @@ public class DashDB extends SQLiteOpenHelper {
 		if (DEBUG == true) msg("Loading " + c.getColumnCount() + " DPNs for HDR=" + HDR);
 		
 		
-		// Iterate through the records and produce the 2d string array.
-		ret = new String[c.getCount()][]; // first, allocate dimension X - one index per cursor record.  
+		// Iterate through the records and compile each one. 
+		ArrayList<DPDecoderPlan> plans = new ArrayList<DPDecoderPlan>();
 		c.moveToFirst();
 		
 		for (int i=0;i<c.getCount();i++) {
@@ -1248,8 +1382,11 @@ public class DashDB extends SQLiteOpenHelper {
 			//}
 
 
-			// add the 1-d array to the new X element of the 2d array. 
-			ret[i] = new String [] {sigBytes, dataName, formula};
+			DPDecoderPlan plan = DPDecoderPlan.compile(getDPNIndex(dataName), dataName, sigBytes, formula, mFormulas);
+			if (plan.valid)
+				plans.add(plan);
+			else
+				msg ("getDPSForHDR(): Skipping DPN " + dataName + " HDR=" + HDR + ": " + plan.error);
 
 			// Don't forget to move to next record! 
 			c.moveToNext();
@@ -1261,15 +1398,100 @@ public class DashDB extends SQLiteOpenHelper {
 		// Close the cursor. 
 		c.close();
 		
-		// At this point we have a 2-dimensional array.   ret[x][y]. See notes atop this method for definition of those fields. 
+		ret = plans.toArray(new DPDecoderPlan[plans.size()]);
 		
-		// Save the newly queried string array to hashmap. 
-		mhmHDRToDPS.put(HDR, ret);
+		// Save the newly compiled plans to hashmap. 
+		cacheDPS(headerKey, ret);
 		
-		// Return the (reference to) string array from the hashmap. 
+		// Return the (reference to) plan array from the hashmap. 
 		return ret;
 	}
 
+	/**
+	 * Add an entry to mhmHDRToDPS by copying it. Headers only get loaded once each, so the copying is rare, and readers never see a map that's half way through a put. 
+	 */
+	private synchronized void cacheDPS (long headerKey, DPDecoderPlan [] plans) {
+		LongHashMap<DPDecoderPlan[]> copy = new LongHashMap<DPDecoderPlan[]>(mhmHDRToDPS);
+		copy.put(headerKey, plans);
+		mhmHDRToDPS = copy;
+	}
+
+
+	/**
+	 * @return - a small number unique to the given DPN, handed out the first time we see it (0, 1, 2, ...). 
+	 * Lets per-datapoint state live in arrays instead of maps keyed by name. 
+	 */
+	public int getDPNIndex (String DPN) {
+		int idx = findDPNIndex(DPN);
+		if (idx >= 0)
+			return idx;
+
+		return addDPNIndex(DPN);
+	}
+
+	/**
+	 * Same as getDPNIndex, but doesn't hand out a new number. 
+	 * @return - the DPN's index, or -1 if it hasn't been given one. 
+	 */
+	public int findDPNIndex (String DPN) {
+		Integer idx = mhmDPNIndex.get(DPN);
+		if (idx != null)
+			return idx;
+		return -1;
+	}
+
+	private synchronized int addDPNIndex (String DPN) {
+		// somebody may have beat us to it. 
+		Integer idx = mhmDPNIndex.get(DPN);
+		if (idx != null)
+			return idx;
+
+		String [] oldNames = mDPNByIndex;
+		int newIndex = oldNames.length;
+		String [] names = new String[newIndex + 1];
+		System.arraycopy(oldNames, 0, names, 0, newIndex);
+		names[newIndex] = DPN;
+
+		HashMap<String,Integer> copy = new HashMap<String,Integer>(mhmDPNIndex);
+		copy.put(DPN, newIndex);
+
+		// names first, so anybody who can find the index can also look it up. 
+		mDPNByIndex = names;
+		mhmDPNIndex = copy;
+		return newIndex;
+	}
+
+	/**
+	 * @return - the DPN for an index handed out by getDPNIndex, or blank if there's no such index. 
+	 */
+	public String getDPNByIndex (int index) {
+		String [] names = mDPNByIndex;
+		if (index < 0 || index >= names.length)
+			return "";
+		return names[index];
+	}
+
+	/**
+	 * @return - how many DPN indexes have been handed out so far. 
+	 */
+	public int getNumDPNIndexes () {
+		return mDPNByIndex.length;
+	}
+
+	/**
+	 * Add a passive datapoint formula, or replace a built-in one (for example "TPMS", with a real barometer). 
+	 * Datapoints already loaded get re-compiled the next time their header comes along. 
+	 * @param name - the formula name as it appears in the dataPoint table, for example "DIV4" in "16-31,DIV4". 
+	 * @param formula - the decoder. 
+	 */
+	public void registerFormula (String name, DPFormula formula) {
+		mFormulas.register(name, formula);
+		mhmHDRToDPS = new LongHashMap<DPDecoderPlan[]>();
+	}
+
+	public FormulaRegistry getFormulaRegistry () {
+		return mFormulas;
+	}
 
 	/**
 	 * Clear any cached data based on NetworkID. 
@@ -1320,6 +1542,50 @@ public class DashDB extends SQLiteOpenHelper {
 		return getColumnSet("select header from dataPoint where network = \"" + networkID + "\"" + " group by header");
 	}
 
+	/**
+	 * Same as calling getDPNCANIDsForNetworkID for every network in getAllDPNNetIDs, but in one query.
+	 * @return - network ID -> the CAN IDs it has datapoints for. Empty if there was a problem.
+	 */
+	public HashMap<String,Set<String>> getDPNCANIDsByNetworkID () {
+		HashMap<String,Set<String>> ret = new HashMap<String,Set<String>>();
+		final String SQLQuery = "select network, header from dataPoint group by network, header";
+
+		Cursor c = null;
+		try {
+			c = getReadableDatabase().rawQuery(SQLQuery, null);
+		} catch (Exception e) {
+			msg ("Error during query. Q=" + SQLQuery);
+			closeCursor(c);
+			return ret;
+		}
+
+		if (c == null)
+			return ret;
+
+		if (c.getCount() < 1) {
+			msg ("Warning: No records found using Q=" + SQLQuery);
+		} else {
+			c.moveToFirst();
+		}
+
+		while (!c.isAfterLast()) {
+			String network = c.getString(0);
+			String header = c.getString(1);
+			if (network != null && header != null && network.length() > 0 && header.length() > 0) {
+				Set<String> headers = ret.get(network);
+				if (headers == null) {
+					headers = new HashSet<String>();
+					ret.put(network, headers);
+				}
+				headers.add(header);
+			}
+			c.moveToNext();
+		}
+
+		closeCursor(c);
+		return ret;
+	}
+
 	/**
 	 * Take the provided hashmap and write it to profile table. Write them under the type/subtype provided. 
 	 * @param typeName
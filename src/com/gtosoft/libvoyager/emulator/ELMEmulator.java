@@ -0,0 +1,699 @@
+/**
+ * (C) 2011 libvoyager is licensed under a Creative Commons Attribution-NonCommercial 3.0 Unported License.
+ * Permissions beyond the scope of this license may be available at http://www.gtosoft.com. You can download,
+ * use, modify the code as long as you do not include it as part of commercial software.
+ */
+
+package com.gtosoft.libvoyager.emulator;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import android.util.Log;
+
+import com.gtosoft.libvoyager.util.GeneralStats;
+
+/**
+ * A pretend ELM327 that listens on a TCP socket, so the whole stack (TCPTransport, ELMBT, the sessions) can be driven
+ * without a car or a dongle - on a desktop or a CI box.
+ *
+ * What it does:
+ *  - The usual AT commands: Z, WS, D, I, E, H, S, L, CAF, ST, AT, SP/TP, DP, DPN, RV, CS, MA/MT/MR and friends.
+ *  - OBD modes 01 (up to six PIDs per request), 03, 04, 09 and any mode+pid you give an EmulatedECU an answer for.
+ *    Every ECU that has an answer replies. A response count digit on the end of a request ("010C1") is honored.
+ *  - CAN formatting with or without headers and spaces, including multi-frame (ISO-TP) responses.
+ *  - ATMA replays a capture, one frame per line in the spaced header+data format (see impalass.dmp). Any input stops it.
+ *  - Pacing: setBaud() makes output take as long as it would over a serial link of that speed. If the sniffed bus
+ *    (setSniffFramesPerSecond) produces more than the link can carry, the ELM's 256 byte buffer fills up and we
+ *    say BUFFER FULL, just like the real thing. setBufferFullAfter() forces it after N frames.
+ *
+ * No Android APIs are used at runtime (logging only happens with DEBUG on), so it runs on a plain JVM.
+ * @author brad
+ */
+
+public class ELMEmulator {
+
+	final boolean DEBUG = false;
+
+	public static final String VERSION = "ELM327 v1.3a";
+
+	// the real chip's receive buffer, in bytes. Used for BUFFER FULL.
+	final int ELM_BUFFER_SIZE = 256;
+
+	// ATST units.
+	final double ST_UNIT_MILLIS = 4.096;
+
+	ArrayList<EmulatedECU> mECUs = new ArrayList<EmulatedECU>();
+
+	// ATMA replay source. Spaced, with headers.
+	ArrayList<String> mCapture = new ArrayList<String>();
+
+	// ELM protocol number we pretend the car uses. 6=CAN 11/500, 7=CAN 29/500, 1-5 are the older ones.
+	int mProtocol = 6;
+
+	// bits per second of the pretend serial link, 0 for as fast as possible.
+	int mBaud = 0;
+
+	// frames per second on the pretend bus during ATMA, 0 for as fast as the link allows.
+	int mSniffFramesPerSecond = 0;
+
+	// force BUFFER FULL after this many sniffed frames, 0 for never.
+	int mBufferFullAfter = 0;
+
+	ServerSocket mServer = null;
+	Thread mtAccept = null;
+	boolean mThreadsOn = false;
+	ArrayList<Socket> mClients = new ArrayList<Socket>();
+
+	GeneralStats mgStats = new GeneralStats();
+	long mConnections 	= 0;
+	long mCommands 		= 0;
+	long mFramesSniffed = 0;
+	long mBufferFulls 	= 0;
+	long mBytesOut 		= 0;
+
+	/**
+	 * Add an ECU. ECUs reply in order of latency, and in the order they were added for equal latencies.
+	 */
+	public ELMEmulator addECU (EmulatedECU ecu) {
+		mECUs.add(ecu);
+		return this;
+	}
+
+	public List<EmulatedECU> getECUs () {
+		return mECUs;
+	}
+
+	/**
+	 * Load an ATMA capture, one frame per line. Lines starting with # and blank lines are skipped.
+	 */
+	public ELMEmulator loadCapture (InputStream in) throws IOException {
+		BufferedReader r = new BufferedReader(new InputStreamReader(in));
+		String line;
+		while ((line = r.readLine()) != null) {
+			line = line.trim();
+			if (line.length() < 1 || line.startsWith("#")) continue;
+			mCapture.add(line.toUpperCase());
+		}
+		return this;
+	}
+
+	public ELMEmulator setCapture (List<String> frames) {
+		mCapture = new ArrayList<String>(frames);
+		return this;
+	}
+
+	public ELMEmulator setProtocol (int elmProtocolNumber) {
+		mProtocol = elmProtocolNumber;
+		return this;
+	}
+
+	public ELMEmulator setBaud (int bitsPerSecond) {
+		mBaud = bitsPerSecond;
+		return this;
+	}
+
+	public ELMEmulator setSniffFramesPerSecond (int fps) {
+		mSniffFramesPerSecond = fps;
+		return this;
+	}
+
+	public ELMEmulator setBufferFullAfter (int frames) {
+		mBufferFullAfter = frames;
+		return this;
+	}
+
+	/**
+	 * Start listening on 127.0.0.1.
+	 * @param port - port to listen on, 0 to let the OS pick one.
+	 * @return - the port we're listening on, or -1 if we couldn't start.
+	 */
+	public synchronized int start (int port) {
+		if (mServer != null)
+			return mServer.getLocalPort();
+
+		try {
+			mServer = new ServerSocket();
+			mServer.setReuseAddress(true);
+			mServer.bind(new InetSocketAddress("127.0.0.1", port));
+		} catch (IOException e) {
+			if (DEBUG) msg ("start(): can't listen on port " + port + ": " + e.getMessage());
+			mServer = null;
+			return -1;
+		}
+
+		mThreadsOn = true;
+		mtAccept = new Thread() {
+			public void run () {
+				while (mThreadsOn == true) {
+					try {
+						Socket s = mServer.accept();
+						s.setTcpNoDelay(true);
+						synchronized (mClients) {
+							mClients.add(s);
+						}
+						mConnections++;
+						new Thread(new Session(s)).start();
+					} catch (IOException e) {
+						// closed by stop(), or the OS is unhappy. Either way, the loop condition decides.
+					}
+				}
+			}
+		};
+		mtAccept.start();
+
+		return mServer.getLocalPort();
+	}
+
+	public int getPort () {
+		ServerSocket s = mServer;
+		if (s == null) return -1;
+		return s.getLocalPort();
+	}
+
+	/**
+	 * Stop listening and hang up on everybody.
+	 */
+	public synchronized void stop () {
+		mThreadsOn = false;
+
+		if (mServer != null) {
+			try {mServer.close();} catch (IOException e) {}
+			mServer = null;
+		}
+
+		synchronized (mClients) {
+			for (int i=0;i<mClients.size();i++)
+				try {mClients.get(i).close();} catch (IOException e) {}
+			mClients.clear();
+		}
+
+		if (mtAccept != null) mtAccept.interrupt();
+		mtAccept = null;
+	}
+
+	public GeneralStats getStats () {
+		mgStats.setStat("connections", mConnections);
+		mgStats.setStat("commands", mCommands);
+		mgStats.setStat("framesSniffed", mFramesSniffed);
+		mgStats.setStat("bufferFulls", mBufferFulls);
+		mgStats.setStat("bytesOut", mBytesOut);
+		return mgStats;
+	}
+
+	/**
+	 * @return - true if the given ELM protocol is one of the CAN ones.
+	 */
+	static boolean isCAN (int protocol) {
+		return protocol >= 6;
+	}
+
+	/**
+	 * One connected client. Has its own copy of all the settings, like a real chip.
+	 */
+	class Session implements Runnable {
+		final Socket mSocket;
+		InputStream mIn;
+		OutputStream mOut;
+
+		boolean mEcho;
+		boolean mHeaders;
+		boolean mSpaces;
+		boolean mLinefeeds;
+		boolean mAutoFormat;
+		boolean mAutoProtocol;
+		boolean mSearchPending;
+		int mTimeoutMillis;
+		int mAdaptiveMode;
+
+		String mLastCommand = "";
+
+		Session (Socket s) {
+			mSocket = s;
+			resetSettings();
+		}
+
+		void resetSettings () {
+			mEcho 			= true;
+			mHeaders 		= false;
+			mSpaces 		= true;
+			mLinefeeds 		= false;
+			mAutoFormat 	= true;
+			mAutoProtocol 	= true;
+			mSearchPending 	= true;
+			mTimeoutMillis 	= (int) (0x32 * ST_UNIT_MILLIS);
+			mAdaptiveMode 	= 1;
+		}
+
+		public void run () {
+			try {
+				mIn = mSocket.getInputStream();
+				mOut = mSocket.getOutputStream();
+
+				// the chip says hello when it powers up.
+				write(VERSION + eol() + eol() + ">");
+
+				String cmd;
+				while (mThreadsOn == true && (cmd = readCommand()) != null) {
+					mCommands++;
+					handleCommand(cmd);
+				}
+			} catch (IOException e) {
+				if (DEBUG) msg ("Session ended: " + e.getMessage());
+			} finally {
+				try {mSocket.close();} catch (IOException e) {}
+				synchronized (mClients) {
+					mClients.remove(mSocket);
+				}
+			}
+		}
+
+		/**
+		 * @return - the next command up to CR, as typed (echo uses it). null at end of stream.
+		 */
+		String readCommand () throws IOException {
+			StringBuilder sb = new StringBuilder();
+			int b;
+			while ((b = mIn.read()) >= 0) {
+				if (b == '\r') return sb.toString();
+				if (b == '\n' || b == 0) continue;
+				sb.append((char) b);
+			}
+			return null;
+		}
+
+		String eol () {
+			return mLinefeeds ? "\r\n" : "\r";
+		}
+
+		/**
+		 * Write text, taking as long as the pretend serial link would.
+		 */
+		void write (String s) throws IOException {
+			byte [] bytes = s.getBytes("US-ASCII");
+			mOut.write(bytes);
+			mOut.flush();
+			mBytesOut += bytes.length;
+			pace(bytes.length);
+		}
+
+		void pace (int numBytes) {
+			if (mBaud <= 0) return;
+			// 10 bits per byte on a serial line (start + 8 + stop).
+			long micros = (long) numBytes * 10 * 1000000L / mBaud;
+			sleepMicros(micros);
+		}
+
+		/**
+		 * Send a complete reply: each line, a blank line, and the prompt.
+		 */
+		void reply (List<String> lines) throws IOException {
+			StringBuilder sb = new StringBuilder();
+			for (int i=0;i<lines.size();i++)
+				sb.append(lines.get(i)).append(eol());
+			sb.append(eol()).append('>');
+			write(sb.toString());
+		}
+
+		void reply (String line) throws IOException {
+			ArrayList<String> l = new ArrayList<String>();
+			l.add(line);
+			reply(l);
+		}
+
+		void handleCommand (String typed) throws IOException {
+			if (mEcho) write(typed + eol());
+
+			String cmd = typed.replace(" ","").toUpperCase();
+
+			// a bare CR repeats the last command.
+			if (cmd.length() == 0) cmd = mLastCommand;
+			if (cmd.length() == 0) {
+				write(">");
+				return;
+			}
+			mLastCommand = cmd;
+
+			if (cmd.startsWith("AT")) {
+				handleAT(cmd.substring(2));
+				return;
+			}
+
+			if (!isHex(cmd)) {
+				reply("?");
+				return;
+			}
+
+			handleOBD(cmd);
+		}
+
+		void handleAT (String at) throws IOException {
+			if (at.equals("Z") || at.equals("WS")) {
+				resetSettings();
+				ArrayList<String> l = new ArrayList<String>();
+				if (at.equals("Z")) l.add("");
+				l.add(VERSION);
+				reply(l);
+				return;
+			}
+
+			if (at.equals("D")) 				{ resetSettings(); reply("OK"); return; }
+			if (at.equals("I")) 				{ reply(VERSION); return; }
+			if (at.equals("@1")) 				{ reply("OBDII to RS232 Interpreter"); return; }
+			if (at.equals("RV")) 				{ reply("12.6V"); return; }
+			if (at.equals("CS")) 				{ reply("T:00 R:00"); return; }
+			if (at.equals("DP")) 				{ reply((mAutoProtocol ? "AUTO, " : "") + getProtocolName()); return; }
+			if (at.equals("DPN")) 				{ reply((mAutoProtocol ? "A" : "") + Integer.toHexString(mProtocol).toUpperCase()); return; }
+			if (at.startsWith("E") && at.length() == 2) { mEcho = at.endsWith("1"); reply("OK"); return; }
+			if (at.startsWith("H") && at.length() == 2) { mHeaders = at.endsWith("1"); reply("OK"); return; }
+			if (at.startsWith("S") && at.length() == 2) { mSpaces = at.endsWith("1"); reply("OK"); return; }
+			if (at.startsWith("L") && at.length() == 2) { mLinefeeds = at.endsWith("1"); reply("OK"); return; }
+			if (at.startsWith("CAF")) 			{ mAutoFormat = at.endsWith("1"); reply("OK"); return; }
+			if (at.startsWith("AT") && at.length() == 3) { mAdaptiveMode = at.charAt(2) - '0'; reply("OK"); return; }
+
+			if (at.startsWith("ST") && at.length() == 4 && isHex(at.substring(2))) {
+				int st = Integer.parseInt(at.substring(2), 16);
+				// ST 00 means "back to the default".
+				if (st == 0) st = 0x32;
+				mTimeoutMillis = (int) (st * ST_UNIT_MILLIS);
+				reply("OK");
+				return;
+			}
+
+			if (at.startsWith("SP") || at.startsWith("TP")) {
+				String p = at.substring(2);
+				if (p.startsWith("A")) p = p.substring(1);
+				mAutoProtocol = at.substring(2).startsWith("A") || p.equals("0");
+				mSearchPending = mAutoProtocol;
+				reply("OK");
+				return;
+			}
+
+			if (at.startsWith("MA") || at.startsWith("MT") || at.startsWith("MR")) {
+				sniff();
+				return;
+			}
+
+			// things we accept and ignore.
+			if (at.startsWith("PP") || at.startsWith("SH") || at.startsWith("CRA") || at.startsWith("CF") || at.startsWith("CM")
+					|| at.startsWith("R") || at.startsWith("M") || at.startsWith("PC") || at.startsWith("BI")) {
+				reply("OK");
+				return;
+			}
+
+			reply("?");
+		}
+
+		String getProtocolName () {
+			switch (mProtocol) {
+				case 1: return "SAE J1850 PWM";
+				case 2: return "SAE J1850 VPW";
+				case 3: return "ISO 9141-2";
+				case 4: return "ISO 14230-4 (KWP 5BAUD)";
+				case 5: return "ISO 14230-4 (KWP FAST)";
+				case 6: return "ISO 15765-4 (CAN 11/500)";
+				case 7: return "ISO 15765-4 (CAN 29/500)";
+				case 8: return "ISO 15765-4 (CAN 11/250)";
+				case 9: return "ISO 15765-4 (CAN 29/250)";
+				default: return "USER1 CAN";
+			}
+		}
+
+		void handleOBD (String cmd) throws IOException {
+			// an odd digit on the end is the number of responses to wait for.
+			int wantResponses = 0;
+			if (cmd.length() % 2 == 1) {
+				wantResponses = Character.digit(cmd.charAt(cmd.length()-1), 16);
+				cmd = cmd.substring(0, cmd.length()-1);
+			}
+
+			ArrayList<EmulatedECU> ecus = new ArrayList<EmulatedECU>(mECUs);
+			Collections.sort(ecus, new Comparator<EmulatedECU>() {
+				public int compare (EmulatedECU a, EmulatedECU b) {
+					return a.getLatencyMillis() - b.getLatencyMillis();
+				}
+			});
+
+			ArrayList<String> lines = new ArrayList<String>();
+			if (mSearchPending) {
+				lines.add("SEARCHING...");
+				mSearchPending = false;
+			}
+
+			int responders = 0;
+			int waited = 0;
+			for (int i=0;i<ecus.size();i++) {
+				if (wantResponses > 0 && responders >= wantResponses) break;
+
+				EmulatedECU ecu = ecus.get(i);
+				String payload = getPayload(ecu, cmd);
+				if (payload == null) continue;
+
+				responders++;
+				waited = ecu.getLatencyMillis();
+				formatMessage(ecu, payload, lines);
+			}
+
+			// unless it got the number of responses it was told to expect, the ELM sits out one more timeout in case someone else answers.
+			if (wantResponses == 0 || responders < wantResponses) {
+				int wait = mTimeoutMillis;
+				if (mAdaptiveMode == 2) wait = wait / 2;
+				waited += wait;
+			}
+			sleepMicros(waited * 1000L);
+
+			if (responders == 0)
+				lines.add("NO DATA");
+
+			reply(lines);
+		}
+
+		/**
+		 * @return - the whole response message (hex, no spaces) this ECU sends for the given request, or null if it has nothing to say.
+		 */
+		String getPayload (EmulatedECU ecu, String cmd) {
+			if (cmd.length() < 2) return null;
+
+			String mode = cmd.substring(0, 2);
+			String respMode = Integer.toHexString(Integer.parseInt(mode, 16) + 0x40).toUpperCase();
+
+			if (mode.equals("01")) {
+				String ret = "";
+				for (int i=2;i+2<=cmd.length() && i<2+6*2;i+=2) {
+					String pid = cmd.substring(i, i+2);
+					String data = ecu.getResponse("01" + pid);
+					if (data != null) ret += pid + data;
+				}
+				if (ret.length() == 0) return null;
+				return respMode + ret;
+			}
+
+			if (mode.equals("03")) {
+				String count = "";
+				if (isCAN(mProtocol)) count = hex2(ecu.getNumDTCs());
+				return respMode + count + ecu.getDTCBytes();
+			}
+
+			if (mode.equals("04")) {
+				ecu.clearDTCs();
+				return respMode;
+			}
+
+			if (cmd.equals("0902")) {
+				if (ecu.getVIN().length() < 1) return null;
+				return respMode + "0201" + asciiHex(ecu.getVIN());
+			}
+
+			String data = ecu.getResponse(cmd);
+			if (data == null) return null;
+			return respMode + cmd.substring(2) + data;
+		}
+
+		/**
+		 * Turn one message into output lines, the way the ELM would given the current settings.
+		 */
+		void formatMessage (EmulatedECU ecu, String payload, ArrayList<String> lines) {
+			int numBytes = payload.length() / 2;
+
+			if (!isCAN(mProtocol)) {
+				// J1850/ISO: 3 header bytes, data, checksum.
+				String header = "486B" + ecu.getHeader().substring(ecu.getHeader().length() - 2);
+				String msg = header + payload;
+				int sum = 0;
+				for (int i=0;i<msg.length();i+=2) sum += Integer.parseInt(msg.substring(i, i+2), 16);
+				msg += hex2(sum & 0xFF);
+				lines.add(mHeaders ? spaced(msg, 0) : spaced(payload, 0));
+				return;
+			}
+
+			String header = mHeaders ? ecu.getHeader() : "";
+			// 11-bit headers are 3 characters, everything else is whole bytes.
+			int headerChars = (header.length() == 3) ? 3 : 0;
+
+			if (numBytes <= 7) {
+				if (mHeaders || !mAutoFormat)
+					lines.add(spaced(header + hex2(numBytes) + payload, headerChars));
+				else
+					lines.add(spaced(payload, 0));
+				return;
+			}
+
+			// multi-frame.
+			if (!mHeaders && mAutoFormat) {
+				// "014" then "0: 49 02 01 31 47 31" "1: ..." style.
+				lines.add(String.format("%03X", numBytes));
+				int seq = 0;
+				for (int i=0;i<payload.length();) {
+					int take = (seq == 0) ? 6 : 7;
+					int end = Math.min(payload.length(), i + take * 2);
+					lines.add(Integer.toHexString(seq & 0x0F).toUpperCase() + ":" + (mSpaces ? " " : "") + spaced(payload.substring(i, end), 0));
+					i = end;
+					seq++;
+				}
+				return;
+			}
+
+			// first frame: 10 LL + 6 bytes. Then 21, 22, ... 2F, 20, 21 with 7 bytes each.
+			lines.add(spaced(header + "1" + String.format("%03X", numBytes) + payload.substring(0, 12), headerChars));
+			int seq = 1;
+			for (int i=12;i<payload.length();i+=14) {
+				int end = Math.min(payload.length(), i + 14);
+				lines.add(spaced(header + "2" + Integer.toHexString(seq & 0x0F).toUpperCase() + payload.substring(i, end), headerChars));
+				seq++;
+			}
+		}
+
+		/**
+		 * Add spaces after each byte if spaces are on. The first headerChars characters (an 11-bit header) count as one unit.
+		 */
+		String spaced (String hex, int headerChars) {
+			if (!mSpaces) return hex;
+
+			StringBuilder sb = new StringBuilder();
+			int i = 0;
+			if (headerChars > 0) {
+				sb.append(hex, 0, headerChars).append(' ');
+				i = headerChars;
+			}
+			for (;i+2<=hex.length();i+=2)
+				sb.append(hex, i, i+2).append(' ');
+			return sb.toString();
+		}
+
+		/**
+		 * ATMA and friends. Replay the capture until the client sends anything, or the buffer fills up.
+		 */
+		void sniff () throws IOException {
+			if (mCapture.size() < 1) {
+				// nothing on the bus. Wait to be interrupted like the real thing.
+				while (mThreadsOn == true && mIn.available() == 0)
+					sleepMicros(50000);
+				stopSniff();
+				return;
+			}
+
+			double bufferLevel = 0;
+			int framesThisRun = 0;
+			long frameIntervalMicros = (mSniffFramesPerSecond > 0) ? 1000000L / mSniffFramesPerSecond : 0;
+
+			for (int i=0;mThreadsOn == true;i++) {
+				if (mIn.available() > 0) {
+					stopSniff();
+					return;
+				}
+
+				String line = formatSniffedFrame(mCapture.get(i % mCapture.size())) + eol();
+
+				// model the chip's buffer: the bus fills it, the serial link drains it.
+				if (mBaud > 0 && frameIntervalMicros > 0) {
+					double drained = (double) frameIntervalMicros * mBaud / 10 / 1000000.0;
+					bufferLevel = Math.max(0, bufferLevel + line.length() - drained);
+				}
+
+				if (bufferLevel > ELM_BUFFER_SIZE || (mBufferFullAfter > 0 && framesThisRun >= mBufferFullAfter)) {
+					mBufferFulls++;
+					write("BUFFER FULL" + eol() + eol() + ">");
+					return;
+				}
+
+				byte [] bytes = line.getBytes("US-ASCII");
+				mOut.write(bytes);
+				mOut.flush();
+				mBytesOut += bytes.length;
+				mFramesSniffed++;
+				framesThisRun++;
+
+				// whichever is slower - the bus or the link - sets the pace.
+				long linkMicros = (mBaud > 0) ? (long) bytes.length * 10 * 1000000L / mBaud : 0;
+				sleepMicros(Math.max(linkMicros, frameIntervalMicros));
+			}
+		}
+
+		void stopSniff () throws IOException {
+			// eat whatever interrupted us.
+			while (mIn.available() > 0) {
+				int b = mIn.read();
+				if (b == '\r') break;
+			}
+			write("STOPPED" + eol() + eol() + ">");
+		}
+
+		/**
+		 * Capture lines are spaced, with headers. Reformat for the current settings.
+		 */
+		String formatSniffedFrame (String captured) {
+			String [] tokens = captured.split(" +");
+			int headerTokens = (tokens[0].length() == 3) ? 1 : (isCAN(mProtocol) ? 4 : 3);
+
+			StringBuilder sb = new StringBuilder();
+			for (int i=0;i<tokens.length;i++) {
+				if (!mHeaders && i < headerTokens) continue;
+				sb.append(tokens[i]);
+				if (mSpaces) sb.append(' ');
+			}
+			return sb.toString();
+		}
+	}
+
+	static boolean isHex (String s) {
+		if (s.length() < 1) return false;
+		for (int i=0;i<s.length();i++)
+			if (Character.digit(s.charAt(i), 16) < 0) return false;
+		return true;
+	}
+
+	static String hex2 (int b) {
+		String h = Integer.toHexString(b & 0xFF).toUpperCase();
+		return (h.length() < 2) ? "0" + h : h;
+	}
+
+	static String asciiHex (String s) {
+		StringBuilder sb = new StringBuilder();
+		for (int i=0;i<s.length();i++)
+			sb.append(hex2(s.charAt(i)));
+		return sb.toString();
+	}
+
+	static void sleepMicros (long micros) {
+		if (micros <= 0) return;
+		try {
+			Thread.sleep(micros / 1000, (int) (micros % 1000) * 1000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void msg (String message) {
+		Log.d("ELMEmu",message);
+	}
+}
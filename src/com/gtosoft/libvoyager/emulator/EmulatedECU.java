@@ -0,0 +1,177 @@
+/**
+ * (C) 2011 libvoyager is licensed under a Creative Commons Attribution-NonCommercial 3.0 Unported License.
+ * Permissions beyond the scope of this license may be available at http://www.gtosoft.com. You can download,
+ * use, modify the code as long as you do not include it as part of commercial software.
+ */
+
+package com.gtosoft.libvoyager.emulator;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * One pretend ECU on the bus, for ELMEmulator. Holds canned answers for mode 01 PIDs (and any other mode+pid
+ * request, like mode 22), stored DTCs for mode 03, and a VIN for mode 09.
+ *
+ * Everything is hex text without spaces, the way you'd type it: setPID("0C", "1AF8") means "01 0C" gets "41 0C 1A F8".
+ * @author brad
+ */
+
+public class EmulatedECU {
+
+	// response header, for example "7E8" (11-bit) or "18DAF110" (29-bit).
+	final String mHeader;
+
+	// key=request without the mode 01 prefix (for example "0C"), or the full request for other modes ("221200"). value=data bytes as hex.
+	final HashMap<String,String> mhmPIDs = new HashMap<String,String>();
+	// the order PIDs were added in. Not strictly needed but keeps the output predictable.
+	final ArrayList<String> mPIDOrder = new ArrayList<String>();
+
+	// stored trouble codes as 4 hex digits each, for example "0133" for P0133.
+	final ArrayList<String> mDTCs = new ArrayList<String>();
+
+	String mVIN = "";
+
+	// how long this ECU takes to answer, in ms.
+	int mLatencyMillis = 0;
+
+	public EmulatedECU (String header) {
+		mHeader = header.replace(" ","").toUpperCase();
+	}
+
+	public String getHeader () {
+		return mHeader;
+	}
+
+	/**
+	 * @return - true if our header is a 29-bit CAN header.
+	 */
+	public boolean is29Bit () {
+		return mHeader.length() == 8;
+	}
+
+	/**
+	 * Set the answer to a mode 01 PID.
+	 * @param pid - for example "0C".
+	 * @param dataHex - data bytes only, for example "1AF8".
+	 */
+	public EmulatedECU setPID (String pid, String dataHex) {
+		return setResponse("01" + pid, dataHex);
+	}
+
+	/**
+	 * Set the answer to any mode+pid request, for example setResponse("221200", "0A").
+	 */
+	public EmulatedECU setResponse (String request, String dataHex) {
+		String key = request.replace(" ","").toUpperCase();
+		if (!mhmPIDs.containsKey(key)) mPIDOrder.add(key);
+		mhmPIDs.put(key, dataHex.replace(" ","").toUpperCase());
+		return this;
+	}
+
+	/**
+	 * @return - data bytes (hex) for the given request, or null if we don't support it.
+	 * Mode 01 supported-PID bitmaps (00, 20, 40, ...) are made up from whatever PIDs are set, unless set explicitly.
+	 */
+	public String getResponse (String request) {
+		String key = request.toUpperCase();
+		if (mhmPIDs.containsKey(key))
+			return mhmPIDs.get(key);
+
+		if (key.startsWith("01") && key.length() == 4) {
+			int pid = Integer.parseInt(key.substring(2), 16);
+			if (pid % 0x20 == 0)
+				return getSupportedPIDBitmap(pid);
+		}
+
+		return null;
+	}
+
+	/**
+	 * Build the 4 byte bitmap of supported PIDs base+1 .. base+0x20. The last bit means "ask me about the next range".
+	 */
+	private String getSupportedPIDBitmap (int base) {
+		long bits = 0;
+		boolean anyAbove = false;
+
+		for (int i=0;i<mPIDOrder.size();i++) {
+			String key = mPIDOrder.get(i);
+			if (!key.startsWith("01") || key.length() != 4) continue;
+
+			int pid = Integer.parseInt(key.substring(2), 16);
+			if (pid > base && pid <= base + 0x20)
+				bits |= 1L << (0x20 - (pid - base));
+			if (pid > base + 0x20)
+				anyAbove = true;
+		}
+
+		if (anyAbove) bits |= 1;
+
+		// PID 00 is always supported. Other ranges only if something is in (or beyond) them.
+		if (bits == 0 && base > 0)
+			return null;
+
+		String hex = Long.toHexString(bits).toUpperCase();
+		while (hex.length() < 8) hex = "0" + hex;
+		return hex;
+	}
+
+	/**
+	 * @param dtc - for example "P0133" or the raw 4 hex digits "0133".
+	 */
+	public EmulatedECU addDTC (String dtc) {
+		mDTCs.add(encodeDTC(dtc));
+		return this;
+	}
+
+	public void clearDTCs () {
+		mDTCs.clear();
+	}
+
+	public int getNumDTCs () {
+		return mDTCs.size();
+	}
+
+	/**
+	 * @return - mode 03 data: the DTCs, two bytes each.
+	 */
+	public String getDTCBytes () {
+		String ret = "";
+		for (int i=0;i<mDTCs.size();i++)
+			ret += mDTCs.get(i);
+		return ret;
+	}
+
+	public EmulatedECU setVIN (String VIN) {
+		mVIN = VIN;
+		return this;
+	}
+
+	public String getVIN () {
+		return mVIN;
+	}
+
+	public EmulatedECU setLatencyMillis (int millis) {
+		mLatencyMillis = millis;
+		return this;
+	}
+
+	public int getLatencyMillis () {
+		return mLatencyMillis;
+	}
+
+	/**
+	 * "P0133" -> "0133", "C1234" -> "5234", and 4 hex digits pass straight through.
+	 */
+	static String encodeDTC (String dtc) {
+		dtc = dtc.toUpperCase();
+		if (dtc.length() == 4)
+			return dtc;
+
+		int system = "PCBU".indexOf(dtc.charAt(0));
+		if (system < 0) system = 0;
+
+		int first = (system << 2) | Character.digit(dtc.charAt(1), 16);
+		return Integer.toHexString(first).toUpperCase() + dtc.substring(2);
+	}
+}
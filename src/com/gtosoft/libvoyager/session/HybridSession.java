@@ -14,8 +14,10 @@ import java.util.TreeSet;
 import android.bluetooth.BluetoothAdapter;
 import android.util.Log;
 
+import com.gtosoft.libvoyager.android.BluetoothTransport;
 import com.gtosoft.libvoyager.android.ELMBT;
 import com.gtosoft.libvoyager.db.DashDB;
+import com.gtosoft.libvoyager.transport.ELMTransport;
 import com.gtosoft.libvoyager.util.EasyTime;
 import com.gtosoft.libvoyager.util.EventCallback;
 import com.gtosoft.libvoyager.util.GeneralStats;
@@ -95,10 +97,20 @@ public class HybridSession {
 	 * @param dashDB    - an instance of DashDB.
 	 */
 	public HybridSession(BluetoothAdapter btAdapter, String btAddr, DashDB dashDB, EventCallback OOBEventCallback) {
+		this (new BluetoothTransport(btAdapter, btAddr), dashDB, OOBEventCallback);
+	}
+
+	/**
+	 * Constructor for any transport, for example a TCPTransport for WiFi adapters.
+	 * 
+	 * @param transport - the link to the device. ELMBT will connect it for us.
+	 * @param dashDB    - an instance of DashDB.
+	 */
+	public HybridSession(ELMTransport transport, DashDB dashDB, EventCallback OOBEventCallback) {
 
-		// Instantiate a new bluetooth object. It will start trying to connect
+		// Instantiate a new I/O object. It will start trying to connect
 		// right away.
-		ebt = new ELMBT(btAdapter, btAddr);
+		ebt = new ELMBT(transport);
 
 		// grab a reference to DDB.
 		ddb = dashDB;
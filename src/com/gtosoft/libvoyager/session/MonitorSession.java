@@ -7,6 +7,8 @@
 package com.gtosoft.libvoyager.session;
 
 import com.gtosoft.libvoyager.android.ELMBT;
+import com.gtosoft.libvoyager.transport.ELMFramer;
+import com.gtosoft.libvoyager.util.ELMCompactFormat;
 import com.gtosoft.libvoyager.util.EasyTime;
 import com.gtosoft.libvoyager.util.EventCallback;
 import com.gtosoft.libvoyager.util.GeneralStats;
@@ -100,6 +102,18 @@ public class MonitorSession {
 
 	String[] unInitString = { "AT WS" };
 
+	// Compact mode: sniff with spaces off (ATS0). Same results, about a third fewer bytes per frame. See ELMCompactFormat. 
+	boolean mCompactMode = false;
+
+	// sniff throughput stats. bytes are characters handed to us by ELMBT, including line terminators. 
+	long mSniffFrames = 0;
+	long mSniffBytes = 0;
+	long mSniffStartMillis = 0;
+	long mSniffErrors = 0;
+
+	// the sniff loop reads every line into this one frame. ELM lines are well under 128 characters.
+	ELMFramer.Frame mSniffFrame = new ELMFramer.Frame(128);
+
 	// parent-overridable string which holds the AT commmand which kicks off the
 	// monitoring.
 	String mMonitorCommand = "ATMA";
@@ -170,6 +184,27 @@ public class MonitorSession {
 		setCurrentState(0);
 	}
 
+	/**
+	 * Turn compact mode (spaces off) on or off. Takes effect when we next initialize the device, which we force right now. 
+	 * Sniffed data comes out exactly the same either way, there's just less of it on the wire. 
+	 * @param compact - true for spaces off. 
+	 */
+	public void setCompactMode(boolean compact) {
+		mCompactMode = compact;
+
+		// start the throughput numbers over so they reflect the new mode. 
+		mSniffFrames = 0;
+		mSniffBytes = 0;
+		mSniffStartMillis = 0;
+		mSniffErrors = 0;
+
+		setCurrentState(0);
+	}
+
+	public boolean isCompactMode() {
+		return mCompactMode;
+	}
+
 	/**
 	 * Returns true if we're configured for SWCAN interface. 
 	 * @return
@@ -227,6 +262,11 @@ public class MonitorSession {
 		if (initialState < STATE_BTCONFIGURED) {
 			// ebt.cancelSniff();
 			ret = ebt.sendATInitialization(initCommands);
+			// spaces on or off. Always sent, since the OBD session may have left it either way. 
+			if (ret == true) {
+				String [] spaces = { mCompactMode ? ELMCompactFormat.SPACES_OFF : ELMCompactFormat.SPACES_ON };
+				ret = ebt.sendATInitialization(spaces);
+			}
 			if (ret != true || confirmProtocol() != true)
 				return newState; // failed to initialize the device.
 		}
@@ -652,10 +692,9 @@ public class MonitorSession {
 	 * @return
 	 */
 	private void processMessages() {
-		String message = "";
-		String[] msgs;
+		ELMFramer.Frame f = mSniffFrame;
 
-		// loop, getting messages with each iteration.
+		// loop, getting one line with each iteration.
 		int loops = 0;
 
 		if (DEBUG)
@@ -665,26 +704,26 @@ public class MonitorSession {
 		if (DEBUG)
 			msg("BEFORE processMessages() while loop. ");
 		while (mThreadsOn == true && mCurrentState == STATE_SNIFFING
-				&& (message = ebt.readUpToCharacter('>', 5)).length() > 0) {
-
-			msgs = message.split("\\|");
+				&& ebt.readFrame(f, 5) == true) {
 
-			// Process each message, individually.
-			for (int i = 0; i < msgs.length - 2; i++) {
-				// if it's a buffer full message, then skip it.
-				if (msgs[i].endsWith("FULL") || msgs[i].endsWith(">")) {
-					continue;
-				}
+			if (mSniffStartMillis == 0) mSniffStartMillis = System.currentTimeMillis();
+			// +1 for the line terminator.
+			mSniffBytes += f.length + 1;
 
-				// / GRRR - we shouldn't check this every time, just at first,
-				// because it is wasfetul
-				// TODO: Only check this for the first few messages.
-				if (!msgs[i].contains("ERR"))
-					processOneMessage(msgs[i]);
+			switch (f.classify()) {
+			case ELMFramer.FRAME_DATA:
+				processOneMessage(f);
+				break;
+			case ELMFramer.FRAME_ERROR:
+				mSniffErrors++;
+				break;
+			default:
+				// buffer full, blank lines, STOPPED and such. Nothing to decode. If there's a prompt, it's handled below.
+				break;
 			}
 
-			// Check and see if we need to get back into sniff mode.
-			if (message.endsWith(">") || message.contains("BUF") || message.contains("FULL")) {
+			// A prompt means the ELM dropped out of monitor mode (buffer full or otherwise). Get back into sniff mode.
+			if (f.terminator == ELMFramer.PROMPT) {
 				sendMonitorRequest();
 				mBufferFullCount++;
 			}
@@ -703,29 +742,29 @@ public class MonitorSession {
 	 * Process a single sniffed message. It might be 11-bit or 29-bit. Throw out
 	 * junk by returning false;
 	 * 
-	 * @param message
-	 *            - the single message.
+	 * @param f
+	 *            - the frame holding the single message.
 	 * @return - true if the message was good and processed successfully, false
 	 *         otherwise.
 	 */
-	private boolean processOneMessage(String message) {
-
-		// msg ("processOneMessage(): " + message);
+	private boolean processOneMessage(ELMFramer.Frame f) {
 
 		// throw out runt messages.
-		if (message.length() < 2)
+		if (f.length < 2)
 			return false;
 
-		// chop off the bar character.
-		if (message.endsWith("|"))
-			message = message.substring(0, message.length());
-
 		// at this point, message seems to be valid.
 		mLastSniffDataSeen = metime.getUptimeSeconds();
 
+		mSniffFrames++;
+
 		// Pass the message to the PIDDecoder which is registered with us.
-		if (pd != null)
-			pd.decodeOneMessage(message);
+		if (pd != null) {
+			if (mCompactMode == true)
+				pd.decodeOneCompactMessage(f.data, 0, f.length);
+			else
+				pd.decodeOneMessage(f.data, 0, f.length);
+		}
 
 		return true;
 	}
@@ -793,6 +832,15 @@ public class MonitorSession {
 		}
 
 		mgStats.setStat("monitorMode", "" + mMonitorCommand);
+		mgStats.setStat("compactMode", "" + mCompactMode);
+		mgStats.setStat("sniff.frames", mSniffFrames);
+		mgStats.setStat("sniff.bytes", mSniffBytes);
+		mgStats.setStat("sniff.errors", mSniffErrors);
+		if (mSniffFrames > 0)
+			mgStats.setStat("sniff.bytesPerFrame", (double) mSniffBytes / mSniffFrames);
+		long sniffMillis = System.currentTimeMillis() - mSniffStartMillis;
+		if (mSniffStartMillis > 0 && sniffMillis > 0)
+			mgStats.setStat("sniff.framesPerSecond", mSniffFrames * 1000 / sniffMillis);
 
 		return mgStats;
 	}
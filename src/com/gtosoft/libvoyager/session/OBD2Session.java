@@ -13,12 +13,20 @@ import java.util.Set;
 import android.util.Log;
 
 import com.gtosoft.libvoyager.android.ELMBT;
+import com.gtosoft.libvoyager.android.ELMCommandQueue;
 import com.gtosoft.libvoyager.db.DashDB;
+import com.gtosoft.libvoyager.util.ELMCompactFormat;
 import com.gtosoft.libvoyager.util.EasyTime;
 import com.gtosoft.libvoyager.util.EventCallback;
 import com.gtosoft.libvoyager.util.GTOMath;
 import com.gtosoft.libvoyager.util.GeneralStats;
+import com.gtosoft.libvoyager.util.OBDBatchPlanner;
+import com.gtosoft.libvoyager.util.OBDPacketParser;
+import com.gtosoft.libvoyager.util.OBDResponses;
+import com.gtosoft.libvoyager.util.PreparedRequest;
 import com.gtosoft.libvoyager.util.PIDDecoder;
+import com.gtosoft.libvoyager.util.ResponseCountLearner;
+import com.gtosoft.libvoyager.util.SupportedPIDs;
 
 
 /**
@@ -43,6 +51,9 @@ import com.gtosoft.libvoyager.util.PIDDecoder;
 public class OBD2Session {
 	final boolean DEBUG = false;
 
+	// Append the learned number of responses to requests so the ELM doesn't sit out its timeout. See ResponseCountLearner. 
+	final boolean USE_RESPONSE_COUNTS = true;
+
 	// This will be set to the correct value as soon as we detect that we are in a connected state. 
 	int mELMProtocol = 0;
 	
@@ -70,6 +81,9 @@ public class OBD2Session {
 	// one of the STATE constants defined above.
 	int mCurrentState = 0;
 
+	// true while we're making our own requests (VIN, supported PIDs) on the way in to STATE_OBDCONNECTED.
+	volatile boolean mSettingUpOBD = false;
+
 	// true as long as threads should be running. Set to false during shutdown.
 	boolean mThreadsOn = true;
 
@@ -94,6 +108,9 @@ public class OBD2Session {
 	// seession layer.
 	PIDDecoder piddecoder = null;
 
+	// Compact mode: responses come back with spaces off (ATS0), and OBDPacketParser reads them as they are. See ELMCompactFormat. 
+	boolean mCompactMode = false;
+
 	boolean mInitialInitSent = false;
 	String[] mInitInitial = { "AT WS" };
 	String[] mInitSuspend = {};
@@ -237,9 +254,31 @@ public class OBD2Session {
 
 		// Collect a few OBD stats...
 		if (newState >= STATE_OBDCONNECTED) {
-			mOBDDetectedProtocol = ebt.sendATCommand2("ATDP");
-			HashMap<String, String> responses = sendOBDRequestByName("VIN");
-			mgStats.setStat("vin", getResponsesAsString(responses));
+			// the state doesn't say OBDCONNECTED until we return, but our own requests need to go through. 
+			mSettingUpOBD = true;
+			try {
+				mOBDDetectedProtocol = ebt.sendATCommand2("ATDP");
+				HashMap<String, String> responses = sendOBDRequestByName("VIN");
+				mgStats.setStat("vin", getResponsesAsString(responses));
+
+				// learned response counts and supported PIDs are stored per VIN. 
+				String VIN = "";
+				Iterator<String> i = responses.values().iterator();
+				while (i.hasNext()) {
+					String thisVIN = i.next();
+					if (thisVIN.length() == 17) {
+						VIN = thisVIN;
+						getResponseCounts().setVIN(VIN);
+						break;
+					}
+				}
+
+				// same car as last time (or one we've seen before)? Then we already know which PIDs it has. 
+				if (!getSupportedPIDs().setVIN(VIN))
+					getSupportedPIDs().discover(this);
+			} finally {
+				mSettingUpOBD = false;
+			}
 		}
 	}
 
@@ -357,17 +396,51 @@ public class OBD2Session {
 	}
 
 	/**
-	 * Sends the specified OBD Command and obtains the response. This shall be
-	 * the lowest level OBD commanding method available and thus it is
-	 * synchronized for thread safety.
+	 * Sends the specified OBD Command and obtains the response. The command
+	 * goes through the ELMBT command queue at normal priority, so we wait our
+	 * turn without holding any locks.
 	 * 
 	 * @param obdRequest
 	 *            - raw request without the CR/LF.
 	 * @return - returns the raw response from the device, up to the prompt
 	 *         character ('>').
 	 */
-	public synchronized String obdCommand(String obdRequest) {
-		return ebt.sendOBDCommand(obdRequest);
+	public String obdCommand(String obdRequest) {
+		return obdCommand(obdRequest, ELMCommandQueue.PRIORITY_NORMAL);
+	}
+
+	/**
+	 * Same as obdCommand(String) but with the given queue priority.
+	 * 
+	 * @param priority
+	 *            - one of the ELMCommandQueue.PRIORITY_ constants.
+	 */
+	public String obdCommand(String obdRequest, int priority) {
+		return ebt.getCommandQueue().sendAndWait(obdRequest, priority, 0);
+	}
+
+	/**
+	 * @param ack - for example "41 0C". 
+	 * @return - true if the response contains the given ack bytes, with spaces or, in compact mode, without. 
+	 */
+	private boolean hasAck(String response, String ack) {
+		if (response.contains(ack))
+			return true;
+
+		return mCompactMode == true && response.contains(ack.replace(" ", ""));
+	}
+
+	/**
+	 * Turn compact mode (spaces off) on or off. Takes effect on the next (re)initialization of the device. 
+	 * Responses are parsed to the same results either way, but about a third fewer bytes cross the link. 
+	 * @param compact - true for spaces off. 
+	 */
+	public void setCompactMode(boolean compact) {
+		mCompactMode = compact;
+	}
+
+	public boolean isCompactMode() {
+		return mCompactMode;
 	}
 
 	/**
@@ -462,7 +535,12 @@ public class OBD2Session {
 		if (ret != true)
 			return false;
 
-		return ebt.sendATInitialization(mInitResume);
+		if (ebt.sendATInitialization(mInitResume) != true)
+			return false;
+
+		// spaces on or off. Always sent, since a monitor session may have left it either way. 
+		String [] spaces = { mCompactMode ? ELMCompactFormat.SPACES_OFF : ELMCompactFormat.SPACES_ON };
+		return ebt.sendATInitialization(spaces);
 
 	}
 
@@ -497,7 +575,7 @@ public class OBD2Session {
 		if (DEBUG == true)
 			msg("OBD2 session RPM=" + response);
 
-		if (response.contains("41 0C")) {
+		if (hasAck(response, "41 0C")) {
 			mgStats.setStat("OBDAliveCriteria", "method #1 " + request + "=" + response);
 			return true;
 		}
@@ -511,7 +589,7 @@ public class OBD2Session {
 		if (DEBUG == true)
 			msg("OBD2 session SupportedPIDs=" + response);
 
-		if (response.contains("41 00")) {
+		if (hasAck(response, "41 00")) {
 			msg("detectIfOBDIsAlive(): Warning: First request for RPM failed, but request for supported codes succeeded. Response to RPM request was " + firstResponse);
 			mgStats.setStat("OBDAliveCriteria", "method#2 " + request + "=" + response);
 			return true;
@@ -589,146 +667,82 @@ public class OBD2Session {
 	}
 
 	/**
-	 * Given an OBD response, parse it into individual responses and return it as a hashmap (K=Header, V=hex bytes).
-	 * TODO: RE-WRITE THIS FUNCTION!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!
-	 * TODO: SPLIT THIS FUNCTION INTO MANY OTHER FUNCTIONS FOR READABILITY (Or make a new friggin class, or multiple classes!)
+	 * Given an OBD response, find each ECU's data bytes in it and decode them with the request's formula. 
 	 *
 	 * @param obdResponse
-	 * @return - returns a hashmap containing individual responses and the data payload.
+	 * @param out
+	 *            - gets cleared and filled in: one entry per ECU with its data bytes and decoded value (see OBDResponses.getDecoded). 
+	 *            If the request has a fromHeader, just that ECU's. 
+	 * @return - the number of ECUs that answered, including any that got dropped because of fromHeader. 
 	 * 
 	 */
-	HashMap<String, String> parseOBDResponse(String DPN, String obdRequest,
-			String obdResponse, HashMap<String, String> hmResponses) {
-
-		HashMap<String, String> hmDecoded = new HashMap<String, String>();
-
-		// Example: req="01 0C" then the responseAckBytes would be "41 0C".
-		String responseAckBytes;
-
-		String modenibble = obdRequest.substring(0, 2);
-
-		// Default case: mode 01.
-		responseAckBytes = "4" + obdRequest.substring(1);
-
-		// mode 22 requests.
-		if (modenibble.startsWith("22"))
-			responseAckBytes = "6" + obdRequest.substring(1);
-
-		// in case the request didn't include a space between bytes, we need it
-		// there to search for it in the response.
-		if (responseAckBytes.length() > 3 && !responseAckBytes.substring(2, 3).equals(" ")) {
-			// insert a space between the first and second byte.
-			responseAckBytes = responseAckBytes.substring(0, 2) + " " + responseAckBytes.substring(2, 4);
-		}
-
-		// msg ("parseOBDResponse(): Searching for [" + responseAckBytes +
-		// "] within [" + obdResponse + "]");
+	int parseOBDResponse(PreparedRequest pr, String obdResponse, OBDResponses out) {
 
 		// Special case for AT commands...
-		if (obdRequest.startsWith("AT")) {
+		if (pr.kind == PreparedRequest.KIND_AT) {
 			// Formula must contain something, even though it will be ignored,
 			// and the decoder will actually know how to decode it based on the
 			// request in the case of AT commands.
-			hmDecoded.put("AT",GTOMath.decodeAutoDetect(0,obdRequest,"AT","",obdResponse));
-			return hmDecoded;
+			out.clear();
+			int i = out.add(-1, "AT");
+			out.setDecoded(i, GTOMath.decodeAutoDetect(0,pr.request,"AT","",obdResponse));
+			return 1;
 		}
 
-		String[] responses = obdResponse.split("\\|");
-
-		String hedr = ""; // header
-		String hexBytes = ""; // data
-		// loop through the responses, add each valid one to the hashmap.
-		for (int i = 0; i < responses.length; i++) {
-			// if (isValidOBDEchooBack (responses[i],responseAckBytes)) {
-			if (responses[i].contains(responseAckBytes)) {
-				// split the header from the data bytes, add it to the hashmap.
-				int firstSpace = responses[i].indexOf(" ");
+		int answered = getPacketParser().parse(pr.mode, pr.pid, obdResponse, out);
 
-				// 29-bit
-				if (firstSpace == 2) {
-					try {
-						hedr = responses[i].substring(0, 12);
-					} catch (Exception e) {
-						msg("parseOBDResponse(): Malformed packet. not 29-bit? "
-								+ responses[i] + " err=" + e.getMessage());
-						// skip the packet by continuing.
-						hedr = "?";
-					}
-				}
+		// if only one ECU's answer counts, drop the rest. 
+		if (pr.fromHeader >= 0) {
+			int i = 0;
+			while (i < out.size()) {
+				if (out.getECU(i) != pr.fromHeader)
+					out.remove(i);
+				else
+					i++;
+			}
+		}
 
-				// 11-bit
-				if (firstSpace == 3) {
-					try {
-						hedr = responses[i].substring(0, 3);
-					} catch (Exception e) {
-						msg("parseOBDResponse(): Malformed packet. not 11-bit? "
-								+ responses[i] + " err=" + e.getMessage());
-						// skip the packet by continuing.
-						hedr = "?";
-					}
-				}
+		// Now decode each ECU's bytes. 
+		for (int i=0;i<out.size();i++)
+			out.setDecoded(i, pr.decode(mELMProtocol, obdResponse, out, i));
 
-				// find data (hex bytes)
-				int dataStart = responses[i].indexOf(responseAckBytes)
-						+ responseAckBytes.length() + 1;
+		if (DEBUG == true && pr.kind == PreparedRequest.KIND_VIN) 
+			msg("VIN: " + out + " And the response was " + obdResponse);
 
-				// // If it's a mode22 type request, then the data is one byte
-				// further than we though. UGLY HACK!
-				// if (obdRequest.replace(" ","").length()==6)
-				// dataStart += 1;
+		return answered;
+	}
 
-				try {
-					hexBytes = responses[i].substring(dataStart);
-				} catch (Exception e) {
-					msg("parseOBDResponse(): Unexpected data offset. expected="
-							+ dataStart + " response=" + responses[i]);
-					hexBytes = responses[i];
-				}
+	/**
+	 * @return - the prepared request for the given DPN, from our DashDB. Null if there's no such DPN. 
+	 */
+	public PreparedRequest getPreparedRequest(String dataPointName) {
+		return ddb.getPreparedRequest(dataPointName);
+	}
 
-				// Store the hexbytes.
-				if (hmResponses.containsKey(hedr)) {
-					// append multi-packet response.
-					hmResponses.put(hedr, hmResponses.get(hedr) + " " + hexBytes);
-				} else {
-					// new.
-					hmResponses.put(hedr, hexBytes);
-				}
+	OBDPacketParser mPacketParser = null;
+	/**
+	 * @return - a packet parser for the current protocol. 
+	 */
+	private synchronized OBDPacketParser getPacketParser() {
+		if (mPacketParser == null || mPacketParser.getProtocolNum() != mELMProtocol)
+			mPacketParser = new OBDPacketParser(mELMProtocol);
 
-				if (obdRequest.contains("0902")) {
-					msg("VIN: " + GTOMath.dumpHashMap(hmResponses) + " And Current response is " + responses[i]);
-				}
-			} // end of if-the-response-contains-the-ack-bytes.
-			else {
-				// responses[i].contains(responseAckBytes)
-				// if (DEBUG==true) msg
-				// ("Response fails repeat test. responses[i]=" + responses[i] +
-				// " does not contain " + responseAckBytes);
-			}
-		} // end of for-loop.
+		return mPacketParser;
+	}
 
-		// Now loop through all response packets and decode them. We will later
-		// return that decoded value.
-		// TODO: Check and see if there are multiple responses first, if not,
-		// then don't do this complicated logic.
-		Set<String> s = hmResponses.keySet();
-		Iterator<String> it = s.iterator();
+	// one response buffer per thread that asks for data, so nobody has to allocate one per request. 
+	private final ThreadLocal<OBDResponses> mResponseBuffers = new ThreadLocal<OBDResponses>() {
+		protected OBDResponses initialValue() {
+			return new OBDResponses();
+		}
+	};
 
-		String thisKey = "";
-		String decodedValue = "";
-		// String formula = ddb.getOBDFormulaByRequest(obdRequest);
-		String formula = ddb.getOBDFormulaByName(DPN);
-		// Loop through responses. They may be from one or more CPUs.
-		while (it.hasNext()) {
-			thisKey = it.next();
-//			decodedValue = GTOMath.decodeAutoDetect(obdRequest, formula, hmResponses.get(thisKey));
-			decodedValue = GTOMath.decodeAutoDetect(mELMProtocol, obdRequest, formula, obdResponse, hexBytes);
-			// if (DEBUG == true) msg ("KEY=" + thisKey + " val=" + decodedValue
-			// + " OBDreq=" + obdRequest);
-			hmDecoded.put(thisKey, decodedValue);
-		}
-
-		//
-		return hmDecoded;
+	/**
+	 * @return - the calling thread's response buffer. The same one comes back every time for the same thread, so whatever 
+	 *         is in it only lasts until that thread's next request. 
+	 */
+	public OBDResponses getResponseBuffer() {
+		return mResponseBuffers.get();
 	}
 
 	/**
@@ -740,30 +754,74 @@ public class OBD2Session {
 	 * @return - returns a hashmap containing all DECODED responses. K=ECU, V=(decoded) Data.
 	 */
 	public HashMap<String, String> sendOBDRequestByName(String dataPointName) {
+		return sendOBDRequestByName(dataPointName, ELMCommandQueue.PRIORITY_NORMAL);
+	}
+
+	/**
+	 * Same as sendOBDRequestByName(String) but the request gets queued at the given priority. 
+	 * 
+	 * @param priority
+	 *            - one of the ELMCommandQueue.PRIORITY_ constants.
+	 */
+	public HashMap<String, String> sendOBDRequestByName(String dataPointName, int priority) {
+		OBDResponses r = getResponseBuffer();
+		sendOBDRequestByName(dataPointName, priority, r);
+
+		HashMap<String, String> hmDecoded = new HashMap<String, String>();
+		for (int i=0;i<r.size();i++)
+			hmDecoded.put(r.getHeader(i), r.getDecoded(i));
+
+		return hmDecoded;
+	}
+
+	/**
+	 * Same as sendOBDRequestByName(String, int), but the responses go into the given (reused) buffer instead of a new hashmap. 
+	 * This is what PIDDecoder polls with. 
+	 * 
+	 * @param out
+	 *            - gets one entry per ECU that answered: header, data bytes, and the decoded value. Empty if nobody did or something went wrong. 
+	 * @return - the number of ECUs that answered. 
+	 */
+	public int sendOBDRequestByName(String dataPointName, int priority, OBDResponses out) {
+		PreparedRequest pr = getPreparedRequest(dataPointName);
+		if (pr == null) {
+			out.clear();
+			msg("Warning: Lookup returned empty request-string for datapoint " + dataPointName);
+			return 0;
+		}
+
+		return sendOBDRequest(pr, priority, out);
+	}
+
+	/**
+	 * Send a prepared request and decode the responses. Same as sendOBDRequestByName, minus looking everything up. 
+	 * 
+	 * @param out
+	 *            - gets one entry per ECU that answered: header, data bytes, and the decoded value. Empty if nobody did or something went wrong. 
+	 * @return - the number of ECUs that answered. 
+	 */
+	public int sendOBDRequest(PreparedRequest pr, int priority, OBDResponses out) {
 		String obdResponse = "";
+		// true if the request went out with a response count digit on the end.
+		boolean decorated = false;
 
-		// TODO: Let the calling method define the hashmap so we don't allocate
-		// it every time?
-		HashMap<String, String> hmResponses = new HashMap<String, String>();
+		out.clear();
 
-		// query the DB for the OBD request related to this data point name
-		String obdRequest = ddb.getOBDRequestByName(dataPointName);
-//		if (DEBUG == true) msg("Lookup of DPN " + dataPointName + " has request=" + obdRequest);
 		// Make sure the request found in the DB is valid.
-		if (obdRequest.length() < 1) {
-			msg("Warning: Lookup returned empty request-string for datapoint " + dataPointName);
-			return hmResponses;
+		if (pr.request.length() < 1) {
+			msg("Warning: Lookup returned empty request-string for datapoint " + pr.DPN);
+			return 0;
 		}
 
-		if (obdRequest.startsWith("AT")) {
+		if (pr.kind == PreparedRequest.KIND_AT) {
 			// AT command... Send it regardless of our connection state.
-			obdResponse = sendATCommand(obdRequest);
+			obdResponse = sendATCommand(pr.request);
 		} else {
 
 			// Request is NOT an AT-request. Check and make sure we're in a suitable state.
-			if (getCurrentState() != STATE_OBDCONNECTED) {
+			if (getCurrentState() != STATE_OBDCONNECTED && mSettingUpOBD == false) {
 				// TODO: Keep track of number of ignored denied requests?
-				if (DEBUG == true) msg("Ignoring data request - OBD not connected. datapoint=" + dataPointName + " State=" + getCurrentState());
+				if (DEBUG == true) msg("Ignoring data request - OBD not connected. datapoint=" + pr.DPN + " State=" + getCurrentState());
 				 
 				// slow your roll
 				try {
@@ -771,21 +829,138 @@ public class OBD2Session {
 				} catch (InterruptedException e) {
 				}
 				
-				return hmResponses;
+				return 0;
 			}
 			
 			// apparently we're connected!
-			obdResponse = obdCommand(obdRequest);
+			// On CAN, if we know how many ECUs answer this one, tell the ELM so it doesn't wait around for more. 
+			String wireRequest = pr.request;
+			if (USE_RESPONSE_COUNTS == true && isCANProtocol())
+				wireRequest = getResponseCounts().decorate(pr);
+			decorated = (wireRequest != pr.request);
+
+			obdResponse = obdCommand(wireRequest, priority);
 		}
 
 		// Check the response, if its not valid, throw it out.
 		if (obdResponse.length() < 3) {
-			msg("Threw out invalid response: " + obdResponse + " to request " + obdRequest);
-			return hmResponses;
+			msg("Threw out invalid response: " + obdResponse + " to request " + pr.request);
+			if (decorated) getResponseCounts().observe(pr, true, 0, true);
+			return 0;
+		}
+
+		// parse the response packet. Note we parse against the request as stored, without any count digit. 
+		int answered = parseOBDResponse(pr, obdResponse, out);
+
+		// learn (or unlearn) the response count. That's every ECU that answered, fromHeader or not, since the ELM counts them all. 
+		if (pr.kind != PreparedRequest.KIND_AT && isCANProtocol())
+			getResponseCounts().observe(pr, decorated, answered, isTruncated(pr, out));
+
+		return out.size();
+	}
+
+	/**
+	 * @return - true if any ECU's response holds fewer data bytes than the obdRequest table says it should, or was cut short. 
+	 */
+	private boolean isTruncated(PreparedRequest pr, OBDResponses r) {
+		for (int i=0;i<r.size();i++) {
+			if (!r.isComplete(i))
+				return true;
+			if (pr.numDataBytes > 0 && r.getLength(i) < pr.numDataBytes)
+				return true;
+		}
+
+		return false;
+	}
+
+	ResponseCountLearner mResponseCounts = null;
+	/**
+	 * @return - our ResponseCountLearner, created on first use. 
+	 */
+	public synchronized ResponseCountLearner getResponseCounts() {
+		if (mResponseCounts == null)
+			mResponseCounts = new ResponseCountLearner(ddb);
+
+		return mResponseCounts;
+	}
+
+	/**
+	 * Send a multi-PID mode 01 request, built by OBDBatchPlanner, and decode each DPN's share of the response. 
+	 * Only makes sense on CAN protocols. 
+	 * 
+	 * @param b
+	 *            - the batch to send.
+	 * @param priority
+	 *            - one of the ELMCommandQueue.PRIORITY_ constants.
+	 * @return - true if it worked, in which case b.getResponses(j) holds DPN j's answer from each ECU, decoded (see OBDResponses.getDecoded). 
+	 *         DPNs that no ECU answered have none. 
+	 *         Returns false if we couldn't make sense of the response, so the caller can fall back to one request per DPN.
+	 */
+	public boolean sendOBDRequestBatch(OBDBatchPlanner.Batch b, int priority) {
+		if (getCurrentState() != STATE_OBDCONNECTED) 
+			return false;
+
+		String obdResponse = obdCommand(b.getRequest(), priority);
+		if (obdResponse.length() < 3) {
+			if (DEBUG == true) msg("Threw out invalid response: " + obdResponse + " to batch request " + b.getRequest());
+			return false;
+		}
+
+		// no PID byte: everything after the 41 is PID, data, PID, data... 
+		OBDResponses r = getResponseBuffer();
+		if (getPacketParser().parse(0x01, -1, obdResponse, r) < 1) {
+			// nobody supports any of these PIDs. That's an answer too - no point asking again one at a time.
+			if (obdResponse.contains("NO DATA")) {
+				getBatchPlanner().split(b, r);
+				return true;
+			}
+			return false;
+		}
+
+		if (!getBatchPlanner().split(b, r)) {
+			mgStats.incrementStat("batchSplitErrors");
+			return false;
 		}
 
-		// parse the response packet and return it all at once.
-		return parseOBDResponse(dataPointName, obdRequest, obdResponse,hmResponses);
+		// decode each DPN's bytes the same way parseOBDResponse would have, had we asked for it on its own. 
+		for (int j=0;j<b.size();j++) {
+			PreparedRequest pr = b.getPreparedRequest(j);
+			OBDResponses dpnResponses = b.getResponses(j);
+
+			for (int i=0;i<dpnResponses.size();i++)
+				dpnResponses.setDecoded(i, pr.decode(mELMProtocol, obdResponse, dpnResponses, i));
+		}
+
+		return true;
+	}
+
+	SupportedPIDs mSupportedPIDs = null;
+	/**
+	 * @return - which mode 01 PIDs the connected car supports. Created on first use. 
+	 */
+	public synchronized SupportedPIDs getSupportedPIDs() {
+		if (mSupportedPIDs == null)
+			mSupportedPIDs = new SupportedPIDs(ddb);
+
+		return mSupportedPIDs;
+	}
+
+	/**
+	 * @return - false if we know the car doesn't support this request, so there's no point sending it. 
+	 */
+	public boolean isSupported(PreparedRequest pr) {
+		return getSupportedPIDs().isSupported(pr);
+	}
+
+	OBDBatchPlanner mBatchPlanner = null;
+	/**
+	 * @return - our OBDBatchPlanner, created on first use. 
+	 */
+	public synchronized OBDBatchPlanner getBatchPlanner() {
+		if (mBatchPlanner == null)
+			mBatchPlanner = new OBDBatchPlanner();
+
+		return mBatchPlanner;
 	}
 
 	/**
@@ -811,7 +986,7 @@ public class OBD2Session {
 
 	public String sendDTCReset() {
 		if (ebt != null)
-			return ebt.sendOBDCommand("04");
+			return obdCommand("04", ELMCommandQueue.PRIORITY_INTERACTIVE);
 		else {
 			msg ("ERROR: EBT is null. Cannot send OBD DTC reset command to clear the active trouble codes.");
 		}
@@ -897,6 +1072,8 @@ public class OBD2Session {
 		isSuspended(); // updates stat. 
 		mgStats.setStat("state", "" + getCurrentState());
 		mgStats.setStat("stateName", getCurrentStateByName());
+		if (mResponseCounts != null)
+			mgStats.merge("responseCount", mResponseCounts.getStats());
 
 		return mgStats;
 	}
@@ -912,6 +1089,20 @@ public class OBD2Session {
 		return mOBDDetectedProtocol;
 	}
 
+	/**
+	 * @return - the ELM protocol number detected when we reached OBDCONNECTED state, or 0 if we haven't yet. 
+	 */
+	public int getELMProtocolNumber() {
+		return mELMProtocol;
+	}
+
+	/**
+	 * @return - true if the detected protocol is one of the CAN protocols (ELM protocol 6 and up). 
+	 */
+	public boolean isCANProtocol() {
+		return mELMProtocol >= 6;
+	}
+
 	public boolean isSuspended () {
 		if (mThreadsOn == false && mtStateManagementThread == null) {
 			mgStats.setStat("isSuspended", "true");
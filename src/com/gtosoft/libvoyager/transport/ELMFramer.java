@@ -0,0 +1,232 @@
+/**
+ * (C) 2011 libvoyager is licensed under a Creative Commons Attribution-NonCommercial 3.0 Unported License.
+ * Permissions beyond the scope of this license may be available at http://www.gtosoft.com. You can download,
+ * use, modify the code as long as you do not include it as part of commercial software.
+ */
+
+package com.gtosoft.libvoyager.transport;
+
+/**
+ * Sits between an ELMTransport and ELMBT. ELMBT's reader thread hands us whole chunks as it reads them off the transport, we clean them up
+ * (CR/LF become '|', printable characters are kept, everything else is thrown away) and store the result in a byte ring buffer.
+ * Callers then take data back out either as text (drainTo) or one line at a time (nextFrame), without any per-byte allocation.
+ *
+ * Not thread safe - the owner synchronizes on us.
+ * @author brad
+ */
+
+public class ELMFramer {
+
+	// ELM line terminator after CR/LF conversion, and the prompt character.
+	public static final byte FRAME_DELIMITER 	= '|';
+	public static final byte PROMPT 			= '>';
+
+	// what kind of line a Frame holds. See Frame.classify().
+	public static final int FRAME_EMPTY 		= 0;
+	public static final int FRAME_DATA 			= 1;
+	public static final int FRAME_BUFFER_FULL 	= 2;
+	public static final int FRAME_ERROR 		= 3;
+	public static final int FRAME_PROMPT 		= 4;
+	public static final int FRAME_OTHER 		= 5;
+
+	// the ring. Its size is always a power of two so we can mask instead of mod.
+	final byte [] mRing;
+	final int mMask;
+
+	// absolute write/read positions. head - tail = bytes buffered.
+	long mHead = 0;
+	long mTail = 0;
+
+	// stats.
+	long mDroppedChars 	= 0;
+
+	/**
+	 * A reusable view of one line of ELM output. Fill it with nextFrame() and read data[0..length-1].
+	 */
+	public static class Frame {
+		public final byte [] data;
+		public int length = 0;
+		// the character that ended this frame - FRAME_DELIMITER, PROMPT, or 0 if the frame was cut short because it didn't fit.
+		public byte terminator = 0;
+
+		public Frame (int maxLength) {
+			data = new byte[maxLength];
+		}
+
+		public boolean startsWith (String s) {
+			if (s.length() > length) return false;
+			for (int i=0;i<s.length();i++)
+				if (data[i] != (byte)s.charAt(i)) return false;
+			return true;
+		}
+
+		/**
+		 * @return - true if the given text appears anywhere in the frame.
+		 */
+		public boolean contains (String s) {
+			int n = s.length();
+			for (int i=0;i<=length - n;i++) {
+				int j = 0;
+				while (j < n && data[i+j] == (byte)s.charAt(j)) j++;
+				if (j == n) return true;
+			}
+			return false;
+		}
+
+		/**
+		 * Sort the frame into one of the FRAME_ types, without allocating.
+		 *  - FRAME_DATA: only hex digits and spaces, for example "7E8 04 41 0C 09 63" or "7E804410C0963".
+		 *  - FRAME_BUFFER_FULL: the ELM ran out of buffer ("BUFFER FULL"). A prompt follows.
+		 *  - FRAME_ERROR: "CAN ERROR", "<RX ERROR", "ERR94" and friends.
+		 *  - FRAME_PROMPT: nothing but the prompt.
+		 *  - FRAME_EMPTY: a blank line.
+		 *  - FRAME_OTHER: anything else (STOPPED, SEARCHING..., an echo, OK, ?).
+		 */
+		public int classify () {
+			if (length == 0)
+				return (terminator == PROMPT) ? FRAME_PROMPT : FRAME_EMPTY;
+
+			boolean hex = true;
+			for (int i=0;i<length && hex;i++) {
+				byte c = data[i];
+				hex = (c >= '0' && c <= '9') || (c >= 'A' && c <= 'F') || (c >= 'a' && c <= 'f') || c == ' ';
+			}
+			if (hex) return FRAME_DATA;
+
+			if (contains("FULL")) return FRAME_BUFFER_FULL;
+			if (contains("ERR")) return FRAME_ERROR;
+			return FRAME_OTHER;
+		}
+
+		/**
+		 * Allocates! Only for when you really need a String.
+		 */
+		public String toString () {
+			return new String (data, 0, length);
+		}
+	}
+
+	/**
+	 * @param capacity - minimum number of bytes to buffer. Rounded up to a power of two.
+	 */
+	public ELMFramer (int capacity) {
+		int size = 1;
+		while (size < capacity) size <<= 1;
+
+		mRing 	= new byte[size];
+		mMask 	= size - 1;
+	}
+
+	/**
+	 * @return - number of (cleaned up) bytes waiting in the ring.
+	 */
+	public int size () {
+		return (int)(mHead - mTail);
+	}
+
+	/**
+	 * @return - number of bytes we have room for.
+	 */
+	public int free () {
+		return mRing.length - size();
+	}
+
+	/**
+	 * Throw away everything buffered.
+	 */
+	public void clear () {
+		mTail = mHead;
+	}
+
+	/**
+	 * Filter raw bytes into the ring.
+	 * Never stores more than it was given, so checking free() >= length beforehand guarantees it all fits.
+	 * @return - number of bytes stored. Anything that doesn't fit is dropped (and counted).
+	 */
+	public int put (byte [] raw, int offset, int length) {
+		int stored = 0;
+
+		for (int i=offset;i<offset+length;i++) {
+			int b = raw[i] & 0xFF;
+
+			// is it a valid printable character? convert CR/LF into vertical bar, other nonprintable characters get thrown away to preserve formatting.
+			if (b >= 32 && b <= 127) {
+				// keep it.
+			} else if (b == 13 || b == 10) {
+				b = FRAME_DELIMITER;
+			} else {
+				mDroppedChars++;
+				continue;
+			}
+
+			if (free() == 0) {
+				mDroppedChars++;
+				continue;
+			}
+
+			mRing[(int)(mHead++ & mMask)] = (byte) b;
+			stored++;
+		}
+
+		return stored;
+	}
+
+	/**
+	 * Move buffered text into the given StringBuilder, up to and including stopAt.
+	 * @param stopAt - stop after this character, or 0 to take everything.
+	 * @param maxLength - don't let sb grow past this many characters.
+	 * @return - true if we stopped because we hit stopAt.
+	 */
+	public boolean drainTo (StringBuilder sb, char stopAt, int maxLength) {
+		while (mTail < mHead && sb.length() < maxLength) {
+			byte b = mRing[(int)(mTail++ & mMask)];
+			sb.append((char) b);
+			if (stopAt != 0 && b == (byte)stopAt)
+				return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Hand out the next complete line (ended by '|' or '>'), minus its terminator.
+	 * If a line is longer than the frame it is cut short and the rest comes out as the next frame.
+	 * @return - false if no complete line is buffered yet. The frame is left untouched in that case.
+	 */
+	public boolean nextFrame (Frame f) {
+		int max = f.data.length;
+		long p = mTail;
+		while (p < mHead) {
+			byte b = mRing[(int)(p & mMask)];
+			if (b == FRAME_DELIMITER || b == PROMPT) {
+				copyOut(f, (int)(p - mTail));
+				f.terminator = b;
+				mTail = p + 1;
+				return true;
+			}
+
+			if (p - mTail == max) {
+				// too long for the frame. Hand out what fits.
+				copyOut(f, max);
+				f.terminator = 0;
+				mTail = p;
+				return true;
+			}
+			p++;
+		}
+
+		return false;
+	}
+
+	private void copyOut (Frame f, int n) {
+		int start = (int)(mTail & mMask);
+		int first = Math.min(n, mRing.length - start);
+		System.arraycopy(mRing, start, f.data, 0, first);
+		if (first < n) System.arraycopy(mRing, 0, f.data, first, n - first);
+		f.length = n;
+	}
+
+	public long getDroppedChars () {
+		return mDroppedChars;
+	}
+}
@@ -0,0 +1,80 @@
+/**
+ * (C) 2011 libvoyager is licensed under a Creative Commons Attribution-NonCommercial 3.0 Unported License.
+ * Permissions beyond the scope of this license may be available at http://www.gtosoft.com. You can download,
+ * use, modify the code as long as you do not include it as part of commercial software.
+ */
+
+package com.gtosoft.libvoyager.transport;
+
+import java.io.IOException;
+
+import com.gtosoft.libvoyager.util.EventCallback;
+import com.gtosoft.libvoyager.util.GeneralStats;
+
+/**
+ * A raw byte-stream link to an ELM327 style device. ELMBT sits on top of one of these and does all the
+ * ELM specific stuff (prompts, AT commands, error accounting, reconnects). The transport only moves bytes.
+ *
+ * Implementations:
+ *  - BluetoothTransport (com.gtosoft.libvoyager.android) - RFCOMM socket to a paired dongle.
+ *  - TCPTransport - WiFi ELM327 adapters, or a local emulator.
+ *
+ * Read and write methods throw IOException so that the caller (ELMBT) can do its own error accounting.
+ * Everything else reports problems by returning false / blank strings, like the rest of the library.
+ * @author brad
+ */
+
+public interface ELMTransport {
+
+	/**
+	 * Open the link. Blocks for as long as it takes to connect, so DON'T call it from the UI thread.
+	 * @return - true if the link is open and ready for I/O, false otherwise.
+	 */
+	public boolean connect ();
+
+	/**
+	 * Close the link and release the socket/streams. Safe to call when already closed.
+	 */
+	public void close ();
+
+	/**
+	 * @return - true if the link has been opened and has not been closed or found dead since.
+	 */
+	public boolean isOpen ();
+
+	/**
+	 * Read up to length bytes into the given buffer. Blocks until at least one byte is available, or the link dies.
+	 * @return - number of bytes read. -1 means end of stream (peer closed the link).
+	 */
+	public int read (byte [] buffer, int offset, int length) throws IOException;
+
+	/**
+	 * Write the given bytes to the link, all of them.
+	 */
+	public void write (byte [] buffer, int offset, int length) throws IOException;
+
+	/**
+	 * @return - the number of bytes that can be read right now without blocking.
+	 */
+	public int available () throws IOException;
+
+	/**
+	 * Register a callback whose onStateChange() we fire when the link opens (0,1) or closes/dies (1,0).
+	 */
+	public void registerStateChangeCallback (EventCallback eventCallback);
+
+	/**
+	 * @return - the address of the peer, for example a Bluetooth MAC or host:port.
+	 */
+	public String getPeerAddress ();
+
+	/**
+	 * @return - a friendly name for the peer, or a blank string if we don't know one.
+	 */
+	public String getPeerName ();
+
+	/**
+	 * @return - a reference to our GeneralStats instance.
+	 */
+	public GeneralStats getStats ();
+}
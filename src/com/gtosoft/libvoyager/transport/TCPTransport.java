@@ -0,0 +1,281 @@
+/**
+ * (C) 2011 libvoyager is licensed under a Creative Commons Attribution-NonCommercial 3.0 Unported License.
+ * Permissions beyond the scope of this license may be available at http://www.gtosoft.com. You can download,
+ * use, modify the code as long as you do not include it as part of commercial software.
+ */
+
+package com.gtosoft.libvoyager.transport;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+import android.util.Log;
+
+import com.gtosoft.libvoyager.util.EventCallback;
+import com.gtosoft.libvoyager.util.GeneralStats;
+
+/**
+ * TCP implementation of ELMTransport, for WiFi ELM327 adapters (usually 192.168.0.10:35000) or a local emulator.
+ *
+ * We use a non-blocking SocketChannel so that available() is honest - plain socket input streams don't reliably report
+ * available bytes on every platform. Reads that have to wait do so on a Selector instead of sleeping.
+ * Nagle is turned off because every ELM request is a handful of bytes and we wait on each reply before sending the next.
+ * @author brad
+ */
+
+public class TCPTransport implements ELMTransport {
+
+	final boolean DEBUG = false;
+
+	// ELM traffic is tiny, but ATMA sniffing can burst, so give the kernel some room.
+	final int SOCKET_RECEIVE_BUFFER = 64 * 1024;
+	final int SOCKET_SEND_BUFFER 	= 4 * 1024;
+
+	// size of our own read-ahead buffer, used by available() and read().
+	final int READ_BUFFER_SIZE 		= 16 * 1024;
+
+	// max milliseconds to wait for the TCP handshake.
+	final int CONNECT_TIMEOUT 		= 5000;
+
+	// max milliseconds a blocked read waits before re-checking whether we've been closed.
+	final int SELECT_TIMEOUT 		= 1000;
+
+	GeneralStats mgStats = new GeneralStats();
+
+	String 	mHost 	= "";
+	int 	mPort 	= 0;
+
+	SocketChannel 	mChannel 		= null;
+	Selector 		mReadSelector 	= null;
+	Selector 		mWriteSelector 	= null;
+
+	// read-ahead buffer. Always left in "read" mode (flipped) between calls.
+	ByteBuffer 		mReadBuffer 	= ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+	// the read side and write side each have their own lock so a blocked read doesn't hold up a write.
+	final Object 	mReadLock 		= new Object();
+	final Object 	mWriteLock 		= new Object();
+
+	EventCallback mStateChangeCallback = null;
+
+	long mBytesIn 	= 0;
+	long mBytesOut 	= 0;
+
+	/**
+	 * Constructor.
+	 * @param host - hostname or IP of the adapter, for example "192.168.0.10".
+	 * @param port - TCP port, for example 35000.
+	 */
+	public TCPTransport (String host, int port) {
+		mHost = host;
+		mPort = port;
+		mReadBuffer.flip();
+	}
+
+	public synchronized boolean connect() {
+		if (isOpen()) {
+			if (DEBUG) msg ("connect() called while already connected to " + getPeerAddress());
+			return true;
+		}
+
+		close();
+
+		SocketChannel ch = null;
+		try {
+			ch = SocketChannel.open();
+			Socket s = ch.socket();
+			s.setTcpNoDelay(true);
+			s.setKeepAlive(true);
+			s.setReceiveBufferSize(SOCKET_RECEIVE_BUFFER);
+			s.setSendBufferSize(SOCKET_SEND_BUFFER);
+			s.connect(new InetSocketAddress(mHost, mPort), CONNECT_TIMEOUT);
+
+			ch.configureBlocking(false);
+			mReadSelector 	= Selector.open();
+			mWriteSelector 	= Selector.open();
+			ch.register(mReadSelector, SelectionKey.OP_READ);
+			ch.register(mWriteSelector, SelectionKey.OP_WRITE);
+		} catch (Exception e) {
+			msg ("connect(): Failed to connect to " + getPeerAddress() + ". Error was: " + e.getMessage());
+			if (ch != null) try {ch.close();} catch (Exception e2) {}
+			closeSelectors();
+			return false;
+		}
+
+		// throw away anything left over from the last connection. Readers never call close() while holding mReadLock, 
+		// so taking it under our monitor can't deadlock.
+		synchronized (mReadLock) {
+			mReadBuffer.clear();
+			mReadBuffer.flip();
+		}
+
+		mChannel = ch;
+		mgStats.setStat("peer", getPeerAddress());
+		if (DEBUG) msg ("connect(): CONNECTED to " + getPeerAddress());
+
+		sendStateChangeCallback(0,1);
+		return true;
+	}
+
+	public synchronized void close() {
+		SocketChannel ch = mChannel;
+		mChannel = null;
+
+		if (ch != null) {
+			try {ch.close();} catch (Exception e) {}
+		}
+
+		closeSelectors();
+
+		if (ch != null) sendStateChangeCallback(1,0);
+	}
+
+	private void closeSelectors () {
+		if (mReadSelector != null) {
+			try {mReadSelector.close();} catch (Exception e) {}
+			mReadSelector = null;
+		}
+
+		if (mWriteSelector != null) {
+			try {mWriteSelector.close();} catch (Exception e) {}
+			mWriteSelector = null;
+		}
+	}
+
+	public boolean isOpen() {
+		SocketChannel ch = mChannel;
+		return (ch != null && ch.isOpen() && ch.isConnected());
+	}
+
+	/**
+	 * Pull whatever the kernel has for us into the read-ahead buffer, without blocking.
+	 * Must be called with mReadLock held.
+	 * @return - the number of bytes now sitting in the read-ahead buffer, or -1 if the peer hung up. The caller should close() 
+	 *   then, after letting go of mReadLock.
+	 */
+	private int fillReadBuffer () throws IOException {
+		SocketChannel ch = mChannel;
+		if (ch == null) throw new IOException("not connected");
+
+		mReadBuffer.compact();
+		int n;
+		try {
+			n = ch.read(mReadBuffer);
+		} finally {
+			mReadBuffer.flip();
+		}
+
+		// peer hung up on us.
+		if (n < 0)
+			return -1;
+
+		mBytesIn += n;
+		return mReadBuffer.remaining();
+	}
+
+	public int available() throws IOException {
+		synchronized (mReadLock) {
+			if (mReadBuffer.hasRemaining())
+				return mReadBuffer.remaining();
+
+			int n = fillReadBuffer();
+			if (n >= 0)
+				return n;
+		}
+
+		close();
+		throw new IOException("connection closed by peer");
+	}
+
+	public int read(byte[] buffer, int offset, int length) throws IOException {
+		synchronized (mReadLock) {
+			while (!mReadBuffer.hasRemaining()) {
+				// got something, or the peer hung up. 
+				if (fillReadBuffer() != 0)
+					break;
+
+				// nothing there yet. wait on the selector rather than sleeping.
+				waitFor(mReadSelector);
+			}
+
+			if (mReadBuffer.hasRemaining()) {
+				int n = Math.min(length, mReadBuffer.remaining());
+				mReadBuffer.get(buffer, offset, n);
+				return n;
+			}
+		}
+
+		close();
+		throw new IOException("connection closed by peer");
+	}
+
+	/**
+	 * Wait on the given selector for up to SELECT_TIMEOUT. A concurrent close() closes the selector, which we report as an IOException
+	 * so callers only ever have to deal with the one kind of failure.
+	 */
+	private void waitFor (Selector sel) throws IOException {
+		if (sel == null) throw new IOException("not connected");
+
+		try {
+			sel.select(SELECT_TIMEOUT);
+			sel.selectedKeys().clear();
+		} catch (ClosedSelectorException e) {
+			throw new IOException("connection closed");
+		}
+	}
+
+	public void write(byte[] buffer, int offset, int length) throws IOException {
+		synchronized (mWriteLock) {
+			SocketChannel ch = mChannel;
+			if (ch == null) throw new IOException("not connected");
+
+			ByteBuffer out = ByteBuffer.wrap(buffer, offset, length);
+			while (out.hasRemaining()) {
+				if (ch.write(out) == 0) {
+					// send buffer is full. wait until there's room.
+					waitFor(mWriteSelector);
+				}
+			}
+
+			mBytesOut += length;
+		}
+	}
+
+	public void registerStateChangeCallback(EventCallback eventCallback) {
+		mStateChangeCallback = eventCallback;
+	}
+
+	private void sendStateChangeCallback (int oldState, int newState) {
+		try {
+			if (mStateChangeCallback != null)
+				mStateChangeCallback.onStateChange(oldState, newState);
+		} catch (Exception e) {
+			msg ("!tcp_statechange e=" + e.getMessage());
+		}
+	}
+
+	public String getPeerAddress() {
+		return mHost + ":" + mPort;
+	}
+
+	public String getPeerName() {
+		return "";
+	}
+
+	public GeneralStats getStats() {
+		mgStats.setStat("open", "" + isOpen());
+		mgStats.setStat("bytesIn", mBytesIn);
+		mgStats.setStat("bytesOut", mBytesOut);
+		return mgStats;
+	}
+
+	private void msg (String message) {
+		Log.d("TCPT",message);
+	}
+}
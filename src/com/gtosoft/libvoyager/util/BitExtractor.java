@@ -0,0 +1,98 @@
+/**
+ * (C) 2011 libvoyager is licensed under a Creative Commons Attribution-NonCommercial 3.0 Unported License.
+ * Permissions beyond the scope of this license may be available at http://www.gtosoft.com. You can download,
+ * use, modify the code as long as you do not include it as part of commercial software.
+ */
+
+package com.gtosoft.libvoyager.util;
+
+/**
+ * Pulls a signal (any start, any length up to 64 bits) out of a CAN payload packed the way CANFrame.payload is: first data byte in the top 8 bits.
+ * Just shifts and masks, no allocation, so it's safe to call for every datapoint of every frame.
+ *
+ * Two byte orders:
+ *  - MOTOROLA (big endian). Bits are numbered the way our datapoint formulas always have: 0 is the most significant bit of the first byte,
+ *    7 its least significant, 8 the top bit of the second byte and so on. startBit is the signal's most significant bit. "16-31" is bytes 2 and 3, byte 2 on top.
+ *    (.dbc files number Motorola start bits differently - see motorolaStartFromDBC.)
+ *  - INTEL (little endian). Bit n is bit (n % 8) of byte (n / 8), 0 being the least significant bit of the byte. startBit is the signal's least significant bit.
+ *    "16-31" is bytes 2 and 3, byte 3 on top.
+ *
+ * Signed signals are two's complement, sign extended to the full long.
+ * @author brad
+ */
+
+public final class BitExtractor {
+
+	public static final int MOTOROLA 	= 0;
+	public static final int INTEL 		= 1;
+
+	private BitExtractor () {
+	}
+
+	/**
+	 * @param payload - the data bytes, first one on top (CANFrame.payload).
+	 * @param startBit - see the class comment, it depends on byteOrder.
+	 * @param length - number of bits, 1-64.
+	 * @param byteOrder - MOTOROLA or INTEL.
+	 * @param signed - true to treat the top bit of the signal as a sign bit.
+	 * @return - the signal. Unsigned 64-bit signals come back with the top bit set as a negative long, same as Java does everywhere else.
+	 */
+	public static long extract (long payload, int startBit, int length, int byteOrder, boolean signed) {
+		long v;
+		if (byteOrder == INTEL)
+			v = extractIntel(payload, startBit, length);
+		else
+			v = extractMotorola(payload, startBit, length);
+
+		if (signed)
+			return signExtend(v, length);
+		return v;
+	}
+
+	/**
+	 * Unsigned, big endian, our usual bit numbering. Same thing CANFrame.getBits(start, start + length - 1) gives.
+	 */
+	public static long extractMotorola (long payload, int startBit, int length) {
+		return (payload << startBit) >>> (64 - length);
+	}
+
+	/**
+	 * Unsigned, little endian.
+	 */
+	public static long extractIntel (long payload, int startBit, int length) {
+		// with the bytes flipped, byte n sits at bits 8n..8n+7 and intel bit numbers are plain bit positions.
+		long le = Long.reverseBytes(payload);
+		return (le << (64 - startBit - length)) >>> (64 - length);
+	}
+
+	/**
+	 * @return - the low length bits of v as a two's complement number.
+	 */
+	public static long signExtend (long v, int length) {
+		int shift = 64 - length;
+		return (v << shift) >> shift;
+	}
+
+	/**
+	 * @return - the number of data bytes a frame needs to hold the signal. The math is the same for both byte orders.
+	 */
+	public static int bytesNeeded (int startBit, int length) {
+		return ((startBit + length - 1) >> 3) + 1;
+	}
+
+	/**
+	 * @return - true if the start and length make sense for an 8 byte payload.
+	 */
+	public static boolean isValid (int startBit, int length) {
+		return startBit >= 0 && length >= 1 && length <= 64 && startBit + length <= 64;
+	}
+
+	/**
+	 * .dbc files number bits the intel way for both byte orders, and give a Motorola signal's most significant bit as its start.
+	 * @param dbcStartBit - the Motorola start bit as written in a .dbc file, for example 7 for a signal starting at the top of byte 0.
+	 * @return - the same start bit in our numbering, for example 0.
+	 */
+	public static int motorolaStartFromDBC (int dbcStartBit) {
+		return (dbcStartBit & ~7) + (7 - (dbcStartBit & 7));
+	}
+}
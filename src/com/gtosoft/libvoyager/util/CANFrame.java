@@ -0,0 +1,289 @@
+/**
+ * (C) 2011 libvoyager is licensed under a Creative Commons Attribution-NonCommercial 3.0 Unported License.
+ * Permissions beyond the scope of this license may be available at http://www.gtosoft.com. You can download,
+ * use, modify the code as long as you do not include it as part of commercial software.
+ */
+
+package com.gtosoft.libvoyager.util;
+
+/**
+ * One sniffed CAN frame, parsed out of the ELM's text into numbers: the id as an int, the number of data bytes,
+ * and up to 8 data bytes packed into a long. The first data byte sits in the top 8 bits of the long, so bit 0 in
+ * a datapoint formula ("0-7,INT") is bit 63 of payload.
+ *
+ * Meant to be reused - the sniff path parses every frame into the same instance, so nothing gets allocated per frame.
+ * Strings only get made when somebody asks for them (headerString, dataString), which should be at the edges: logging, UI, SVIP, the DB.
+ * @author brad
+ */
+
+public class CANFrame {
+
+	// hex digit value by character, -1 for anything that isn't a hex digit.
+	private static final byte [] NIBBLE = new byte[128];
+	static {
+		for (int i=0;i<NIBBLE.length;i++) NIBBLE[i] = -1;
+		for (int i=0;i<10;i++) NIBBLE['0' + i] = (byte) i;
+		for (int i=0;i<6;i++) {
+			NIBBLE['A' + i] = (byte) (10 + i);
+			NIBBLE['a' + i] = (byte) (10 + i);
+		}
+	}
+
+	private static final char [] HEX = "0123456789ABCDEF".toCharArray();
+
+	// 11-bit ids go up to 0x7FF, 29-bit ones (as the ELM shows them: 4 bytes) up to 0xFFFFFFFF.
+	public int id;
+	// true for a 29-bit header.
+	public boolean ext;
+	// number of data bytes, 0-8.
+	public int dlc;
+	// data bytes, first one in the top 8 bits, unused low bytes zero.
+	public long payload;
+
+	/**
+	 * @return - a single number identifying the header, for use as a map key. 11 and 29-bit ids never collide.
+	 */
+	public long key () {
+		return key(id, ext);
+	}
+
+	public static long key (int id, boolean ext) {
+		if (ext)
+			return 0x100000000L | (id & 0xFFFFFFFFL);
+		else
+			return id;
+	}
+
+	public static boolean isExtendedKey (long key) {
+		return (key & 0x100000000L) != 0;
+	}
+
+	/**
+	 * @return - the value of a hex digit character, -1 if it isn't one.
+	 */
+	static int nibble (int c) {
+		if (c < 0 || c >= 128) return -1;
+		return NIBBLE[c];
+	}
+
+	/**
+	 * Parse an ELM line with spaces on, for example "7E8 04 41 0C 09 63" or "10 02 40 60 10 10 10 10".
+	 * A first token of three digits means an 11-bit header, two digits means a 29-bit header written as 4 bytes.
+	 * @return - false if it isn't a frame (this frame is left half-filled in that case).
+	 */
+	public boolean parse (byte [] b, int offset, int length) {
+		int start = offset;
+		int end = offset + length;
+		while (start < end && b[start] == ' ') start++;
+		while (end > start && b[end-1] == ' ') end--;
+
+		int firstSpace = start;
+		while (firstSpace < end && b[firstSpace] != ' ') firstSpace++;
+
+		int headerBytes;
+		int p = start;
+		if (firstSpace - start == 3) {
+			ext = false;
+			int n0 = nibble(b[p]), n1 = nibble(b[p+1]), n2 = nibble(b[p+2]);
+			if ((n0 | n1 | n2) < 0) return false;
+			id = (n0 << 8) | (n1 << 4) | n2;
+			p += 4;
+			headerBytes = 0;
+		} else if (firstSpace - start == 2) {
+			ext = true;
+			id = 0;
+			headerBytes = 4;
+		} else {
+			return false;
+		}
+
+		dlc = 0;
+		payload = 0;
+		int bytes = 0;
+		while (p < end) {
+			if (b[p] == ' ') {
+				p++;
+				continue;
+			}
+			if (p + 1 >= end) return false;
+
+			int hi = nibble(b[p]), lo = nibble(b[p+1]);
+			if ((hi | lo) < 0) return false;
+			int v = (hi << 4) | lo;
+			p += 2;
+
+			if (bytes < headerBytes) {
+				id = (id << 8) | v;
+			} else {
+				if (dlc == 8) return false;
+				payload |= ((long) v) << (56 - 8 * dlc);
+				dlc++;
+			}
+			bytes++;
+		}
+
+		// a 29-bit header needs its 4 bytes, and everybody needs at least one data byte.
+		return bytes > headerBytes;
+	}
+
+	/**
+	 * Parse an ELM line with spaces off (ATS0), for example "7E804410C0963" or "18DAF11003410D33".
+	 * Odd length means an 11-bit header.
+	 */
+	public boolean parseCompact (byte [] b, int offset, int length) {
+		int start = offset;
+		int end = offset + length;
+		while (start < end && b[start] == ' ') start++;
+		while (end > start && b[end-1] == ' ') end--;
+
+		int len = end - start;
+		int headerDigits;
+		if ((len & 1) == 1) {
+			if (len < 5) return false;
+			headerDigits = 3;
+			ext = false;
+		} else {
+			if (len < 10) return false;
+			headerDigits = 8;
+			ext = true;
+		}
+		if ((len - headerDigits) / 2 > 8) return false;
+
+		int v = 0;
+		for (int i=start;i<start+headerDigits;i++) {
+			int n = nibble(b[i]);
+			if (n < 0) return false;
+			v = (v << 4) | n;
+		}
+		id = v;
+
+		dlc = 0;
+		payload = 0;
+		for (int i=start+headerDigits;i<end;i+=2) {
+			int hi = nibble(b[i]), lo = nibble(b[i+1]);
+			if ((hi | lo) < 0) return false;
+			payload |= ((long) ((hi << 4) | lo)) << (56 - 8 * dlc);
+			dlc++;
+		}
+		return true;
+	}
+
+	/**
+	 * String versions, for the paths that still have Strings (replay files and such). Allocates.
+	 */
+	public boolean parse (String s) {
+		return parse(toBytes(s), 0, s.length());
+	}
+
+	public boolean parseCompact (String s) {
+		return parseCompact(toBytes(s), 0, s.length());
+	}
+
+	private static byte [] toBytes (String s) {
+		byte [] b = new byte[s.length()];
+		for (int i=0;i<b.length;i++) {
+			char c = s.charAt(i);
+			b[i] = (c < 128) ? (byte) c : (byte) '?';
+		}
+		return b;
+	}
+
+	/**
+	 * @return - data byte i (0 = first), 0-255.
+	 */
+	public int getByte (int i) {
+		return (int) (payload >>> (56 - 8 * i)) & 0xFF;
+	}
+
+	/**
+	 * @return - true if the frame is long enough to hold the given bit (0 = top bit of the first byte).
+	 */
+	public boolean hasBit (int bit) {
+		return bit < dlc * 8;
+	}
+
+	/**
+	 * @return - bits startBit through lastBit (inclusive, 0 = top bit of the first byte), as an unsigned number.
+	 */
+	public long getBits (int startBit, int lastBit) {
+		return BitExtractor.extractMotorola(payload, startBit, lastBit - startBit + 1);
+	}
+
+	public void copyFrom (CANFrame f) {
+		id 		= f.id;
+		ext 	= f.ext;
+		dlc 	= f.dlc;
+		payload = f.payload;
+	}
+
+	/**
+	 * @return - the header the way the ELM shows it with spaces on: "7E8" or "10 02 40 60".
+	 */
+	public String headerString () {
+		return formatHeader(id, ext);
+	}
+
+	public static String formatHeader (long key) {
+		return formatHeader((int) key, isExtendedKey(key));
+	}
+
+	public static String formatHeader (int id, boolean ext) {
+		StringBuilder sb = new StringBuilder(11);
+		if (!ext) {
+			sb.append(HEX[(id >> 8) & 0xF]).append(HEX[(id >> 4) & 0xF]).append(HEX[id & 0xF]);
+		} else {
+			for (int i=3;i>=0;i--) {
+				int v = (id >>> (8 * i)) & 0xFF;
+				sb.append(HEX[v >> 4]).append(HEX[v & 0xF]);
+				if (i > 0) sb.append(' ');
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return - the data bytes the way the ELM shows them with spaces on: "04 41 0C 09 63".
+	 */
+	public String dataString () {
+		return formatBytes(payload, dlc);
+	}
+
+	/**
+	 * @param packed - bytes packed the way payload is, first byte on top.
+	 * @param numBytes - how many to show.
+	 */
+	public static String formatBytes (long packed, int numBytes) {
+		StringBuilder sb = new StringBuilder(numBytes * 3);
+		for (int i=0;i<numBytes;i++) {
+			int v = (int) (packed >>> (56 - 8 * i)) & 0xFF;
+			if (i > 0) sb.append(' ');
+			sb.append(HEX[v >> 4]).append(HEX[v & 0xF]);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Parse a header string ("7E8" or "10 02 40 60") into a key.
+	 * @return - the key, or -1 if the header isn't valid.
+	 */
+	public static long headerKey (String HDR) {
+		int digits = 0;
+		long v = 0;
+		for (int i=0;i<HDR.length();i++) {
+			char c = HDR.charAt(i);
+			if (c == ' ') continue;
+			int n = nibble(c);
+			if (n < 0) return -1;
+			v = (v << 4) | n;
+			digits++;
+		}
+
+		if (digits == 3) return key((int) v, false);
+		if (digits == 8) return key((int) v, true);
+		return -1;
+	}
+
+	public String toString () {
+		return headerString() + " " + dataString();
+	}
+}
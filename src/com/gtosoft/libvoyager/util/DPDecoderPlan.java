@@ -0,0 +1,180 @@
+/**
+ * (C) 2011 libvoyager is licensed under a Creative Commons Attribution-NonCommercial 3.0 Unported License.
+ * Permissions beyond the scope of this license may be available at http://www.gtosoft.com. You can download,
+ * use, modify the code as long as you do not include it as part of commercial software.
+ */
+
+package com.gtosoft.libvoyager.util;
+
+/**
+ * A passive datapoint's decode instructions, worked out once when DashDB loads the datapoints for a header.
+ *
+ * The dataPoint table stores a formula like "16-31,DIV4": a bit range and a formula name. PIDDecoder used to split,
+ * parse and string-compare that for every matching packet. Now DashDB compiles it into one of these when the header
+ * is first seen (looking the formula name up in its FormulaRegistry), and the per-packet path just reads the fields.
+ *
+ * The bit range can have flags tacked on the end: I for intel byte order, S for signed. "0-15IS,DIV4" is a signed
+ * little endian 16-bit value in bytes 0 and 1. No flags means big endian, unsigned - what every formula so far has been.
+ * See BitExtractor for how bits are numbered in each byte order.
+ *
+ * Immutable, so it's safe to share between threads.
+ * @author brad
+ */
+
+public final class DPDecoderPlan {
+
+	// small number unique to the DPN (see DashDB.getDPNIndex), so per-datapoint state can live in arrays.
+	public final int index;
+
+	// straight from the DB.
+	public final String DPN;
+	public final String sigBytes;
+	public final String formulaAndBits;
+
+	// the formula name part, for example "DIV4".
+	public final String formula;
+
+	// bit range, inclusive. See BitExtractor for the numbering.
+	public final int startBit;
+	public final int lastBit;
+	public final int length;
+
+	// BitExtractor.MOTOROLA or INTEL.
+	public final int byteOrder;
+	public final boolean signed;
+
+	// data bytes a frame needs to have for us to decode it.
+	public final int minBytes;
+
+	// true if the bit range is whole bytes.
+	public final boolean byteAligned;
+
+	// sigbytes as a mask and value over CANFrame.payload, and how many data bytes (rounded up) they cover.
+	public final long sigMask;
+	public final long sigValue;
+	public final int sigLength;
+
+	// the formula, resolved from a FormulaRegistry. null if the registry didn't know the name - such datapoints decode to blank.
+	public final DPFormula decoder;
+
+	// false if the formula couldn't be parsed. error says why.
+	public final boolean valid;
+	public final String error;
+
+	private DPDecoderPlan (int index, String DPN, String sigBytes, String formulaAndBits, String formula, int startBit, int lastBit,
+			int byteOrder, boolean signed, DPFormula decoder, String error) {
+		this.index 			= index;
+		this.DPN 			= DPN;
+		this.sigBytes 		= sigBytes;
+		this.formulaAndBits = formulaAndBits;
+		this.formula 		= formula;
+		this.startBit 		= startBit;
+		this.lastBit 		= lastBit;
+		this.length 		= lastBit - startBit + 1;
+		this.byteOrder 		= byteOrder;
+		this.signed 		= signed;
+		this.minBytes 		= BitExtractor.bytesNeeded(startBit, length);
+		this.decoder 		= decoder;
+		this.error 			= error;
+		this.valid 			= (error.length() == 0);
+
+		byteAligned = (startBit % 8 == 0) && ((lastBit + 1) % 8 == 0);
+
+		// one nibble at a time, first one on top - the same thing startsWith did on the spaced text.
+		long mask = 0, value = 0;
+		int nibbles = 0;
+		for (int i=0;i<sigBytes.length() && nibbles < 16;i++) {
+			int n = CANFrame.nibble(sigBytes.charAt(i));
+			if (n < 0) continue;
+			int shift = 60 - 4 * nibbles;
+			mask |= 0xFL << shift;
+			value |= ((long) n) << shift;
+			nibbles++;
+		}
+		sigMask 	= mask;
+		sigValue 	= value;
+		sigLength 	= (nibbles + 1) / 2;
+	}
+
+	// for compiling without a registry of your own: just the built-in formulas. Nobody else gets a reference to it, so it never changes.
+	private static FormulaRegistry mBuiltinFormulas = null;
+
+	/**
+	 * Compile a dataPoint record, against the built-in formulas.
+	 */
+	public static DPDecoderPlan compile (int index, String DPN, String sigBytes, String formulaAndBits) {
+		synchronized (DPDecoderPlan.class) {
+			if (mBuiltinFormulas == null)
+				mBuiltinFormulas = new FormulaRegistry();
+		}
+		return compile(index, DPN, sigBytes, formulaAndBits, mBuiltinFormulas);
+	}
+
+	/**
+	 * Compile a dataPoint record.
+	 * @param index - small number unique to the DPN.
+	 * @param DPN - datapoint name.
+	 * @param sigBytes - significant bytes the data has to start with, or blank for none.
+	 * @param formulaAndBits - for example "16-31,DIV4".
+	 * @param formulas - where to look up the formula name.
+	 * @return - a plan. Check plan.valid - if the formula is malformed you get an invalid plan with the reason in plan.error.
+	 */
+	public static DPDecoderPlan compile (int index, String DPN, String sigBytes, String formulaAndBits, FormulaRegistry formulas) {
+		String parts[] = formulaAndBits.split(",");
+		if (parts.length != 2)
+			return invalid(index, DPN, sigBytes, formulaAndBits, "invalid formulaAndBitPositions: " + formulaAndBits + " Expected two parts, got " + parts.length);
+
+		// peel the flags off the end of the bit range.
+		String bits = parts[0];
+		int byteOrder = BitExtractor.MOTOROLA;
+		boolean signed = false;
+		while (bits.length() > 0) {
+			char c = bits.charAt(bits.length() - 1);
+			if (c == 'I') 		byteOrder = BitExtractor.INTEL;
+			else if (c == 'S') 	signed = true;
+			else break;
+			bits = bits.substring(0, bits.length() - 1);
+		}
+
+		String range[] = bits.split("-");
+		if (range.length != 2)
+			return invalid(index, DPN, sigBytes, formulaAndBits, "malformed formulaAndBitPositions: " + formulaAndBits + " expected format: STARTBIT-LASTBIT.");
+
+		int start, stop;
+		try {
+			start 	= Integer.valueOf(range[0]);
+			stop 	= Integer.valueOf(range[1]);
+		} catch (NumberFormatException e) {
+			return invalid(index, DPN, sigBytes, formulaAndBits, "Error converting byte range to integer! range=" + bits + " E=" + e.getMessage());
+		}
+
+		if (stop < start || !BitExtractor.isValid(start, stop - start + 1))
+			return invalid(index, DPN, sigBytes, formulaAndBits, "bit range out of bounds: " + parts[0]);
+
+		String formula = parts[1];
+
+		return new DPDecoderPlan(index, DPN, sigBytes, formulaAndBits, formula, start, stop, byteOrder, signed, formulas.get(formula), "");
+	}
+
+	private static DPDecoderPlan invalid (int index, String DPN, String sigBytes, String formulaAndBits, String error) {
+		return new DPDecoderPlan(index, DPN, sigBytes, formulaAndBits, "", 0, 0, BitExtractor.MOTOROLA, false, null, error);
+	}
+
+	/**
+	 * @return - the datapoint's raw value out of the given frame. Check the frame has minBytes first.
+	 */
+	public long extract (CANFrame f) {
+		return BitExtractor.extract(f.payload, startBit, length, byteOrder, signed);
+	}
+
+	/**
+	 * @return - true if the frame's data starts with our sigbytes, or we don't have any.
+	 */
+	public boolean matchesSigBytes (CANFrame f) {
+		return f.dlc >= sigLength && (f.payload & sigMask) == sigValue;
+	}
+
+	public String toString () {
+		return DPN + " " + formulaAndBits + (valid ? "" : " INVALID: " + error);
+	}
+}
@@ -0,0 +1,241 @@
+/**
+ * (C) 2011 libvoyager is licensed under a Creative Commons Attribution-NonCommercial 3.0 Unported License.
+ * Permissions beyond the scope of this license may be available at http://www.gtosoft.com. You can download,
+ * use, modify the code as long as you do not include it as part of commercial software.
+ */
+
+package com.gtosoft.libvoyager.util;
+
+import java.util.HashMap;
+
+/**
+ * PIDDecoder's bookkeeping for deciding which sniffed datapoint values turn into events (see EmissionPolicy).
+ * Keeps the last raw bits, last sent value and last send time for each datapoint, in arrays indexed by DPN index (DashDB.getDPNIndex).
+ * With the decode pipeline running each shard has its own one of these, all sharing one Policies.
+ * @author brad
+ */
+
+class DPEmitter {
+
+	// what checkRaw says to do.
+	static final int SKIP 		= 0; // same bits as last time, nothing due. Do nothing.
+	static final int RESEND 	= 1; // same bits, but send the value we have again (ALWAYS, or a heartbeat is due).
+	static final int DECODE 	= 2; // new bits. Decode, then ask checkValue.
+
+	long [] mRawLast;
+	boolean [] mRawSeen;
+	long [] mLastSentTime;
+	double [] mLastSentValue;
+	boolean [] mSent;
+	int mSeenCount = 0;
+
+	/**
+	 * The policy settings: a default, and any per-DPN ones. 
+	 */
+	static class Policies {
+		EmissionPolicy mDefaultPolicy;
+		HashMap<String,EmissionPolicy> mhmPolicyByDPN = new HashMap<String,EmissionPolicy>();
+		// goes up on every change, so emitters know to forget what they looked up.
+		volatile int mVersion = 0;
+
+		Policies (EmissionPolicy defaultPolicy) {
+			mDefaultPolicy = defaultPolicy;
+		}
+
+		synchronized void setDefaultPolicy (EmissionPolicy p) {
+			mDefaultPolicy = p;
+			mVersion++;
+		}
+
+		/**
+		 * @param p - the policy, or null to go back to the default for this DPN.
+		 */
+		synchronized void setPolicy (String DPN, EmissionPolicy p) {
+			if (p == null)
+				mhmPolicyByDPN.remove(DPN);
+			else
+				mhmPolicyByDPN.put(DPN, p);
+			mVersion++;
+		}
+
+		synchronized EmissionPolicy getPolicy (String DPN) {
+			EmissionPolicy p = mhmPolicyByDPN.get(DPN);
+			return (p != null) ? p : mDefaultPolicy;
+		}
+
+		synchronized void getStats (GeneralStats stats) {
+			stats.setStat("emit.defaultpolicy", "" + mDefaultPolicy);
+			stats.setStat("emit.policies", "" + mhmPolicyByDPN.size());
+		}
+	}
+
+	final Policies mPolicies;
+	// the policies, worked out per DPN index as they come along. Thrown away when a policy changes.
+	EmissionPolicy [] mPolicyByIndex;
+	int mPolicyVersion = -1;
+
+	// stats.
+	long mNumSent = 0;
+	long mNumResent = 0;
+	long mNumHeartbeats = 0;
+	long mNumUnchanged = 0;
+	long mNumInDeadband = 0;
+
+	DPEmitter (Policies policies) {
+		mPolicies = policies;
+		reset();
+	}
+
+	synchronized void reset () {
+		mRawLast 		= new long[64];
+		mRawSeen 		= new boolean[64];
+		mLastSentTime 	= new long[64];
+		mLastSentValue 	= new double[64];
+		mSent 			= new boolean[64];
+		mPolicyByIndex 	= new EmissionPolicy[64];
+		mSeenCount 		= 0;
+	}
+
+	private EmissionPolicy getPolicy (DPDecoderPlan plan) {
+		int version = mPolicies.mVersion;
+		if (version != mPolicyVersion) {
+			mPolicyByIndex = new EmissionPolicy[mPolicyByIndex.length];
+			mPolicyVersion = version;
+		}
+
+		EmissionPolicy p = mPolicyByIndex[plan.index];
+		if (p == null) {
+			p = mPolicies.getPolicy(plan.DPN);
+			mPolicyByIndex[plan.index] = p;
+		}
+		return p;
+	}
+
+	/**
+	 * First look at a datapoint's bits. Remembers them.
+	 * @return - SKIP, RESEND or DECODE.
+	 */
+	synchronized int checkRaw (DPDecoderPlan plan, long raw, long now) {
+		int index = plan.index;
+		ensureCapacity(index);
+
+		if (!mRawSeen[index] || mRawLast[index] != raw) {
+			if (!mRawSeen[index]) {
+				mRawSeen[index] = true;
+				mSeenCount++;
+			}
+			mRawLast[index] = raw;
+			return DECODE;
+		}
+
+		// same bits as last time.
+		EmissionPolicy p = getPolicy(plan);
+		if (p.mode == EmissionPolicy.ALWAYS) {
+			markSent(index, now);
+			mNumResent++;
+			return RESEND;
+		}
+
+		if (isHeartbeatDue(p, index, now)) {
+			markSent(index, now);
+			mNumHeartbeats++;
+			return RESEND;
+		}
+
+		mNumUnchanged++;
+		return SKIP;
+	}
+
+	/**
+	 * Second look, once new bits have been decoded.
+	 * @return - true if the value should be sent.
+	 */
+	synchronized boolean checkValue (DPDecoderPlan plan, DPValue v, long now) {
+		int index = plan.index;
+		EmissionPolicy p = getPolicy(plan);
+
+		boolean send = true;
+		if (p.mode == EmissionPolicy.DEADBAND && v.numeric && mSent[index]
+				&& Math.abs(v.value - mLastSentValue[index]) <= p.deadband) {
+			send = false;
+
+			if (isHeartbeatDue(p, index, now)) {
+				send = true;
+				mNumHeartbeats++;
+			}
+		}
+
+		if (!send) {
+			mNumInDeadband++;
+			return false;
+		}
+
+		markSent(index, now);
+		mLastSentValue[index] = v.value;
+		mNumSent++;
+		return true;
+	}
+
+	private boolean isHeartbeatDue (EmissionPolicy p, int index, long now) {
+		return p.heartbeatMillis > 0 && now - mLastSentTime[index] >= p.heartbeatMillis;
+	}
+
+	private void markSent (int index, long now) {
+		mSent[index] = true;
+		mLastSentTime[index] = now;
+	}
+
+	private void ensureCapacity (int index) {
+		if (index < mRawLast.length)
+			return;
+
+		int newSize = mRawLast.length * 2;
+		while (newSize <= index) newSize *= 2;
+
+		long [] rawLast = new long[newSize];
+		boolean [] rawSeen = new boolean[newSize];
+		long [] sentTime = new long[newSize];
+		double [] sentValue = new double[newSize];
+		boolean [] sent = new boolean[newSize];
+		EmissionPolicy [] policies = new EmissionPolicy[newSize];
+
+		System.arraycopy(mRawLast, 0, rawLast, 0, mRawLast.length);
+		System.arraycopy(mRawSeen, 0, rawSeen, 0, mRawSeen.length);
+		System.arraycopy(mLastSentTime, 0, sentTime, 0, mLastSentTime.length);
+		System.arraycopy(mLastSentValue, 0, sentValue, 0, mLastSentValue.length);
+		System.arraycopy(mSent, 0, sent, 0, mSent.length);
+		System.arraycopy(mPolicyByIndex, 0, policies, 0, mPolicyByIndex.length);
+
+		mRawLast 		= rawLast;
+		mRawSeen 		= rawSeen;
+		mLastSentTime 	= sentTime;
+		mLastSentValue 	= sentValue;
+		mSent 			= sent;
+		mPolicyByIndex 	= policies;
+	}
+
+	/**
+	 * Adds up the counters of all the given emitters.
+	 */
+	static void getStats (GeneralStats stats, DPEmitter [] emitters) {
+		long seen = 0, sent = 0, resent = 0, heartbeats = 0, unchanged = 0, inDeadband = 0;
+		for (int i=0;i<emitters.length;i++) {
+			DPEmitter e = emitters[i];
+			synchronized (e) {
+				seen 		+= e.mSeenCount;
+				sent 		+= e.mNumSent;
+				resent 		+= e.mNumResent;
+				heartbeats 	+= e.mNumHeartbeats;
+				unchanged 	+= e.mNumUnchanged;
+				inDeadband 	+= e.mNumInDeadband;
+			}
+		}
+
+		stats.setStat("cachelevel.dprawdata", "" + seen);
+		stats.setStat("emit.sent", "" + sent);
+		stats.setStat("emit.resent", "" + resent);
+		stats.setStat("emit.heartbeats", "" + heartbeats);
+		stats.setStat("emit.suppressed.unchanged", "" + unchanged);
+		stats.setStat("emit.suppressed.deadband", "" + inDeadband);
+	}
+}
@@ -0,0 +1,168 @@
+/**
+ * (C) 2011 libvoyager is licensed under a Creative Commons Attribution-NonCommercial 3.0 Unported License.
+ * Permissions beyond the scope of this license may be available at http://www.gtosoft.com. You can download,
+ * use, modify the code as long as you do not include it as part of commercial software.
+ */
+
+package com.gtosoft.libvoyager.util;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import android.util.Log;
+
+/**
+ * Last stage of the decode pipeline: decoded values from all the shards go in here, and one thread hands them to the listeners.
+ * That way a slow listener backs up this queue instead of the decoders (and eventually the ELM).
+ * Values that only need to go in the cache (inside the deadband) come through here too, so the cache gets written by this one thread,
+ * in the order things were decoded.
+ * Bounded - when it's full, new values are dropped and counted.
+ * @author brad
+ */
+
+class DPEventQueue {
+	final boolean DEBUG = false;
+
+	interface Sink {
+		public void onValue (DPValue v);
+
+		/**
+		 * A value that goes in the cache without telling anybody.
+		 */
+		public void onCacheOnly (DPValue v);
+	}
+
+	/**
+	 * How a cache-only value sits in the queue. Plain values go in as they are.
+	 */
+	static final class CacheOnly {
+		final DPValue v;
+
+		CacheOnly (DPValue v) {
+			this.v = v;
+		}
+	}
+
+	final ConcurrentLinkedQueue<Object> mQueue = new ConcurrentLinkedQueue<Object>();
+	final AtomicInteger mDepth = new AtomicInteger(0);
+	final AtomicLong mDrops = new AtomicLong(0);
+	final AtomicLong mDelivered = new AtomicLong(0);
+	volatile int mMaxDepth = 0;
+
+	final int mCapacity;
+	final Sink mSink;
+
+	volatile boolean mRunning = false;
+	volatile boolean mIdle = false;
+	Thread mThread = null;
+
+	DPEventQueue (int capacity, Sink sink) {
+		mCapacity 	= capacity;
+		mSink 		= sink;
+	}
+
+	synchronized void start () {
+		if (mRunning)
+			return;
+
+		mRunning = true;
+		mThread = new Thread() {
+			public void run () {
+				dispatchLoop();
+			}
+		};
+		mThread.setName("DPEventQueue");
+		mThread.start();
+	}
+
+	synchronized void stop () {
+		if (!mRunning)
+			return;
+
+		mRunning = false;
+		LockSupport.unpark(mThread);
+		try {
+			mThread.join(2000);
+		} catch (InterruptedException e) {
+		}
+		mThread = null;
+	}
+
+	/**
+	 * Any thread.
+	 * @return - false if the queue is full and the value was dropped.
+	 */
+	boolean offer (DPValue v) {
+		return enqueue(v);
+	}
+
+	/**
+	 * Any thread. Same as offer, but the value only goes in the cache.
+	 * @return - false if the queue is full and the value was dropped.
+	 */
+	boolean offerCacheOnly (DPValue v) {
+		return enqueue(new CacheOnly(v));
+	}
+
+	private boolean enqueue (Object e) {
+		int depth = mDepth.incrementAndGet();
+		if (depth > mCapacity) {
+			mDepth.decrementAndGet();
+			mDrops.incrementAndGet();
+			return false;
+		}
+		if (depth > mMaxDepth) mMaxDepth = depth;
+
+		mQueue.offer(e);
+		if (mIdle)
+			LockSupport.unpark(mThread);
+		return true;
+	}
+
+	private void dispatchLoop () {
+		while (mRunning) {
+			Object e = mQueue.poll();
+			if (e == null) {
+				mIdle = true;
+				e = mQueue.poll();
+				if (e == null) {
+					LockSupport.parkNanos(DecodePipeline.IDLE_PARK_NANOS);
+					mIdle = false;
+					continue;
+				}
+				mIdle = false;
+			}
+			mDepth.decrementAndGet();
+
+			if (e instanceof CacheOnly) {
+				mSink.onCacheOnly(((CacheOnly) e).v);
+				continue;
+			}
+
+			DPValue v = (DPValue) e;
+			try {
+				mSink.onValue(v);
+			} catch (Exception ex) {
+				msg ("Listener threw on " + v.DPN + ": " + ex.getMessage());
+			}
+			mDelivered.incrementAndGet();
+		}
+
+		// whatever's left never gets delivered.
+		mQueue.clear();
+		mDepth.set(0);
+	}
+
+	void getStats (GeneralStats stats) {
+		stats.setStat("events.depth", "" + mDepth.get() + "/" + mCapacity);
+		stats.setStat("events.maxdepth", "" + mMaxDepth);
+		stats.setStat("events.dropped", "" + mDrops.get());
+		stats.setStat("events.delivered", "" + mDelivered.get());
+	}
+
+	private void msg (String m) {
+		Log.d("DPEventQueue", m);
+	}
+}
@@ -0,0 +1,271 @@
+/**
+ * (C) 2011 libvoyager is licensed under a Creative Commons Attribution-NonCommercial 3.0 Unported License.
+ * Permissions beyond the scope of this license may be available at http://www.gtosoft.com. You can download,
+ * use, modify the code as long as you do not include it as part of commercial software.
+ */
+
+package com.gtosoft.libvoyager.util;
+
+import android.util.Log;
+
+/**
+ * Turns a passive datapoint's raw bits into its value. One instance per formula name ("DIV4", "HEX", ...), looked up in a FormulaRegistry
+ * when DashDB loads the datapoints for a header, so the per-packet path just makes one call.
+ *
+ * Implementations get called from the sniff thread for every changed datapoint, so keep them quick, and thread safe if they have any state.
+ * The built-in formulas are the nested classes below; to add your own, extend this and register it (DashDB.registerFormula).
+ * @author brad
+ */
+
+public abstract class DPFormula {
+
+	/**
+	 * @param plan - the datapoint being decoded. Mostly useful for the bit range (plan.length, plan.byteAligned).
+	 * @param raw - the datapoint's bits, sign extended if the plan says it's signed.
+	 * @return - the decoded value, as we hand it to the app. Return blank if the value can't be decoded.
+	 */
+	public abstract String decode (DPDecoderPlan plan, long raw);
+
+	/**
+	 * @return - true if this formula produces a number, in which case decodeValue gets called instead of decode
+	 * (and decode only when somebody wants the text).
+	 */
+	public boolean isNumeric () {
+		return false;
+	}
+
+	/**
+	 * @return - the decoded value as a number. Only called if isNumeric() is true.
+	 */
+	public double decodeValue (DPDecoderPlan plan, long raw) {
+		return Double.NaN;
+	}
+
+	/**
+	 * @return - the unit the value is in, for example "kPa", or blank if we don't know.
+	 */
+	public String getUnit () {
+		return "";
+	}
+
+	/**
+	 * scale and offset: (mult * raw) / div + offset. Covers most of the formulas in the DB.
+	 */
+	public static class Linear extends DPFormula {
+		final float mMult;
+		final float mDiv;
+		final float mOffset;
+		final boolean mDoubleMath;
+
+		public Linear (float mult, float div, float offset) {
+			this(mult, div, offset, false);
+		}
+
+		/**
+		 * @param doubleMath - do the math in double instead of float. Only here because one of the old formulas did it that way and we don't want its output to change.
+		 */
+		public Linear (float mult, float div, float offset, boolean doubleMath) {
+			mMult 		= mult;
+			mDiv 		= div;
+			mOffset 	= offset;
+			mDoubleMath = doubleMath;
+		}
+
+		public boolean isNumeric () {
+			return true;
+		}
+
+		public double decodeValue (DPDecoderPlan plan, long raw) {
+			if (mDoubleMath)
+				return 1f * raw * (double) mMult / mDiv + mOffset;
+			else
+				return mMult * raw / mDiv + mOffset;
+		}
+
+		public String decode (DPDecoderPlan plan, long raw) {
+			if (mDoubleMath)
+				return "" + (1f * raw * (double) mMult / mDiv + mOffset);
+			else
+				return "" + (mMult * raw / mDiv + mOffset);
+		}
+	}
+
+	/**
+	 * Tire pressure: 25 - barometer + 0.34475 * raw.
+	 * We don't know which datapoint carries the barometer, so it defaults to 1 kPa. An app that knows the real barometer can register
+	 * its own instance under "TPMS" and keep it up to date with setBarometer.
+	 */
+	public static class TirePressure extends DPFormula {
+		volatile float mBarometerKPA;
+
+		public TirePressure (float barometerKPA) {
+			mBarometerKPA = barometerKPA;
+		}
+
+		public void setBarometer (float barometerKPA) {
+			mBarometerKPA = barometerKPA;
+		}
+
+		public boolean isNumeric () {
+			return true;
+		}
+
+		public String getUnit () {
+			return "kPa";
+		}
+
+		private float pressure (long raw) {
+			float tireData = raw;
+			return 25f - mBarometerKPA + 0.34475f * tireData;
+		}
+
+		public double decodeValue (DPDecoderPlan plan, long raw) {
+			return pressure(raw);
+		}
+
+		public String decode (DPDecoderPlan plan, long raw) {
+			return "" + pressure(raw);
+		}
+	}
+
+	public static class Int extends DPFormula {
+		public boolean isNumeric () {
+			return true;
+		}
+
+		public double decodeValue (DPDecoderPlan plan, long raw) {
+			return raw;
+		}
+
+		public String decode (DPDecoderPlan plan, long raw) {
+			return "" + raw;
+		}
+	}
+
+	public static class Bit extends DPFormula {
+		public boolean isNumeric () {
+			return true;
+		}
+
+		public double decodeValue (DPDecoderPlan plan, long raw) {
+			return (raw == 0) ? 0 : 1;
+		}
+
+		public String decode (DPDecoderPlan plan, long raw) {
+			if (raw == 0)
+				return "0";
+			else
+				return "1";
+		}
+	}
+
+	/**
+	 * whole bytes as spaced byte pairs ("41 0C"), anything else as one plain hex number ("1a").
+	 */
+	public static class Hex extends DPFormula {
+		public String decode (DPDecoderPlan plan, long raw) {
+			if (plan.byteAligned)
+				return CANFrame.formatBytes(raw << (64 - plan.length), plan.length / 8);
+
+			// just the signal's bits - a signed value would have the sign smeared all the way up.
+			if (plan.length < 64)
+				raw &= (1L << plan.length) - 1;
+			return Long.toHexString(raw);
+		}
+	}
+
+	/**
+	 * one character per byte. Anything that isn't 7-bit ascii comes out as "?".
+	 */
+	public static class Ascii extends DPFormula {
+		public String decode (DPDecoderPlan plan, long raw) {
+			// odd bit ranges have always been taken as a single character.
+			if (!plan.byteAligned)
+				return "" + asciiChar((char) raw);
+
+			int numBytes = plan.length / 8;
+			StringBuilder sb = new StringBuilder(numBytes);
+			for (int i=numBytes-1;i>=0;i--)
+				sb.append(asciiChar((char) ((raw >>> (8 * i)) & 0xFF)));
+			return sb.toString();
+		}
+
+		private char asciiChar (char c) {
+			if (c > 0 && c < 128)
+				return c;
+
+			msg("Warning: Skipping non-ASCII byte code " + (int) c);
+			return '?';
+		}
+	}
+
+	/**
+	 * OnStar latitude, in milliarcseconds.
+	 */
+	public static class OnstarLat extends DPFormula {
+		public String decode (DPDecoderPlan plan, long raw) {
+			// get raw milliarcseconds
+			long MAS = raw;
+
+			// throw out the 4 unneeded bits (the rightmost one is the valid
+			// bit, we'll get that through another datapoint).
+			MAS &= 0x0FFFFFFF;
+
+			// Convert MAS to DMS.
+			return "MAS=" + MAS + " DMS=" + convertMASToDMS(MAS);
+		}
+	}
+
+	/**
+	 * OnStar longitude, in milliarcseconds.
+	 */
+	public static class OnstarLon extends DPFormula {
+		public String decode (DPDecoderPlan plan, long raw) {
+			boolean isLongitudeNegative = false;
+			// get raw milliarcseconds
+			long MAS = raw;
+
+			// Is it negative?
+			if (MAS >= 0x40000000) {
+				// Flip all bits, including the negative sign bit.
+				MAS ^= 0xFFFFFFFF;
+				// Strip unwanted bit
+				MAS &= 0x7FFFFFFF;
+				isLongitudeNegative = true;
+			}
+
+			// Convert MAS to DMS and add east/west based on whether the number
+			// was negative.
+			if (isLongitudeNegative == true)
+				return "MAS=" + MAS + " DMS=(west)" + convertMASToDMS(MAS);
+			else
+				return "MAS=" + MAS + " DMS=(east)" + convertMASToDMS(MAS);
+		}
+	}
+
+	/**
+	 * @param MAS
+	 *            - milliarcseconds
+	 * @return - String representation of DMS. (degrees mionutes seconds)
+	 */
+	protected static String convertMASToDMS(long MAS) {
+
+		long milliarcseconds = MAS; /* input and output */
+		long degrees; /* output */
+		long minutes; /* output */
+		long seconds; /* output */
+
+		degrees = milliarcseconds / 3600000;
+		milliarcseconds -= degrees * 3600000;
+		minutes = milliarcseconds / 60000;
+		milliarcseconds -= minutes * 60000;
+		seconds = milliarcseconds / 1000;
+		milliarcseconds -= minutes * 1000;
+
+		return "" + degrees + "," + minutes + "," + seconds;
+	}
+
+	private static void msg (String m) {
+		Log.d("DPFormula", m);
+	}
+}
@@ -0,0 +1,129 @@
+/**
+ * (C) 2011 libvoyager is licensed under a Creative Commons Attribution-NonCommercial 3.0 Unported License.
+ * Permissions beyond the scope of this license may be available at http://www.gtosoft.com. You can download,
+ * use, modify the code as long as you do not include it as part of commercial software.
+ */
+
+package com.gtosoft.libvoyager.util;
+
+/**
+ * One decoded datapoint value, as handed to EventCallback.onDPValueArrived.
+ *
+ * Numeric datapoints carry the value as a double, so nobody has to format it to a String and parse it back.
+ * The text form (what onDPArrived has always passed) only gets made the first time somebody calls getText().
+ *
+ * Immutable - hang on to it as long as you like.
+ * @author brad
+ */
+
+public final class DPValue {
+
+	public final String DPN;
+
+	// true if value means something. False for things like HEX, ASCII, VIN - use getText() for those.
+	public final boolean numeric;
+	public final double value;
+
+	// the datapoint's bits straight out of the packet. 0 for values that didn't come from a sniffed packet.
+	public final long raw;
+
+	// blank if we don't know it.
+	public final String unit;
+
+	// when it was decoded, System.currentTimeMillis().
+	public final long timestamp;
+
+	// how to make the text, for passive datapoints. null for values that came in as text.
+	private final DPDecoderPlan mPlan;
+
+	// text form, made when first asked for.
+	private String mText;
+
+	// for values that came in as text: the int the caller gave us, if any.
+	private final boolean mHaveInt;
+	private final int mInt;
+
+	/**
+	 * A passive datapoint, straight out of the decoder.
+	 */
+	public DPValue (DPDecoderPlan plan, long raw, long timestamp) {
+		this.DPN 		= plan.DPN;
+		this.raw 		= raw;
+		this.timestamp 	= timestamp;
+		this.mPlan 		= plan;
+		this.mHaveInt 	= false;
+		this.mInt 		= 0;
+
+		DPFormula f = plan.decoder;
+		if (f != null && f.isNumeric()) {
+			this.numeric 	= true;
+			this.value 		= f.decodeValue(plan, raw);
+		} else {
+			this.numeric 	= false;
+			this.value 		= 0;
+		}
+		this.unit = (f != null) ? f.getUnit() : "";
+	}
+
+	/**
+	 * A value that was already text - from an OBD request, or something we worked out from other datapoints (VIN, SPEED).
+	 * @param iValue - integer version, what getInt() returns.
+	 */
+	public DPValue (String DPN, String text, int iValue, long timestamp) {
+		this.DPN 		= DPN;
+		this.raw 		= 0;
+		this.unit 		= "";
+		this.timestamp 	= timestamp;
+		this.mPlan 		= null;
+		this.mText 		= (text != null) ? text : "";
+		this.mHaveInt 	= true;
+		this.mInt 		= iValue;
+
+		double v = 0;
+		boolean isNumber = false;
+		try {
+			v = Double.valueOf(mText);
+			isNumber = true;
+		} catch (NumberFormatException e) {
+		}
+		this.numeric 	= isNumber;
+		this.value 		= v;
+	}
+
+	/**
+	 * @return - the value as text, the same thing onDPArrived has always been handed.
+	 */
+	public String getText () {
+		String t = mText;
+		if (t == null) {
+			if (mPlan.decoder != null)
+				t = mPlan.decoder.decode(mPlan, raw);
+			else
+				t = "";
+			mText = t;
+		}
+		return t;
+	}
+
+	/**
+	 * @return - the value rounded to an int, the way onDPArrived's iDecodedData has always been worked out. 0 if it isn't a number.
+	 */
+	public int getInt () {
+		if (mHaveInt)
+			return mInt;
+
+		if (numeric)
+			return Math.round((float) value);
+
+		// text that happens to look like a number (a one byte HEX datapoint, say) has always counted.
+		try {
+			return Math.round(Float.valueOf(getText()));
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	public String toString () {
+		return DPN + "=" + getText() + (unit.length() > 0 ? " " + unit : "");
+	}
+}
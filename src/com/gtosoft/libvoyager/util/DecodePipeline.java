@@ -0,0 +1,225 @@
+/**
+ * (C) 2011 libvoyager is licensed under a Creative Commons Attribution-NonCommercial 3.0 Unported License.
+ * Permissions beyond the scope of this license may be available at http://www.gtosoft.com. You can download,
+ * use, modify the code as long as you do not include it as part of commercial software.
+ */
+
+package com.gtosoft.libvoyager.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import android.util.Log;
+
+/**
+ * Spreads sniffed frames over several decode threads so the thread reading the ELM never waits on decoding.
+ *
+ * The reader calls publish() for each frame. Every CAN id always goes to the same shard, so frames of one id stay in order
+ * and anything kept per id only ever gets touched by one thread. Each shard has its own ring (FrameRing) and its own thread,
+ * which hands frames to the FrameHandler. If a shard's ring is full, the frame is dropped and counted - better than
+ * backing up into the ELM until it says BUFFER FULL.
+ *
+ * Only one thread may call publish().
+ * @author brad
+ */
+
+public class DecodePipeline {
+	final boolean DEBUG = false;
+
+	/**
+	 * Gets called on a shard's thread for every frame that shard gets.
+	 */
+	public interface FrameHandler {
+		/**
+		 * @param f - the frame. Owned by the shard and reused, don't hang on to it.
+		 * @param shard - which shard, 0 to numShards-1.
+		 */
+		public void onFrame (CANFrame f, int shard);
+	}
+
+	// how long an idle shard sleeps before looking again, unless publish wakes it first.
+	static final long IDLE_PARK_NANOS = 1000000;
+
+	final Shard [] mShards;
+	final FrameHandler mHandler;
+	final String mName;
+
+	volatile boolean mRunning = false;
+
+	GeneralStats mgStats = new GeneralStats();
+
+	/**
+	 * @param numShards - number of decode threads.
+	 * @param ringSize - frames each shard can have waiting.
+	 * @param handler - does the decoding.
+	 * @param name - for thread names and log messages.
+	 */
+	public DecodePipeline (int numShards, int ringSize, FrameHandler handler, String name) {
+		if (numShards < 1) numShards = 1;
+
+		mHandler 	= handler;
+		mName 		= name;
+		mShards 	= new Shard[numShards];
+		for (int i=0;i<numShards;i++)
+			mShards[i] = new Shard(i, ringSize);
+	}
+
+	public synchronized void start () {
+		if (mRunning)
+			return;
+
+		mRunning = true;
+		for (int i=0;i<mShards.length;i++) {
+			mShards[i].mThread = new Thread(mShards[i], mName + ".shard" + i);
+			mShards[i].mThread.start();
+		}
+	}
+
+	/**
+	 * Stop the shard threads. Frames still in the rings are thrown away. Blocks until the threads are gone.
+	 */
+	public synchronized void stop () {
+		if (!mRunning)
+			return;
+
+		mRunning = false;
+		for (int i=0;i<mShards.length;i++) {
+			Thread t = mShards[i].mThread;
+			if (t == null) continue;
+			LockSupport.unpark(t);
+			try {
+				t.join(2000);
+			} catch (InterruptedException e) {
+			}
+			mShards[i].mThread = null;
+		}
+	}
+
+	public boolean isRunning () {
+		return mRunning;
+	}
+
+	public int getNumShards () {
+		return mShards.length;
+	}
+
+	/**
+	 * @return - the shard frames with this header key go to.
+	 */
+	public int shardFor (long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) ((h >>> 32) % mShards.length);
+	}
+
+	/**
+	 * Reader side. The frame is copied, so f can be reused right away.
+	 * @return - false if the frame was dropped because its shard is backed up.
+	 */
+	public boolean publish (CANFrame f) {
+		Shard s = mShards[shardFor(f.key())];
+		if (!s.mRing.offer(f)) {
+			s.mDrops.incrementAndGet();
+			return false;
+		}
+
+		s.mPublished++;
+		if (s.mIdle)
+			LockSupport.unpark(s.mThread);
+		return true;
+	}
+
+	/**
+	 * @return - total frames waiting across all shards.
+	 */
+	public int getQueueDepth () {
+		int n = 0;
+		for (int i=0;i<mShards.length;i++)
+			n += mShards[i].mRing.size();
+		return n;
+	}
+
+	public long getNumDropped () {
+		long n = 0;
+		for (int i=0;i<mShards.length;i++)
+			n += mShards[i].mDrops.get();
+		return n;
+	}
+
+	public long getNumProcessed () {
+		long n = 0;
+		for (int i=0;i<mShards.length;i++)
+			n += mShards[i].mProcessed.get();
+		return n;
+	}
+
+	public GeneralStats getStats () {
+		mgStats.setStat("shards", "" + mShards.length);
+		mgStats.setStat("running", "" + mRunning);
+		mgStats.setStat("depth", "" + getQueueDepth());
+		mgStats.setStat("dropped", "" + getNumDropped());
+		mgStats.setStat("processed", "" + getNumProcessed());
+		for (int i=0;i<mShards.length;i++) {
+			Shard s = mShards[i];
+			mgStats.setStat("shard" + i + ".depth", "" + s.mRing.size() + "/" + s.mRing.capacity());
+			mgStats.setStat("shard" + i + ".maxdepth", "" + s.mMaxDepth);
+			mgStats.setStat("shard" + i + ".published", "" + s.mPublished);
+			mgStats.setStat("shard" + i + ".dropped", "" + s.mDrops.get());
+			mgStats.setStat("shard" + i + ".processed", "" + s.mProcessed.get());
+		}
+		return mgStats;
+	}
+
+	class Shard implements Runnable {
+		final int mIndex;
+		final FrameRing mRing;
+		final CANFrame mFrame = new CANFrame();
+		Thread mThread;
+
+		// set while the thread is parked, so publish knows to wake it.
+		volatile boolean mIdle = false;
+
+		// publish side, only the reader writes it.
+		long mPublished = 0;
+
+		final AtomicLong mDrops = new AtomicLong(0);
+		final AtomicLong mProcessed = new AtomicLong(0);
+		volatile int mMaxDepth = 0;
+
+		Shard (int index, int ringSize) {
+			mIndex 	= index;
+			mRing 	= new FrameRing(ringSize);
+		}
+
+		public void run () {
+			while (mRunning) {
+				if (!mRing.poll(mFrame)) {
+					// nothing to do. Say so, look once more (publish may have missed the flag), then sleep.
+					// If we still race with publish, the park times out - a millisecond late, never stuck.
+					mIdle = true;
+					if (!mRing.poll(mFrame)) {
+						LockSupport.parkNanos(IDLE_PARK_NANOS);
+						mIdle = false;
+						continue;
+					}
+					mIdle = false;
+				}
+
+				int depth = mRing.size() + 1;
+				if (depth > mMaxDepth) mMaxDepth = depth;
+
+				try {
+					mHandler.onFrame(mFrame, mIndex);
+				} catch (Exception e) {
+					msg ("Shard " + mIndex + " handler threw on frame " + mFrame + ": " + e.getMessage());
+				}
+				mProcessed.lazySet(mProcessed.get() + 1);
+			}
+
+			if (DEBUG) msg ("Shard " + mIndex + " stopped.");
+		}
+	}
+
+	private void msg (String m) {
+		Log.d("DecodePipeline." + mName, m);
+	}
+}
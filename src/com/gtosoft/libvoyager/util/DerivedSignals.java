@@ -0,0 +1,423 @@
+/**
+ * (C) 2011 libvoyager is licensed under a Creative Commons Attribution-NonCommercial 3.0 Unported License.
+ * Permissions beyond the scope of this license may be available at http://www.gtosoft.com. You can download,
+ * use, modify the code as long as you do not include it as part of commercial software.
+ */
+
+package com.gtosoft.libvoyager.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import com.gtosoft.libvoyager.db.DashDB;
+
+import android.util.Log;
+
+/**
+ * Datapoints worked out from other datapoints, like VIN from its two halves or SPEED from the four wheel speeds.
+ *
+ * Each one is a function over input DPNs:
+ *   VIN   = CONCAT(VIN1OF2, VIN2OF2)
+ *   SPEED = AVG(SPEED_WHEEL_RND, SPEED_WHEEL_LND, SPEED_WHEEL_RD, SPEED_WHEEL_LD)
+ *   BRAKES = MAX(BRAKE_*)
+ * Functions: AVG, SUM, MIN, MAX (numbers) and CONCAT (text). An input with a * in it matches every DPN that fits, as they show up.
+ *
+ * A derived value gets worked out again when one of its inputs arrives (or only when a particular one does, see the trigger
+ * in define), if all the named inputs have a value - wildcard inputs use whichever ones we have. The result goes through
+ * PIDDecoder like any other datapoint, so derived datapoints can be inputs to other derived datapoints. Loops are refused.
+ *
+ * Which derived datapoints depend on a DPN is kept in an array by DPN index, worked out the first time the DPN comes by.
+ * After that, a datapoint nobody depends on costs one array lookup.
+ * @author brad
+ */
+
+class DerivedSignals {
+	final boolean DEBUG = false;
+
+	static final int FUNC_AVG 		= 0;
+	static final int FUNC_SUM 		= 1;
+	static final int FUNC_MIN 		= 2;
+	static final int FUNC_MAX 		= 3;
+	static final int FUNC_CONCAT 	= 4;
+
+	static final String [] FUNC_NAMES = {"AVG", "SUM", "MIN", "MAX", "CONCAT"};
+
+	static final Node [] NO_NODES = new Node[0];
+
+	/**
+	 * One derived datapoint.
+	 */
+	static class Node {
+		final String name;
+		final String expression;
+		final int func;
+		// inputs as written, and the named (non-wildcard) ones as DPN indexes.
+		final String [] inputs;
+		final int [] namedIndexes;
+		// -1 for any input.
+		final int triggerIndex;
+
+		// every input index we know of: the named ones, plus wildcard matches as they show up. Copy on write.
+		volatile int [] mInputIndexes;
+
+		Node (String name, String expression, int func, String [] inputs, int [] namedIndexes, int triggerIndex) {
+			this.name 			= name;
+			this.expression 	= expression;
+			this.func 			= func;
+			this.inputs 		= inputs;
+			this.namedIndexes 	= namedIndexes;
+			this.triggerIndex 	= triggerIndex;
+			this.mInputIndexes 	= namedIndexes;
+		}
+
+		boolean hasWildcards () {
+			return namedIndexes.length < inputs.length;
+		}
+
+		boolean isNamedInput (int index) {
+			for (int i=0;i<namedIndexes.length;i++)
+				if (namedIndexes[i] == index)
+					return true;
+			return false;
+		}
+
+		/**
+		 * @return - true if the DPN is one of our inputs, named or matched.
+		 */
+		boolean matches (String DPN) {
+			for (int i=0;i<inputs.length;i++)
+				if (globMatch(inputs[i], DPN))
+					return true;
+			return false;
+		}
+
+		synchronized void addInput (int index) {
+			int [] old = mInputIndexes;
+			for (int i=0;i<old.length;i++)
+				if (old[i] == index)
+					return;
+
+			int [] in = new int[old.length + 1];
+			System.arraycopy(old, 0, in, 0, old.length);
+			in[old.length] = index;
+			mInputIndexes = in;
+		}
+
+		public String toString () {
+			return name + "=" + expression;
+		}
+	}
+
+	final DashDB ddb;
+
+	// name -> node, in the order they were defined.
+	final HashMap<String,Node> mhmNodes = new HashMap<String,Node>();
+	final ArrayList<Node> mNodes = new ArrayList<Node>();
+
+	// DPN index -> nodes that use it. null means we haven't looked yet. Copy on write.
+	volatile Node [][] mDependents = new Node[0][];
+
+	// stats.
+	long mNumEvaluations = 0;
+	long mNumIncomplete = 0;
+
+	DerivedSignals (DashDB d) {
+		ddb = d;
+	}
+
+	/**
+	 * Define (or re-define) a derived datapoint.
+	 * @param name - the DPN it goes out as.
+	 * @param expression - FUNC(INPUT, INPUT, ...). Inputs may have a * wildcard.
+	 * @param trigger - only work it out when this input arrives, or null/blank for any input. Handy when the inputs always come together, so the result only goes out once.
+	 * @return - blank if it worked, otherwise what's wrong with it.
+	 */
+	synchronized String define (String name, String expression, String trigger) {
+		name = (name != null) ? name.trim() : "";
+		if (name.length() == 0)
+			return "No name";
+		if (expression == null)
+			return "No expression";
+
+		String expr = expression.trim();
+		int open = expr.indexOf('(');
+		if (open < 1 || !expr.endsWith(")"))
+			return "Expected FUNC(INPUT, ...): " + expr;
+
+		int func = -1;
+		String funcName = expr.substring(0, open).trim().toUpperCase();
+		for (int i=0;i<FUNC_NAMES.length;i++)
+			if (FUNC_NAMES[i].equals(funcName))
+				func = i;
+		if (func < 0)
+			return "Unknown function " + funcName;
+
+		String [] parts = expr.substring(open + 1, expr.length() - 1).split(",");
+		ArrayList<String> inputs = new ArrayList<String>();
+		ArrayList<Integer> named = new ArrayList<Integer>();
+		for (int i=0;i<parts.length;i++) {
+			String in = parts[i].trim();
+			if (in.length() == 0)
+				continue;
+			if (globMatch(in, name))
+				return "Can't use itself as an input: " + in;
+			inputs.add(in);
+			if (in.indexOf('*') < 0)
+				named.add(ddb.getDPNIndex(in));
+		}
+		if (inputs.size() == 0)
+			return "No inputs";
+
+		int triggerIndex = -1;
+		if (trigger != null && trigger.trim().length() > 0) {
+			trigger = trigger.trim();
+			if (!inputs.contains(trigger))
+				return "Trigger " + trigger + " isn't one of the named inputs";
+			triggerIndex = ddb.getDPNIndex(trigger);
+		}
+
+		int [] namedIndexes = new int[named.size()];
+		for (int i=0;i<namedIndexes.length;i++)
+			namedIndexes[i] = named.get(i);
+
+		Node n = new Node(name, expr, func, inputs.toArray(new String[0]), namedIndexes, triggerIndex);
+
+		Node old = mhmNodes.put(name, n);
+		if (old != null)
+			mNodes.remove(old);
+		mNodes.add(n);
+
+		String loop = findLoop();
+		if (loop.length() > 0) {
+			// put things back the way they were.
+			mNodes.remove(n);
+			if (old != null) {
+				mhmNodes.put(name, old);
+				mNodes.add(old);
+			} else {
+				mhmNodes.remove(name);
+			}
+			return "Loop: " + loop;
+		}
+
+		// the dependencies changed, so work them all out again as DPNs come by.
+		mDependents = new Node[0][];
+		if (DEBUG) msg ("Defined " + n);
+		return "";
+	}
+
+	synchronized boolean remove (String name) {
+		Node n = mhmNodes.remove(name);
+		if (n == null)
+			return false;
+		mNodes.remove(n);
+		mDependents = new Node[0][];
+		return true;
+	}
+
+	/**
+	 * @return - name=expression for everything defined.
+	 */
+	synchronized String [] getDefinitions () {
+		String [] ret = new String[mNodes.size()];
+		for (int i=0;i<ret.length;i++)
+			ret[i] = mNodes.get(i).toString();
+		return ret;
+	}
+
+	/**
+	 * A datapoint got a new value (it's already in the table). Work out anything that depends on it.
+	 * @param index - its DPN index.
+	 * @param latest - where to get the other inputs from.
+	 * @return - the new derived values, or null if there aren't any.
+	 */
+	DPValue [] onValue (int index, DPValue v, LatestValueTable latest) {
+		Node [][] deps = mDependents;
+		Node [] nodes = (index < deps.length) ? deps[index] : null;
+		if (nodes == null)
+			nodes = resolve(index, v.DPN);
+		if (nodes.length == 0)
+			return null;
+
+		ArrayList<DPValue> ret = null;
+		for (int i=0;i<nodes.length;i++) {
+			Node n = nodes[i];
+			if (n.triggerIndex >= 0 && n.triggerIndex != index)
+				continue;
+
+			DPValue d = evaluate(n, latest, v.timestamp);
+			if (d == null)
+				continue;
+
+			if (ret == null) ret = new ArrayList<DPValue>(nodes.length);
+			ret.add(d);
+		}
+
+		if (ret == null)
+			return null;
+		return ret.toArray(new DPValue[ret.size()]);
+	}
+
+	/**
+	 * First time we see this DPN index (since the last definition change). Find who depends on it.
+	 */
+	private synchronized Node [] resolve (int index, String DPN) {
+		Node [][] deps = mDependents;
+		if (index < deps.length && deps[index] != null)
+			return deps[index];
+
+		ArrayList<Node> users = new ArrayList<Node>();
+		for (int i=0;i<mNodes.size();i++) {
+			Node n = mNodes.get(i);
+			if (n.isNamedInput(index)) {
+				users.add(n);
+			} else if (n.hasWildcards() && n.matches(DPN)) {
+				n.addInput(index);
+				users.add(n);
+			}
+		}
+
+		Node [] nodes = (users.size() > 0) ? users.toArray(new Node[users.size()]) : NO_NODES;
+
+		Node [][] copy = new Node[Math.max(deps.length, index + 1)][];
+		System.arraycopy(deps, 0, copy, 0, deps.length);
+		copy[index] = nodes;
+		mDependents = copy;
+		return nodes;
+	}
+
+	private DPValue evaluate (Node n, LatestValueTable latest, long now) {
+		int [] inputs = n.mInputIndexes;
+		// read all the inputs together, so the four wheels are from the same moment.
+		LatestValueTable.Snapshot snap = latest.snapshot(inputs);
+
+		double result = 0;
+		int count = 0;
+		StringBuilder text = (n.func == FUNC_CONCAT) ? new StringBuilder() : null;
+
+		for (int i=0;i<inputs.length;i++) {
+			DPValue in = snap.get(i);
+			boolean named = (i < n.namedIndexes.length);
+
+			String s = (in != null && text != null) ? in.getText() : "";
+			double d = (in != null && text == null) ? toDouble(in) : Double.NaN;
+
+			boolean have = (text != null) ? s.length() > 0 : !Double.isNaN(d);
+			if (!have) {
+				// named inputs all have to be there. Wildcard ones are optional.
+				if (named) {
+					synchronized (this) { mNumIncomplete++; }
+					return null;
+				}
+				continue;
+			}
+
+			if (text != null) {
+				text.append(s);
+			} else if (count == 0) {
+				result = d;
+			} else {
+				switch (n.func) {
+				case FUNC_AVG:
+				case FUNC_SUM: result = result + d; break;
+				case FUNC_MIN: result = Math.min(result, d); break;
+				case FUNC_MAX: result = Math.max(result, d); break;
+				}
+			}
+			count++;
+		}
+
+		if (count == 0)
+			return null;
+
+		synchronized (this) { mNumEvaluations++; }
+
+		if (text != null)
+			return new DPValue(n.name, text.toString(), 0, now);
+
+		if (n.func == FUNC_AVG)
+			result = result / count;
+		return new DPValue(n.name, "" + result, (int) Math.round(result), now);
+	}
+
+	/**
+	 * @return - the value as a number, or NaN if it isn't one.
+	 */
+	private static double toDouble (DPValue v) {
+		if (v.numeric)
+			return v.value;
+		try {
+			return Double.valueOf(v.getText());
+		} catch (NumberFormatException e) {
+			return Double.NaN;
+		}
+	}
+
+	/**
+	 * @return - a loop (A -> B -> A) if there is one among the derived datapoints, otherwise blank.
+	 */
+	private String findLoop () {
+		HashSet<String> done = new HashSet<String>();
+		for (int i=0;i<mNodes.size();i++) {
+			String loop = findLoop(mNodes.get(i), new ArrayList<String>(), done);
+			if (loop.length() > 0)
+				return loop;
+		}
+		return "";
+	}
+
+	private String findLoop (Node n, ArrayList<String> path, HashSet<String> done) {
+		if (path.contains(n.name)) {
+			String loop = "";
+			for (int i=path.indexOf(n.name);i<path.size();i++)
+				loop = loop + path.get(i) + " -> ";
+			return loop + n.name;
+		}
+		if (done.contains(n.name))
+			return "";
+
+		path.add(n.name);
+		for (int i=0;i<mNodes.size();i++) {
+			Node other = mNodes.get(i);
+			if (n.matches(other.name)) {
+				String loop = findLoop(other, path, done);
+				if (loop.length() > 0)
+					return loop;
+			}
+		}
+		path.remove(path.size() - 1);
+		done.add(n.name);
+		return "";
+	}
+
+	/**
+	 * @return - true if the DPN fits the pattern. * matches any number of characters, anything else has to match exactly.
+	 */
+	static boolean globMatch (String pattern, String DPN) {
+		int star = pattern.indexOf('*');
+		if (star < 0)
+			return pattern.equals(DPN);
+
+		String head = pattern.substring(0, star);
+		String rest = pattern.substring(star + 1);
+		if (!DPN.startsWith(head))
+			return false;
+
+		// try the rest of the pattern against every tail.
+		for (int i=head.length();i<=DPN.length();i++)
+			if (globMatch(rest, DPN.substring(i)))
+				return true;
+		return false;
+	}
+
+	synchronized void getStats (GeneralStats stats) {
+		stats.setStat("derived.defined", "" + mNodes.size());
+		stats.setStat("derived.evaluations", "" + mNumEvaluations);
+		stats.setStat("derived.incomplete", "" + mNumIncomplete);
+	}
+
+	private void msg (String m) {
+		Log.d("DerivedSignals", m);
+	}
+}
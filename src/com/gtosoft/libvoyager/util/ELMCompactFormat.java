@@ -0,0 +1,77 @@
+/**
+ * (C) 2011 libvoyager is licensed under a Creative Commons Attribution-NonCommercial 3.0 Unported License.
+ * Permissions beyond the scope of this license may be available at http://www.gtosoft.com. You can download,
+ * use, modify the code as long as you do not include it as part of commercial software.
+ */
+
+package com.gtosoft.libvoyager.util;
+
+/**
+ * Helpers for "compact" ELM output - spaces off (ATS0). Roughly a third of the bytes on the wire are spaces, so on a
+ * slow Bluetooth link, sniffing with spaces off gets us a lot more frames per second.
+ *
+ *  spaces on:  "7E8 04 41 0C 09 63"   "18 DA F1 10 03 41 0D 33"
+ *  spaces off: "7E804410C0963"        "18DAF11003410D33"
+ *
+ * Every byte is two hex digits, except an 11-bit CAN header which is three. So a compact line with an odd number
+ * of characters starts with an 11-bit header, and an even one is all whole bytes (29-bit header, or J1850/ISO header bytes).
+ * The parsers use that rule on the compact text directly (CANFrame.parseCompact, OBDPacketParser.parse), nothing gets
+ * expanded on the way in. expandLine is for the odd bit of text we hand back, like the header of each ECU's answer.
+ * @author brad
+ */
+
+public class ELMCompactFormat {
+
+	// ELM AT commands to select the format.
+	public static final String SPACES_OFF 	= "AT S0";
+	public static final String SPACES_ON 	= "AT S1";
+
+	/**
+	 * @return - true if every character in [start,end) of s is a hex digit.
+	 */
+	public static boolean isHex (CharSequence s, int start, int end) {
+		for (int i=start;i<end;i++) {
+			char c = s.charAt(i);
+			if (!((c >= '0' && c <= '9') || (c >= 'A' && c <= 'F') || (c >= 'a' && c <= 'f')))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Turn one compact line into the spaced form. Lines that aren't pure hex (NO DATA, SEARCHING..., BUFFER FULL, the echo
+	 * of an AT command) are returned as-is.
+	 * @param line - for example "7E804410C0963".
+	 * @return - for example "7E8 04 41 0C 09 63".
+	 */
+	public static String expandLine (String line) {
+		int len = line.length();
+		if (len < 2 || !isHex(line, 0, len))
+			return line;
+
+		StringBuilder sb = new StringBuilder(len + len / 2 + 1);
+		appendExpanded(sb, line, 0, len);
+		return sb.toString();
+	}
+
+	/**
+	 * Append the spaced version of the hex run [start,end) of s to sb. Odd length means the first three characters are an 11-bit header.
+	 */
+	static void appendExpanded (StringBuilder sb, CharSequence s, int start, int end) {
+		int i = start;
+		if (((end - start) & 1) == 1) {
+			sb.append(s, i, i + 3);
+			i += 3;
+		} else {
+			sb.append(s, i, i + 2);
+			i += 2;
+		}
+
+		while (i < end) {
+			sb.append(' ');
+			sb.append(s.charAt(i));
+			sb.append(s.charAt(i+1));
+			i += 2;
+		}
+	}
+}
@@ -0,0 +1,76 @@
+/**
+ * (C) 2011 libvoyager is licensed under a Creative Commons Attribution-NonCommercial 3.0 Unported License.
+ * Permissions beyond the scope of this license may be available at http://www.gtosoft.com. You can download,
+ * use, modify the code as long as you do not include it as part of commercial software.
+ */
+
+package com.gtosoft.libvoyager.util;
+
+/**
+ * When PIDDecoder should fire a datapoint event for a sniffed value. A busy bus repeats most frames many times a second with the
+ * same data, and there's no point waking every listener for each one.
+ *
+ *  - ALWAYS: every time the datapoint's frame goes by, changed or not. This is how it used to work.
+ *  - ON_CHANGE: only when the datapoint's bits change.
+ *  - DEADBAND: only when the value moves more than the deadband away from the last value we sent. Non-numeric datapoints go by ON_CHANGE.
+ *
+ * Any of them can add a heartbeat: if nothing has been sent for that many ms, the next frame gets sent anyway, so listeners know the value is still current.
+ * The heartbeat is checked when the datapoint's frame arrives - if the frame stops coming, so do the events.
+ *
+ * Immutable. Set one globally or per DPN with PIDDecoder.setEmissionPolicy.
+ * @author brad
+ */
+
+public final class EmissionPolicy {
+
+	public static final int ALWAYS 		= 0;
+	public static final int ON_CHANGE 	= 1;
+	public static final int DEADBAND 	= 2;
+
+	public final int mode;
+	// only used in DEADBAND mode.
+	public final double deadband;
+	// 0 for no heartbeat.
+	public final long heartbeatMillis;
+
+	private EmissionPolicy (int mode, double deadband, long heartbeatMillis) {
+		this.mode 				= mode;
+		this.deadband 			= deadband;
+		this.heartbeatMillis 	= heartbeatMillis;
+	}
+
+	public static EmissionPolicy always () {
+		return new EmissionPolicy(ALWAYS, 0, 0);
+	}
+
+	public static EmissionPolicy onChange () {
+		return new EmissionPolicy(ON_CHANGE, 0, 0);
+	}
+
+	/**
+	 * @param deadband - how far the value has to move (either way) from the last one we sent before we send another.
+	 */
+	public static EmissionPolicy deadband (double deadband) {
+		return new EmissionPolicy(DEADBAND, Math.abs(deadband), 0);
+	}
+
+	/**
+	 * @return - the same policy, plus a heartbeat every given number of milliseconds. 0 turns the heartbeat off.
+	 */
+	public EmissionPolicy withHeartbeat (long millis) {
+		return new EmissionPolicy(mode, deadband, Math.max(0, millis));
+	}
+
+	public String toString () {
+		String ret;
+		switch (mode) {
+		case ALWAYS: 	ret = "ALWAYS"; break;
+		case ON_CHANGE: ret = "ON_CHANGE"; break;
+		default: 		ret = "DEADBAND(" + deadband + ")"; break;
+		}
+
+		if (heartbeatMillis > 0)
+			ret = ret + " HEARTBEAT(" + heartbeatMillis + "ms)";
+		return ret;
+	}
+}
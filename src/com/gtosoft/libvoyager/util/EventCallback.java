@@ -70,6 +70,22 @@ public class EventCallback {
 		
 	}
 
+	/**
+	 * Same event as onDPArrived, with the value as a number (plus raw bits, unit and timestamp) instead of text. 
+	 * PIDDecoder fires this one. Unless you override it, it hands off to onDPArrived, so the text only gets made if you want text. 
+	 * @param v - the value. 
+	 */
+	public void onDPValueArrived (DPValue v) {
+		onDPArrived(v.DPN, v.getText(), v.getInt());
+	}
+
+	/**
+	 * Same deal for onNewDataArrived. 
+	 */
+	public void onNewDataValueArrived (DPValue v) {
+		onNewDataArrived(v.DPN, "", "", v.getText(), false, true);
+	}
+
 	
 	/**
 	 * This will be used to pass certain information up the layers to the top. 
@@ -0,0 +1,87 @@
+/**
+ * (C) 2011 libvoyager is licensed under a Creative Commons Attribution-NonCommercial 3.0 Unported License.
+ * Permissions beyond the scope of this license may be available at http://www.gtosoft.com. You can download,
+ * use, modify the code as long as you do not include it as part of commercial software.
+ */
+
+package com.gtosoft.libvoyager.util;
+
+import java.util.HashMap;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Formula name -> DPFormula, for the formula part of passive datapoints ("16-31,DIV4" -> "DIV4").
+ * Comes loaded with every formula the DB uses. Apps can register more, or replace a built-in (for example TPMS with a real barometer).
+ *
+ * Looked up once per datapoint when its header is first seen (DPDecoderPlan.compile), never per packet.
+ * @author brad
+ */
+
+public class FormulaRegistry {
+
+	HashMap<String,DPFormula> mhmFormulas = new HashMap<String,DPFormula>();
+
+	public FormulaRegistry () {
+		registerBuiltins();
+	}
+
+	private void registerBuiltins () {
+		// the linear ones: {mult, div, offset}. Written so that (mult * raw) / div + offset does the exact same float math the old hand-written decoders did.
+		registerLinear("MULT10", 		10f, 	1f, 	0f);
+		registerLinear("MULT14", 		14f, 	1f, 	0f);
+		registerLinear("MULT4", 		4f, 	1f, 	0f);
+		registerLinear("DIV10", 		1f, 	10f, 	0f);
+		registerLinear("DIV16", 		1f, 	16f, 	0f);
+		registerLinear("DIV40", 		1f, 	40f, 	0f);
+		registerLinear("DIV4", 			1f, 	4f, 	0f);
+		registerLinear("DIV100", 		1f, 	100f, 	0f);
+		registerLinear("MULT2051", 		20f, 	51f, 	0f);
+		registerLinear("MULT205100", 	20f, 	5100f, 	0f);
+		registerLinear("DIV64", 		1f, 	64f, 	0f);
+		registerLinear("DIV128", 		1f, 	128f, 	0f);
+		registerLinear("M=1&B=-40", 	1f, 	1f, 	-40f);
+		registerLinear("M=1/8", 		1f, 	8f, 	0f);
+		registerLinear("M=1/10", 		1f, 	10f, 	0f);
+		registerLinear("M=1/16", 		1f, 	16f, 	0f);
+		registerLinear("M=1/32", 		1f, 	32f, 	0f);
+		registerLinear("M=0.5", 		0.5f, 	1f, 	0f);
+		registerLinear("M=4&B=-40", 	4f, 	1f, 	-40f);
+		registerLinear("M=0.5&B=-40", 	0.5f, 	1f, 	-40f);
+		registerLinear("M=0.1&B=3", 	0.1f, 	1f, 	3f);
+		// this one has always been done in double math.
+		register("M=0.25&B=-200", new DPFormula.Linear(0.25f, 1f, -200f, true));
+
+		// barometer of 1 kPa, same as the old decoder. Apps that know the real one register their own TirePressure and call setBarometer on it.
+		register("TPMS", 		new DPFormula.TirePressure(1));
+
+		register("INT", 		new DPFormula.Int());
+		register("BIT", 		new DPFormula.Bit());
+		register("HEX", 		new DPFormula.Hex());
+		register("ASCII", 		new DPFormula.Ascii());
+		register("ONSTAR_LAT", 	new DPFormula.OnstarLat());
+		register("ONSTAR_LON", 	new DPFormula.OnstarLon());
+	}
+
+	private void registerLinear (String name, float mult, float div, float offset) {
+		register(name, new DPFormula.Linear(mult, div, offset));
+	}
+
+	/**
+	 * Add a formula, or replace the one by that name. Datapoints that were already compiled keep the old one - see DashDB.registerFormula, which takes care of that.
+	 */
+	public synchronized void register (String name, DPFormula formula) {
+		mhmFormulas.put(name, formula);
+	}
+
+	/**
+	 * @return - the formula by that name, or null if there's no such formula.
+	 */
+	public synchronized DPFormula get (String name) {
+		return mhmFormulas.get(name);
+	}
+
+	public synchronized Set<String> getNames () {
+		return new TreeSet<String>(mhmFormulas.keySet());
+	}
+}
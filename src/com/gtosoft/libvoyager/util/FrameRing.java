@@ -0,0 +1,105 @@
+/**
+ * (C) 2011 libvoyager is licensed under a Creative Commons Attribution-NonCommercial 3.0 Unported License.
+ * Permissions beyond the scope of this license may be available at http://www.gtosoft.com. You can download,
+ * use, modify the code as long as you do not include it as part of commercial software.
+ */
+
+package com.gtosoft.libvoyager.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fixed size queue of CAN frames between exactly one producer thread and exactly one consumer thread. No locks:
+ * each side only writes its own counter. Frames are copied in and out, so nothing gets allocated once it's built.
+ * Used by DecodePipeline, one per shard.
+ * @author brad
+ */
+
+class FrameRing {
+
+	final int mMask;
+	final int [] mIds;
+	final boolean [] mExt;
+	final int [] mDlc;
+	final long [] mPayload;
+
+	// next slot to write (producer) and next slot to read (consumer). They only ever go up.
+	final AtomicLong mTail = new AtomicLong(0);
+	final AtomicLong mHead = new AtomicLong(0);
+
+	// each side's last look at the other side's counter, so it doesn't have to read the volatile every time.
+	long mProducerHeadCache = 0;
+	long mConsumerTailCache = 0;
+
+	/**
+	 * @param capacity - rounded up to a power of two.
+	 */
+	FrameRing (int capacity) {
+		int cap = 2;
+		while (cap < capacity) cap <<= 1;
+
+		mMask 		= cap - 1;
+		mIds 		= new int[cap];
+		mExt 		= new boolean[cap];
+		mDlc 		= new int[cap];
+		mPayload 	= new long[cap];
+	}
+
+	/**
+	 * Producer side.
+	 * @return - false if the ring is full (the frame wasn't added).
+	 */
+	boolean offer (CANFrame f) {
+		long t = mTail.get();
+		if (t - mProducerHeadCache > mMask) {
+			mProducerHeadCache = mHead.get();
+			if (t - mProducerHeadCache > mMask)
+				return false;
+		}
+
+		int slot = (int) t & mMask;
+		mIds[slot] 		= f.id;
+		mExt[slot] 		= f.ext;
+		mDlc[slot] 		= f.dlc;
+		mPayload[slot] 	= f.payload;
+
+		// publishes the slot writes above.
+		mTail.lazySet(t + 1);
+		return true;
+	}
+
+	/**
+	 * Consumer side.
+	 * @param f - gets the frame.
+	 * @return - false if the ring is empty.
+	 */
+	boolean poll (CANFrame f) {
+		long h = mHead.get();
+		if (h >= mConsumerTailCache) {
+			mConsumerTailCache = mTail.get();
+			if (h >= mConsumerTailCache)
+				return false;
+		}
+
+		int slot = (int) h & mMask;
+		f.id 		= mIds[slot];
+		f.ext 		= mExt[slot];
+		f.dlc 		= mDlc[slot];
+		f.payload 	= mPayload[slot];
+
+		// hands the slot back to the producer.
+		mHead.lazySet(h + 1);
+		return true;
+	}
+
+	/**
+	 * @return - frames waiting. Safe to call from any thread, but it's only a snapshot.
+	 */
+	int size () {
+		return (int) (mTail.get() - mHead.get());
+	}
+
+	int capacity () {
+		return mMask + 1;
+	}
+}
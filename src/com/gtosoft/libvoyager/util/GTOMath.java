@@ -28,6 +28,11 @@ public class GTOMath {
 	private static final String FORMULA_STEP_SEPARATOR=",";
 	private static final int FORMULA_DEFAULT_PRECISION=4;
 	public static HashMap<String,String> mhmResponses;
+
+	// formula text -> compiled formula. The obdRequest table has a few dozen distinct formulas, so this stays small. 
+	private static HashMap<String,OBDFormula> mhmCompiledFormulas = new HashMap<String,OBDFormula>();
+	// formulas that didn't compile, so we only complain once. 
+	private static final OBDFormula BAD_FORMULA = OBDFormula.compile("0");
 	
 	/*
 	 * Dump the provided hash map into something readable. 
@@ -368,38 +373,122 @@ public class GTOMath {
 			return getAsATResponse(hexBytes);
 		}
 		
-		// Split the hex bytes into array elements. 
-		String variables[] = hexBytes.split(" ");
-		
-		// bail out if nothing was splitted.
-		if (variables.length < 1) {
-			Log.d("GTOMath.decodeAutoDetect()","Warning: no bytes found in: " + hexBytes + " formula=" + formula);
+		OBDFormula f = getCompiledFormula(formula);
+		if (f == null)
+			return "";
+
+		// Turn the hex bytes into numbers. 
+		int bytes[] = parseHexBytes(hexBytes);
+		if (bytes == null) {
+			Log.e("GTOMath.decodeAutoDetect()","Error processing expected integer. request=" + request + " formula=" + formula + " hexbytes=" + hexBytes);
+			return "";
+		}
+
+		// bail out if there aren't enough bytes for the formula. 
+		if (bytes.length < 1 || bytes.length < f.bytesNeeded) {
+			if (DEBUG==true) Log.d("GTOMath.decodeAutoDetect()","Warning: not enough bytes found in: " + hexBytes + " formula=" + formula);
 			return "";
 		}
 		
-		// for each hex byte, switch it from a hex byte into a decimal string
-		for (int i=0;i<variables.length;i++) {
-			if (variables[i].length()<1)
+		return f.evaluate(bytes);
+	}
+
+	/**
+	 * Same as decodeAutoDetect(int, String, String, String, String), for one ECU's entry in an OBDResponses. 
+	 * Math formulas work straight off the bytes, the special ones (VIN, DTC, BINARY, AT) still go by the text. 
+	 * @param i - which entry of r. 
+	 */
+	public static String decodeAutoDetect (int ELMProtocolNumber, String request, String formula, String response, OBDResponses r, int i) {
+		if (formula == null || formula.length()<1) {
+			return "";
+		}
+
+		if (formula.equals("VIN") || formula.equals("DTC") || formula.equals("BINARY") || request.startsWith("AT"))
+			return decodeAutoDetect(ELMProtocolNumber, request, formula, response, r.getHexBytes(i));
+
+		OBDFormula f = getCompiledFormula(formula);
+		if (f == null)
+			return "";
+
+		int len = r.getLength(i);
+		// bail out if there aren't enough bytes for the formula. 
+		if (len < 1 || len < f.bytesNeeded) {
+			if (DEBUG==true) Log.d("GTOMath.decodeAutoDetect()","Warning: not enough bytes from " + r.getHeader(i) + ": " + r.getHexBytes(i) + " formula=" + formula);
+			return "";
+		}
+
+		return f.evaluate(r.getInts(i), len);
+	}
+
+	/**
+	 * @return - the formula, compiled. Each formula only gets compiled once. Null if it doesn't compile. 
+	 */
+	public static OBDFormula getCompiledFormula (String formula) {
+		if (formula == null)
+			return null;
+
+		synchronized (mhmCompiledFormulas) {
+			OBDFormula f = mhmCompiledFormulas.get(formula);
+			if (f == null) {
+				f = OBDFormula.compile(formula);
+				if (f == null) {
+					Log.e("GTOMath.getCompiledFormula()","Error: formula doesn't compile: " + formula);
+					f = BAD_FORMULA;
+				}
+				mhmCompiledFormulas.put(formula, f);
+			}
+			return (f != BAD_FORMULA) ? f : null;
+		}
+	}
+
+	/**
+	 * @param hexBytes - for example "41 0C 1A F8". 
+	 * @return - the bytes as numbers, or null if something in there isn't a hex byte. 
+	 */
+	public static int [] parseHexBytes (String hexBytes) {
+		int count = 0;
+		int len = hexBytes.length();
+		int [] bytes = new int[(len + 1) / 2];
+
+		int i = 0;
+		while (i < len) {
+			char c = hexBytes.charAt(i);
+			if (c == ' ') {
+				i++;
 				continue;
-			try {variables[i] = "" + Integer.parseInt(variables[i], 16);
-			} catch (NumberFormatException e) {
-				Log.e("GTOMath.decodeAutoDetect()","Error processing expected integer. request=" + request + " formula=" + formula + " hexbytes=" + hexBytes,e);
-				return "";
 			}
+
+			// one hex byte: one or two digits. 
+			int v = Character.digit(c, 16);
+			if (v < 0)
+				return null;
+			i++;
+			if (i < len && hexBytes.charAt(i) != ' ') {
+				int lo = Character.digit(hexBytes.charAt(i), 16);
+				if (lo < 0)
+					return null;
+				v = (v << 4) | lo;
+				i++;
+			}
+			if (i < len && hexBytes.charAt(i) != ' ')
+				return null;
+
+			bytes[count++] = v;
 		}
-		
-		return mathFormula(variables, formula);
-		
-		//return formulaResult;
-		
+
+		int [] ret = new int[count];
+		System.arraycopy(bytes, 0, ret, 0, count);
+		return ret;
 	}
 
 	/*
 	 * given a set of steps in our special format,
 	 * AND an array containing the values for A,B,C,D, etc.
 	 * parse those steps and return the result as a string. 
+	 * 
+	 * The old, slow way - decodeAutoDetect uses OBDFormula now. Kept so the two can be checked against each other. 
 	 */
-	private static String mathFormula (String[] variables, String formulaSteps) {
+	public static String mathFormula (String[] variables, String formulaSteps) {
 		// start with a brand new bigdecimal. 
 		BigDecimal X = new BigDecimal ("0");
 		
@@ -0,0 +1,246 @@
+/**
+ * (C) 2011 libvoyager is licensed under a Creative Commons Attribution-NonCommercial 3.0 Unported License.
+ * Permissions beyond the scope of this license may be available at http://www.gtosoft.com. You can download,
+ * use, modify the code as long as you do not include it as part of commercial software.
+ */
+
+package com.gtosoft.libvoyager.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The latest value of every datapoint, in slots indexed by DPN index (DashDB.getDPNIndex). No locks anywhere.
+ *
+ * Writes: each datapoint is expected to have one writer at a time (the decoder working on its frame, or the OBD request for it).
+ * A write is a few atomic operations and never waits on anything - not on readers, not on writes to other slots.
+ *
+ * Reads: get() gives you one value. snapshot() gives you several that all belong together - nothing was written
+ * to the table while they were being read, so you never see a new RPM next to an old SPEED from before it. If writes keep
+ * getting in the way, it gives up after a few tries and hands back what it got, marked not consistent.
+ *
+ * Every write gets a sequence number, from one counter for the whole table, so you can tell which of two values is newer
+ * and whether anything has changed since you last looked (getSeq()).
+ * @author brad
+ */
+
+public final class LatestValueTable {
+
+	// slots live in pages so the table can grow without copying, which could lose writes that land in the old copy.
+	static final int PAGE_BITS 	= 6;
+	static final int PAGE_SIZE 	= 1 << PAGE_BITS;
+	static final int MAX_PAGES 	= 1024;
+
+	// how many times snapshot tries for a clean read before it settles.
+	static final int SNAPSHOT_TRIES = 8;
+
+	/**
+	 * What goes in a slot. Replaced, never changed.
+	 */
+	static final class Entry {
+		final DPValue value;
+		final long seq;
+
+		Entry (DPValue value, long seq) {
+			this.value 	= value;
+			this.seq 	= seq;
+		}
+	}
+
+	/**
+	 * A set of values read together. Index it the same way as the indexes you asked for.
+	 */
+	public static final class Snapshot {
+		// null where there's no value yet.
+		public final DPValue [] values;
+		// 0 where there's no value yet.
+		public final long [] seqs;
+		// the table's sequence number when the snapshot was taken - every value here is at or before it.
+		public final long seq;
+		// false if writes kept getting in the way. Each value is still a real one, they just might not all be from the same moment.
+		public final boolean consistent;
+
+		Snapshot (DPValue [] values, long [] seqs, long seq, boolean consistent) {
+			this.values 	= values;
+			this.seqs 		= seqs;
+			this.seq 		= seq;
+			this.consistent = consistent;
+		}
+
+		public int size () {
+			return values.length;
+		}
+
+		public DPValue get (int i) {
+			return values[i];
+		}
+	}
+
+	final AtomicReferenceArray<AtomicReferenceArray<Entry>> mPages = new AtomicReferenceArray<AtomicReferenceArray<Entry>>(MAX_PAGES);
+
+	// writes begun and writes finished. When they're equal, nobody is in the middle of a write.
+	// mStarted also hands out the sequence numbers.
+	final AtomicLong mStarted 	= new AtomicLong(0);
+	final AtomicLong mFinished 	= new AtomicLong(0);
+
+	final AtomicInteger mNumValues = new AtomicInteger(0);
+
+	// stats.
+	final AtomicLong mNumSnapshots 		= new AtomicLong(0);
+	final AtomicLong mNumRetries 		= new AtomicLong(0);
+	final AtomicLong mNumInconsistent 	= new AtomicLong(0);
+
+	/**
+	 * @return - the biggest index the table can hold, plus one.
+	 */
+	public int capacity () {
+		return MAX_PAGES * PAGE_SIZE;
+	}
+
+	/**
+	 * Store the latest value for a datapoint.
+	 * @param index - the DPN's index.
+	 * @return - the value's sequence number, or 0 if the index is out of range (nothing stored).
+	 */
+	public long put (int index, DPValue v) {
+		AtomicReferenceArray<Entry> page = getPage(index, true);
+		if (page == null || v == null)
+			return 0;
+
+		long seq = mStarted.incrementAndGet();
+		Entry old = page.getAndSet(index & (PAGE_SIZE - 1), new Entry(v, seq));
+		mFinished.incrementAndGet();
+
+		if (old == null)
+			mNumValues.incrementAndGet();
+		return seq;
+	}
+
+	/**
+	 * @return - the latest value, or null if there isn't one.
+	 */
+	public DPValue get (int index) {
+		Entry e = getEntry(index);
+		return (e != null) ? e.value : null;
+	}
+
+	/**
+	 * @return - the sequence number of the latest value, or 0 if there isn't one.
+	 */
+	public long getSeq (int index) {
+		Entry e = getEntry(index);
+		return (e != null) ? e.seq : 0;
+	}
+
+	/**
+	 * @return - when the latest value was decoded (System.currentTimeMillis()), or 0 if there isn't one.
+	 */
+	public long getTimestamp (int index) {
+		Entry e = getEntry(index);
+		return (e != null) ? e.value.timestamp : 0;
+	}
+
+	/**
+	 * @return - the sequence number of the most recent write. If it hasn't moved, nothing in the table has changed.
+	 */
+	public long getSeq () {
+		return mStarted.get();
+	}
+
+	/**
+	 * @return - how many datapoints have a value.
+	 */
+	public int size () {
+		return mNumValues.get();
+	}
+
+	/**
+	 * Read several values at once, all from the same moment.
+	 * @param indexes - the DPN indexes. Negative ones (DashDB.findDPNIndex didn't know the DPN) come back null.
+	 */
+	public Snapshot snapshot (int [] indexes) {
+		int n = indexes.length;
+		DPValue [] values = new DPValue[n];
+		long [] seqs = new long[n];
+
+		mNumSnapshots.incrementAndGet();
+		long seq = 0;
+		for (int tries = 0; tries < SNAPSHOT_TRIES; tries++) {
+			// finished before started. Read the other way around, a write could start and finish in between and look like no write at all.
+			long finished = mFinished.get();
+			seq = mStarted.get();
+
+			if (finished == seq) {
+				readEntries(indexes, values, seqs);
+				if (mStarted.get() == seq)
+					return new Snapshot(values, seqs, seq, true);
+			}
+
+			mNumRetries.incrementAndGet();
+			Thread.yield();
+		}
+
+		// never got a clean read. Give them the latest of everything.
+		mNumInconsistent.incrementAndGet();
+		seq = mStarted.get();
+		readEntries(indexes, values, seqs);
+		return new Snapshot(values, seqs, seq, false);
+	}
+
+	/**
+	 * Snapshot of every slot from 0 to count-1 (count is usually DashDB.getNumDPNIndexes()).
+	 */
+	public Snapshot snapshot (int count) {
+		count = Math.max(0, Math.min(count, capacity()));
+		int [] indexes = new int[count];
+		for (int i=0;i<count;i++)
+			indexes[i] = i;
+		return snapshot(indexes);
+	}
+
+	private void readEntries (int [] indexes, DPValue [] values, long [] seqs) {
+		for (int i=0;i<indexes.length;i++) {
+			Entry e = getEntry(indexes[i]);
+			if (e != null) {
+				values[i] 	= e.value;
+				seqs[i] 	= e.seq;
+			} else {
+				values[i] 	= null;
+				seqs[i] 	= 0;
+			}
+		}
+	}
+
+	private Entry getEntry (int index) {
+		AtomicReferenceArray<Entry> page = getPage(index, false);
+		if (page == null)
+			return null;
+		return page.get(index & (PAGE_SIZE - 1));
+	}
+
+	private AtomicReferenceArray<Entry> getPage (int index, boolean create) {
+		if (index < 0)
+			return null;
+
+		int pageNum = index >>> PAGE_BITS;
+		if (pageNum >= MAX_PAGES)
+			return null;
+
+		AtomicReferenceArray<Entry> page = mPages.get(pageNum);
+		if (page != null || !create)
+			return page;
+
+		// two writers making the same page: whoever loses uses the winner's.
+		mPages.compareAndSet(pageNum, null, new AtomicReferenceArray<Entry>(PAGE_SIZE));
+		return mPages.get(pageNum);
+	}
+
+	public void getStats (GeneralStats stats) {
+		stats.setStat("latest.values", "" + mNumValues.get());
+		stats.setStat("latest.seq", "" + mStarted.get());
+		stats.setStat("latest.snapshots", "" + mNumSnapshots.get());
+		stats.setStat("latest.snapshot.retries", "" + mNumRetries.get());
+		stats.setStat("latest.snapshot.inconsistent", "" + mNumInconsistent.get());
+	}
+}
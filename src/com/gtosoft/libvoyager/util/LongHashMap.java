@@ -0,0 +1,121 @@
+/**
+ * (C) 2011 libvoyager is licensed under a Creative Commons Attribution-NonCommercial 3.0 Unported License.
+ * Permissions beyond the scope of this license may be available at http://www.gtosoft.com. You can download,
+ * use, modify the code as long as you do not include it as part of commercial software.
+ */
+
+package com.gtosoft.libvoyager.util;
+
+/**
+ * A hashmap with primitive long keys, so looking something up by CAN id doesn't box the key or hash a String.
+ * Open addressing with linear probing. No removal - the maps we use it for only ever grow until they're cleared.
+ * Null values are allowed (and containsKey tells them apart from missing keys).
+ *
+ * Not thread safe. For a map that's read from many threads and rarely written, copy it, put, and publish the copy.
+ * @author brad
+ */
+
+public class LongHashMap<V> {
+
+	long [] mKeys;
+	Object [] mValues;
+	boolean [] mUsed;
+	int mSize = 0;
+	int mMask;
+
+	public LongHashMap () {
+		this(16);
+	}
+
+	public LongHashMap (int initialCapacity) {
+		int cap = 16;
+		while (cap < initialCapacity * 2) cap <<= 1;
+		allocate(cap);
+	}
+
+	/**
+	 * Copy constructor. The values themselves aren't copied. 
+	 */
+	public LongHashMap (LongHashMap<V> other) {
+		mKeys 	= other.mKeys.clone();
+		mValues = other.mValues.clone();
+		mUsed 	= other.mUsed.clone();
+		mMask 	= other.mMask;
+		mSize 	= other.mSize;
+	}
+
+	private void allocate (int capacity) {
+		mKeys 	= new long[capacity];
+		mValues = new Object[capacity];
+		mUsed 	= new boolean[capacity];
+		mMask 	= capacity - 1;
+	}
+
+	private int slotFor (long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		int slot = (int) (h ^ (h >>> 32)) & mMask;
+		while (mUsed[slot] && mKeys[slot] != key)
+			slot = (slot + 1) & mMask;
+		return slot;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V get (long key) {
+		int slot = slotFor(key);
+		return mUsed[slot] ? (V) mValues[slot] : null;
+	}
+
+	public boolean containsKey (long key) {
+		return mUsed[slotFor(key)];
+	}
+
+	public void put (long key, V value) {
+		int slot = slotFor(key);
+		if (!mUsed[slot]) {
+			// keep it at most half full.
+			if ((mSize + 1) * 2 > mKeys.length) {
+				grow();
+				slot = slotFor(key);
+			}
+			mUsed[slot] = true;
+			mKeys[slot] = key;
+			mSize++;
+		}
+		mValues[slot] = value;
+	}
+
+	private void grow () {
+		long [] oldKeys = mKeys;
+		Object [] oldValues = mValues;
+		boolean [] oldUsed = mUsed;
+
+		allocate(oldKeys.length * 2);
+		for (int i=0;i<oldKeys.length;i++) {
+			if (!oldUsed[i]) continue;
+			int slot = slotFor(oldKeys[i]);
+			mUsed[slot] = true;
+			mKeys[slot] = oldKeys[i];
+			mValues[slot] = oldValues[i];
+		}
+	}
+
+	public int size () {
+		return mSize;
+	}
+
+	public void clear () {
+		allocate(16);
+		mSize = 0;
+	}
+
+	/**
+	 * @return - a new array holding every key.
+	 */
+	public long [] keys () {
+		long [] ret = new long[mSize];
+		int n = 0;
+		for (int i=0;i<mKeys.length;i++)
+			if (mUsed[i]) ret[n++] = mKeys[i];
+		return ret;
+	}
+}
@@ -6,8 +6,10 @@
 
 package com.gtosoft.libvoyager.util;
 
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Set;
+import java.util.TreeSet;
 
 import com.gtosoft.libvoyager.db.DashDB;
 
@@ -25,6 +27,11 @@ import android.util.Log;
 public class NetDetect {
 	final boolean DEBUG = false;
 
+	// When we're sure enough to call it without waiting: the leader has at least this many CAN IDs in common with the bus... 
+	final int CONFIDENT_MIN_MATCHES = 3;
+	// ...and at least this many more than any other network. 
+	final int CONFIDENT_MIN_MARGIN 	= 2;
+
 	// This will store the base set of CAN IDs procided to us. These will be the basis of our comparisons. 
 	Set<String> mBaseSet;
 
@@ -33,7 +40,18 @@ public class NetDetect {
 
 	// A reference to the caller's instance of DashDB. 
 	DashDB ddb;
-	
+
+	// The index, built from the dataPoint table the first time we need it. Network IDs get a number (their position in mNetworkIDs),
+	// and each CAN ID maps to the set of networks that have it, one bit per network. 
+	String [] mNetworkIDs = null;
+	LongHashMap<long[]> mhmNetworksByHeader = null;
+
+	// The incremental scorer. Number of CAN IDs seen on the bus so far that each network knows about. 
+	int [] mScores = null;
+	// CAN IDs we've been told about, so each only counts once. 
+	LongHashMap<Boolean> mhmSeen = new LongHashMap<Boolean>();
+	int mLeader = -1;
+	int mRunnerUpScore = 0;
 
 
 	/**
@@ -43,27 +61,172 @@ public class NetDetect {
 		ddb = d;
 //		msg ("Initialization complete.");
 	}
-	
+
+	/**
+	 * Forget the CAN IDs we've seen, for a new bus. The index stays. 
+	 */
+	public synchronized void reset () {
+		mhmSeen = new LongHashMap<Boolean>();
+		if (mScores != null)
+			mScores = new int[mScores.length];
+		mLeader = -1;
+		mRunnerUpScore = 0;
+	}
+
+	/**
+	 * Build the CAN ID -> networks index from the dataPoint table. One query, once. 
+	 * @return - false if there are no decoders at all. 
+	 */
+	private boolean buildIndex () {
+		if (mNetworkIDs != null)
+			return mNetworkIDs.length > 0;
+
+		long startTime = System.currentTimeMillis();
+		HashMap<String,Set<String>> hmHeaders = ddb.getDPNCANIDsByNetworkID();
+
+		// sorted, so ties always go the same way. 
+		mNetworkIDs = new TreeSet<String>(hmHeaders.keySet()).toArray(new String[0]);
+		int words = (mNetworkIDs.length + 63) / 64;
+		mhmNetworksByHeader = new LongHashMap<long[]>();
+
+		for (int n=0;n<mNetworkIDs.length;n++) {
+			Iterator<String> i = hmHeaders.get(mNetworkIDs[n]).iterator();
+			while (i.hasNext()) {
+				String header = i.next();
+				long key = CANFrame.headerKey(header);
+				if (key < 0) {
+					if (DEBUG) msg ("Skipping bad header " + header + " for network " + mNetworkIDs[n]);
+					continue;
+				}
+
+				long [] bits = mhmNetworksByHeader.get(key);
+				if (bits == null) {
+					bits = new long[words];
+					mhmNetworksByHeader.put(key, bits);
+				}
+				bits[n >> 6] |= 1L << (n & 63);
+			}
+		}
+
+		mScores = new int[mNetworkIDs.length];
+
+		// CAN IDs that came in before the index existed. 
+		long [] seen = mhmSeen.keys();
+		for (int i=0;i<seen.length;i++)
+			score(seen[i]);
+		updateLeader();
+
+		mgStats.setStat("indexNetworks", "" + mNetworkIDs.length);
+		mgStats.setStat("indexCANIDs", "" + mhmNetworksByHeader.size());
+		mgStats.setStat("timeToIndexMs", "" + (System.currentTimeMillis() - startTime));
+
+		// This shouldn't happen, but if there are no decoders whatsoever, say so. 
+		if (mNetworkIDs.length == 0) {
+			msg ("ERROR: Zero decoders found. This shouldn't happen (DB Error)");
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * NetworkStats calls this the first time it sees each CAN ID. 
+	 * @param headerKey - see CANFrame.key(). 
+	 */
+	public synchronized void onHeaderSeen (long headerKey) {
+		if (mhmSeen.containsKey(headerKey))
+			return;
+		mhmSeen.put(headerKey, Boolean.TRUE);
+		mgStats.setStat("baseSetSize", "" + mhmSeen.size());
+
+		if (!buildIndex())
+			return;
+
+		if (score(headerKey))
+			updateLeader();
+	}
+
+	/**
+	 * Count one CAN ID towards every network that has it. 
+	 * @return - true if any network has it. 
+	 */
+	private boolean score (long headerKey) {
+		long [] bits = mhmNetworksByHeader.get(headerKey);
+		if (bits == null)
+			return false;
+
+		for (int w=0;w<bits.length;w++) {
+			long word = bits[w];
+			while (word != 0) {
+				int n = (w << 6) + Long.numberOfTrailingZeros(word);
+				mScores[n]++;
+				word &= word - 1;
+			}
+		}
+		return true;
+	}
+
+	private void updateLeader () {
+		int leader = -1;
+		int highest = 0;
+		int runnerUp = 0;
+		for (int n=0;n<mScores.length;n++) {
+			if (mScores[n] > highest) {
+				runnerUp = highest;
+				highest = mScores[n];
+				leader = n;
+			} else if (mScores[n] > runnerUp) {
+				runnerUp = mScores[n];
+			}
+		}
+
+		if (leader != mLeader && leader >= 0) {
+			msg ("New best guess: ID=" + mNetworkIDs[leader] + " matches=" + highest + " runnerUp=" + runnerUp);
+
+			// collect a couple useful stats.
+			mgStats.setStat("bestGuessID", mNetworkIDs[leader]);
+		}
+		if (leader >= 0)
+			mgStats.setStat("bestGuessMatches", "" + highest);
+
+		mLeader = leader;
+		mRunnerUpScore = runnerUp;
+	}
+
+	/**
+	 * The answer as soon as it's clear: the best network has enough CAN IDs in common with the bus, and enough more than the next best. 
+	 * Cheap - no DB. 
+	 * @return - the network ID, or blank if it isn't clear yet. 
+	 */
+	public synchronized String getConfidentNetworkID () {
+		if (mLeader < 0)
+			return "";
+
+		int highest = mScores[mLeader];
+		if (highest >= CONFIDENT_MIN_MATCHES && highest - mRunnerUpScore >= CONFIDENT_MIN_MARGIN) {
+			mgStats.setStat("confidentAfterCANIDs", "" + mhmSeen.size());
+			return mNetworkIDs[mLeader];
+		}
+		return "";
+	}
+
+	/**
+	 * The best guess from the CAN IDs we've been told about (onHeaderSeen), even if it isn't clear. Cheap - no DB. 
+	 * @return - the network with the most CAN IDs in common with the bus, or blank if none has any. 
+	 */
+	public synchronized String getBestGuessNetworkID () {
+		if (mLeader < 0)
+			return "";
+		return mNetworkIDs[mLeader];
+	}
 
 	/**
 	 * Given a base set (set of observed CAN IDs), we will compare against all available DPNs in the DB. We'll then return the DPN Network ID corresponding to the closest match.
+	 * Scored from scratch against the index - doesn't touch what onHeaderSeen has collected. 
 	 * @return - if no base set elements were provided then we will return a default value. Currently that is a blank string.
 	 * If you get a "" from this method, then that means you should try again later when we have more PIDs, or it could mean your network is not known. 
 	 */
 	public synchronized String getBestGuessNetworkID (Set<String> newBaseSet) {
 		final String defaultNetworkID 	= "";
-		final int minTimeBetweenTries	= 10;
-		String bestGuessNetworkID 		= "";
-		int highestMatches 				= 0;
-		
-		Set<String> allNetworkIDs;
-
-		// Collect a stat. 
-		if (newBaseSet != null)
-			mgStats.setStat("baseSetSize", "" + newBaseSet.size());
-		else
-			mgStats.setStat("baseSetSize", "NULL");
-
 		
 		// Sanity check
 		mBaseSet = newBaseSet; // make note of the caller's new base set. 
@@ -71,87 +234,33 @@ public class NetDetect {
 			if (DEBUG) msg ("WARNING: Empty base set. Unable to perform detection.");
 			return defaultNetworkID;
 		}
-		
-		// Get a list of all of the Network IDs for which we have decoders for. 
-		allNetworkIDs = ddb.getAllDPNNetIDs();
-		if (DEBUG) msg ("Got Network IDs list, there are " + allNetworkIDs.size() + " Entries.");
 
-		// This shouldn't happen, but if there are no decoders whatsoever, return the default. 
-		if (allNetworkIDs.size() == 0) {
-			msg ("ERROR: Zero decoders found. This shouldn't happen (DB Error)");
+		if (!buildIndex())
 			return defaultNetworkID;
+
+		int [] scores = new int[mNetworkIDs.length];
+		Iterator<String> i = mBaseSet.iterator();
+		while (i.hasNext()) {
+			long [] bits = mhmNetworksByHeader.get(CANFrame.headerKey(i.next()));
+			if (bits == null)
+				continue;
+			for (int n=0;n<scores.length;n++)
+				if ((bits[n >> 6] & (1L << (n & 63))) != 0)
+					scores[n]++;
 		}
-		
-		// There must be elements present, so process them...
-		
 
-		
-		Iterator<String> iNetID = allNetworkIDs.iterator();
-		Set<String> thisCANIDSet;
-		String thisNetID = "";
-		int numMatches = 0;
-		// Loop through all the network IDs. For each one, get a set of CAN IDs. Then compare that set of CAN IDs with our base set. Get num intersections. 
-		// We're ultimately trying to find the Network ID with the most CAN ID intersections with our base set. 
-		while (iNetID.hasNext()) {
-			thisNetID = iNetID.next();
-			thisCANIDSet = ddb.getDPNCANIDsForNetworkID(thisNetID);
-			numMatches = getNumIntersections(mBaseSet, thisCANIDSet);
-			// Collect a stat!
-			mgStats.setStat("ID" + thisNetID + "Matches", "" + numMatches);
-			
-			// If the current Net ID has more matches than the last highest number of matches then we have a NEW match!
-			if (numMatches > highestMatches) {
-				// hooray! 
-				msg ("New best guess: ID=" + thisNetID + " matches=" + numMatches + " PriorMatches=" + highestMatches);
-
-				// collect a couple useful stats.
-				mgStats.setStat("bestGuessID", thisNetID);
-				mgStats.setStat("bestGuessMatches", "" + numMatches);
-
-				// Now jot down this new match!
-				bestGuessNetworkID = thisNetID;
-				highestMatches = numMatches;
+		String bestGuessNetworkID = defaultNetworkID;
+		int highestMatches = 0;
+		for (int n=0;n<scores.length;n++) {
+			if (scores[n] > highestMatches) {
+				bestGuessNetworkID = mNetworkIDs[n];
+				highestMatches = scores[n];
 			}
 		}
 
 		return bestGuessNetworkID;
 	}
 	
-	/**
-	 * This method counts the number of elements which are present in both sets. It returns that number.
-	 * @return - returns the number of elements which are common to both sets. 
-	 */
-	private int getNumIntersections (Set<String> s1, Set<String> s2) {
-		int numIntersects;
-
-		// Sanity check - weed out nulls. 
-		if (s1 == null || s2 == null) {
-			if (DEBUG) msg ("Intersections is 0 because size1 or size2 is NULL.");
-			return 0;
-		}
-		
-		// Sanity check - weed out empty sets.  
-		if (s1.size() == 0 || s2.size() == 0) {
-			if (DEBUG) msg ("Intersections is 0 because size1 or size2 is 0.");
-			return 0;
-		}
-
-		Iterator<String> i = s1.iterator();
-		numIntersects = 0;
-		String thisKey = "";
-		// Loop through all elements of set 1. For each element, search set 2 for that element. For each match, increment the intersections variable. 
-		if (DEBUG) msg ("Comparing baseset=" + s1.size() + " secondary=" + s2.size());
-		while (i.hasNext()) {
-			thisKey = i.next();
-			// Does this element exist in set#2? If so, it's an intersection! 
-			if (s2.contains(thisKey))
-				numIntersects++;
-		}
-		
-		
-		return numIntersects;
-	}
-
 
 	/**
 	 * Local logging shortcut. 
@@ -165,7 +274,10 @@ public class NetDetect {
 	 * returns a reference to our instance of the general stats class. 
 	 * @return - a reference to our instance of the general stats class.
 	 */
-	public GeneralStats getStats() {
+	public synchronized GeneralStats getStats() {
+		if (mScores != null)
+			for (int n=0;n<mScores.length;n++)
+				mgStats.setStat("ID" + mNetworkIDs[n] + "Matches", "" + mScores[n]);
 				
 		return mgStats;
 	}
@@ -44,22 +44,42 @@ public class NetworkStats {
 
 
 	DashDB dashDB = null;
+
+	// if set, gets told about each new header so it can work out the network as we go. 
+	NetDetect mNetDetect = null;
 	
 	String mMonitorSessionID = "";
 	
 	EasyTime metime = new EasyTime();
 	
-	// Stores PIDs and last known data.
-	HashMap<String, String> mhmPIDData = null;
+	/**
+	 * Everything we know about one header. Kept in binary form; strings only get made when somebody asks. 
+	 */
+	static class HeaderRecord {
+		final long key;
+		// the header as text, for example "10 02 40 60". Made once, when the header first shows up. 
+		final String name;
+		// last known data. 
+		int dlc;
+		long payload;
+		// timestamp when we last saw this header.
+		long lastSeen;
+		// number of times this header has changed data.
+		long changes;
+		// number of times this header has been seen. 
+		int seen;
+
+		HeaderRecord (long key) {
+			this.key = key;
+			this.name = CANFrame.formatHeader(key);
+		}
+	}
 
-	// Keeps track of timestamp when we last saw this PID.
-	HashMap<String, Long> mhmPIDLastSeen = null;
-	
-	// Keeps track of number of times this header has changed data.
-	HashMap<String, Long> mhmPIDChanges = null;
-	
-	// counts number of times each PID/header has been seen. 
-	HashMap<String, Integer> mhmPIDSeenCount = null;
+	// key=header (see CANFrame.key()). 
+	LongHashMap<HeaderRecord> mHeaders = null;
+
+	// for the String entrypoint. 
+	CANFrame mParseScratch = new CANFrame();
 
 	// If not null, then logging is enabled and we should write every packet to file!
 	FileWriter mLogFile = null;
@@ -71,6 +91,19 @@ public class NetworkStats {
 		resetStats();
 	}
 	
+	/**
+	 * Tell the given network detector about every header as it first shows up (including the ones we've already seen). 
+	 */
+	public synchronized void setNetDetect (NetDetect nd) {
+		mNetDetect = nd;
+		if (nd == null)
+			return;
+
+		long [] keys = mHeaders.keys();
+		for (int i=0;i<keys.length;i++)
+			nd.onHeaderSeen(keys[i]);
+	}
+
 	/**
 	 * Create the specified directory (the last part of the path only, not the
 	 * whole tree).
@@ -151,146 +184,91 @@ public class NetworkStats {
 	
 	/**
 	 * Writes (appends) the given packet to the log file, if logging is enabled. 
-	 * @param packet - the exact packaet you want appended. We'll add CRLF. 
+	 * @param f - the packet. We'll add CRLF. 
 	 */
-	private void logOnePacket (String HDR, String data) {
-		appendLog(HDR + " " + data + "\n");
+	private void logOnePacket (CANFrame f) {
+		if (mLogFile == null)
+			return;
+		appendLog(f.headerString() + " " + f.dataString() + "\n");
 	}
 
 	
 	/**
 	 * THIS METHOD IS THE ENTRYPOINT FOR DATA INTO THE NETWORKSTATS CLASS.
 	 * 
-	 * Sets the current data point for a given PID and also updates variables
-	 * for stats. This method is called by the entrypoint method as soon as the
-	 * header and data parts are separated.
+	 * Sets the current data for the frame's header and also updates variables
+	 * for stats. This method is called by the decoder as soon as the frame is parsed.
+	 * Nothing is allocated unless the header is new or a monitor session/log is active. 
 	 * 
-	 * @param pid
-	 *            - PID of the data point
-	 * @param data
-	 *            - Data payload for the given PID.
+	 * @param f
+	 *            - the frame. We don't keep a reference to it. 
 	 */
-	public void setPIDDataByHeader(String header, String newData) {
-		// TODO: Instead of decoding every PID as it comes in, let our parent
-		// define a list of headers that we should watch out for. When we see
-		// data with one of those headers, then we execute the callback.
-
-		// Did the data change?
-		boolean isNew = false;
-		boolean isDataChanged = false;
-
+	public synchronized void setPIDData(CANFrame f) {
 		// pass the packet to the logger, if logging is not on, it ignores the call. 
-		logOnePacket(header,newData);
-		
-		String oldData = "";
-		if (mhmPIDData.containsKey(header)) {
-			oldData = mhmPIDData.get(header);
-		} else {
+		logOnePacket(f);
 
-		}
+		HeaderRecord r = mHeaders.get(f.key());
 
 		// determine if the data is new, if it's changed, etc. Fire off
 		// necessary event handlers.
-		if (mhmPIDData.containsKey(header)) {
-			if (dataComparison("SIMPLE", header, oldData, newData)) {
-				dataChanged(header, oldData, newData);
-				incrementChangedCount(header); // stats.
-				isDataChanged = true;
-			}
-		} else {
-			// The header doesn't exist in the hashmap yet. Call a hook.
-			newHeaderPresent(header, newData);
-			isNew = true;
+		if (r == null) {
+			// The header doesn't exist in the map yet. Call a hook.
+			r = new HeaderRecord(f.key());
+			mHeaders.put(r.key, r);
+			newHeaderPresent(r, f);
+		} else if (r.dlc != f.dlc || r.payload != f.payload) {
+			dataChanged(r, f);
+			r.changes++; // stats.
 		}
 
-//		// Kick off callback, if one is registered.
-//		if (mNewDataHandler != null)
-//			mNewDataHandler.onNewDataArrived("", header, oldData, newData,
-//					isNew, isDataChanged);
-
-		// After we're done getting "old data" by getting it from the hashmap,
-		// it's safe to put the new data into the hashmap.
-		mhmPIDData.put(header, newData);
+		// After we're done with the old data, it's safe to overwrite it. 
+		r.dlc = f.dlc;
+		r.payload = f.payload;
 
-		incrementSeenCount(header); // stats
+		// stats
+		r.lastSeen = metime.getUptimeSeconds();
+		r.seen++;
 
 		mMessagesProcessed++; // stats
 		mMessagesThisInterval++; // stats
-
-	}
-
-	private void incrementSeenCount(String header) {
-
-		// record the timestamp
-		mhmPIDLastSeen.put(header, metime.getUptimeSeconds());
-
-		// Increment the seen-count stats hashmap for this PID.
-		if (mhmPIDSeenCount.containsKey(header)) {
-			// increment existing
-			mhmPIDSeenCount.put(header, mhmPIDSeenCount.get(header) + 1);
-		} else {
-			// add the pid.
-			mhmPIDSeenCount.put(header, 1);
-		}
 	}
 
-	private void incrementChangedCount(String header) {
-		if (mhmPIDChanges.containsKey(header) == true) {
-			// get the old value, increment it by one, put it back in.
-			mhmPIDChanges.put(header, mhmPIDChanges.get(header) + 1);
-		} else {
-			// Key does not yet exist.
-			mhmPIDChanges.put(header, 1L);
-		}
-
-	}
-	
 	/**
-	 * Returns TRUE if dat changed
+	 * Same as setPIDData, for callers that have the header and data as text. 
 	 * 
-	 * @param compareMethod
 	 * @param header
-	 * @param oldData
+	 *            - for example "7E8" or "10 02 40 60".
 	 * @param newData
-	 * @return - TRUE if data changed, using the specified comparison method
-	 *         string.
+	 *            - Data payload for the given header, for example "04 41 0C 09 63".
 	 */
-	private boolean dataComparison(String compareMethod, String header,
-			String oldData, String newData) {
-		if (compareMethod.equals("SIMPLE")) {
-			if (oldData.equals(newData))
-				return false;
-			else
-				return true;
-		} else
-			msg("Unknown data comparison module: " + compareMethod);
-
-		// TODO: Add verious comparison methods here. For example, look at a
-		// single byte in the data. Or "length changed".
-
-		return false;
+	public synchronized void setPIDDataByHeader(String header, String newData) {
+		if (mParseScratch.parse(header + " " + newData))
+			setPIDData(mParseScratch);
 	}
 
 
 	/**
-	 * This gets called when setPIDDataByHeader() registers data for a PID which
+	 * This gets called when setPIDData() registers data for a PID which
 	 * previously didn't exist.
 	 * 
-	 * @param header
-	 * @param data
+	 * @param r - the (new) record for the header. 
+	 * @param f - the frame. 
 	 */
-	private void newHeaderPresent(String header, String data) {
+	private void newHeaderPresent(HeaderRecord r, CANFrame f) {
 		// TODO: Anything we want, related to new data being present.
 
 		mTimeOfLastNewHeader = EasyTime.getUnixTime();
 
+		if (mNetDetect != null)
+			mNetDetect.onHeaderSeen(r.key);
+
 		// If we're within a monitor session (if sessionID is defined) then
 		// write the new header info to the DB.
 		if (mMonitorSessionID.length() > 0)
-			dashDB.addMonitorRecord(mMonitorSessionID, "" + EasyTime.getUnixTime(), header, "", data, 1, 1, 1, 1);
+			dashDB.addMonitorRecord(mMonitorSessionID, "" + EasyTime.getUnixTime(), r.name, "", f.dataString(), 1, 1, 1, 1);
 
-		if (header.startsWith("0F FF E0 ") && header.length() >= 11) {
-			String nodeAddress = header.substring(9, 11);
+		if (r.name.startsWith("0F FF E0 ")) {
+			String nodeAddress = r.name.substring(9, 11);
 			String nodeType = getNodeTypeByAddress(nodeAddress);
 			msg("NEW NODE DETECTED: " + nodeAddress + " TYPE: " + nodeType);
 		}
@@ -310,37 +288,27 @@ public class NetworkStats {
 	}
 
 	/**
-	 * This gets executed any time a setPIDDataByHeader() registers data for a
+	 * This gets executed any time a setPIDData() registers data for a
 	 * PID and that data doesn't match the last known data for the PID.
 	 * 
-	 * @param header
-	 * @param oldData
-	 * @param newData
+	 * @param r - the header's record, still holding the old data. 
+	 * @param f - the frame with the new data. 
 	 */
-	private void dataChanged(String header, String oldData, String newData) {
+	private void dataChanged(HeaderRecord r, CANFrame f) {
 		// TODO: anything we want, related to data changing. For example, search
 		// a list of headers that the parent method wishes us to "decode" and if
 		// this one's in the list, decode it.
 
-		long changes = 0;
-		if (mhmPIDChanges.containsKey(header))
-			changes = mhmPIDChanges.get(header);
-
-		long seenCount = 0;
-		if (mhmPIDSeenCount.containsKey(header))
-			seenCount = mhmPIDSeenCount.get(header);
-
-		// used for calculating whether to log this pid change or not. Also
-		// logged as another piece of information with each change.
-		long changeRate = getPIDChangeRate(header);
-
 		// If we're within a monitor session (if sessionID is defined) then
-		// write the change info to the DB.
-		if (mMonitorSessionID.length() > 0
-				&& changeRate < mPidChangeLogThreshold)
+		// write the change info to the DB. Rate of change is used for deciding whether to log this pid change or not. 
+		if (mMonitorSessionID.length() < 1)
+			return;
+
+		long changeRate = getPIDChangeRate(r);
+		if (changeRate < mPidChangeLogThreshold)
 			dashDB.addMonitorRecord(mMonitorSessionID, ""
-					+ EasyTime.getUnixTime(), header, oldData, newData, changes,
-					changeRate, getPIDTransmitRate(header), seenCount);
+					+ EasyTime.getUnixTime(), r.name, CANFrame.formatBytes(r.payload, r.dlc), f.dataString(), r.changes,
+					changeRate, getPIDTransmitRate(r), r.seen);
 
 	}
 
@@ -354,13 +322,22 @@ public class NetworkStats {
 	 *            dataPoint table of the Dash DB.
 	 * @return - returns number of seconds.
 	 */
-	public long getPIDAge(String PIDWithSigs) {
-		Long age = 0L;
+	public synchronized long getPIDAge(String PIDWithSigs) {
+		HeaderRecord r = getRecord(PIDWithSigs);
+		if (r == null)
+			return 0;
 
-		if (mhmPIDLastSeen.containsKey(PIDWithSigs))
-			age = metime.getUptimeSeconds() - mhmPIDLastSeen.get(PIDWithSigs);
+		return metime.getUptimeSeconds() - r.lastSeen;
+	}
 
-		return age;
+	/**
+	 * @return - the record for the given header text, or null if we haven't seen it. 
+	 */
+	private HeaderRecord getRecord(String header) {
+		long key = CANFrame.headerKey(header);
+		if (key < 0)
+			return null;
+		return mHeaders.get(key);
 	}
 
 	public long getIntervalDuration() {
@@ -399,34 +376,26 @@ public class NetworkStats {
 	 * @return - returns a set<String> wich each entry containing a single
 	 *         string representation of a node's address.
 	 */
-	public Set<String> getNodeAddressList() {
+	public synchronized Set<String> getNodeAddressList() {
 
 		Set<String> s = new HashSet<String>();
 
-		Set<String> headers = mhmPIDData.keySet();
-
-		Iterator<String> i = headers.iterator();
-
-		String thisHeader = "";
-		while (i.hasNext()) {
-			thisHeader = i.next();
-
-			// Throw out headers of insufficient length.
-			if (thisHeader.length() < 11)
-				continue;
+		long [] keys = mHeaders.keys();
+		for (int i=0;i<keys.length;i++) {
+			String thisHeader = mHeaders.get(keys[i]).name;
 
 			// check and see if it's a comm-active broadcast.
 			if (thisHeader.startsWith("0F FF E0 ")) {
 				s.add(thisHeader.substring(9, 11));
 			}
 
-		}// end of while
+		}// end of for
 
 		return s;
 	}// end of getNodeAddressList()
 
 	
-	public String getStatsString() {
+	public synchronized String getStatsString() {
 		long intervalDuration = getIntervalDuration();
 		if (intervalDuration <= 0)
 			intervalDuration = 1;
@@ -440,34 +409,21 @@ public class NetworkStats {
 
 		// Iterate through all the PIDs and append each one and its stats to the
 		// stats string.
-		String key = "";
 		long rate = 0;
-		// we chose the pidseencount hashmap randomly. We could have chosen any
-		// of the hashmaps which contains pid keys.
-		Set<String> s = mhmPIDSeenCount.keySet();
-		Iterator<String> i = s.iterator();
+		long [] keys = mHeaders.keys();
 
 		int pidnum = 0;
-		while (i.hasNext()) {
-			try {
-				key = i.next();
-			} catch (Exception e) {
-				msg("Bang! ");
-				stats = stats + "ERROR: THREAD COLLISION. Try Again.";
-				return stats;
-			}
-			rate = (60 * mhmPIDSeenCount.get(key)) / intervalDuration;
-			stats = stats + "(" + pidnum + ") STATS: PID=[" + key + "] TXRate="
-					+ rate + "/Min" + " Age=" + getPIDAge(key) + "s" + "\n";
-			stats = stats + "    Last DATA: [" + mhmPIDData.get(key) + "]\n";
+		for (int i=0;i<keys.length;i++) {
+			HeaderRecord r = mHeaders.get(keys[i]);
+			rate = (60L * r.seen) / intervalDuration;
+			stats = stats + "(" + pidnum + ") STATS: PID=[" + r.name + "] TXRate="
+					+ rate + "/Min" + " Age=" + (metime.getUptimeSeconds() - r.lastSeen) + "s" + "\n";
+			stats = stats + "    Last DATA: [" + CANFrame.formatBytes(r.payload, r.dlc) + "]\n";
 
 			pidnum++;
 		}
 
-		// if (pidnum != mhmPIDSeenCount.size())
-		msg("STATS: shown=" + pidnum + " seen-map size="
-				+ mhmPIDSeenCount.size() + " data-map size="
-				+ mhmPIDData.size());
+		msg("STATS: shown=" + pidnum + " header count=" + mHeaders.size());
 
 		resetStats();
 		return stats;
@@ -480,22 +436,25 @@ public class NetworkStats {
 	 * @param header
 	 * @return - returns the number of changes per minute.
 	 */
-	public long getPIDChangeRate(String header) {
-		long elapsedTime;
+	public synchronized long getPIDChangeRate(String header) {
+		HeaderRecord r = getRecord(header);
 
 		// never seen it before?
-		if (mhmPIDChanges.containsKey(header) != true)
+		if (r == null)
 			return 0;
 
-		elapsedTime = getIntervalDuration(); // getTimeStamp() - mIntervalStart;
+		return getPIDChangeRate(r);
+	}
+
+	private long getPIDChangeRate(HeaderRecord r) {
+		long elapsedTime = getIntervalDuration(); // getTimeStamp() - mIntervalStart;
 
 		if (elapsedTime == 0)
 			elapsedTime = 1;
 
-		return ((60L * mhmPIDChanges.get(header)) / elapsedTime);
+		return ((60L * r.changes) / elapsedTime);
 	}
 
-
 	
 	/**
 	 * 
@@ -503,18 +462,22 @@ public class NetworkStats {
 	 * @return - returns the rate (in transmits per minute) at which this PID is
 	 *         transmitted, assuming no packet loss.
 	 */
-	public long getPIDTransmitRate(String header) {
-		long elapsedTime;
+	public synchronized long getPIDTransmitRate(String header) {
+		HeaderRecord r = getRecord(header);
 
-		if (mhmPIDSeenCount.containsKey(header) != true)
+		if (r == null)
 			return 0;
 
-		elapsedTime = getIntervalDuration(); // getTimeStamp() - mIntervalStart;
+		return getPIDTransmitRate(r);
+	}
+
+	private long getPIDTransmitRate(HeaderRecord r) {
+		long elapsedTime = getIntervalDuration(); // getTimeStamp() - mIntervalStart;
 
 		if (elapsedTime == 0)
 			elapsedTime = 1;
 
-		return ((60L * mhmPIDSeenCount.get(header)) / elapsedTime);
+		return ((60L * r.seen) / elapsedTime);
 	}
 
 
@@ -523,12 +486,12 @@ public class NetworkStats {
 	 * 
 	 * @return
 	 */
-	public int getPIDCount() {
+	public synchronized int getPIDCount() {
 
-		if (mhmPIDData == null)
+		if (mHeaders == null)
 			return 0;
 
-		return mhmPIDData.size();
+		return mHeaders.size();
 	}
 
 	public long getNumMessagesProcessed() {
@@ -538,12 +501,8 @@ public class NetworkStats {
 	/**
 	 * Reset stats counters and such.
 	 */
-	private void resetStats() {
-		mhmPIDSeenCount = new HashMap<String, Integer>();
-		mhmPIDChanges = new HashMap<String, Long>();
-		mhmPIDData = new HashMap<String, String>();
-		mhmPIDLastSeen = new HashMap<String, Long>();
-		mhmPIDChanges = new HashMap<String, Long>();
+	private synchronized void resetStats() {
+		mHeaders = new LongHashMap<HeaderRecord>();
 		mMessagesProcessed = 0;
 	}
 
@@ -742,15 +701,13 @@ public class NetworkStats {
 	 * @param header
 	 * @return - returns up to 8 hex data bytes as a string.
 	 */
-	public String getDataByHeader(String header) {
-		String data = "";
+	public synchronized String getDataByHeader(String header) {
+		HeaderRecord r = getRecord(header);
 
-		if (mhmPIDData.containsKey(header) == true)
-			data = mhmPIDData.get(header);
-		else
-			data = "";
+		if (r == null)
+			return "";
 
-		return data;
+		return CANFrame.formatBytes(r.payload, r.dlc);
 	}
 
 
@@ -798,7 +755,7 @@ public class NetworkStats {
 //	String mMonitorSessionID = "";
 	
 	
-	public GeneralStats getStats () {
+	public synchronized GeneralStats getStats () {
 		mgStats.setStat("messagesProcessed", "" + mMessagesProcessed);
 		mgStats.setStat("messagesThisInterval", "" + mMessagesThisInterval);
 		mgStats.setStat("monitorSessionID", mMonitorSessionID);
@@ -809,18 +766,20 @@ public class NetworkStats {
 		// NEW: use a Treeset for two reasons: 
 		// 1. we create a new instance of a SET so we avoid concurrent modification of the other set
 		// 2. a treeset is inherently sorted, so we get a nicely sorted list of stats. Well the sorting isn't too too necessary because we sort it in a higher layer anyways...
-		Set<String> s = new TreeSet<String>(mhmPIDData.keySet());
-		Iterator<String> i = s.iterator();
-		
-		String thisKey = "";
+		TreeMap<String,HeaderRecord> sorted = new TreeMap<String,HeaderRecord>();
+		long [] keys = mHeaders.keys();
+		for (int i=0;i<keys.length;i++) {
+			HeaderRecord r = mHeaders.get(keys[i]);
+			sorted.put(r.name, r);
+		}
+
 		String thisStat = "";
 		// Build a stat string for every PID! put it in our general stats store as pid.X where X is the PID header. 
-		while (i.hasNext()) {
-			thisKey = i.next();
-			thisStat = "ChgRate=" + getPIDChangeRate(thisKey);
-			thisStat += " TXRate=" + getPIDTransmitRate(thisKey);
-			thisStat += " D=" + mhmPIDData.get(thisKey);
-			mgStats.setStat("pid." + thisKey, thisStat);
+		for (HeaderRecord r: sorted.values()) {
+			thisStat = "ChgRate=" + getPIDChangeRate(r);
+			thisStat += " TXRate=" + getPIDTransmitRate(r);
+			thisStat += " D=" + CANFrame.formatBytes(r.payload, r.dlc);
+			mgStats.setStat("pid." + r.name, thisStat);
 		}
 		
 		
@@ -870,8 +829,11 @@ public class NetworkStats {
 	 * @return - returns a (newly allocated) Set of CAN IDs which we have observed thus far.
 	 * We allocate a new set for you so that there's no chance of a concurrent read/modification exception while you're accsesing the set.  
 	 */
-	public Set<String> getIDSet () {
-		Set<String> s = new HashSet<String>(mhmPIDData.keySet());
+	public synchronized Set<String> getIDSet () {
+		Set<String> s = new HashSet<String>();
+		long [] keys = mHeaders.keys();
+		for (int i=0;i<keys.length;i++)
+			s.add(mHeaders.get(keys[i]).name);
 		return s;
 	}
 	
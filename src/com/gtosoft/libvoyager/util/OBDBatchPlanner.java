@@ -0,0 +1,201 @@
+/**
+ * (C) 2011 libvoyager is licensed under a Creative Commons Attribution-NonCommercial 3.0 Unported License.
+ * Permissions beyond the scope of this license may be available at http://www.gtosoft.com. You can download,
+ * use, modify the code as long as you do not include it as part of commercial software.
+ */
+
+package com.gtosoft.libvoyager.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+
+import android.util.Log;
+
+
+/**
+ * On CAN networks an ELM327 will take up to six mode 01 PIDs in one request, for example "010C0D05".
+ * The vehicle answers with all of them in one (possibly multi-frame) response: "41 0C 1A F8 0D 00 05 5A".
+ *
+ * This class does the two halves of that:
+ *  - plan() groups DPNs into multi-PID requests using their prepared requests (mode, PID and number of data bytes, see PreparedRequest).
+ *  - split() takes the response to one of those requests, as parsed by OBDPacketParser, and hands each PID's data bytes back to its DPN, per ECU.
+ *
+ * We rely on headers being on (ATH1) and CAN auto formatting (ATCAF1), which is how OBD2Session sets up the device.
+ * @author brad
+ */
+
+public class OBDBatchPlanner {
+
+	final boolean DEBUG = false;
+
+	// ELM327 limit for mode 01 on CAN.
+	public static final int MAX_PIDS_PER_REQUEST = 6;
+
+	/**
+	 * One multi-PID request and the DPNs that ride along in it.
+	 */
+	public static class Batch {
+		// DPNs in the order their PIDs appear in the request.
+		public final ArrayList<String> DPNs = new ArrayList<String>();
+		// per DPN, same order: its prepared request, which has the PID, the number of data bytes that come back for it, and the formula.
+		final PreparedRequest [] mPrepared = new PreparedRequest[MAX_PIDS_PER_REQUEST];
+		// per DPN, same order: what each ECU sent back for its PID. Filled in by split(). Made when first needed.
+		final OBDResponses [] mResponses = new OBDResponses[MAX_PIDS_PER_REQUEST];
+
+		String mRequest = "01";
+
+		void add (PreparedRequest pr) {
+			mPrepared[DPNs.size()] = pr;
+			DPNs.add(pr.DPN);
+			mRequest += (pr.pid < 0x10 ? "0" : "") + Integer.toHexString(pr.pid).toUpperCase();
+		}
+
+		/**
+		 * @return - position of the DPN for the given PID, -1 if there isn't one in this batch.
+		 */
+		int indexOfPID (int pid) {
+			for (int j=0;j<DPNs.size();j++)
+				if (mPrepared[j].pid == pid)
+					return j;
+			return -1;
+		}
+
+		/**
+		 * @return - the prepared request of DPN j of the batch.
+		 */
+		public PreparedRequest getPreparedRequest (int j) {
+			return mPrepared[j];
+		}
+
+		/**
+		 * @return - each ECU's data bytes for DPN j of the batch, as split() left them. Empty if nobody answered it.
+		 */
+		public OBDResponses getResponses (int j) {
+			if (mResponses[j] == null)
+				mResponses[j] = new OBDResponses();
+			return mResponses[j];
+		}
+
+		public int size () {
+			return DPNs.size();
+		}
+
+		/**
+		 * @return - the request to send, for example "010C0D05".
+		 */
+		public String getRequest () {
+			return mRequest;
+		}
+	}
+
+	/**
+	 * @return - true if the given request is a plain mode 01 request that we know how to split out of a combined response.
+	 */
+	public boolean isBatchable (PreparedRequest pr) {
+		if (pr.mode != 0x01 || pr.pid < 0)
+			return false;
+
+		// without the size we can't tell where this PID's data ends and the next one starts.
+		if (pr.numDataBytes < 1)
+			return false;
+
+		// the request has to be exactly mode+pid or we'd be sending something different from what the single request sends.
+		if (pr.request.replace(" ","").length() != 4)
+			return false;
+
+		return true;
+	}
+
+	/**
+	 * Group the given requests into multi-PID requests.
+	 * @param requests - what we want to request.
+	 * @param leftovers - requests that can't be batched get added to this list, the caller should send them one at a time.
+	 * @return - a list of batches, each with between 1 and MAX_PIDS_PER_REQUEST DPNs.
+	 */
+	public ArrayList<Batch> plan (Collection<PreparedRequest> requests, ArrayList<PreparedRequest> leftovers) {
+		ArrayList<Batch> batches = new ArrayList<Batch>();
+		Batch current = null;
+
+		Iterator<PreparedRequest> i = requests.iterator();
+		PreparedRequest pr;
+		while (i.hasNext()) {
+			pr = i.next();
+
+			if (!isBatchable(pr)) {
+				leftovers.add(pr);
+				continue;
+			}
+
+			// two DPNs for the same PID would make the response ambiguous, so the second one goes solo.
+			if (current != null && current.size() < MAX_PIDS_PER_REQUEST && current.indexOfPID(pr.pid) >= 0) {
+				leftovers.add(pr);
+				continue;
+			}
+
+			if (current == null || current.size() >= MAX_PIDS_PER_REQUEST) {
+				current = new Batch();
+				batches.add(current);
+			}
+
+			current.add(pr);
+		}
+
+		return batches;
+	}
+
+	/**
+	 * Split the parsed response to a batch request into per-DPN data bytes, see Batch.getResponses.
+	 * @param b - the batch that was sent.
+	 * @param r - the response, as parsed by OBDPacketParser.parse(0x01, -1, ...), so each ECU's bytes are "0C 1A F8 0D 00 ..." 
+	 *   with the 41 ack already off and multi-frame answers put back together.
+	 * @return - true if every ECU's bytes could be attributed. False if the response didn't make sense (a PID we didn't ask for, 
+	 *   not enough bytes left for a PID, frames missing), in which case the caller should fall back to single requests.
+	 */
+	public boolean split (Batch b, OBDResponses r) {
+		for (int j=0;j<b.size();j++)
+			b.getResponses(j).clear();
+
+		for (int i=0;i<r.size();i++) {
+			if (!r.isComplete(i)) {
+				if (DEBUG) msg ("split(): frames missing from " + r.getHeader(i));
+				return false;
+			}
+
+			int len = r.getLength(i);
+			int pos = 0;
+			while (pos < len) {
+				int pid = r.getByte(i, pos);
+				int j = b.indexOfPID(pid);
+
+				// a PID we didn't ask for. Everything from here on is suspect.
+				if (j < 0) {
+					if (DEBUG) msg ("split(): can't attribute bytes from PID " + pid + " hedr=" + r.getHeader(i) + " data=" + r.getHexBytes(i));
+					return false;
+				}
+
+				// or not enough bytes left for it.
+				int size = b.mPrepared[j].numDataBytes;
+				if (pos + 1 + size > len) {
+					if (DEBUG) msg ("split(): not enough bytes for PID " + pid + " hedr=" + r.getHeader(i) + " data=" + r.getHexBytes(i));
+					return false;
+				}
+
+				// same as a single request: if the DB says only one ECU's answer counts, the others get left out.
+				long fromHeader = b.mPrepared[j].fromHeader;
+				if (fromHeader < 0 || fromHeader == r.getECU(i)) {
+					OBDResponses out = b.getResponses(j);
+					out.append(out.add(r.getECU(i), r.getHeader(i)), r.getPayload(i), pos + 1, size);
+				}
+
+				pos += 1 + size;
+			}
+		}
+
+		return true;
+	}
+
+	private void msg (String message) {
+		Log.d("OBP",message);
+	}
+}
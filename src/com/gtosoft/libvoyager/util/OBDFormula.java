@@ -0,0 +1,402 @@
+/**
+ * (C) 2011 libvoyager is licensed under a Creative Commons Attribution-NonCommercial 3.0 Unported License.
+ * Permissions beyond the scope of this license may be available at http://www.gtosoft.com. You can download,
+ * use, modify the code as long as you do not include it as part of commercial software.
+ */
+
+package com.gtosoft.libvoyager.util;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ * An OBD formula from the obdRequest table ("A*256,X+B,X/4"), parsed once into a tree so decoding a response is just arithmetic on the bytes.
+ *
+ * A formula is one or more steps separated by commas. Each step is an expression: numbers, A-W for the data bytes (A is the first),
+ * X for the result of the step before (0 in the first step), + - * / with the usual precedence, unary minus and parentheses.
+ *
+ * The math is done in doubles, but the result text matches what GTOMath's BigDecimal version always gave: + and - keep the most
+ * decimal places of the two sides, * adds them up, and / always gives 4, rounded away from zero. So "A*100,X/255" with A=0x80 is "50.1961",
+ * same as ever. Unlike the BigDecimal version, negative values in the middle of a formula work.
+ *
+ * Immutable, so one can be shared between threads. See GTOMath.getCompiledFormula for the cache.
+ * @author brad
+ */
+
+public final class OBDFormula {
+
+	// decimal places a division result gets. Has always been 4.
+	static final int DIVIDE_SCALE = 4;
+	// past this many decimal places (or digits), make the text the slow way.
+	static final int MAX_FAST_SCALE = 12;
+
+	static final double [] POW10 = new double[MAX_FAST_SCALE + 1];
+	static {
+		POW10[0] = 1;
+		for (int i=1;i<POW10.length;i++)
+			POW10[i] = POW10[i-1] * 10;
+	}
+
+	/**
+	 * One node of the tree. Works out the value, plus how many decimal places the BigDecimal version would have had.
+	 */
+	static abstract class Node {
+		// which data bytes this node needs: the highest index plus one.
+		abstract int bytesNeeded ();
+
+		/**
+		 * @param out - out[0] gets the value, out[1] the decimal places.
+		 * @return - false if it can't be worked out (divide by zero).
+		 */
+		abstract boolean eval (int [] bytes, double X, int xScale, double [] out);
+	}
+
+	static final class Num extends Node {
+		final double value;
+		final int scale;
+		Num (double value, int scale) { this.value = value; this.scale = scale; }
+		int bytesNeeded () { return 0; }
+		boolean eval (int [] bytes, double X, int xScale, double [] out) {
+			out[0] = value;
+			out[1] = scale;
+			return true;
+		}
+	}
+
+	static final class DataByte extends Node {
+		final int index;
+		DataByte (int index) { this.index = index; }
+		int bytesNeeded () { return index + 1; }
+		boolean eval (int [] bytes, double X, int xScale, double [] out) {
+			out[0] = bytes[index];
+			out[1] = 0;
+			return true;
+		}
+	}
+
+	static final class Prev extends Node {
+		int bytesNeeded () { return 0; }
+		boolean eval (int [] bytes, double X, int xScale, double [] out) {
+			out[0] = X;
+			out[1] = xScale;
+			return true;
+		}
+	}
+
+	static final class Neg extends Node {
+		final Node arg;
+		Neg (Node arg) { this.arg = arg; }
+		int bytesNeeded () { return arg.bytesNeeded(); }
+		boolean eval (int [] bytes, double X, int xScale, double [] out) {
+			if (!arg.eval(bytes, X, xScale, out))
+				return false;
+			out[0] = -out[0];
+			return true;
+		}
+	}
+
+	static final class BinOp extends Node {
+		final char op;
+		final Node left;
+		final Node right;
+		BinOp (char op, Node left, Node right) { this.op = op; this.left = left; this.right = right; }
+
+		int bytesNeeded () { return Math.max(left.bytesNeeded(), right.bytesNeeded()); }
+
+		boolean eval (int [] bytes, double X, int xScale, double [] out) {
+			if (!left.eval(bytes, X, xScale, out))
+				return false;
+			double a = out[0];
+			int aScale = (int) out[1];
+			if (!right.eval(bytes, X, xScale, out))
+				return false;
+			double b = out[0];
+			int bScale = (int) out[1];
+
+			switch (op) {
+			case '+':
+				out[0] = a + b;
+				out[1] = Math.max(aScale, bScale);
+				return true;
+			case '-':
+				out[0] = a - b;
+				out[1] = Math.max(aScale, bScale);
+				return true;
+			case '*':
+				out[0] = a * b;
+				out[1] = aScale + bScale;
+				return true;
+			default:
+				if (b == 0)
+					return false;
+				out[0] = roundAwayFromZero(a / b, DIVIDE_SCALE);
+				out[1] = DIVIDE_SCALE;
+				return true;
+			}
+		}
+	}
+
+	public final String formula;
+	// one tree per step.
+	final Node [] mSteps;
+	// how many data bytes a response needs for this formula.
+	public final int bytesNeeded;
+
+	private OBDFormula (String formula, Node [] steps) {
+		this.formula = formula;
+		this.mSteps = steps;
+
+		int n = 0;
+		for (int i=0;i<steps.length;i++)
+			n = Math.max(n, steps[i].bytesNeeded());
+		this.bytesNeeded = n;
+	}
+
+	/**
+	 * @return - the compiled formula, or null if it doesn't parse.
+	 */
+	public static OBDFormula compile (String formula) {
+		if (formula == null)
+			return null;
+
+		String [] steps = formula.split(",");
+		if (steps.length == 0)
+			return null;
+
+		Node [] nodes = new Node[steps.length];
+		for (int i=0;i<steps.length;i++) {
+			Parser p = new Parser(steps[i]);
+			nodes[i] = p.parse();
+			if (nodes[i] == null)
+				return null;
+		}
+		return new OBDFormula(formula, nodes);
+	}
+
+	/**
+	 * @param bytes - the response data bytes, 0-255 each. A is bytes[0].
+	 * @return - the result as text (see the class comment for the format), or blank if there aren't enough bytes or it divides by zero.
+	 */
+	public String evaluate (int [] bytes) {
+		return evaluate(bytes, (bytes != null) ? bytes.length : 0);
+	}
+
+	/**
+	 * Same as evaluate(int []), for when only the first count bytes of the array are the response (a reused buffer, see OBDResponses.getInts).
+	 */
+	public String evaluate (int [] bytes, int count) {
+		if (bytes == null || count < bytesNeeded)
+			return "";
+
+		double [] out = new double[2];
+		double X = 0;
+		int xScale = 0;
+		for (int i=0;i<mSteps.length;i++) {
+			if (!mSteps[i].eval(bytes, X, xScale, out))
+				return "";
+			X = out[0];
+			xScale = (int) out[1];
+		}
+
+		return format(X, xScale);
+	}
+
+	/**
+	 * Same as evaluate, as a number.
+	 * @return - the result, or NaN if there isn't one.
+	 */
+	public double evaluateValue (int [] bytes) {
+		return evaluateValue(bytes, (bytes != null) ? bytes.length : 0);
+	}
+
+	public double evaluateValue (int [] bytes, int count) {
+		if (bytes == null || count < bytesNeeded)
+			return Double.NaN;
+
+		double [] out = new double[2];
+		double X = 0;
+		int xScale = 0;
+		for (int i=0;i<mSteps.length;i++) {
+			if (!mSteps[i].eval(bytes, X, xScale, out))
+				return Double.NaN;
+			X = out[0];
+			xScale = (int) out[1];
+		}
+		return X;
+	}
+
+	/**
+	 * Round to the given decimal places, away from zero, like BigDecimal's RoundingMode.UP.
+	 * A double that's a hair off a value that has few enough places already (0.1 + 0.2 and such) counts as that value, not as something to round up.
+	 */
+	static double roundAwayFromZero (double v, int scale) {
+		double scaled = v * POW10[scale];
+		double nearest = Math.rint(scaled);
+		if (Math.abs(scaled - nearest) <= 1e-12 * Math.max(1, Math.abs(scaled)))
+			return nearest / POW10[scale];
+
+		if (scaled > 0)
+			return Math.ceil(scaled) / POW10[scale];
+		return Math.floor(scaled) / POW10[scale];
+	}
+
+	/**
+	 * @return - the value with exactly scale decimal places, like BigDecimal.toPlainString.
+	 */
+	static String format (double v, int scale) {
+		if (scale < 0 || scale > MAX_FAST_SCALE || Math.abs(v) * POW10[Math.min(scale, MAX_FAST_SCALE)] >= 1e15)
+			return new BigDecimal(v).setScale(Math.max(scale, 0), RoundingMode.HALF_EVEN).toPlainString();
+
+		long scaled = Math.round(v * POW10[scale]);
+		boolean negative = scaled < 0;
+		String digits = Long.toString(Math.abs(scaled));
+
+		StringBuilder sb = new StringBuilder(digits.length() + 3);
+		if (negative)
+			sb.append('-');
+
+		if (scale == 0)
+			return sb.append(digits).toString();
+
+		// pad so there's at least one digit before the point.
+		for (int i=digits.length();i<=scale;i++)
+			sb.append('0');
+		sb.append(digits);
+		sb.insert(sb.length() - scale, '.');
+		return sb.toString();
+	}
+
+	public String toString () {
+		return formula;
+	}
+
+	/**
+	 * Recursive descent, one step at a time.
+	 *   expr   := term (('+' | '-') term)*
+	 *   term   := unary (('*' | '/') unary)*
+	 *   unary  := '-' unary | '+' unary | atom
+	 *   atom   := number | letter | '(' expr ')'
+	 */
+	static final class Parser {
+		final String s;
+		int pos = 0;
+		boolean failed = false;
+
+		Parser (String step) {
+			s = step.toUpperCase();
+		}
+
+		Node parse () {
+			Node n = expr();
+			skipSpaces();
+			if (failed || n == null || pos != s.length())
+				return null;
+			return n;
+		}
+
+		private void skipSpaces () {
+			while (pos < s.length() && Character.isWhitespace(s.charAt(pos)))
+				pos++;
+		}
+
+		private boolean accept (char c) {
+			skipSpaces();
+			if (pos < s.length() && s.charAt(pos) == c) {
+				pos++;
+				return true;
+			}
+			return false;
+		}
+
+		private Node expr () {
+			Node n = term();
+			while (n != null) {
+				if (accept('+'))
+					n = bin('+', n, term());
+				else if (accept('-'))
+					n = bin('-', n, term());
+				else
+					break;
+			}
+			return n;
+		}
+
+		private Node term () {
+			Node n = unary();
+			while (n != null) {
+				if (accept('*'))
+					n = bin('*', n, unary());
+				else if (accept('/'))
+					n = bin('/', n, unary());
+				else
+					break;
+			}
+			return n;
+		}
+
+		private Node bin (char op, Node left, Node right) {
+			if (right == null) {
+				failed = true;
+				return null;
+			}
+			return new BinOp(op, left, right);
+		}
+
+		private Node unary () {
+			if (accept('-')) {
+				Node n = unary();
+				return (n != null) ? new Neg(n) : null;
+			}
+			if (accept('+'))
+				return unary();
+			return atom();
+		}
+
+		private Node atom () {
+			skipSpaces();
+			if (pos >= s.length())
+				return null;
+
+			char c = s.charAt(pos);
+			if (c == '(') {
+				pos++;
+				Node n = expr();
+				if (n == null || !accept(')')) {
+					failed = true;
+					return null;
+				}
+				return n;
+			}
+
+			if (c == 'X') {
+				pos++;
+				return new Prev();
+			}
+
+			if (c >= 'A' && c <= 'W') {
+				pos++;
+				return new DataByte(c - 'A');
+			}
+
+			if ((c >= '0' && c <= '9') || c == '.') {
+				int start = pos;
+				while (pos < s.length() && ((s.charAt(pos) >= '0' && s.charAt(pos) <= '9') || s.charAt(pos) == '.'))
+					pos++;
+				String num = s.substring(start, pos);
+
+				// decimal places, the way BigDecimal would count them.
+				int dot = num.indexOf('.');
+				int scale = (dot >= 0) ? num.length() - dot - 1 : 0;
+				try {
+					return new Num(Double.parseDouble(num), scale);
+				} catch (NumberFormatException e) {
+					failed = true;
+					return null;
+				}
+			}
+
+			failed = true;
+			return null;
+		}
+	}
+}
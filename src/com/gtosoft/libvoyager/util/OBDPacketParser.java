@@ -27,6 +27,7 @@ import android.util.Log;
  *  And for us to produce a hashmap containing the following representation of that data: 
  *   7E8=43 00
  *   7EA=43 00 
+ *  (or, without the hashmap and the strings, the same thing as bytes in a reused OBDResponses - see parse()). 
  *   
  *  Usage: Instantiate it once for the life of the protocol you're using. make repeated calls for various packets to decode them. 
  */
@@ -34,6 +35,7 @@ import android.util.Log;
 
 public class OBDPacketParser {
 	
+	// only written to genStats when somebody asks for the stats, so parsing a response doesn't make garbage. 
 	int numPacketsProcessed = 0;
 	
 	private final boolean DEBUG = false;
@@ -74,10 +76,6 @@ public class OBDPacketParser {
 	 */
 	public OBDPacketParser (int ELMProtocolNumber) {
 		setProtocolNum(ELMProtocolNumber);
-
-		// set initial values. 
-		genStats.setStat("numPacketsProcessed", "" + numPacketsProcessed);
-
 	}
 	
 
@@ -93,11 +91,19 @@ public class OBDPacketParser {
 		
 	}
 
+	/**
+	 * @return - the ELM protocol number we're parsing for. 
+	 */
+	public int getProtocolNum () {
+		return pa.PROTOCOL;
+	}
+
 	/**
 	 * Returns a reference to our generalstats object so you can make a copy of it or access items from it. Please don't modify it.
 	 * @return - returns our GeneralStats object.
 	 */
 	public GeneralStats getStats () {
+		genStats.setStat("numPacketsProcessed", "" + numPacketsProcessed);
 		return genStats;
 	}
 
@@ -124,31 +130,6 @@ public class OBDPacketParser {
 	}
 	
 
-	/**
-	 * ONLY for CAN packets!!! Do not pass this any other type of packet, it doesn't understand anything NON-CAN. 
-	 * Based on the given packet (only the response part please!!!) we will tell you if it appears to be formatted for 11-bit or 29-bit CAN. 
-	 * @param CANPacket - the packet, without echo-back or anythingthing like that. The first byte is assumed to be the start of the header. 
-	 * @return
-	 */
-	private int getCANHeaderLength (String CANPacket) {
-		if (CANPacket.length() < 3) {
-			return CANPacket.length();
-		}
-		
-		// 7E8 xx yy zz	- results in "3"
-		// 10 02 04 55	- results in "2"
-
-		int posOfFirstSpace = CANPacket.indexOf(" ");
-		
-		if (posOfFirstSpace == 2) {
-			// 29-BIT!
-			return 11;
-		} else {
-			// 11-BIT!
-			return 3;
-		}
-	}
-	
 	/**
 	 * @return - TRUE if the current protocol is a CAN protocol. 
 	 */
@@ -159,301 +140,330 @@ public class OBDPacketParser {
 			return false;
 	}
 
-	private String getACKBytesForRequest (String request) {
-		String retNoSpaces;
-		String retWithSpaces;
-		request = request.replace(" ", "");
-		
-		int firstChar=0;
-		firstChar = Integer.valueOf(request.substring(0,1),16);
-		firstChar += 4;
-
-		
-		// set the first character now that we modified it as necessary. 
-		retNoSpaces = Integer.toHexString(firstChar) + request.substring(1);
+	/**
+	 * Modes whose CAN responses put a "number of items" byte ahead of the data: DTCs (03, 07, 0A), and the mode 09 info types
+	 * other than the supported-PID bitmaps (the VIN, calibration IDs and so on). 
+	 */
+	private boolean hasCountPrefix (int mode, int pid) {
+		if (!pa.hasDTCCountPrefix)
+			return false;
 
-		retWithSpaces = "";
-		
-		// notice we start at 1. 
-		// Loop through all the request characters, inserting a space between each byte (2 characters) 
-		for (int i=0; i<retNoSpaces.length();i++) {
-			retWithSpaces += retNoSpaces.substring(i,i+1);
-			
-			// if it's an odd character and if we're not on the last one (the second part of the check makes sure we don't add a trailing space). 
-			if (i % 2 == 1 && i < retNoSpaces.length() - 1)
-				retWithSpaces = retWithSpaces + " ";
-		}
-		
-		if (request.length() != 2 && request.length() != 4) {
-			msg ("WARNING: Oddball request observed: " + request);
-			retWithSpaces = request;
-		}
-		
-		if (DEBUG) msg ("For request " + request + " The echo-back is " + retWithSpaces + "(len=" + retWithSpaces.length() + ")");
-		
-		return retWithSpaces;
-	}
-	
-	public HashMap<String,String> getData (String request, String response) {
-		numPacketsProcessed++;
-		
-		genStats.setStat("numPacketsProcessed", "" + numPacketsProcessed);
+		if (mode == 0x03 || mode == 0x07 || mode == 0x0A)
+			return true;
 
-		if (isCANProtocol() == true) {
-			return getData_CAN(request, response);
-		} else {
-			return getData_NONCAN(request, response);
-		}
+		if (mode == 0x09 && pid >= 0 && pid % 0x20 != 0)
+			return true;
 
+		return false;
 	}
-	
+
 	/**
+	 * Find each ECU's data bytes in a response, putting multi-frame (ISO-TP) CAN responses back together. 
+	 * Works on the response text as it is, without splitting it up, and fills in the given (reused) result, so a polling loop doesn't make garbage. 
+	 *
+	 * Each line is a header followed by bytes: 
+	 *  11-bit CAN:  "7E8 06 41 0C 1A F8 0D 00"		header, PCI byte, data.
+	 *  29-bit CAN:  "18 DA F1 10 03 41 0D 33"		same, with a 4 byte header. 
+	 *  ISO-TP:      "7E8 10 14 49 02 01 31 47 31" then "7E8 21 ...", "7E8 22 ..."	first frame has a 12-bit length, then consecutive frames. 
+	 *  the others:  "48 6B 10 43 01 00 02 00 03 00 0C"	3 header bytes, data, checksum. An ECU can answer with more than one line. 
+	 * Lines that don't look like that (the echo, "SEARCHING...", "NO DATA") are skipped, and so are answers without the ack bytes 
+	 * (negative responses and such). 
+	 * Lines with spaces off (ATS0, see ELMCompactFormat) are parsed as they are, to the same results: "7E804410C1AF80D00". 
+	 *
+	 * What's left for each ECU is the data after the ack, and after the item count byte where there is one (see hasCountPrefix). 
+	 * The ack is the first two bytes of the request, plus 0x40 on the mode, same as it always was. So on a mode 22 request 
+	 * like "22 11 A6" the data starts with the low byte of the PID, which is what the mode 22 formulas in the DB expect. 
+	 * 
 	 * @param request - request sequence, for example "03" or "01 0C"
-	 * @param response - the exact response received, including all formatting. 
-	 * @return - returns a hashmap containing the full re-assembled data for each different node. Or a blank hashmap on error. 
+	 * @param response - the exact response received, including all formatting, lines separated by "|". 
+	 * @param out - gets cleared, then one entry per ECU that answered. 
+	 * @return - the number of ECUs that answered. 
 	 */
-	public HashMap<String,String> getData_NONCAN (String request, String response) {
-		String thisHeader;
-		String thisData;
-		String ackString = getACKBytesForRequest (request);
-		int dataOffset;
-		int dataCharCount;
-		
-		HashMap<String,String> hmData = new HashMap<String,String>();
-
-		// if response isn't valid, return a blank (non-null) response hashmap. 
-		if (response.length() < 2)
-			return hmData;
-		
-		// Break out the individual packets. 
-		String [] packet = response.split("\\|");
-		
-		// loop through all the individual packets, processing each one. 
-		for (int i=0;i<packet.length;i++) {
-			// Throw out runt packets. 
-			if (packet[i].length() < 2) continue;
-			// If necessary, perform on-the-fly CAN calculations. 
-			if (isCANProtocol()) {
-				pa.numHeaderStringBytes = getCANHeaderLength(packet[i]);
-			}
-			
-			dataOffset = getDataOffset (packet[i],ackString);
-//			if (DEBUG) msg ("Dataoffset=" + dataOffset + " for packet " + packet[i] + " which has ackString=" + ackString);
-			
-			dataCharCount = getDataCharCount (packet[i],dataOffset,pa);
-//			if (DEBUG) msg ("dataCharCount=" + dataCharCount + " for packet " + packet[i]);
-			
-			if (dataOffset < pa.numHeaderStringBytes) {
-				if (DEBUG) msg ("Threw out packet because we dont know where data is. Packet=" + packet[i]);
-				continue;
-			}
-			
-			// check for -1 but let zero-length packets through, so we get an entry for packets with no data. 
-			if (dataCharCount == -1) {
-//				if (DEBUG) msg ("Threw out packet because data length is invalid. Packet=" + packet[i]);
-				continue;
-			}
-			
-			// Attempt to extract the header from the packet. 
-			try { thisHeader 	= packet[i].substring(0,pa.numHeaderStringBytes);
-			} catch (Exception e) {
-				msg ("ERROR while extracting header from packet: " + packet[i] + " E=" + e.getMessage());
-				continue;
-			}
+	public int parse (CharSequence request, CharSequence response, OBDResponses out) {
+		if (request == null) {
+			out.clear();
+			return 0;
+		}
 
-			// Attempt to extract data portion of packet. 
-			try { thisData = packet[i].substring(dataOffset,dataOffset + dataCharCount);
-			} catch (Exception e) {
-				msg ("ERROR while extracting data from packet: " + packet[i] + " E=" + e.getMessage());
-				continue;
-			}
-			
-			if (hmData.containsKey(thisHeader)) {
-				// Append new data to the existing data. 
-				String oldData = hmData.get(thisHeader);
-				hmData.put(thisHeader, oldData + " " + thisData);
-			} else {
-				// create a new entry for this ECU and its initial data. 
-				hmData.put(thisHeader, thisData);
+		// the first two bytes of the request. 
+		int mode = -1;
+		int pid = -1;
+		int digits = 0;
+		int v = 0;
+		for (int i=0;i<request.length() && digits < 4;i++) {
+			char c = request.charAt(i);
+			if (c == ' ') continue;
+			int n = CANFrame.nibble(c);
+			if (n < 0) {
+				mode = -1;
+				break;
 			}
+			v = (v << 4) | n;
+			digits++;
+			if (digits == 2) mode = v;
+			if (digits == 4) pid = v & 0xFF;
+		}
 
-		}// end of for-loop which loops through each packet
-		
-		return hmData;
-		
-	}// end of getData method. 
+		return parse(mode, pid, response, out);
+	}
 
 	/**
-	 * @param request - request sequence, for example "03" or "01 0C"
-	 * @param response - the exact response received, including all formatting. 
-	 * @return - returns a hashmap containing the full re-assembled data for each different node. Or a blank hashmap on error. 
+	 * Same as parse(CharSequence, CharSequence, OBDResponses), with the first two bytes of the request already worked out (see PreparedRequest). 
+	 * @param mode - first byte of the request. 
+	 * @param pid - second byte of the request, -1 if there isn't one. 
 	 */
-	public HashMap<String,String> getData_CAN (String request, String response) {
-		String thisHeader;
-		String thisData;
-		String ackString = getACKBytesForRequest (request);
-		int dataOffset;
-		int dataCharCount;
-		int CANSizeByteOffset;
-		
-		HashMap<String,String> hmData = new HashMap<String,String>();
+	public int parse (int mode, int pid, CharSequence response, OBDResponses out) {
+		out.clear();
+		numPacketsProcessed++;
 
-		// if response isn't valid, return a blank (non-null) response hashmap. 
-		if (response.length() < 2)
-			return hmData;
-		
-		// Break out the individual packets. 
-		String [] packet = response.split("\\|");
-		
-		TreeSet<String> sHeadersSeen = new TreeSet<String>();
-		
-		// NOTICE that we start at "1" here. That skips us past the AT-terminal-echo-back. 
-		// loop through all the individual packets, processing each one. 
-		for (int i=1;i<packet.length;i++) {
-			// Throw out runt packets. 
-			if (packet[i].length() < 2) continue;
-			// perform on-the-fly CAN calculations. 
-			pa.numHeaderStringBytes = getCANHeaderLength(packet[i]);
-
-			// Attempt to extract the header from the packet. 
-			try { thisHeader = packet[i].substring(0,pa.numHeaderStringBytes);
-			} catch (Exception e) {
-				msg ("ERROR while extracting header from packet: " + packet[i] + " E=" + e.getMessage());
+		if (mode < 0 || response == null)
+			return 0;
+
+		// the ack: mode + 0x40, then the PID if there is one. 
+		int ackMode = (mode + 0x40) & 0xFF;
+		int ackLen = (pid >= 0) ? 2 : 1;
+
+		boolean can = isCANProtocol();
+		int len = response.length();
+		int lineStart = 0;
+		for (int i=0;i<=len;i++) {
+			char c = (i < len) ? response.charAt(i) : '|';
+			if (c != '|' && c != '>' && c != '\r' && c != '\n')
 				continue;
+
+			int n = tokenize(response, lineStart, i, out);
+			if (n > 0) {
+				if (can)
+					parseCANLine(response, n, out);
+				else 
+					parseNonCANLine(response, n, ackMode, pid, ackLen, out);
 			}
-			
-			if (!sHeadersSeen.contains(thisHeader)) {
-				sHeadersSeen.add(thisHeader);
-				
-				if (isMultipartFirst(packet[i], pa.numHeaderStringBytes)) {
-					if (DEBUG) msg ("Packet " + packet[i] + " is a multipart first packet. ");
-					// first time seeing this header and it is multipart (so there's one extra byte for seq# in this one packet) 
-					CANSizeByteOffset 	= pa.numHeaderStringBytes + 1+2 +1;
-					dataOffset 			= pa.numHeaderStringBytes + 1+2 +1+2 +1 + ackString.length() + 1;
-//					dataOffset 			+= 1+2 ; // scoot past the "number of items" byte.
-					// for all non-mode-1 packets, chop off the "number of items" byte that CAN networks add. 
-					if (!request.startsWith("01"))
-						dataOffset += 1+2;
-				} else {
-					if (DEBUG) msg ("Packet " + packet[i] + " is a NON-multipart packet. ");
-					// otherwise it's the first time we're seeing a non-multipart packet
-					CANSizeByteOffset 	= pa.numHeaderStringBytes +1;
-					dataOffset 			= pa.numHeaderStringBytes +1 +1+2 +ackString.length() + 1;
-//					dataOffset 			+=  1+2 ; // scoot past the "number of items" byte.
-					// for all non-mode-1 packets, chop off the "number of items" byte that CAN networks add. 
-					if (!request.startsWith("01"))
-						dataOffset += 1+2;
+			lineStart = i + 1;
+		}
+
+		if (can) {
+			// now that each ECU's bytes are back together, check and chop off the ack (and item count). 
+			int prefix = hasCountPrefix(mode, pid) ? 1 : 0;
+			int i = 0;
+			while (i < out.size()) {
+				if (!hasAck(out.mPayload[i], out.mLength[i], ackMode, pid, ackLen)) {
+					if (DEBUG) msg ("parse(): no ack from " + out.getHeader(i) + " data=" + out.getHexBytes(i));
+					out.remove(i);
+					continue;
 				}
-				
-			} else {
-				if (DEBUG) msg ("Packet " + packet[i] + " is a multipart continuation packet. ");
-				// not the first time seeing it, must be multipart. 
-				CANSizeByteOffset 	= pa.numHeaderStringBytes + 1;
-				dataOffset 			= pa.numHeaderStringBytes + 1+2 +1;
+				out.chop(i, ackLen + prefix);
+				i++;
 			}
+		}
 
-			
-			
-			dataCharCount = packet[i].length();
-			dataCharCount -= dataOffset;
-			dataCharCount -= 1;// space after header. 
-			
-			if (dataOffset < pa.numHeaderStringBytes) {
-				if (DEBUG) msg ("Threw out packet because we dont know where data is. Packet=" + packet[i]);
-				continue;
-			}
-			
-			// check for -1 but let zero-length packets through, so we get an entry for packets with no data. 
-			if (dataCharCount == -1) {
-//				if (DEBUG) msg ("Threw out packet because data length is invalid. Packet=" + packet[i]);
-				continue;
-			}
-			
+		return out.size();
+	}
 
-			// Attempt to extract data portion of packet. 
-			try { thisData = packet[i].substring(dataOffset,dataOffset + dataCharCount);
-			} catch (Exception e) {
-				msg ("ERROR while extracting data from packet: " + packet[i] + " E=" + e.getMessage());
+	/**
+	 * Split chars [start,end) of s into hex bytes, into out's scratch space. 
+	 * Every token has to be a two digit hex byte, except the first which may be three digits (an 11-bit header). 
+	 * A line without any spaces in it is compact (ATS0), see tokenizeCompact. 
+	 * @return - the number of tokens, or 0 if the line isn't all hex bytes. 
+	 */
+	private int tokenize (CharSequence s, int start, int end, OBDResponses out) {
+		// ignore surrounding spaces, the ELM sometimes leaves one at the end of a line. 
+		while (start < end && s.charAt(start) == ' ') start++;
+		while (end > start && s.charAt(end-1) == ' ') end--;
+
+		boolean compact = (end - start > 3);
+		for (int i=start;i<end && compact;i++)
+			if (s.charAt(i) == ' ') compact = false;
+		if (compact)
+			return tokenizeCompact(s, start, end, out);
+
+		int n = 0;
+		int i = start;
+		while (i < end) {
+			char c = s.charAt(i);
+			if (c == ' ') {
+				i++;
 				continue;
 			}
-			
-			if (hmData.containsKey(thisHeader)) {
-				// Append new data to the existing data. 
-				String oldData = hmData.get(thisHeader);
-				hmData.put(thisHeader, oldData + " " + thisData);
-			} else {
-				// create a new entry for this ECU and its initial data. 
-				hmData.put(thisHeader, thisData);
+
+			int tokenStart = i;
+			int v = 0;
+			while (i < end && s.charAt(i) != ' ') {
+				int nib = CANFrame.nibble(s.charAt(i));
+				if (nib < 0) return 0;
+				v = (v << 4) | nib;
+				i++;
+				if (i - tokenStart > 3) return 0;
 			}
 
-		}// end of for-loop which loops through each packet
-		
-		return hmData;
-		
-	}// end of getData_CAN method. 
+			int width = i - tokenStart;
+			if (width != 2 && !(width == 3 && n == 0))
+				return 0;
+
+			out.ensureTokens(n + 1);
+			out.mTokens[n] = v;
+			out.mTokenStart[n] = tokenStart;
+			out.mTokenWidth[n] = width;
+			n++;
+		}
+		return n;
+	}
 
-	
 	/**
-	 * Returns true if this is the first packet in a multipart sequence. 
+	 * Same as tokenize, for a line with spaces off ("7E804410C0963", "18DAF11003410D33", "486B10410C1AF8C4"). 
+	 * Same rule as CANFrame.parseCompact: every byte is two digits except an 11-bit header which is three, 
+	 * so an odd length means the first token is a 3 digit header, and an even one is all whole bytes. 
+	 * Token starts and widths point into the line as it is, so the rest of the parse doesn't know the difference. 
 	 */
-	private boolean isMultipartFirst(String packet, int numHeaderStringBytes) {
-		String sizeByte1;
-		
-		// grab the byte immediately following the header byte(s). 
-		try {sizeByte1 = packet.substring(numHeaderStringBytes+1,numHeaderStringBytes+1+2);
-		} catch (Exception e) {
-			msg ("ERROR while trying to get CAN multipart size byte: " + e.getMessage() + " packet=" + packet);
-			return false;
+	private int tokenizeCompact (CharSequence s, int start, int end, OBDResponses out) {
+		int len = end - start;
+		out.ensureTokens((len + 1) / 2);
+
+		int n = 0;
+		int width = ((len & 1) == 1) ? 3 : 2;
+		int i = start;
+		while (i < end) {
+			int v = 0;
+			for (int j=i;j<i+width;j++) {
+				int nib = CANFrame.nibble(s.charAt(j));
+				if (nib < 0) return 0;
+				v = (v << 4) | nib;
+			}
+
+			out.mTokens[n] = v;
+			out.mTokenStart[n] = i;
+			out.mTokenWidth[n] = width;
+			n++;
+			i += width;
+			width = 2;
 		}
+		return n;
+	}
 
-		if (DEBUG) msg ("Basing multipart conclusion on this byte: -->" + sizeByte1 + "<--");
-		
-		// If that byte is "10" then it's a multipart packet. 
-		if (sizeByte1.trim().equals("10")) {
-			return true;
+	/**
+	 * One CAN line: header, PCI byte, data. Single and first frames start an ECU's entry, consecutive frames add to it. 
+	 */
+	private void parseCANLine (CharSequence s, int n, OBDResponses out) {
+		int [] t = out.mTokens;
+
+		int headerTokens;
+		long ecu;
+		if (out.mTokenWidth[0] == 3) {
+			headerTokens = 1;
+			ecu = CANFrame.key(t[0], false);
 		} else {
-			return false;
+			headerTokens = 4;
+			if (n < headerTokens) return;
+			ecu = CANFrame.key((t[0] << 24) | (t[1] << 16) | (t[2] << 8) | t[3], true);
+		}
+
+		// need at least the header and the PCI byte. 
+		if (n < headerTokens + 1)
+			return;
+
+		int headerStart = out.mTokenStart[0];
+		int headerEnd = out.mTokenStart[headerTokens-1] + out.mTokenWidth[headerTokens-1];
+		int pci = t[headerTokens];
+		int i;
+
+		switch (pci >> 4) {
+			case 0:
+				// single frame. low nibble is the length. 
+				i = startEntry(ecu, s, headerStart, headerEnd, out);
+				out.mExpected[i] = pci & 0x0F;
+				out.appendTokens(i, headerTokens + 1, Math.min(out.mExpected[i], n - headerTokens - 1));
+				break;
+			case 1:
+				// first frame. 12-bit length. 
+				if (n < headerTokens + 2) return;
+				i = startEntry(ecu, s, headerStart, headerEnd, out);
+				out.mExpected[i] = ((pci & 0x0F) << 8) | t[headerTokens+1];
+				out.appendTokens(i, headerTokens + 2, Math.min(out.mExpected[i], n - headerTokens - 2));
+				break;
+			case 2:
+				// consecutive frame. Only makes sense if we saw the first frame, and it's the next one in line. 
+				i = out.indexOf(ecu);
+				if (i < 0 || out.isComplete(i))
+					return;
+				if ((pci & 0x0F) != out.mNextSeq[i]) {
+					if (DEBUG) msg ("parseCANLine(): lost a frame from " + out.getHeader(i) + ". Expected seq " + out.mNextSeq[i] + " got " + (pci & 0x0F));
+					// no more for this one, it stays incomplete. 
+					out.mNextSeq[i] = -1;
+					return;
+				}
+				out.mNextSeq[i] = (out.mNextSeq[i] + 1) & 0x0F;
+				out.appendTokens(i, headerTokens + 1, Math.min(out.mExpected[i] - out.mLength[i], n - headerTokens - 1));
+				break;
+			default:
+				// flow control or garbage. 
+				return;
 		}
-		
 	}
 
+	/**
+	 * A single or first frame from an ECU we already have an entry for means it started over. Start it over. 
+	 */
+	private int startEntry (long ecu, CharSequence s, int headerStart, int headerEnd, OBDResponses out) {
+		int i = out.indexOf(ecu);
+		if (i >= 0)
+			out.remove(i);
+		return out.add(ecu, s, headerStart, headerEnd);
+	}
 
 	/**
-	 * @param packet
-	 * @param dataOffset
-	 * @param p
-	 * @return - returns the number of string characters occupied by the data portion of the packet. 
+	 * One non-CAN line: 3 header bytes, the ack, data, and a checksum. Lines from the same ECU get appended. 
 	 */
-	private int getDataCharCount (String packet, int dataOffset, PacketAttributes p) {
-		int charCount;
-		
-//		if (DEBUG) msg ("dataCharCount packet=" + packet);
-		charCount = packet.length();	// start with the full size of the packet. We'll subtract parts of the packet as we account for them. 
-//		if (DEBUG) msg ("dataCharCount (" + charCount + ") starting with length");
-		charCount -= dataOffset;		// the header and ack bytes
-//		if (DEBUG) msg ("dataCharCount (" + charCount + ") subtracted dataoffset (" + dataOffset + ").");
-		charCount -= 1;					// the space after the ack
-//		if (DEBUG) msg ("dataCharCount (" + charCount + ") subtracted one haracter for the space.");
-		
-		if (p.hasChecksum == true)  {
-			charCount -= 3;				// subtract the bytes occupied by the checksum and its preceeding space.  
-//			if (DEBUG) msg ("dataCharCount (" + charCount + ") subtracted three characters for checksum.");
-		}
+	private void parseNonCANLine (CharSequence s, int n, int ackMode, int pid, int ackLen, OBDResponses out) {
+		int [] t = out.mTokens;
+
+		// header, ack, checksum. 
+		if (out.mTokenWidth[0] != 2 || n < 3 + ackLen + 1)
+			return;
+
+		if (t[3] != ackMode || (ackLen > 1 && t[4] != pid))
+			return;
 
-		return charCount;
+		long ecu = (t[0] << 16) | (t[1] << 8) | t[2];
+		int i = out.indexOf(ecu);
+		if (i < 0)
+			i = out.add(ecu, s, out.mTokenStart[0], out.mTokenStart[2] + 2);
+
+		out.appendTokens(i, 3 + ackLen, n - 3 - ackLen - 1);
 	}
-	
+
+	private static boolean hasAck (byte [] data, int len, int ackMode, int pid, int ackLen) {
+		if (len < ackLen || (data[0] & 0xFF) != ackMode)
+			return false;
+		return ackLen < 2 || (data[1] & 0xFF) == pid;
+	}
+
 	/**
-	 * @param packet - the packet in its entirety, starting with header. 
-	 * @param ackString - the acknowledgement string that we shoul dexpect within the packet. 
-	 * @return - the string offset index where the first data byte starts within the given packet. 
+	 * @param request - request sequence, for example "03" or "01 0C"
+	 * @param response - the exact response received, including all formatting. 
+	 * @return - returns a hashmap containing the full re-assembled data for each different node, as hex bytes ("01 00 02 00"). Or a blank hashmap on error. 
 	 */
-	private int getDataOffset (String packet, String ackString) {
-		int ret = -1;
-		
-		ret = packet.indexOf(ackString) + ackString.length() + 1;
-		
-		return ret;
+	public HashMap<String,String> getData (String request, String response) {
+		OBDResponses r = new OBDResponses();
+		parse(request, response, r);
+
+		HashMap<String,String> hmData = new HashMap<String,String>();
+		for (int i=0;i<r.size();i++)
+			hmData.put(r.getHeader(i), r.getHexBytes(i));
+
+		return hmData;
+	}
+
+	/**
+	 * Same as getData. Kept for existing callers, parse works out the protocol differences itself. 
+	 */
+	public HashMap<String,String> getData_NONCAN (String request, String response) {
+		return getData(request, response);
+	}
+
+	/**
+	 * Same as getData. Kept for existing callers, parse works out the protocol differences itself. 
+	 */
+	public HashMap<String,String> getData_CAN (String request, String response) {
+		return getData(request, response);
 	}
 
 	private void msg (String m) {
@@ -0,0 +1,316 @@
+/**
+ * (C) 2011 libvoyager is licensed under a Creative Commons Attribution-NonCommercial 3.0 Unported License.
+ * Permissions beyond the scope of this license may be available at http://www.gtosoft.com. You can download,
+ * use, modify the code as long as you do not include it as part of commercial software.
+ */
+
+package com.gtosoft.libvoyager.util;
+
+/**
+ * The responses to one OBD request, one entry per ECU that answered: the ECU (header) and its data bytes, with the header,
+ * PCI bytes, ack bytes, checksum etc. already taken off. Filled in by OBDPacketParser.parse.
+ *
+ * Meant to be reused - clear() keeps all the buffers, and the header text of each entry is kept too, so polling the same
+ * request over and over (same ECUs answering in the same order) allocates nothing once the buffers are big enough.
+ *
+ * Not thread safe. One per thread - see OBD2Session.getResponseBuffer.
+ * @author brad
+ */
+
+public class OBDResponses {
+
+	private static final char [] HEX = "0123456789ABCDEF".toCharArray();
+
+	// number of entries in use.
+	int mCount = 0;
+
+	// per entry: the ECU (a CANFrame key for CAN, or the 3 header bytes for the others), its header as the ELM shows it,
+	// data bytes, how many of them are valid, and how many the ECU said it would send (ISO-TP), -1 if it didn't say.
+	long [] mECU 		= new long[4];
+	String [] mHeader 	= new String[4];
+	byte [][] mPayload	= new byte[4][];
+	int [] mLength 		= new int[4];
+	int [] mExpected 	= new int[4];
+	// next ISO-TP consecutive frame sequence number we expect.
+	int [] mNextSeq 	= new int[4];
+	// decoded value, if somebody decoded it. See setDecoded.
+	String [] mDecoded 	= new String[4];
+
+	// scratch space for the parser: the hex bytes of the line being parsed, where each one starts and how many characters wide it is.
+	int [] mTokens 		= new int[16];
+	int [] mTokenStart 	= new int[16];
+	int [] mTokenWidth 	= new int[16];
+
+	// scratch for getInts.
+	int [] mInts 		= new int[64];
+
+	public OBDResponses () {
+		for (int i=0;i<mPayload.length;i++) {
+			mPayload[i] = new byte[64];
+			mECU[i] = -1;
+		}
+	}
+
+	/**
+	 * Forget all entries. Keeps the buffers.
+	 */
+	public void clear () {
+		for (int i=0;i<mCount;i++)
+			mDecoded[i] = null;
+		mCount = 0;
+	}
+
+	/**
+	 * @return - number of ECUs that answered.
+	 */
+	public int size () {
+		return mCount;
+	}
+
+	/**
+	 * @return - the ECU of entry i: CANFrame.key of the header on CAN, the 3 header bytes (as one number) on the others.
+	 */
+	public long getECU (int i) {
+		return mECU[i];
+	}
+
+	/**
+	 * @return - the header of entry i the way the ELM shows it, for example "7E8", "18 DA F1 10" or "48 6B 10".
+	 */
+	public String getHeader (int i) {
+		return mHeader[i];
+	}
+
+	/**
+	 * @return - the data bytes of entry i. The array is reused and may be longer than the data, see getLength.
+	 */
+	public byte [] getPayload (int i) {
+		return mPayload[i];
+	}
+
+	/**
+	 * @return - the number of data bytes in entry i.
+	 */
+	public int getLength (int i) {
+		return mLength[i];
+	}
+
+	/**
+	 * @return - data byte pos of entry i, 0-255.
+	 */
+	public int getByte (int i, int pos) {
+		return mPayload[i][pos] & 0xFF;
+	}
+
+	/**
+	 * @return - false if the ECU said it would send more than we got (frames lost, or the ELM gave up on it).
+	 */
+	public boolean isComplete (int i) {
+		return mExpected[i] < 0 || mLength[i] >= mExpected[i];
+	}
+
+	/**
+	 * @return - the entry for the given ECU, -1 if it didn't answer.
+	 */
+	public int indexOf (long ecu) {
+		for (int i=0;i<mCount;i++)
+			if (mECU[i] == ecu)
+				return i;
+		return -1;
+	}
+
+	/**
+	 * @return - the data bytes of entry i as numbers 0-255, the way OBDFormula wants them. Only the first getLength(i) are valid,
+	 * and the array gets reused by the next call.
+	 */
+	public int [] getInts (int i) {
+		int len = mLength[i];
+		if (mInts.length < len)
+			mInts = new int[Math.max(len, mInts.length * 2)];
+
+		byte [] p = mPayload[i];
+		for (int j=0;j<len;j++)
+			mInts[j] = p[j] & 0xFF;
+		return mInts;
+	}
+
+	/**
+	 * @return - the data bytes of entry i as text, for example "1A F8". Allocates, so it's for the edges (logging, the DB, the old String APIs).
+	 */
+	public String getHexBytes (int i) {
+		int len = mLength[i];
+		StringBuilder sb = new StringBuilder(len * 3);
+		byte [] p = mPayload[i];
+		for (int j=0;j<len;j++) {
+			if (j > 0) sb.append(' ');
+			sb.append(HEX[(p[j] >> 4) & 0xF]).append(HEX[p[j] & 0xF]);
+		}
+		return sb.toString();
+	}
+
+	public String getDecoded (int i) {
+		return mDecoded[i];
+	}
+
+	public void setDecoded (int i, String decoded) {
+		mDecoded[i] = decoded;
+	}
+
+	/**
+	 * Start an entry for the given ECU. Meant for entries that aren't parsed from data, like AT command responses.
+	 * @return - the index of the new entry.
+	 */
+	public int add (long ecu, String header) {
+		int i = add(ecu, null, 0, 0);
+		mHeader[i] = header;
+		return i;
+	}
+
+	/**
+	 * Start a new, empty entry for the given ECU. If the entry in this position was for the same ECU last time around
+	 * we keep its header text, otherwise the header is taken from chars [start,end) of src. A compact header ("18DAF110") gets its
+	 * spaces back, so the header text is the same whichever way the ELM is set.
+	 * @return - the index of the new entry.
+	 */
+	int add (long ecu, CharSequence src, int start, int end) {
+		if (mCount == mECU.length)
+			grow();
+
+		int i = mCount++;
+		if (mECU[i] != ecu || mHeader[i] == null) {
+			mECU[i] = ecu;
+			mHeader[i] = (src != null) ? ELMCompactFormat.expandLine(src.subSequence(start, end).toString()) : null;
+		}
+		mLength[i] = 0;
+		mExpected[i] = -1;
+		mNextSeq[i] = 1;
+		mDecoded[i] = null;
+		return i;
+	}
+
+	/**
+	 * Append data bytes to entry i.
+	 * @param count - how many of the parser's tokens, starting at token first.
+	 */
+	void appendTokens (int i, int first, int count) {
+		ensurePayload(i, mLength[i] + count);
+		byte [] p = mPayload[i];
+		int len = mLength[i];
+		for (int j=0;j<count;j++)
+			p[len++] = (byte) mTokens[first + j];
+		mLength[i] = len;
+	}
+
+	/**
+	 * Append len bytes of src, starting at off, to entry i.
+	 */
+	void append (int i, byte [] src, int off, int len) {
+		ensurePayload(i, mLength[i] + len);
+		System.arraycopy(src, off, mPayload[i], mLength[i], len);
+		mLength[i] += len;
+	}
+
+	/**
+	 * Drop the first count data bytes of entry i.
+	 */
+	void chop (int i, int count) {
+		int len = mLength[i];
+		if (count >= len) {
+			mLength[i] = 0;
+		} else {
+			System.arraycopy(mPayload[i], count, mPayload[i], 0, len - count);
+			mLength[i] = len - count;
+		}
+		if (mExpected[i] >= 0)
+			mExpected[i] = Math.max(0, mExpected[i] - count);
+	}
+
+	/**
+	 * Remove entry i. The later ones move up, and entry i's buffers go to the end to be used again.
+	 */
+	public void remove (int i) {
+		long ecu 		= mECU[i];
+		String header 	= mHeader[i];
+		byte [] payload = mPayload[i];
+
+		int n = mCount - 1 - i;
+		if (n > 0) {
+			System.arraycopy(mECU, i+1, mECU, i, n);
+			System.arraycopy(mHeader, i+1, mHeader, i, n);
+			System.arraycopy(mPayload, i+1, mPayload, i, n);
+			System.arraycopy(mLength, i+1, mLength, i, n);
+			System.arraycopy(mExpected, i+1, mExpected, i, n);
+			System.arraycopy(mNextSeq, i+1, mNextSeq, i, n);
+			System.arraycopy(mDecoded, i+1, mDecoded, i, n);
+		}
+
+		mCount--;
+		mECU[mCount] 		= ecu;
+		mHeader[mCount] 	= header;
+		mPayload[mCount] 	= payload;
+		mDecoded[mCount] 	= null;
+	}
+
+	private void ensurePayload (int i, int len) {
+		if (mPayload[i].length >= len)
+			return;
+
+		byte [] p = new byte[Math.max(len, mPayload[i].length * 2)];
+		System.arraycopy(mPayload[i], 0, p, 0, mLength[i]);
+		mPayload[i] = p;
+	}
+
+	/**
+	 * Make room for the parser to hold at least n tokens.
+	 */
+	void ensureTokens (int n) {
+		if (mTokens.length >= n)
+			return;
+
+		int size = Math.max(n, mTokens.length * 2);
+		mTokens 	= new int[size];
+		mTokenStart = new int[size];
+		mTokenWidth = new int[size];
+	}
+
+	private void grow () {
+		int size = mECU.length * 2;
+
+		long [] ecu = new long[size];
+		System.arraycopy(mECU, 0, ecu, 0, mECU.length);
+		for (int i=mECU.length;i<size;i++)
+			ecu[i] = -1;
+
+		String [] header = new String[size];
+		System.arraycopy(mHeader, 0, header, 0, mHeader.length);
+
+		byte [][] payload = new byte[size][];
+		System.arraycopy(mPayload, 0, payload, 0, mPayload.length);
+		for (int i=mPayload.length;i<size;i++)
+			payload[i] = new byte[64];
+
+		int [] length = new int[size];
+		System.arraycopy(mLength, 0, length, 0, mLength.length);
+		int [] expected = new int[size];
+		System.arraycopy(mExpected, 0, expected, 0, mExpected.length);
+		int [] nextSeq = new int[size];
+		System.arraycopy(mNextSeq, 0, nextSeq, 0, mNextSeq.length);
+		String [] decoded = new String[size];
+		System.arraycopy(mDecoded, 0, decoded, 0, mDecoded.length);
+
+		mECU = ecu;
+		mHeader = header;
+		mPayload = payload;
+		mLength = length;
+		mExpected = expected;
+		mNextSeq = nextSeq;
+		mDecoded = decoded;
+	}
+
+	public String toString () {
+		StringBuilder sb = new StringBuilder();
+		for (int i=0;i<mCount;i++)
+			sb.append('[').append(mHeader[i]).append("]=").append(getHexBytes(i)).append(' ');
+		return sb.toString();
+	}
+}
@@ -14,6 +14,7 @@ import java.util.Iterator;
 import java.util.Set;
 import java.util.TreeSet;
 
+import com.gtosoft.libvoyager.android.ELMCommandQueue;
 import com.gtosoft.libvoyager.db.DashDB;
 import com.gtosoft.libvoyager.session.OBD2Session;
 
@@ -46,18 +47,32 @@ public class PIDDecoder {
 
 //	Context mCTX = null;
 
-	String mNetwork = "";
+	// read by the decode pipeline threads too.
+	volatile String mNetwork = "";
 
-	// Keeps track of datapoints and their current value.
-	HashMap<String, String> mhmDataByName = null;
+	// Keeps track of datapoints and their current value, by DPN index (DashDB.getDPNIndex). 
+	volatile LatestValueTable mLatest = null;
 	// Stores the number of times each PID has been seen IN THIS INTERVAL (gets reset each stats interval)
 
 	// For cacheing Datapoint data so we don't re-decode the same datapoint if
-	// the source data hasn't changed.
-	HashMap<String, String> mhmDPRawData = null;
+	// the source data hasn't changed, and deciding which values get sent (see EmissionPolicy). 
+	// By default we send changes, plus a heartbeat once a second for values that sit still. 
+	DPEmitter.Policies mPolicies = new DPEmitter.Policies(EmissionPolicy.onChange().withHeartbeat(1000));
+	DPEmitter mEmitter = new DPEmitter(mPolicies);
+
+	// Optional multi-threaded decoding (see startDecodePipeline). Null when frames get decoded on the reader thread. 
+	DecodePipeline mPipeline = null;
+	DPEventQueue mEventQueue = null;
+	// one per shard, so the shard threads never fight over them. 
+	DPEmitter [] mShardEmitters = null;
+	final int PIPELINE_RING_SIZE = 1024;
+	final int PIPELINE_EVENT_QUEUE_SIZE = 4096;
 
 	DashDB ddb = null;
 
+	// datapoints worked out from other datapoints (VIN, SPEED, ...). 
+	DerivedSignals mDerived = null;
+
 //	Thread mtStatsThread = null;
 //	String mStatsString = "";
 	// re-calculate stats every X seconds as specified by the following
@@ -93,11 +108,20 @@ public class PIDDecoder {
 	 * Reset things like the PID hashmap for a new use. also resets stats.
 	 */
 	public void reset() {
-		mhmDataByName = new HashMap<String, String>();
-		mhmDPRawData = new HashMap<String, String>();
+		mLatest = new LatestValueTable();
+		mEmitter.reset();
+		if (mShardEmitters != null)
+			for (int i=0;i<mShardEmitters.length;i++)
+				mShardEmitters[i].reset();
 
 		if (DEBUG) msg ("instantiating a new networkStats object.");
 		nStats = new NetworkStats(ddb);
+
+		// new bus, so the detector starts over too. nStats feeds it headers as they show up. 
+		if (mNetDetect != null) {
+			mNetDetect.reset();
+			nStats.setNetDetect(mNetDetect);
+		}
 	}
 
 
@@ -112,6 +136,8 @@ public class PIDDecoder {
 		nStats = new NetworkStats(ddb);
 		// Instantiate the class which detects the network in passive situations. 
 		mNetDetect = new NetDetect(ddb);
+		mDerived = new DerivedSignals(ddb);
+		defineBuiltinDerivedSignals();
 		reset();
 		if (DEBUG) msg ("Dakota instantiated.");
 	}
@@ -144,144 +170,116 @@ public class PIDDecoder {
 	 * @return - returns true unless there was a problem processing the message.
 	 */
 	public boolean decodeOneMessage(String m) {
-		String HDR;
-		String data;
-
-		if (m.length() < 6) {
-			// Length too short. Invalid message. Throw it out.
+		CANFrame f = new CANFrame();
+		if (!f.parse(m))
 			return false;
-		}
 
-		int canBits = 0;
-		// message too short.
-		if (m.length() < 3)
-			return false;
+		// new Datapoint decoding logic:
+		DPFrameArrived(f);
+		return true;
+	}// end of DecodeOneMessage method, which is called for every raw packet
+		// received in passive mode.
 
-		m = m.trim();
-		int firstSpace = m.indexOf(" ");
-		switch (firstSpace) {
-		case 3:
-			canBits = 11;
-			break;
-		case 2:
-			canBits = 29;
-			break;
-		default:
-			// could not determine number of CAN bits based on the message.
+	/**
+	 * Same as decodeOneMessage but for a message sniffed with spaces off (ATS0), for example "7E804410C0963". 
+	 */
+	public boolean decodeOneCompactMessage(String m) {
+		CANFrame f = new CANFrame();
+		if (!f.parseCompact(m))
 			return false;
-		}
-
-		// depending on the CAN header type, pull apart the header and data and
-		// store it in a hashmap.
-		if (canBits == 11) {
-			if (m.length() < 6) {
-				return false;
-			}
 
-			// 7DF 02 01 00 00 00 00 00
-			// PPP DD DD DD DD DD DD DD
-			// PID Data
-			HDR = m.substring(0, 3);
-			data = m.substring(4, m.length());
-
-			// new Datapoint decoding logic:
-			DPRawPacketArrived(HDR, data);
-
-			// save the PID as the key and data as the value.
-//			setPIDDataByHeader(HDR, data);
-			return true;
-		}
+		DPFrameArrived(f);
+		return true;
+	}
 
-		if (canBits == 29) {
-			if (m.length() < 14) {
-				return false;
-			}
+	// every frame sniffed out of a byte buffer gets parsed into this one. Only the sniff thread uses it.
+	CANFrame mSniffFrame = new CANFrame();
 
-			// 10 02 40 60 10 10 10 10
-			// HH HH HH HH DD DD DD DD
-			// HEADER/PID Data
-			HDR = m.substring(0, 11);
-			data = m.substring(12, m.length());
+	/**
+	 * Same as decodeOneMessage, but takes the message straight out of a byte buffer (for example an ELMFramer.Frame)
+	 * instead of a String. Nothing gets allocated per frame.
+	 * @param b - buffer holding the message, for example "7E8 04 41 0C 09 63".
+	 * @param offset - where the message starts in b.
+	 * @param length - message length.
+	 */
+	public boolean decodeOneMessage(byte [] b, int offset, int length) {
+		if (!mSniffFrame.parse(b, offset, length))
+			return false;
 
-			// new Datapoint decoding logic:
-			DPRawPacketArrived(HDR, data);
+		DPFrameArrived(mSniffFrame);
+		return true;
+	}
 
-			// save the PID as the key and data as the value.
-//			setPIDDataByHeader(HDR, data);
-			return true;
-		}
+	/**
+	 * Same as decodeOneCompactMessage, straight out of a byte buffer.
+	 * @param b - buffer holding the message, for example "7E804410C0963".
+	 */
+	public boolean decodeOneCompactMessage(byte [] b, int offset, int length) {
+		if (!mSniffFrame.parseCompact(b, offset, length))
+			return false;
 
-		msg("processOneMessage(): This Shouldn't happen: Message wasn't processed, but we don't know why. m="
-				+ m);
-		return false;
-	}// end of DecodeOneMessage method, which is called for every raw packet
-		// received in passive mode.
+		DPFrameArrived(mSniffFrame);
+		return true;
+	}
 
 
 	private void reSendDataArrivedEvent (String DPN) {
 		
 		// Extract existing value
-		String data = getCachedDataByName(DPN);
-		int iDecodedData = 0;
-		try {iDecodedData = Integer.valueOf(data);
-		} catch (NumberFormatException e) { }
+		DPValue v = getCachedValueByName(DPN);
+		if (v == null)
+			return;
 		
 		// re-send the data through the normal channels, as if we had just decoded it. 
-		setPIDDataByName(DPN, data, iDecodedData);
+		fire(v);
+	}
+
+	/**
+	 * Send a decoded value on to the cache and listeners - straight away, or through the event queue if the decode pipeline is running. 
+	 */
+	private void fire (DPValue v) {
+		DPEventQueue q = mEventQueue;
+		if (q != null)
+			q.offer(v);
+		else
+			setPIDData(v);
 	}
 
 
+	/**
+	 * For values that are text to begin with, OBD responses and such. 
+	 */
 	private void setPIDDataByName(String DPN, String decodedData, int iDecodedData) {
-		boolean isNew = false;
+		setPIDData(new DPValue(DPN, decodedData, iDecodedData, System.currentTimeMillis()));
+	}
 
-		// capture whether this is a new datapoint or not.
-		if (!mhmDataByName.containsKey(DPN)) {
-			isNew = true;
-			// Log the current timestamp so we can later calculate how long it's been since the last new PID arrived. 
-		}
+	private void setPIDData(DPValue v) {
+		LatestValueTable latest = mLatest;
+		int index = ddb.getDPNIndex(v.DPN);
 
+		// capture whether this is a new datapoint or not.
+		boolean isNew = (latest.get(index) == null);
 		
-		// Store it in the hashmap.
-		atomicPIDDataByName(true, DPN, decodedData);
+		// Store it in the table.
+		latest.put(index, v);
 
 		// Execute new local event hook.
-		DPDataArrived(DPN, decodedData, iDecodedData, isNew);
+		DPDataArrived(v, index, isNew);
 
 		if (mNewDataHandler != null)
-			mNewDataHandler.onNewDataArrived(DPN, "", "", decodedData, false,
-					true);
+			mNewDataHandler.onNewDataValueArrived(v);
 
-		// event handler.
+		// event handler. Handlers that only know about text get it through EventCallback's adapter. 
 		if (mECBOnDPArrived != null)
-			mECBOnDPArrived.onDPArrived(DPN, decodedData, iDecodedData);
+			mECBOnDPArrived.onDPValueArrived(v);
 
 	}
 
 	/**
-	 * Atomically handle the reading and writing of the hashmap. We make it
-	 * synchronized to prevent collisions. USE THIS METHOD any time you want to
-	 * read or write from the mhmDataByName hashmap. It will keep you out of
-	 * trouble.
-	 * 
-	 * @param trueIfWritingFalseToRead
-	 * @param DPN
-	 * @param decodedData
-	 * @return
+	 * @return - the latest value for the datapoint, or null if we don't have one. Doesn't block. 
 	 */
-	private synchronized String atomicPIDDataByName(
-			boolean trueIfWritingFalseToRead, String DPN, String decodedData) {
-		if (trueIfWritingFalseToRead == true)
-			mhmDataByName.put(DPN, decodedData);
-		else {
-			String ret = mhmDataByName.get(DPN);
-			// prevent returning a null AND perform just one get^^^.
-			if (ret != null)
-				return ret;
-			else
-				return "";
-		}
-
-		return "";
+	private DPValue getLatest(String DPN) {
+		return mLatest.get(ddb.findDPNIndex(DPN));
 	}
 
 
@@ -320,6 +318,8 @@ public class PIDDecoder {
 		mThreadsOn = false;
 		mInjectorThreadOn = false;
 
+		stopDecodePipeline();
+
 //		// shutdown the stats thread.
 //		if (mtStatsThread != null)
 //			mtStatsThread.interrupt();
@@ -350,8 +350,14 @@ public class PIDDecoder {
 	 * @return
 	 */
 	public String getDataViaOBD(String dataPointName) {
-		String decodedResponses = "";
+		return getDataViaOBD(dataPointName, ELMCommandQueue.PRIORITY_NORMAL);
+	}
 
+	/**
+	 * Same as getDataViaOBD(String) but the request is queued at the given priority. 
+	 * For example, routine scans use ELMCommandQueue.PRIORITY_BACKGROUND so that one-off requests get ahead of them. 
+	 */
+	public String getDataViaOBD(String dataPointName, int priority) {
 		if (mOBD == null) {
 			msg("getDataViaOBD(): WARNING: request for datapoint " + dataPointName + " but OBD is not instantiated/ is null.");
 			return "";
@@ -362,37 +368,94 @@ public class PIDDecoder {
 			return "";
 		}
 
-		// Send the OBD2 request by name and get the [decoded?] responses and parse them!
-		HashMap<String, String> responses = mOBD.sendOBDRequestByName(dataPointName);
+		PreparedRequest pr = mOBD.getPreparedRequest(dataPointName);
+		if (pr == null) {
+			msg("getDataViaOBD(): WARNING: no obdRequest for datapoint " + dataPointName);
+			return "";
+		}
 
-		Set<String> s = responses.keySet();
-		Iterator<String> i = s.iterator();
+		return getDataViaOBD(pr, priority);
+	}
 
-		// Iterate through responses and convert them into a comma-separated-string of hex bytes. 
-		String thiskey = "";
-		while (i.hasNext()) {
-			thiskey = i.next();
+	/**
+	 * Same as getDataViaOBD(String, int), for a request that's already prepared (see OBD2Session.getPreparedRequest), 
+	 * so there's nothing to look up. This is what RoutineScan uses. 
+	 */
+	public String getDataViaOBD(PreparedRequest pr, int priority) {
+		String decodedResponses = "";
 
-			// decide whether or not to use a comma. don't use a comma if its
-			// the first (possibly only) entry in the set.
-			if (decodedResponses.length() == 0)
-				decodedResponses += responses.get(thiskey);
-			// decodedResponses += thiskey + ": " + responses.get(thiskey);
-			else
-				decodedResponses += "," + responses.get(thiskey);
-			// decodedResponses += "," + thiskey + ": " +
-			// responses.get(thiskey);
+		if (mOBD == null || mOBD.getCurrentState() < OBD2Session.STATE_BTCONNECTED) 
+			return "";
+
+		// the car told us it doesn't have this one. Asking would just cost us an ELM timeout. 
+		if (!mOBD.isSupported(pr)) {
+			if (DEBUG) msg("getDataViaOBD(): " + pr.DPN + " isn't supported by this car. Not requesting it.");
+			return "";
+		}
+
+		// Send the request. The decoded responses come back in this thread's reused buffer. 
+		OBDResponses r = mOBD.getResponseBuffer();
+		int n = mOBD.sendOBDRequest(pr, priority, r);
+
+		// comma-separated, one entry per ECU. Usually there's just the one, which needs no building. 
+		if (n == 1) {
+			decodedResponses = r.getDecoded(0);
+		} else if (n > 1) {
+			StringBuilder sb = new StringBuilder();
+			for (int i=0;i<n;i++) {
+				if (i > 0) sb.append(',');
+				sb.append(r.getDecoded(i));
+			}
+			decodedResponses = sb.toString();
 		}
 
 		// Set the data in the hashmap in such a way that the newdata event gets
 		// kicked off.
-		setPIDDataByName(dataPointName, decodedResponses, 0);
+		setPIDDataByName(pr.DPN, decodedResponses, 0);
 
 //		TODO: also set the data in a way that fires off DPArrived.
 		
 		return decodedResponses;
 	}
 
+	/**
+	 * Request all DPNs in the given batch with a single multi-PID request. Fires the same new-data events as getDataViaOBD(String) would for each DPN. 
+	 * If the response can't be split up, we fall back to requesting each DPN on its own. 
+	 * @return - true if the batch request worked, false if we had to fall back. 
+	 */
+	public boolean getDataViaOBD(OBDBatchPlanner.Batch b, int priority) {
+		if (mOBD == null || mOBD.getCurrentState() < OBD2Session.STATE_BTCONNECTED)
+			return false;
+
+		if (!mOBD.sendOBDRequestBatch(b, priority)) {
+			for (int i=0;i<b.DPNs.size();i++)
+				getDataViaOBD(b.getPreparedRequest(i), priority);
+			return false;
+		}
+
+		for (int i=0;i<b.DPNs.size();i++) {
+			String DPN = b.DPNs.get(i);
+			OBDResponses r = b.getResponses(i);
+			String decodedResponses = "";
+
+			// comma-separated, one entry per ECU, same as a single request. Blank if nobody answered. 
+			if (r.size() == 1) {
+				decodedResponses = r.getDecoded(0);
+			} else if (r.size() > 1) {
+				StringBuilder sb = new StringBuilder();
+				for (int j=0;j<r.size();j++) {
+					if (j > 0) sb.append(',');
+					sb.append(r.getDecoded(j));
+				}
+				decodedResponses = sb.toString();
+			}
+
+			setPIDDataByName(DPN, decodedResponses, 0);
+		}
+
+		return true;
+	}
+
 	/**
 	 * Given a single OBD response packet, convert it into usable form.
 	 * 
@@ -414,7 +477,39 @@ public class PIDDecoder {
 	 * 
 	 */
 	public String getCachedDataByName(String dataPointName) {
-		return atomicPIDDataByName(false, dataPointName, null);
+		DPValue v = getLatest(dataPointName);
+		// prevent returning a null.
+		if (v != null)
+			return v.getText();
+		else
+			return "";
+	}
+
+	/**
+	 * Same as getCachedDataByName, but gives you the value as a number (plus unit, timestamp...) without a trip through text. 
+	 * @return - the latest value, or null if we haven't seen the datapoint. 
+	 */
+	public DPValue getCachedValueByName(String dataPointName) {
+		return getLatest(dataPointName);
+	}
+
+	/**
+	 * Get the latest values of several datapoints, all from the same moment - for example RPM and SPEED to work out a gear. 
+	 * Doesn't hold up decoding. 
+	 * @return - a snapshot with the values in the same order as the names. Values we haven't seen are null. 
+	 */
+	public LatestValueTable.Snapshot getCachedValues(String [] dataPointNames) {
+		int [] indexes = new int[dataPointNames.length];
+		for (int i=0;i<dataPointNames.length;i++)
+			indexes[i] = ddb.findDPNIndex(dataPointNames[i]);
+		return mLatest.snapshot(indexes);
+	}
+
+	/**
+	 * @return - the table of latest values, for callers that keep DPN indexes (DashDB.getDPNIndex) around instead of names. 
+	 */
+	public LatestValueTable getLatestValueTable() {
+		return mLatest;
 	}
 
 	/**
@@ -457,13 +552,18 @@ public class PIDDecoder {
 	public HashMap<String, String> getAllDatapoints() {
 		HashMap<String, String> ret = new HashMap<String, String>();
 
+		// read everything we have in one go so the values all go together. 
+		LatestValueTable.Snapshot snap = mLatest.snapshot(ddb.getNumDPNIndexes());
+
 		Set<String> s = ddb.getDataPointNamesSet(mNetwork);
 		Iterator<String> i = s.iterator();
 
 		String thisPoint = "";
 		while (i.hasNext()) {
 			thisPoint = i.next();
-			ret.put(thisPoint, getCachedDataByName(thisPoint));
+			int index = ddb.findDPNIndex(thisPoint);
+			DPValue v = (index >= 0 && index < snap.size()) ? snap.get(index) : null;
+			ret.put(thisPoint, (v != null) ? v.getText() : "");
 		}
 
 		return ret;
@@ -506,63 +606,125 @@ public class PIDDecoder {
 
 	/**
 	 * To be executed for every passive packet that arrives. Should be called
-	 * after the packet's CAN header and data are separated.
+	 * after the packet's CAN header and data are parsed.
 	 * 
-	 * @param HDR
-	 *            - 29 or 11-bit CAN header.
-	 * @param newData
-	 *            - the data part of the packet. typically up to 8 bytes
+	 * @param f
+	 *            - the parsed frame. May be a reused scratch instance, so don't hang on to it.
 	 * 
 	 *            DPArrived -> DPParseFormula -> DPDataArrived -> DPDecode
 	 */
-	private void DPRawPacketArrived(String HDR, String newData) {
+	private void DPFrameArrived(CANFrame f) {
 
-//		msg ("PACKET: " + HDR + " / " + newData);
+//		msg ("PACKET: " + f);
 		
 		// Pass the packet to the stats calculation logic. 
-		nStats.setPIDDataByHeader(HDR, newData);
+		nStats.setPIDData(f);
 
 		
 		// For each new packet that arrives, if the network ID is still blank, then perform detection if conditions are appropriate. 
 		if (!isNetworkIDValid())
 			performPassiveNetworkDetection();
 		
-		String[][] DPS = ddb.getDPSForHDR(mNetwork, HDR);
+		DPDecoderPlan[] DPS = ddb.getDPSForHDR(mNetwork, f.key());
 
 		// If there isn't even a single decoder for this packet, then bail right away. 
 		if (DPS == null)
 			return;
 
-		// not null, but no records?
-		if (DPS.length < 1)
+		// pipeline running? Hand it off and get back to reading. 
+		DecodePipeline pipe = mPipeline;
+		if (pipe != null) {
+			pipe.publish(f);
 			return;
+		}
 
+		decodeFrame(f, DPS, mEmitter);
+	}
 
-		
-		// So there's at least one array element, loop through it!
-		String thisSigbytes;
+	/**
+	 * Decode all the datapoints in the given frame. Runs on the reader thread, or on a shard thread if the decode pipeline is running. 
+	 * @param DPS - the frame's plans. 
+	 * @param emitter - mEmitter, or the shard's own. 
+	 */
+	private void decodeFrame(CANFrame f, DPDecoderPlan[] DPS, DPEmitter emitter) {
+		long now = System.currentTimeMillis();
+
+		// So there's at least one plan, loop through them!
 		for (int i = 0; i < DPS.length; i++) {
-			// Make a reference to the sibbytes for the current iteration
-			// through the X dimension.
-			thisSigbytes = DPS[i][DashDB.DPS_FIELD_SIGBYTES];
-
-			// if (DEBUG==true) msg ("DEBUG: DPArrived: HDR=" + HDR +
-			// " SigBytes=" + thisSigbytes + " DPN=" +
-			// DPS[i][DashDB.DPS_FIELD_DPN] + " newdata=" + newData + " i=" +
-			// i);
-
-			// Does our packet contain a sigbyte match?
-			if (thisSigbytes.length() == 0 || newData.startsWith(thisSigbytes)) {
-				// SIGBYTE MATCH! (either no sigbytes present, which is a match,
-				// or otherwise.
-				// Pass all the relevant info to the decoder, which will decode
+			// Does our packet contain a sigbyte match? (either no sigbytes present, which is a match, or otherwise.)
+			if (DPS[i].matchesSigBytes(f)) {
+				// SIGBYTE MATCH! Pass the plan to the decoder, which will decode
 				// the data and do anything else necessary with the data.
-				DPParseFormula(HDR, newData, DPS[i][DashDB.DPS_FIELD_DPN],
-						DPS[i][DashDB.DPS_FIELD_FORMULA]);
-			} // end of "if the sigbytes match".
-		}// end of for-loop which loops through all the datapoint records (DPS)
-			// for the given header.
-	}// end of DPArrived method which executes for each packet received in
+				DPParseFormula(f, DPS[i], emitter, now);
+			}
+		}// end of for-loop which loops through all the datapoint plans for the given header.
+	}// end of decodeFrame
+
+	/**
+	 * Decode sniffed frames on the given number of threads instead of the thread reading the ELM. Frames are split up by CAN ID,
+	 * so each ID's values still arrive in order. Listeners all get called from one event thread. 
+	 * If decoding falls behind, frames get dropped and counted (see getStats, pipeline.dropped) rather than backing up into the ELM. 
+	 * @param numShards - number of decode threads. 
+	 * @return - true if the pipeline is running. 
+	 */
+	public synchronized boolean startDecodePipeline (int numShards) {
+		if (mPipeline != null)
+			return true;
+
+		if (numShards < 1)
+			return false;
+
+		final DPEmitter [] emitters = new DPEmitter[numShards];
+		for (int i=0;i<numShards;i++)
+			emitters[i] = new DPEmitter(mPolicies);
+
+		DPEventQueue q = new DPEventQueue(PIPELINE_EVENT_QUEUE_SIZE, new DPEventQueue.Sink() {
+			public void onValue(DPValue v) {
+				setPIDData(v);
+			}
+
+			public void onCacheOnly(DPValue v) {
+				mLatest.put(ddb.getDPNIndex(v.DPN), v);
+			}
+		});
+
+		DecodePipeline pipe = new DecodePipeline(numShards, PIPELINE_RING_SIZE, new DecodePipeline.FrameHandler() {
+			public void onFrame(CANFrame f, int shard) {
+				DPDecoderPlan[] DPS = ddb.getDPSForHDR(mNetwork, f.key());
+				if (DPS != null)
+					decodeFrame(f, DPS, emitters[shard]);
+			}
+		}, "PIDDecoder");
+
+		q.start();
+		pipe.start();
+
+		mShardEmitters 	= emitters;
+		mEventQueue 	= q;
+		mPipeline 		= pipe;
+		if (DEBUG) msg ("Decode pipeline started with " + numShards + " shards.");
+		return true;
+	}
+
+	/**
+	 * Go back to decoding on the reader thread. Frames and values still queued are thrown away. 
+	 */
+	public synchronized void stopDecodePipeline () {
+		if (mPipeline == null)
+			return;
+
+		DecodePipeline pipe = mPipeline;
+		DPEventQueue q = mEventQueue;
+		mPipeline = null;
+		pipe.stop();
+		mEventQueue = null;
+		q.stop();
+		// keep the shard emitters around for their stats. 
+	}
+
+	public boolean isDecodePipelineRunning () {
+		return mPipeline != null;
+	}
 	
 
 	private boolean isNetworkIDValid () {
@@ -611,6 +773,17 @@ public class PIDDecoder {
 		long msgsProcessed = nStats.getNumMessagesProcessed();
 		String bestGuess = "";
 
+		// The detector scores each new header as nStats sees it. As soon as one network clearly wins, go with it. 
+		bestGuess = mNetDetect.getConfidentNetworkID();
+		if (bestGuess.length() > 0) {
+			msg ("Network identified as " + bestGuess + " after " + msgsProcessed + " messages.");
+			setNetworkID(bestGuess);
+			mgStats.setStat("msgsPresentUponNetworkIDMatch", "" + msgsProcessed);
+			return;
+		}
+
+		// Not clear yet. Every so often, settle for the best guess. 
+
 		// only try every X messages...
 		if (msgsProcessed % 50 != 0)
 			return;
@@ -666,9 +839,8 @@ public class PIDDecoder {
 		// make note of starting time, so we can calculate elapsed time. 
 		long startTime = EasyTime.getUnixTime();
 		
-		Set<String> sCANIDs = nStats.getIDSet();
-		if (DEBUG) msg ("PD nstats ID Set has " + sCANIDs.size());
-		String bestGuess = mNetDetect.getBestGuessNetworkID(sCANIDs);
+		// nStats has been feeding the detector all along, so this is just a lookup. 
+		String bestGuess = mNetDetect.getBestGuessNetworkID();
 
 		// collect a stat. 
 		long elapsedTime = EasyTime.getUnixTime() - startTime;
@@ -693,598 +865,101 @@ public class PIDDecoder {
 	 * This method decodes the given datapoint. It may also store the data, do
 	 * stats, notify parent (fire events), etc.
 	 * 
-	 * @param HDR
-	 *            - CAN header
-	 * @param newData
-	 *            - data part of the CAN packet.
-	 * @param DPN
-	 *            - Datapoint Name.
-	 * @param formula
-	 *            - formula which, when applied, extracts useful data from the
-	 *            packet. Some sample formulas: 16-23,HEX 16-31,SPEED10
-	 *            33-63,ONSTAR_LAT 32-39,INTEGER 0-63,ASCII
+	 * @param f
+	 *            - the CAN packet.
+	 * @param plan
+	 *            - the datapoint's compiled formula (see DashDB.getDPSForHDR). Some sample
+	 *            formulas: 16-23,HEX 16-31,SPEED10 33-63,ONSTAR_LAT 32-39,INTEGER 0-63,ASCII
 	 * 
 	 *            DPArrived -> DPParseFormula -> DPDataArrived -> DPDecode
 	 * 
 	 */
-	private void DPParseFormula(String HDR, String newData, String DPN,
-			String formulaAndBitPositions) {
-		final int INDEX_BYTERANGE = 0;
-		final int INDEX_FORMULA = 1;
-
-		// This string will hold the two general parts of the formula: byte
-		// range specification, and formula specification.
-		String formulaParts[] = null;
-
-		// Split the formula into two parts: bit/byte range, and formula.
-		try {
-			formulaParts = formulaAndBitPositions.split(",");
-		} catch (Exception e) {
-			msg("PD ERROR during decode: DPN=" + DPN
-					+ " formulaAndBitPositions=" + formulaAndBitPositions
-					+ " E= " + e.getMessage());
-			return;
-		}
-
-		if (formulaParts == null || formulaParts.length != 2) {
-			msg("PD ERROR: invalid formulaAndBitPositions: "
-					+ formulaAndBitPositions + " Expected two parts, got "
-					+ formulaParts.length);
-			return;
-		}
+	private void DPParseFormula(CANFrame f, DPDecoderPlan plan, DPEmitter emitter, long now) {
+		String DPN = plan.DPN;
 
-		// now obtain a string which contains only the desired byte(s).
-		String byteRange[] = null;
-		try {
-			byteRange = formulaParts[0].split("-");
-		} catch (Exception e) {
-			msg("PD Error: Byte range specification is missing hiphen: "
-					+ formulaParts[0] + " formulaAndBits="
-					+ formulaAndBitPositions + " E=" + e.getMessage());
+		// packet too short to contain the bits we want? 
+		if (f.dlc < plan.minBytes) {
+			if (DEBUG) msg("PD ERROR reaching target bits. formulaAndBits: " + plan.formulaAndBits + " Data=" + f.dataString());
 			return;
 		}
 
-		// grab the formula part out of the chunk.
-		String formula = formulaParts[INDEX_FORMULA];
-
-		if (byteRange == null || byteRange.length != 2) {
-			msg("PD Error: malformed formulaAndBitPositions: "
-					+ formulaAndBitPositions
-					+ " expected forma: STARTBIT-LASTBIT.");
-			return;
-		}
-
-		int iStart = -1;
-		int iStop = -1;
-
-		try {
-			iStart = Integer.valueOf(byteRange[0]);
-			iStop = Integer.valueOf(byteRange[1]);
-		} catch (NumberFormatException e) {
-			msg("PD Error converting byte range to integer! range="
-					+ formulaParts[INDEX_BYTERANGE] + " E=" + e.getMessage());
-			return;
-		}
-
-		String targetBytes = "";
-		// If the start and stop encompass an exact byte boundary...
-		// ex: 0-7 is byte0, 8-15 is byte1.
-		int iStringStart = getStringPositionOfBit(iStart);
-		int iStringStop = getStringPositionOfBit(iStop);
-
-		long lTargetBytes = 0;
-		if ((iStart % 8 == 0) && ((iStop + 1) % 8 == 0)) {
-			try {
-				// very tricky logic in the stop byte. remember substring second
-				// arg is one byte BEYOND the last byte we want.
-				targetBytes = newData.substring(iStringStart, iStringStop);
-			} catch (Exception e) {
-				if (DEBUG) msg("PD ERROR reaching target bytes. istringstart="
-						+ iStringStart + " istringstop=" + iStringStop
-						+ " formulaAndBits: " + formulaAndBitPositions
-						+ " Data=" + newData);
-				return;
-			}
-		} else {
-			// if (DEBUG == true) msg
-			// ("PD: ABOUT TO PERFORM ODD BIT BOUNDARY decode. start=" + iStart
-			// + " stop=" + iStop + " formulaAndBits=" + formulaAndBitPositions
-			// + " Data=" + newData + " DPN=" + DPN + " HDR=" + HDR);
-			try {
-				// if (DEBUG == true) msg
-				// ("DEBUG: Getting subbits method 2 for range " + iStart + "-"
-				// + iStop + " data=" + newData);
-
-				// first get the numeric value of the desired hex bytes, then
-				// convert it back into hex.
-				lTargetBytes = getTargetSubBits(newData, iStart, iStop);
-				if (lTargetBytes != 0) {
-					targetBytes = Long.toString(lTargetBytes, 16);
-				} else {
-					targetBytes = "0";
-				}
-
-				// if (DEBUG == true) msg
-				// ("PD: GOT ODD-BIT-BOUNDARY TARGET BYTES: " +targetBytes);
-			} catch (Exception e) {
-				msg("ERROR converting subbits to hex string. data=" + newData
-						+ " start=" + iStart + " stop=" + iStop + " E="
-						+ e.getMessage());
-				return;
-			}
-		}
-
-		if (targetBytes.length() < 1) {
-			msg("WARNING: no targetbytes calculated for formulaAndBits="
-					+ formulaAndBitPositions + " data=" + newData
-					+ " lTargetBytes=" + lTargetBytes);
-			return;
-		}
+		long raw = plan.extract(f);
 
 		// Optimization/Cacheing: If the raw data associated with the datpoint
-		// hasn't changed, don't re-decode the data (and thus no event gets
-		// fired for the data not having changed.).
-		if (mhmDPRawData.containsKey(DPN)
-				&& mhmDPRawData.get(DPN).equals(targetBytes)) {
+		// hasn't changed, don't re-decode the data. Whether the old value gets 
+		// sent again is up to the emission policy. 
+		switch (emitter.checkRaw(plan, raw, now)) {
+		case DPEmitter.SKIP:
+			return;
+		case DPEmitter.RESEND:
 			reSendDataArrivedEvent(DPN);
-			// data unchanged, bail out now.
 			return;
-		} else {
-			// cache the new value.
-			mhmDPRawData.put(DPN, targetBytes);
-			// data has changed. proceed with decode.
 		}
 
-		int iDecodedData = 0;
-		String decodedData = "PD TODO: DECODE THIS: formula=" + formula
-				+ " targetbytes=" + targetBytes + " DATA=" + newData;
+		if (plan.decoder == null && DEBUG)
+			msg("DPParseFormula: No decoder for formula=" + plan.formula + " raw=" + raw);
 
-		// Decode the data here.
-		decodedData = DPDecode(formula, targetBytes);
+		// Decode the data here. Numeric formulas just do the math - text only gets made if somebody asks for it. 
+		DPValue v = new DPValue(plan, raw, now);
 
-		// try to get integer part. If unsuccessful, no biggie.
-		try {
-			float f = Float.valueOf(decodedData);
-			iDecodedData = Math.round(f);
-		} catch (NumberFormatException e) {
+		// inside the deadband? Keep it so the cache is current, but don't tell anybody. With the pipeline running it goes through 
+		// the event queue like everything else, so it can't land in the cache ahead of older values still waiting in there. 
+		if (!emitter.checkValue(plan, v, now)) {
+			DPEventQueue q = mEventQueue;
+			if (q != null)
+				q.offerCacheOnly(v);
+			else
+				mLatest.put(plan.index, v);
+			return;
 		}
 
 		// This one fires the events, etc. 
-		setPIDDataByName(DPN, decodedData, iDecodedData);
+		fire(v);
 
 		// fire off the event which passes the newly decoded data up to the
 		// parent.
 	}
 
 	/**
-	 * Given the formula and target bytes we should be able to decode the data
-	 * and return it as a string.
-	 * 
-	 * @param DPN
-	 * @param formula
-	 * @param targetBytes
-	 * @return * DPArrived -> DPParseFormula -> DPDataArrived -> DPDecode
+	 * Set when sniffed datapoints get sent to listeners, for every datapoint that doesn't have its own policy. 
+	 * The default is EmissionPolicy.onChange().withHeartbeat(1000). EmissionPolicy.always() is how it used to be. 
 	 */
-	private String DPDecode(String formula, String targetBytes) {
-		String ret = "";
-
-		// sanity checks.
-		if (targetBytes == null || targetBytes.equals("") || formula == null
-				|| formula.length() < 1) {
-			if (DEBUG) msg("Threw out invalid formula or targetbytes: F=" + formula
-					+ " TB=" + targetBytes);
-			
-			if (DEBUG)
-				return "INVALID_FORMULA_OR_TARGETBYTES F=" + formula + "TB=" + targetBytes;
-			else // if debug not enabled, then don't show the formula and target bytes. 
-				return "INVALID_FORMULA_OR_TARGETBYTES";
-			
-		}
-
-		// msg ("Processing formula " + formula + " targetBytes=" +
-		// targetBytes);
-
-		if (formula.equals("MULT10")) {
-			long r = getIntFromHexString(targetBytes);
-			ret = "" + (1f * r * 10);
-			return ret;
-		}
-
-		if (formula.equals("MULT14")) {
-			long r = getIntFromHexString(targetBytes);
-			ret = "" + (1f * r * 14);
-			return ret;
-		}
-
-		if (formula.equals("MULT4")) {
-			long r = getIntFromHexString(targetBytes);
-			ret = "" + (1f * r * 4);
-			return ret;
-		}
-
-		if (formula.equals("DIV10")) {
-			long r = getIntFromHexString(targetBytes);
-			ret = "" + (1f * r / 10);
-			return ret;
-		}
-
-		if (formula.equals("DIV16")) {
-			long r = getIntFromHexString(targetBytes);
-			ret = "" + (1f * r / 16);
-			return ret;
-		}
-
-		if (formula.equals("DIV40")) {
-			long r = getIntFromHexString(targetBytes);
-			ret = "" + (1f * r / 40);
-			return ret;
-		}
-
-		if (formula.equals("DIV4")) {
-			long r = getIntFromHexString(targetBytes);
-			ret = "" + (1f * r / 4);
-			return ret;
-		}
-
-		if (formula.equals("DIV100")) {
-			long r = getIntFromHexString(targetBytes);
-			ret = "" + (1f * r / 100);
-			return ret;
-		}
-
-		if (formula.equals("MULT2051")) {
-			long r = getIntFromHexString(targetBytes);
-			ret = "" + (20f * r / 51);
-			return ret;
-		}
-
-		if (formula.equals("MULT205100")) {
-			long r = getIntFromHexString(targetBytes);
-			ret = "" + (20f * r / 5100);
-			return ret;
-		}
-
-		if (formula.equals("DIV64")) {
-			long r = getIntFromHexString(targetBytes);
-			ret = "" + (1f * r / 64);
-			return ret;
-		}
-
-		if (formula.equals("DIV128")) {
-			long r = getIntFromHexString(targetBytes);
-			ret = "" + (1f * r / 128);
-			return ret;
-		}
-
-		if (formula.equals("INT")) {
-			ret = "" + getIntFromHexString(targetBytes);
-			return ret;
-		}
-
-		if (formula.equals("ASCII")) {
-			ret = convertHexStringToAscii(targetBytes);
-			return ret;
-		}
-
-		if (formula.equals("HEX")) {
-			ret = targetBytes;
-			return ret;
-		}
-
-		if (formula.equals("BIT")) {
-
-			long l = getIntFromHexString(targetBytes);
-
-			if (l == 0)
-				ret = "0";
-			else
-				ret = "1";
-
-			return ret;
-		}
-
-		if (formula.equals("M=1&B=-40")) {
-			long r = getIntFromHexString(targetBytes);
-			ret = "" + (1f * r - 40);
-			return ret;
-		}
-
-		if (formula.equals("M=1/8")) {
-			long r = getIntFromHexString(targetBytes);
-			ret = "" + ((1f * r) / 8);
-			return ret;
-		}
-
-		if (formula.equals("M=1/10")) {
-			long r = getIntFromHexString(targetBytes);
-			ret = "" + ((1f * r) / 10);
-			return ret;
-		}
-
-		if (formula.equals("M=1/32")) {
-			long r = getIntFromHexString(targetBytes);
-			ret = "" + ((1f * r) / 32);
-			return ret;
-		}
-
-		if (formula.equals("M=0.5")) {
-			long r = getIntFromHexString(targetBytes);
-			ret = "" + (0.5f * r);
-			return ret;
-		}
-
-		if (formula.equals("M=4&B=-40")) {
-			long r = getIntFromHexString(targetBytes);
-			ret = "" + (4f * r - 40);
-			return ret;
-		}
-		// M=0.5&B=-40
-		if (formula.equals("M=0.5&B=-40")) {
-			long r = getIntFromHexString(targetBytes);
-			ret = "" + (0.5f * r - 40);
-			return ret;
-		}
-
-		if (formula.equals("M=0.1&B=3")) {
-			long r = getIntFromHexString(targetBytes);
-			ret = "" + (0.1f * r + 3);
-			return ret;
-		}
-
-		if (formula.equals("M=1,B=-100000")) {
-			long r = getIntFromHexString(targetBytes);
-			ret = "" + (1f * r - 100000);
-			return ret;
-		}
-		// M=1/16
-		if (formula.equals("M=1/16")) {
-			long r = getIntFromHexString(targetBytes);
-			ret = "" + ((1f * r) / 16);
-			return ret;
-		}
-		// M=0.25&B=-200
-		if (formula.equals("M=0.25&B=-200")) {
-			long r = getIntFromHexString(targetBytes);
-			ret = "" + (1f * r * 0.25 - 200);
-			return ret;
-		}
-
-		if (formula.equals("ONSTAR_LAT")) {
-			// get raw milliarcseconds
-			long MAS = getIntFromHexString(targetBytes);
-
-			// throw out the 4 unneeded bits (the rightmost one is the valid
-			// bit, we'll get that through another datapoint).
-			MAS &= 0x0FFFFFFF;
-
-			// Convert MAS to DMS.
-			ret = "MAS=" + MAS + " DMS=" + convertMASToDMS(MAS);
-
-			return ret;
-		}
-
-		if (formula.equals("ONSTAR_LON")) {
-			boolean isLongitudeNegative = false;
-			// get raw milliarcseconds
-			long MAS = getIntFromHexString(targetBytes);
-
-			// Is it negative?
-			if (MAS >= 0x40000000) {
-				// Flip all bits, including the negative sign bit.
-				MAS ^= 0xFFFFFFFF;
-				// Strip unwanted bit
-				MAS &= 0x7FFFFFFF;
-				isLongitudeNegative = true;
-			}
-
-			// Convert MAS to DMS and add east/west based on whether the number
-			// was negative.
-			if (isLongitudeNegative == true)
-				ret = "MAS=" + MAS + " DMS=(west)" + convertMASToDMS(MAS);
-			else
-				ret = "MAS=" + MAS + " DMS=(east)" + convertMASToDMS(MAS);
-
-			return ret;
-		}
-
-		if (formula.equals("TPMS")) {
-
-			// TODO: We must get the real value here! But which PID is the data
-			// kept in?
-			int currentBarometerInKPA = 1;
-
-			float tireData = getIntFromHexString(targetBytes);
-
-			float tirePressure = 25f - currentBarometerInKPA + 0.34475f * tireData;
-
-			ret = "" + tirePressure;
-			return ret;
-		}
-
-		// if execution reaches this point, then no decoder took the bait.
-		if (DEBUG == true) {
-			msg("DPDecode: No decoder for formula=" + formula + " targetbytes=" + targetBytes);
-			ret = "ERROR: No decoder for formula " + formula + " TB=" + targetBytes;
-		}
-
-		return ret;
+	public void setEmissionPolicy (EmissionPolicy p) {
+		if (p != null)
+			mPolicies.setDefaultPolicy(p);
 	}
 
 	/**
-	 * Given a hex string and desired start and stop bits, we'll extract those
-	 * bits into an integer value.
-	 * 
-	 * @param s
-	 *            - input hexstring, spaces are OK.
-	 * @param startBit
-	 *            - start bit
-	 * @param lastBit
-	 *            - last bit to include in the decoded output. ex: 0-7 returns a
-	 *            8-bit number.
-	 * @return - returns an integer value of the desired bits.
+	 * Set the emission policy for one datapoint. 
+	 * @param p - the policy, or null to go back to the default. 
 	 */
-	private long getTargetSubBits(String s, int startBit, int lastBit) {
-		// remove spaces from the hex string.
-		s = s.replace(" ", "");
-		
-		// TODO: Optimizations to trim pieces of the string before converting it, otherwise we can't actually handle 8-byte hex strings! 
-
-		// sanity check: make sure string is long enough to be valid.
-		if (s.length() < 1) {
-			msg("Warning: unable to get target bytes - string too short: " + s);
-			return 0;
-		}
-
-		// Get the value of the hexstring.
-		long l = 0;
-		try {
-			l = Long.valueOf(s, 16);
-		} catch (NumberFormatException e) {
-			msg("Error converting hex to long. String was " + e.getMessage() + " target was " + startBit + "-" + lastBit);
-			return 0;
-		}
-
-		// ...
-		int numTotalBits = s.length() * 4; // String length * 4 (four bits per
-											// character/nibble).
-		int numSaveBits = lastBit - startBit + 1;
-		int rightExtraBits = numTotalBits - lastBit - 1;
-		long saveMask = 0;
-		try {
-			// generate the MASK by raising to power one bit past what we want,
-			// then minus 1 to drop that extra bit and flip all lower bits ON.
-			saveMask = (long) Math.pow(2, numSaveBits) - 1;
-		} catch (Exception e) {
-			msg("ERROR while generating mask with " + numSaveBits + " bits. E="
-					+ e.getMessage());
-			return 0;
-		}
-
-		// blow away unwanted lower bits and shift the target bits into focus.
-		// if (DEBUG==true) msg ("getTargetSubBits(): DEBUG 1/4: String=" + s);
-		// if (DEBUG==true) msg ("getTargetSubBits(): DEBUG 2/4: long=" + l +
-		// " Hex 0x" + Long.toString(l, 16));
-		l >>= rightExtraBits;
-		// if (DEBUG==true) msg ("getTargetSubBits(): DEBUG 3/4: shiftedDown=" +
-		// l + " Hex 0x" + Long.toString(l, 16));
-		l &= saveMask;
-		// if (DEBUG==true) msg ("getTargetSubBits(): DEBUG 4/4: stripedAway=" +
-		// l + " This is the result we'll return. Hex: 0x" + Long.toString(l,
-		// 16));
-
-		return l;
+	public void setEmissionPolicy (String DPN, EmissionPolicy p) {
+		mPolicies.setPolicy(DPN, p);
 	}
 
-	private String convertHexStringToAscii(String hexString) {
-		String ret = "";
-
-		String[] eachByte = null;
-
-		try {
-			eachByte = hexString.split(" ");
-		} catch (Exception e) {
-			msg("Error getting ASCII from " + hexString);
-			return "";
-		}
-
-		if (eachByte == null) {
-			msg("Error: no ascii bytes in " + hexString);
-			return "";
-		}
-
-		char thisByte = ' ';
-		for (int i = 0; i < eachByte.length; i++) {
-			thisByte = (char) getIntFromHexString(eachByte[i]);
-			if (thisByte > 0 && thisByte < 128)
-				ret = ret + thisByte;
-			else {
-				ret = ret + "?";
-				msg("Warning: Skipping non-ASCII byte code " + (int) thisByte
-						+ " while converting to ascii this string: "
-						+ hexString);
-			}
-		}
-
-		return ret;
-	}
-
-	/**
-	 * @param MAS
-	 *            - milliarcseconds
-	 * @return - String representation of DMS. (degrees mionutes seconds)
-	 */
-	private String convertMASToDMS(long MAS) {
-
-		long milliarcseconds = MAS; /* input and output */
-		long degrees; /* output */
-		long minutes; /* output */
-		long seconds; /* output */
-
-		degrees = milliarcseconds / 3600000;
-		milliarcseconds -= degrees * 3600000;
-		minutes = milliarcseconds / 60000;
-		milliarcseconds -= minutes * 60000;
-		seconds = milliarcseconds / 1000;
-		milliarcseconds -= minutes * 1000;
-
-		return "" + degrees + "," + minutes + "," + seconds;
-	}
-
-	/**
-	 * Returns an integer representation of the given hex string.
-	 * 
-	 * @param hexString
-	 * @return
-	 */
-	private long getIntFromHexString(String hexString) {
-		if (hexString == null || hexString.length() < 1)
-			return 0;
-
-		long ret = 0;
-
-		try {
-			ret = Long.valueOf(hexString.replace(" ", ""), 16);
-		} catch (NumberFormatException e) {
-		}
-
-		return ret;
+	public EmissionPolicy getEmissionPolicy (String DPN) {
+		return mPolicies.getPolicy(DPN);
 	}
 
 	/**
 	 * This is a local event-hook. It can do anything it wants based on new
 	 * data.
 	 * 
-	 * @param DPN
-	 * @param oldValue
-	 * @param newValue
-	 * @param iNewValue
+	 * @param v - the new value. 
+	 * @param isNew - true if it's the first value we've seen for the datapoint. 
 	 */
 	// TODO: merge this with the existing pid data logic such as
 	// setpiddatabyname, and the existing events.
 	// the goal being to have a single event firer and everything cascades down
 	// from there.
-	private void DPDataArrived(String DPN, String newValue, int iNewValue, boolean isNew) {
+	private void DPDataArrived(DPValue v, int index, boolean isNew) {
 		
-		String VIN = "";
-		// setPIDDataByName(DPN, newValue,iNewValue);
-
-		// Was it a VIN message - part one or two (we're not assuming 1 arrives
-		// before 2)
-		if (DPN.equals("VIN2OF2") || DPN.equals("VIN1OF2")) {
-			// Check and make sure we have both parts, if so, assemble the whole
-			// thing and set the data!
-			if (getCachedDataByName("VIN1OF2").length() > 0
-					&& getCachedDataByName("VIN2OF2").length() > 0) {
-				VIN = getCachedDataByName("VIN1OF2")
-						+ getCachedDataByName("VIN2OF2");
-				setPIDDataByName("VIN", VIN, 0);
-			}
-		}
+		String DPN = v.DPN;
 
 		// so there's new data - a VIN - hooray!
-		if (DPN.equals("VIN") && isNew == true) {
-			msg("VIN Detected! VIN=" + newValue);
-			startANewTrip(getCachedDataByName("VIN"));
+		if (isNew && DPN.equals("VIN")) {
+			msg("VIN Detected! VIN=" + v.getText());
+			startANewTrip(v.getText());
 			
 			// This is for the passive network stuff... If we already know the network ID then pull it from cache. Don't perform detection here because we're most likely not in a state where it's appropriate. 
 			String potentialNetworkID = getCachedNetworkID();
@@ -1295,31 +970,55 @@ public class PIDDecoder {
 		// Log all "new" DPNs to the attributes table to get a "baseline" of
 		// every paramter.
 		if (isNew && mTripID.length() > 0) {
-			ddb.setProfileValue("TRIPINITIALVALUE", mTripID, DPN, newValue);
+			ddb.setProfileValue("TRIPINITIALVALUE", mTripID, DPN, v.getText());
 		}
 
-		// If we just got a wheel speed reading, average all 4 wheels to produce a "SPEED" broadcast. We do this because I just can't find a general speed reading anywhere else on the 11-bit network.
-		// Also note that we are looking for a change in "RND" which is right non-driven wheel. That is always the last of the four wheel readings to get decoded. 
-		if (DPN.equals("SPEED_WHEEL_RND")) {
-			double s = 0;
-			
-			try {
-				s = s + Double.valueOf(getCachedDataByName("SPEED_WHEEL_RND"));
-				s = s + Double.valueOf(getCachedDataByName("SPEED_WHEEL_LND"));
-				s = s + Double.valueOf(getCachedDataByName("SPEED_WHEEL_RD"));
-				s = s + Double.valueOf(getCachedDataByName("SPEED_WHEEL_LD"));
-				s = s / 4;
+		// Anything worked out from this datapoint (VIN from its two halves, SPEED from the wheels...). They come back through here, so derived datapoints can feed other derived datapoints. 
+		DPValue [] derived = mDerived.onValue(index, v, mLatest);
+		if (derived != null) {
+			for (int i=0;i<derived.length;i++)
+				setPIDData(derived[i]);
+		}
+	}
 
-				// All the above calculations must have been exception free, so kick out a SPEED broadcast.
-				setPIDDataByName("SPEED", "" + s, (int)Math.round(s));
+	/**
+	 * The derived datapoints that used to be written out by hand in DPDataArrived. 
+	 */
+	private void defineBuiltinDerivedSignals() {
+		// VIN messages - part one or two (we're not assuming 1 arrives before 2). Once we have both parts, assemble the whole thing. 
+		defineDerivedSignal("VIN", "CONCAT(VIN1OF2, VIN2OF2)", null);
 
-			} catch (Exception e) {
-				// Do nothing, at least we tried. 
-			}
+		// average all 4 wheels to produce a "SPEED" broadcast. We do this because I just can't find a general speed reading anywhere else on the 11-bit network.
+		// Only on a change in "RND" which is right non-driven wheel. That is always the last of the four wheel readings to get decoded. 
+		defineDerivedSignal("SPEED", "AVG(SPEED_WHEEL_RND, SPEED_WHEEL_LND, SPEED_WHEEL_RD, SPEED_WHEEL_LD)", "SPEED_WHEEL_RND");
+	}
 
+	/**
+	 * Add a datapoint that gets worked out from other datapoints, whenever one of them changes. It goes out like any other datapoint. 
+	 * For example defineDerivedSignal("BRAKE_PRESSURE_MAX", "MAX(BRAKE_PRESSURE_*)", null). 
+	 * @param DPN - the new datapoint's name. Re-using a name replaces the old definition. 
+	 * @param expression - AVG, SUM, MIN, MAX or CONCAT of input DPNs, which may use a * wildcard. See DerivedSignals. 
+	 * @param triggerDPN - only work it out when this input changes, or null for any of them. 
+	 * @return - true if it was defined. False if the expression is no good or would make a loop. 
+	 */
+	public boolean defineDerivedSignal(String DPN, String expression, String triggerDPN) {
+		String err = mDerived.define(DPN, expression, triggerDPN);
+		if (err.length() > 0) {
+			msg ("defineDerivedSignal(): " + DPN + " not defined: " + err);
+			return false;
 		}
-			
-		
+		return true;
+	}
+
+	public boolean removeDerivedSignal(String DPN) {
+		return mDerived.remove(DPN);
+	}
+
+	/**
+	 * @return - DPN=expression for each derived datapoint. 
+	 */
+	public String [] getDerivedSignals() {
+		return mDerived.getDefinitions();
 	}
 
 	/**
@@ -1358,78 +1057,6 @@ public class PIDDecoder {
 		return mTripID;
 	}
 
-	/**
-	 * Given the bit position specified in a formula, translate that to the
-	 * string position within the data hexstring where we go to get the data.
-	 * This function takes into account two things and returns the appropriate
-	 * result to be used in String.substring: - formula stop bit is assumed to
-	 * be one bit before the next byte, IOW includes the last bit of the data it
-	 * wants - String substring function requires us to specify the byte BEYOND
-	 * the last byte we want from the string.
-	 * 
-	 * @param bitPos
-	 *            - bit position specified in the formula.
-	 * @return - returns the string position to be used in a substring. Odds are
-	 *         assumed to be stop bits, event are start.
-	 */
-	private static int getStringPositionOfBit(int bitPos) {
-		int ret = -1;
-
-		switch (bitPos) {
-		case 0:
-			ret = 0;
-			break;
-		case 8:
-			ret = 3;
-			break;
-		case 16:
-			ret = 6;
-			break;
-		case 24:
-			ret = 9;
-			break;
-		case 32:
-			ret = 12;
-			break;
-		case 40:
-			ret = 15;
-			break;
-		case 48:
-			ret = 18;
-			break;
-		case 56:
-			ret = 21;
-			break;
-
-		case 7:
-			ret = 2;
-			break;
-		case 15:
-			ret = 5;
-			break;
-		case 23:
-			ret = 8;
-			break;
-		case 31:
-			ret = 11;
-			break;
-		case 39:
-			ret = 14;
-			break;
-		case 47:
-			ret = 17;
-			break;
-		case 55:
-			ret = 20;
-			break;
-		case 63:
-			ret = 23;
-			break;
-		}
-
-		return ret;
-	}
-
 	/**
 	 * Inject test data into the stream of PIDs we're supposedly reading from
 	 * the device. We will read that test data from a file on the device called
@@ -1525,8 +1152,22 @@ public class PIDDecoder {
 		// Collect a few of our own stats...
 		mgStats.setStat("tripID", mTripID);
 		mgStats.setStat("networkID", mNetwork);
-		if (mhmDataByName != null) mgStats.setStat("cachelevel.databyname","" + mhmDataByName.size());
-		if (mhmDPRawData != null) mgStats.setStat("cachelevel.dprawdata","" + mhmDPRawData.size());
+		LatestValueTable latest = mLatest;
+		if (latest != null) {
+			mgStats.setStat("cachelevel.databyname","" + latest.size());
+			latest.getStats(mgStats);
+		}
+		mDerived.getStats(mgStats);
+		mPolicies.getStats(mgStats);
+		DPEmitter [] shardEmitters = mShardEmitters;
+		if (shardEmitters == null) {
+			DPEmitter.getStats(mgStats, new DPEmitter[] {mEmitter});
+		} else {
+			DPEmitter [] all = new DPEmitter[shardEmitters.length + 1];
+			all[0] = mEmitter;
+			System.arraycopy(shardEmitters, 0, all, 1, shardEmitters.length);
+			DPEmitter.getStats(mgStats, all);
+		}
 		mgStats.setStat("thread.age", "" + metime.getUptimeSeconds());
 		if (mNewDataHandler != null) 
 			mgStats.setStat("datahandlerdefined", "true");
@@ -1540,6 +1181,13 @@ public class PIDDecoder {
 		// Collect stats from the net detector. 
 		if (mNetDetect != null)
 			mgStats.merge("netDetect", mNetDetect.getStats());
+
+		DecodePipeline pipe = mPipeline;
+		if (pipe != null)
+			mgStats.merge("pipeline", pipe.getStats());
+		DPEventQueue q = mEventQueue;
+		if (q != null)
+			q.getStats(mgStats);
 		
 		return mgStats;
 	}
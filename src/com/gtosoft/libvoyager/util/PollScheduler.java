@@ -0,0 +1,395 @@
+/**
+ * (C) 2011 libvoyager is licensed under a Creative Commons Attribution-NonCommercial 3.0 Unported License.
+ * Permissions beyond the scope of this license may be available at http://www.gtosoft.com. You can download,
+ * use, modify the code as long as you do not include it as part of commercial software.
+ */
+
+package com.gtosoft.libvoyager.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+
+import android.util.Log;
+
+/**
+ * Decides which DPNs RoutineScan should poll next. Each DPN has a target period (how often we'd like a fresh value) and a priority,
+ * and its next deadline. Whatever is due gets polled earliest deadline first.
+ *
+ * We also keep track of what each poll costs (how long the request took, a moving average), so we know how much of the link's time
+ * all the DPNs want: the sum of cost/period. If that's more than the budget (the share of link time the scan may use) the periods
+ * get stretched so that it fits, and the link time gets shared out in proportion to priority times what each DPN asked for.
+ * Equal priorities means everybody slows down by the same factor. A DPN whose share would be more than it asked for just gets its
+ * target, and the rest is shared among the others.
+ *
+ * Times are in milliseconds, from System.currentTimeMillis(), passed in by the caller so the scheduler itself never looks at the clock.
+ * @author brad
+ */
+
+public class PollScheduler {
+
+	final boolean DEBUG = false;
+
+	// obdRequest.frequency gets multiplied by this to get the target period. So 1 (RPM, SPEED) is 4 times a second, 10 (coolant) every 2.5 seconds.
+	public static final int BASE_PERIOD_MILLIS 		= 250;
+	// target period when we don't know any better.
+	public static final int DEFAULT_PERIOD_MILLIS 	= 1000;
+	// nothing gets polled less often than this. The "rarely" DPNs (frequency 9999) end up here.
+	public static final int MAX_PERIOD_MILLIS 		= 60000;
+	// or more often than this.
+	public static final int MIN_PERIOD_MILLIS 		= 50;
+
+	public static final int PRIORITY_NORMAL = 1;
+
+	// what we figure a request costs until we've timed one. A typical ELM round trip.
+	static final double DEFAULT_COST_MILLIS = 100;
+	// weight of the newest sample in the moving averages.
+	static final double ALPHA = 0.2;
+	// unsupported DPNs sit out at least this long before we look at them again.
+	static final int SKIP_MILLIS = 10000;
+
+	static class Entry {
+		final String DPN;
+		// target period, 0 if nobody set one yet.
+		int mTarget = 0;
+		int mPriority = PRIORITY_NORMAL;
+		// the period we're actually going for, after the budget's been shared out.
+		double mPeriod = DEFAULT_PERIOD_MILLIS;
+		// moving average of the time a poll takes.
+		double mCost = DEFAULT_COST_MILLIS;
+		boolean mCostMeasured = false;
+		// next deadline. 0 means right away.
+		long mDue = 0;
+		// last poll, and moving average of the time between polls, 0 if we don't have one yet.
+		long mLastPoll = 0;
+		double mInterval = 0;
+		int mPolls = 0;
+		// false while it's sitting out (unsupported). Those don't count against the budget.
+		boolean mActive = true;
+
+		// scratch for rebalance(): link time per millisecond it asks for, and whether it gets all of it.
+		double mDemand = 0;
+		boolean mCapped = false;
+
+		Entry (String DPN) {
+			this.DPN = DPN;
+		}
+
+		int getTarget () {
+			return (mTarget > 0) ? mTarget : DEFAULT_PERIOD_MILLIS;
+		}
+	}
+
+	private static final Comparator<Entry> BY_DEADLINE = new Comparator<Entry>() {
+		public int compare (Entry a, Entry b) {
+			if (a.mDue < b.mDue) return -1;
+			if (a.mDue > b.mDue) return 1;
+			// same deadline: higher priority first.
+			return b.mPriority - a.mPriority;
+		}
+	};
+
+	HashMap<String,Entry> mhmEntries = new HashMap<String,Entry>();
+	ArrayList<Entry> mEntries = new ArrayList<Entry>();
+
+	// scratch for getDue().
+	ArrayList<Entry> mDue = new ArrayList<Entry>();
+
+	// share of the link's time that polling may use.
+	double mBudget = 0.8;
+	// share of the link's time all the DPNs want, at their target periods.
+	double mDemand = 0;
+
+	/**
+	 * @return - the target period for the given obdRequest.frequency.
+	 */
+	public static int periodFromFrequency (int frequency) {
+		if (frequency < 1)
+			return DEFAULT_PERIOD_MILLIS;
+
+		return (int) Math.min((long) frequency * BASE_PERIOD_MILLIS, MAX_PERIOD_MILLIS);
+	}
+
+	/**
+	 * Schedule a DPN. If it's already scheduled, this updates its target period and priority.
+	 * @param periodMillis - target period, 0 if we don't know it yet (see setTargetPeriod).
+	 * @param priority - 1 (PRIORITY_NORMAL) or more. When the link is saturated, a DPN with priority 2 gets twice the share of one with 1.
+	 * @return - true if it wasn't scheduled before.
+	 */
+	public synchronized boolean add (String DPN, int periodMillis, int priority) {
+		Entry e = mhmEntries.get(DPN);
+		boolean added = false;
+		if (e == null) {
+			e = new Entry(DPN);
+			mhmEntries.put(DPN, e);
+			mEntries.add(e);
+			added = true;
+		}
+
+		if (periodMillis > 0)
+			e.mTarget = clampPeriod(periodMillis);
+		e.mPriority = Math.max(priority, 1);
+
+		rebalance();
+		return added;
+	}
+
+	/**
+	 * @return - true if the DPN was scheduled.
+	 */
+	public synchronized boolean remove (String DPN) {
+		Entry e = mhmEntries.remove(DPN);
+		if (e == null)
+			return false;
+
+		mEntries.remove(e);
+		rebalance();
+		return true;
+	}
+
+	public synchronized void clear () {
+		mhmEntries.clear();
+		mEntries.clear();
+		mDemand = 0;
+	}
+
+	public synchronized int size () {
+		return mEntries.size();
+	}
+
+	public synchronized boolean contains (String DPN) {
+		return mhmEntries.containsKey(DPN);
+	}
+
+	public synchronized void setTargetPeriod (String DPN, int periodMillis) {
+		Entry e = mhmEntries.get(DPN);
+		if (e == null || periodMillis < 1)
+			return;
+
+		e.mTarget = clampPeriod(periodMillis);
+		rebalance();
+	}
+
+	/**
+	 * @return - the target period of the given DPN, 0 if it doesn't have one yet or isn't scheduled.
+	 */
+	public synchronized int getTargetPeriod (String DPN) {
+		Entry e = mhmEntries.get(DPN);
+		return (e != null) ? e.mTarget : 0;
+	}
+
+	/**
+	 * @return - the period we're going for after sharing out the budget, 0 if the DPN isn't scheduled.
+	 */
+	public synchronized int getPeriod (String DPN) {
+		Entry e = mhmEntries.get(DPN);
+		return (e != null) ? (int) Math.round(e.mPeriod) : 0;
+	}
+
+	/**
+	 * Set how much of the link's time polling may use, 0.05 to 1. The rest is left for one-off requests. Default is 0.8.
+	 */
+	public synchronized void setBudget (double budget) {
+		mBudget = Math.max(0.05, Math.min(1, budget));
+		rebalance();
+	}
+
+	/**
+	 * Find the DPNs that are due.
+	 * @param due - gets cleared, then filled with the DPNs due at time now, earliest deadline first.
+	 * @return - the number of DPNs that are due.
+	 */
+	public synchronized int getDue (long now, ArrayList<String> due) {
+		due.clear();
+		mDue.clear();
+
+		for (int i=0;i<mEntries.size();i++) {
+			Entry e = mEntries.get(i);
+			if (e.mDue <= now)
+				mDue.add(e);
+		}
+
+		Collections.sort(mDue, BY_DEADLINE);
+		for (int i=0;i<mDue.size();i++)
+			due.add(mDue.get(i).DPN);
+
+		mDue.clear();
+		return due.size();
+	}
+
+	/**
+	 * @return - the earliest deadline of all DPNs, Long.MAX_VALUE if there are none.
+	 */
+	public synchronized long getNextDue () {
+		long next = Long.MAX_VALUE;
+		for (int i=0;i<mEntries.size();i++)
+			next = Math.min(next, mEntries.get(i).mDue);
+		return next;
+	}
+
+	/**
+	 * The DPN was just polled. Sets its next deadline one period after the last one (so the period doesn't drift by however late we were),
+	 * or to now if we've fallen more than a period behind.
+	 * @param now - when the poll finished.
+	 * @param costMillis - how long it took. For a multi-PID request, its share of the time.
+	 */
+	public synchronized void polled (String DPN, long now, double costMillis) {
+		Entry e = mhmEntries.get(DPN);
+		if (e == null)
+			return;
+
+		if (costMillis >= 0) {
+			if (!e.mCostMeasured) {
+				e.mCost = costMillis;
+				e.mCostMeasured = true;
+			} else {
+				e.mCost += ALPHA * (costMillis - e.mCost);
+			}
+		}
+
+		if (e.mLastPoll > 0) {
+			double interval = now - e.mLastPoll;
+			e.mInterval = (e.mInterval > 0) ? e.mInterval + ALPHA * (interval - e.mInterval) : interval;
+		}
+		e.mLastPoll = now;
+		e.mPolls++;
+
+		boolean wasActive = e.mActive;
+		e.mActive = true;
+		rebalance();
+
+		if (!wasActive || e.mDue == 0)
+			e.mDue = now;
+		e.mDue += (long) e.mPeriod;
+		if (e.mDue < now)
+			e.mDue = now;
+	}
+
+	/**
+	 * The DPN can't be polled right now (the car doesn't support it). It sits out for a while and doesn't count against the budget.
+	 */
+	public synchronized void skipped (String DPN, long now) {
+		Entry e = mhmEntries.get(DPN);
+		if (e == null)
+			return;
+
+		e.mDue = now + Math.max(SKIP_MILLIS, e.getTarget());
+		if (e.mActive) {
+			e.mActive = false;
+			e.mInterval = 0;
+			e.mLastPoll = 0;
+			rebalance();
+		}
+	}
+
+	/**
+	 * @return - the number of DPNs sitting out.
+	 */
+	public synchronized int getSkippedCount () {
+		int n = 0;
+		for (int i=0;i<mEntries.size();i++)
+			if (!mEntries.get(i).mActive)
+				n++;
+		return n;
+	}
+
+	/**
+	 * Work out each DPN's period. If everybody's target fits in the budget, that's their period. Otherwise share out the budget
+	 * in proportion to priority * demand. Anybody whose share would be more than their demand gets their target, takes that much out of
+	 * the budget, and we share out what's left among the rest. Capping somebody can only lower the bar for the others, so it settles in
+	 * at most one pass per DPN.
+	 */
+	private void rebalance () {
+		double demand = 0;
+		for (int i=0;i<mEntries.size();i++) {
+			Entry e = mEntries.get(i);
+			e.mCapped = false;
+			e.mDemand = e.mActive ? e.mCost / e.getTarget() : 0;
+			demand += e.mDemand;
+		}
+		mDemand = demand;
+
+		if (demand <= mBudget) {
+			for (int i=0;i<mEntries.size();i++)
+				mEntries.get(i).mPeriod = mEntries.get(i).getTarget();
+			return;
+		}
+
+		double budget = mBudget;
+		double weight = 0;
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+
+			weight = 0;
+			for (int i=0;i<mEntries.size();i++) {
+				Entry e = mEntries.get(i);
+				if (e.mActive && !e.mCapped)
+					weight += e.mPriority * e.mDemand;
+			}
+
+			for (int i=0;i<mEntries.size();i++) {
+				Entry e = mEntries.get(i);
+				if (!e.mActive || e.mCapped)
+					continue;
+
+				// share of the budget >= demand, i.e. budget * priority / weight >= 1.
+				if (budget * e.mPriority >= weight) {
+					e.mCapped = true;
+					budget -= e.mDemand;
+					changed = true;
+				}
+			}
+		}
+
+		for (int i=0;i<mEntries.size();i++) {
+			Entry e = mEntries.get(i);
+			if (!e.mActive || e.mCapped || budget <= 0 || weight <= 0)
+				e.mPeriod = e.getTarget();
+			else
+				// cost / share, where share = budget * priority * demand / weight.
+				e.mPeriod = e.getTarget() * weight / (budget * e.mPriority);
+		}
+
+		if (DEBUG) msg ("rebalance(): demand=" + demand + " budget=" + mBudget + " DPNs=" + mEntries.size());
+	}
+
+	private static int clampPeriod (int periodMillis) {
+		return Math.max(MIN_PERIOD_MILLIS, Math.min(periodMillis, MAX_PERIOD_MILLIS));
+	}
+
+	private static double round2 (double d) {
+		return Math.round(d * 100) / 100.0;
+	}
+
+	/**
+	 * @return - overall demand vs budget, and for each DPN its target rate, the rate we're going for, the rate it actually got, and what a poll costs.
+	 */
+	public synchronized GeneralStats getStats () {
+		GeneralStats gs = new GeneralStats();
+
+		gs.setStat("DPNs", mEntries.size());
+		gs.setStat("demandPct", Math.round(mDemand * 100));
+		gs.setStat("budgetPct", Math.round(mBudget * 100));
+		gs.setStat("saturated", "" + (mDemand > mBudget));
+
+		for (int i=0;i<mEntries.size();i++) {
+			Entry e = mEntries.get(i);
+			gs.setStat(e.DPN + ".targetHz", round2(1000.0 / e.getTarget()));
+			gs.setStat(e.DPN + ".scheduledHz", round2(1000.0 / e.mPeriod));
+			gs.setStat(e.DPN + ".achievedHz", (e.mInterval > 0) ? round2(1000.0 / e.mInterval) : 0);
+			gs.setStat(e.DPN + ".costMs", Math.round(e.mCost));
+			gs.setStat(e.DPN + ".priority", e.mPriority);
+			gs.setStat(e.DPN + ".polls", e.mPolls);
+			if (!e.mActive)
+				gs.setStat(e.DPN + ".skipped", "true");
+		}
+
+		return gs;
+	}
+
+	private void msg (String message) {
+		Log.d("PS",message);
+	}
+}
@@ -0,0 +1,164 @@
+/**
+ * (C) 2011 libvoyager is licensed under a Creative Commons Attribution-NonCommercial 3.0 Unported License.
+ * Permissions beyond the scope of this license may be available at http://www.gtosoft.com. You can download,
+ * use, modify the code as long as you do not include it as part of commercial software.
+ */
+
+package com.gtosoft.libvoyager.util;
+
+/**
+ * Everything we need to request one DPN and decode the answer, worked out once from its obdRequest row instead of on every request:
+ * the request text (and the same with each possible response count digit on the end), the mode and PID the ack is made of,
+ * the compiled formula (unit conversion is already in it - see UnitConverter), the number of data bytes, and which ECU to listen to.
+ *
+ * Get one from DashDB.getPreparedRequest and hang on to it. If the DB's cache gets thrown out (units changed) the old ones
+ * go stale, see isStale.
+ * @author brad
+ */
+
+public class PreparedRequest {
+
+	// what kind of formula we have. The special ones decode from the hex text, the math ones from the bytes.
+	public static final int KIND_NONE	= 0;
+	public static final int KIND_MATH	= 1;
+	public static final int KIND_VIN	= 2;
+	public static final int KIND_DTC	= 3;
+	public static final int KIND_BINARY	= 4;
+	public static final int KIND_AT		= 5;
+
+	public final String DPN;
+	// the request as stored in the DB, for example "010C".
+	public final String request;
+	// formula after unit conversion.
+	public final String formula;
+	public final int kind;
+	// compiled formula, null unless kind is KIND_MATH.
+	public final OBDFormula compiled;
+
+	// first and second byte of the request, -1 if there isn't one (AT commands, single byte requests). The ack is mode + 0x40 then the PID.
+	public final int mode;
+	public final int pid;
+
+	// data bytes the vehicle sends back, 0 if we don't know.
+	public final int numDataBytes;
+
+	// if the DB says only one ECU's answer counts (obdRequest.fromHeader), its CANFrame key. -1 to take all of them.
+	public final long fromHeader;
+
+	// obdRequest.frequency: 1 to poll as often as possible, bigger for less often, 0 if the DB doesn't say. See PollScheduler.periodFromFrequency.
+	public final int frequency;
+
+	// request with a response count digit on the end, by count. Made when first needed.
+	private final String [] mWithCount = new String[16];
+
+	private volatile boolean mStale = false;
+
+	public PreparedRequest (String DPN, String request, String formula, int numDataBytes, String fromHeader) {
+		this(DPN, request, formula, numDataBytes, fromHeader, 0);
+	}
+
+	public PreparedRequest (String DPN, String request, String formula, int numDataBytes, String fromHeader, int frequency) {
+		this.DPN = DPN;
+		this.frequency = frequency;
+		this.request = request;
+		this.formula = (formula != null) ? formula : "";
+		this.numDataBytes = numDataBytes;
+
+		long hdr = -1;
+		if (fromHeader != null && fromHeader.length() > 0)
+			hdr = CANFrame.headerKey(fromHeader);
+		this.fromHeader = hdr;
+
+		// mode and PID, from the first two bytes.
+		int m = -1;
+		int p = -1;
+		if (!request.startsWith("AT")) {
+			int digits = 0;
+			int v = 0;
+			for (int i=0;i<request.length() && digits < 4;i++) {
+				char c = request.charAt(i);
+				if (c == ' ') continue;
+				int n = CANFrame.nibble(c);
+				if (n < 0) {
+					m = -1;
+					p = -1;
+					break;
+				}
+				v = (v << 4) | n;
+				digits++;
+				if (digits == 2) m = v;
+				if (digits == 4) p = v & 0xFF;
+			}
+		}
+		this.mode = m;
+		this.pid = p;
+
+		if (request.startsWith("AT"))
+			kind = KIND_AT;
+		else if (this.formula.length() < 1)
+			kind = KIND_NONE;
+		else if (this.formula.equals("VIN"))
+			kind = KIND_VIN;
+		else if (this.formula.equals("DTC"))
+			kind = KIND_DTC;
+		else if (this.formula.equals("BINARY"))
+			kind = KIND_BINARY;
+		else if (GTOMath.getCompiledFormula(this.formula) != null)
+			kind = KIND_MATH;
+		else
+			kind = KIND_NONE;
+
+		compiled = (kind == KIND_MATH) ? GTOMath.getCompiledFormula(this.formula) : null;
+	}
+
+	/**
+	 * @param count - number of responses to tell the ELM to wait for, 1-15. 0 for no count.
+	 * @return - the request text to send, for example "010C" or "010C1".
+	 */
+	public String getRequest (int count) {
+		if (count < 1 || count >= mWithCount.length)
+			return request;
+
+		String s = mWithCount[count];
+		if (s == null) {
+			s = request + Integer.toHexString(count).toUpperCase();
+			mWithCount[count] = s;
+		}
+		return s;
+	}
+
+	/**
+	 * Decode entry i of a parsed response.
+	 * @param ELMProtocolNumber - for DTCs, which get parsed from the whole response.
+	 * @param response - the whole response, for DTCs.
+	 * @return - the decoded value, blank if it can't be decoded.
+	 */
+	public String decode (int ELMProtocolNumber, String response, OBDResponses r, int i) {
+		switch (kind) {
+			case KIND_MATH:
+				int len = r.getLength(i);
+				if (len < 1 || len < compiled.bytesNeeded)
+					return "";
+				return compiled.evaluate(r.getInts(i), len);
+			case KIND_NONE:
+				return "";
+			default:
+				return GTOMath.decodeAutoDetect(ELMProtocolNumber, request, formula, response, r.getHexBytes(i));
+		}
+	}
+
+	/**
+	 * @return - true if the DB has since thrown out its cache (units changed, ...). Get a new one from DashDB.
+	 */
+	public boolean isStale () {
+		return mStale;
+	}
+
+	public void setStale () {
+		mStale = true;
+	}
+
+	public String toString () {
+		return DPN + "=" + request + " (" + formula + ")";
+	}
+}
@@ -0,0 +1,205 @@
+/**
+ * (C) 2011 libvoyager is licensed under a Creative Commons Attribution-NonCommercial 3.0 Unported License.
+ * Permissions beyond the scope of this license may be available at http://www.gtosoft.com. You can download,
+ * use, modify the code as long as you do not include it as part of commercial software.
+ */
+
+package com.gtosoft.libvoyager.util;
+
+import java.util.HashMap;
+import java.util.Iterator;
+
+import android.util.Log;
+
+import com.gtosoft.libvoyager.db.DashDB;
+
+/**
+ * After each OBD request the ELM waits out its whole ATST timeout in case another ECU has something to say.
+ * If we tack the number of expected responses onto the end of the request ("010C" becomes "010C1"), the ELM
+ * returns as soon as that many responses have arrived.
+ *
+ * We learn the count per DPN by watching how many ECUs answer. Once we've seen the same count enough times in a
+ * row we start using it. If a request that carried a count comes back short, we forget what we learned and start over.
+ * Learned counts are saved in the profiles table per VIN, so the next drive in the same car starts out fast.
+ *
+ * Only single-frame responses are eligible - that way one ECU == one response, however the ELM counts them.
+ * @author brad
+ */
+
+public class ResponseCountLearner {
+
+	final boolean DEBUG = false;
+
+	// profiles table type for learned counts. SubType is the VIN, key is the DPN.
+	public static final String PROFILE_TYPE = "RESPONSECOUNT";
+
+	// how many times in a row we need to see the same count before we trust it.
+	final int CONFIRMATIONS_NEEDED = 3;
+
+	// The ELM takes a single hex digit.
+	final int MAX_COUNT = 15;
+
+	DashDB ddb = null;
+
+	// VIN of the car we're connected to, or blank if we don't know it yet. Nothing gets saved until we know it.
+	String mVIN = "";
+
+	// key=DPN, value=learned (trusted) response count.
+	HashMap<String,Integer> mhmLearned = new HashMap<String,Integer>();
+	// key=DPN, value=count we're in the middle of confirming.
+	HashMap<String,Integer> mhmCandidate = new HashMap<String,Integer>();
+	// key=DPN, value=number of times in a row we've seen the candidate count.
+	HashMap<String,Integer> mhmCandidateSeen = new HashMap<String,Integer>();
+
+	GeneralStats mgStats = new GeneralStats();
+	int mDecorated 		= 0;
+	int mLearnedCount 	= 0;
+	int mInvalidations 	= 0;
+
+	public ResponseCountLearner (DashDB d) {
+		ddb = d;
+	}
+
+	/**
+	 * Tell us which car we're talking to. Loads whatever we learned about it last time, and saves anything learned before we knew the VIN.
+	 */
+	public synchronized void setVIN (String VIN) {
+		if (VIN == null || VIN.length() < 1 || VIN.equals(mVIN))
+			return;
+
+		String previousVIN = mVIN;
+		mVIN = VIN;
+
+		Iterator<String> i;
+		if (previousVIN == null || previousVIN.length() < 1) {
+			// counts learned before we had a VIN belong to this car too.
+			i = mhmLearned.keySet().iterator();
+			while (i.hasNext()) {
+				String DPN = i.next();
+				ddb.setProfileValue(PROFILE_TYPE, mVIN, DPN, "" + mhmLearned.get(DPN));
+			}
+		} else {
+			// a different car. What we learned about the last one doesn't apply here.
+			mhmLearned.clear();
+			mhmCandidate.clear();
+			mhmCandidateSeen.clear();
+		}
+
+		HashMap<String,String> hmSaved = ddb.restoreHashmapFromStorage(PROFILE_TYPE, mVIN);
+		i = hmSaved.keySet().iterator();
+		while (i.hasNext()) {
+			String DPN = i.next();
+			int count = (int) DashDB.safeStringToDouble(hmSaved.get(DPN));
+			// zero means it was invalidated.
+			if (count > 0 && count <= MAX_COUNT && !mhmLearned.containsKey(DPN))
+				mhmLearned.put(DPN, count);
+		}
+
+		if (DEBUG) msg ("VIN=" + VIN + " restored " + hmSaved.size() + " response counts.");
+	}
+
+	/**
+	 * @return - true if responses to this request always fit in a single CAN frame, so the response count is the ECU count.
+	 */
+	public static boolean isEligible (PreparedRequest pr) {
+		// 7 bytes per single frame: mode, pid byte(s), data.
+		if (pr.mode == 0x01)
+			return (pr.numDataBytes > 0 && pr.numDataBytes <= 5);
+		if (pr.mode == 0x22)
+			return (pr.numDataBytes > 0 && pr.numDataBytes <= 4);
+
+		return false;
+	}
+
+	/**
+	 * @return - the request with the response count digit tacked on if we've learned it, for example "010C1", otherwise pr.request itself (the same object). 
+	 */
+	public synchronized String decorate (PreparedRequest pr) {
+		Integer count = mhmLearned.get(pr.DPN);
+		if (count == null)
+			return pr.request;
+
+		mDecorated++;
+		return pr.getRequest(count);
+	}
+
+	/**
+	 * Report how a request went, so we can learn from it.
+	 * @param pr - what was requested.
+	 * @param decorated - true if the request went out with a count digit (the result of decorate() differed from the request).
+	 * @param responses - number of ECUs that answered, all of them - the ELM counts the ones we don't listen to (fromHeader) too.
+	 * @param truncated - true if any of the answers had fewer data bytes than expected.
+	 */
+	public synchronized void observe (PreparedRequest pr, boolean decorated, int responses, boolean truncated) {
+		String DPN = pr.DPN;
+		Integer learned = mhmLearned.get(DPN);
+
+		if (decorated) {
+			// came back short? maybe the ELM gave up on a slow ECU, maybe the count is just wrong. Either way, forget it.
+			if (learned != null && (truncated || responses < learned)) {
+				if (DEBUG) msg ("Invalidating response count for " + DPN + ". expected=" + learned + " got=" + responses + " truncated=" + truncated);
+				forget(DPN);
+				mInvalidations++;
+			}
+			return;
+		}
+
+		// nothing to learn from a bad or empty response.
+		if (truncated || responses < 1 || responses > MAX_COUNT || !isEligible(pr)) {
+			mhmCandidateSeen.remove(DPN);
+			return;
+		}
+
+		Integer candidate = mhmCandidate.get(DPN);
+		int seen = 0;
+		if (candidate != null && candidate == responses && mhmCandidateSeen.containsKey(DPN))
+			seen = mhmCandidateSeen.get(DPN);
+
+		seen++;
+		mhmCandidate.put(DPN, responses);
+		mhmCandidateSeen.put(DPN, seen);
+
+		if (seen >= CONFIRMATIONS_NEEDED) {
+			mhmLearned.put(DPN, responses);
+			mhmCandidate.remove(DPN);
+			mhmCandidateSeen.remove(DPN);
+			mLearnedCount++;
+
+			if (mVIN.length() > 0)
+				ddb.setProfileValue(PROFILE_TYPE, mVIN, DPN, "" + responses);
+
+			if (DEBUG) msg ("Learned response count for " + DPN + ": " + responses);
+		}
+	}
+
+	private void forget (String DPN) {
+		mhmLearned.remove(DPN);
+		mhmCandidate.remove(DPN);
+		mhmCandidateSeen.remove(DPN);
+
+		if (mVIN.length() > 0)
+			ddb.setProfileValue(PROFILE_TYPE, mVIN, DPN, "0");
+	}
+
+	/**
+	 * @return - the learned response count for the given DPN, or 0 if we don't have one.
+	 */
+	public synchronized int getLearnedCount (String DPN) {
+		Integer count = mhmLearned.get(DPN);
+		if (count == null) return 0;
+		return count;
+	}
+
+	public synchronized GeneralStats getStats () {
+		mgStats.setStat("vin", mVIN);
+		mgStats.setStat("known", mhmLearned.size());
+		mgStats.setStat("learned", mLearnedCount);
+		mgStats.setStat("decorated", mDecorated);
+		mgStats.setStat("invalidations", mInvalidations);
+		return mgStats;
+	}
+
+	private void msg (String message) {
+		Log.d("RCL",message);
+	}
+}
@@ -6,25 +6,49 @@
 
 package com.gtosoft.libvoyager.util;
 
-import java.util.Iterator;
-import java.util.TreeSet;
+import java.util.ArrayList;
+import java.util.HashMap;
 
 import android.util.Log;
 
+import com.gtosoft.libvoyager.android.ELMCommandQueue;
 import com.gtosoft.libvoyager.session.OBD2Session;
 
 
+/**
+ * Polls a set of DPNs in the background, each one as often as PollScheduler says: per DPN target periods (from obdRequest.frequency
+ * unless the caller gives one), earliest deadline first, slowed down proportionally when the link can't keep up. 
+ * Every request fires the usual DataArrived events from PIDDecoder, which is where the values go. 
+ */
 public class RoutineScan {
 	
 	int scanLoopDelay = 0;
+
+	// longest we sleep between passes, so a newly added DPN doesn't wait around for the next deadline. 
+	static final int MAX_IDLE_MILLIS = 250;
 	
 	final boolean DEBUG = false;
 	
 	int successfulRequests = 0;
+
+	// On CAN, combine mode 01 DPNs into multi-PID requests. 
+	boolean mBatchingEnabled = true;
+	int mBatchRequests = 0;
+	int mBatchedDPNs = 0;
+	int mBatchFallbacks = 0;
 	
 	GeneralStats mgStats = new GeneralStats();
 	
-	TreeSet<String> mDPNs = new TreeSet<String> ();
+	// the DPNs we scan, and when each one is due next. 
+	PollScheduler mScheduler = new PollScheduler();
+
+	// scratch lists for requestDueDPNs(). Only touched by the scan thread. 
+	ArrayList<String> mDueDPNs = new ArrayList<String>();
+	ArrayList<PreparedRequest> mDue = new ArrayList<PreparedRequest>();
+	ArrayList<PreparedRequest> mSingles = new ArrayList<PreparedRequest>();
+
+	// DPN -> its prepared request, so each scan is just a field read per DPN. Only touched by the scan thread. 
+	HashMap<String,PreparedRequest> mhmPrepared = new HashMap<String,PreparedRequest>();
 	
 	OBD2Session mOBD = null;
 	PIDDecoder  mPD  = null;
@@ -57,19 +81,21 @@ public class RoutineScan {
 
 
 					// If we're not connected, sleep a bit. If we're connected, then scan the DPNs!
-					if (mOBD.getCurrentState() < 40 || mDPNs == null || mDPNs.size() < 1) {
+					if (mOBD.getCurrentState() < 40 || mScheduler.size() < 1) {
 						EasyTime.safeSleep(500);
 						continue;
 					} else {
-						// make a request for each and every DPN in the set. 
-						requestAllDPNs();
+						// request whatever DPNs are due. 
+						requestDueDPNs();
 					}
 
 					if (scanLoopDelay > 0) 
 						EasyTime.safeSleep(scanLoopDelay);
 					
-					// we shouldn't have to sleep here. find out what's going wrong causing this thing to sloop so crazy fast. 
-					EasyTime.safeSleep(100);
+					// sleep until the next DPN is due. 
+					long wait = mScheduler.getNextDue() - System.currentTimeMillis();
+					if (wait > 0)
+						EasyTime.safeSleep((int) Math.min(wait, MAX_IDLE_MILLIS));
 				}// end of while. 
 			}// end of run().
 		};// end of mscanthread definition. 
@@ -77,7 +103,7 @@ public class RoutineScan {
 	}
 
 	/**
-	 * sets the number of milliseconds to pause between each iteration of the routine scan. default is zero. 
+	 * sets the number of milliseconds to pause between each iteration of the routine scan, on top of waiting for the next DPN to come due. default is zero. 
 	 * @param delayMillis
 	 */
 	public void setScanLoopDelay (int delayMillis) {
@@ -85,34 +111,88 @@ public class RoutineScan {
 	}
 	
 	/**
-	 * For each DPN in the set, make an OBD request for it. This triggers PidDecoder to make a request, and then a subsequent DataArrived event gets fired, which our parent is hopefully listening for. 
+	 * Make an OBD request for each DPN that's due, earliest deadline first. This triggers PidDecoder to make a request, and then a subsequent DataArrived event gets fired, which our parent is hopefully listening for. 
+	 * Each request gets timed and the scheduler told about it, so it knows what the DPNs cost and when they're due next. 
 	 * @return
 	 */
-	private boolean requestAllDPNs() {
+	private boolean requestDueDPNs() {
 		
 		// sanity check.
 		if (mOBD.getCurrentState() < OBD2Session.STATE_OBDCONNECTED) {
 			// Warning! We're
-			if (DEBUG) msg ("not getting DTCs because OBD not connected. state=" + mOBD.getCurrentState());
+			if (DEBUG) msg ("not scanning because OBD not connected. state=" + mOBD.getCurrentState());
 			return false;
 		}
 		
-		Iterator<String> i = mDPNs.iterator();
-		
-		String thisDPN = "";
-		while (i.hasNext()) {
-			
-			// a try-catch is necessary because during a shutdown, various objects may suddenly become unavailable and so we can't reference them. 
-			try {
-				thisDPN = i.next();
-			} catch (Exception e) {
-				if (DEBUG) msg ("ERROR while iterating through DPNs. e=" + e.getMessage());
-				// bust out of the loop. 
-				break;
+		long now = System.currentTimeMillis();
+		ArrayList<String> DPNs = mDueDPNs;
+		if (mScheduler.getDue(now, DPNs) < 1)
+			return true;
+
+		// leave out whatever the car doesn't support, it sits out for a while. The others get their target period from the DB if they don't have one yet. 
+		ArrayList<PreparedRequest> requests = mDue;
+		requests.clear();
+		for (int j=0;j<DPNs.size();j++) {
+			String thisDPN = DPNs.get(j);
+			PreparedRequest pr = getPreparedRequest(thisDPN);
+			if (pr == null || !mOBD.isSupported(pr)) {
+				mScheduler.skipped(thisDPN, now);
+				continue;
 			}
 
+			if (mScheduler.getTargetPeriod(thisDPN) == 0)
+				mScheduler.setTargetPeriod(thisDPN, PollScheduler.periodFromFrequency(pr.frequency));
+			requests.add(pr);
+		}
+		mgStats.setStat("unsupportedDPNs", "" + mScheduler.getSkippedCount());
+
+		// CAN networks: send mode 01 DPNs up to six at a time. Anything that can't be batched gets requested on its own below. 
+		if (mBatchingEnabled == true && mOBD.isCANProtocol()) {
+			ArrayList<PreparedRequest> singles = mSingles;
+			singles.clear();
+			ArrayList<OBDBatchPlanner.Batch> batches = mOBD.getBatchPlanner().plan(requests, singles);
+
+			for (int b=0;b<batches.size() && mThreadsOn == true;b++) {
+				OBDBatchPlanner.Batch thisBatch = batches.get(b);
+
+				// a batch of one is just a single request. 
+				if (thisBatch.size() < 2) {
+					singles.add(thisBatch.getPreparedRequest(0));
+					continue;
+				}
+
+				long start = System.currentTimeMillis();
+				if (mPD.getDataViaOBD(thisBatch, ELMCommandQueue.PRIORITY_BACKGROUND)) {
+					mBatchRequests++;
+					mBatchedDPNs += thisBatch.size();
+				} else {
+					mBatchFallbacks++;
+				}
+
+				// everybody in the batch pays their share of the time it took. 
+				long end = System.currentTimeMillis();
+				for (int j=0;j<thisBatch.size();j++)
+					mScheduler.polled(thisBatch.DPNs.get(j), end, (double) (end - start) / thisBatch.size());
+
+				successfulRequests += thisBatch.size();
+			}
+
+			mgStats.setStat("batchRequests","" + mBatchRequests);
+			mgStats.setStat("batchedDPNs","" + mBatchedDPNs);
+			mgStats.setStat("batchFallbacks","" + mBatchFallbacks);
+
+			requests = singles;
+		}
+
+		for (int j=0;j<requests.size() && mThreadsOn == true;j++) {
+			PreparedRequest pr = requests.get(j);
+
 			// Make a request but we don't care about the response in this context. Rather, the mere fact that we made the request, will kick off logic within the pidDecoder to fire off "new data arrived" events, which is what the other classes will be looking for. 
-			mPD.getDataViaOBD(thisDPN);
+			// Background priority, so one-off requests from the UI or SVIP don't have to wait for a whole scan loop. 
+			long start = System.currentTimeMillis();
+			mPD.getDataViaOBD(pr, ELMCommandQueue.PRIORITY_BACKGROUND);
+			long end = System.currentTimeMillis();
+			mScheduler.polled(pr.DPN, end, end - start);
 			
 			// stats - log number of successful stats. 
 			successfulRequests++;
@@ -122,6 +202,22 @@ public class RoutineScan {
 		return true;
 	}
 	
+	/**
+	 * @return - the prepared request for the given DPN. Made the first time, and again if the old one went stale. Null if there's no such DPN. 
+	 */
+	private PreparedRequest getPreparedRequest (String DPN) {
+		PreparedRequest pr = mhmPrepared.get(DPN);
+		if (pr == null || pr.isStale()) {
+			pr = mOBD.getPreparedRequest(DPN);
+			if (pr == null) {
+				if (DEBUG) msg ("No obdRequest for DPN " + DPN);
+				return null;
+			}
+			mhmPrepared.put(DPN, pr);
+		}
+		return pr;
+	}
+
 	public void shutdown () {
 		mThreadsOn = false;
 
@@ -134,19 +230,44 @@ public class RoutineScan {
 	}
 
 	/**
-	 * Add a dpn to the routine scan set!
+	 * Turn multi-PID batching of mode 01 requests on or off. Default is on. It only ever kicks in on CAN protocols. 
+	 * @param enabled
+	 */
+	public void setBatchingEnabled (boolean enabled) {
+		mBatchingEnabled = enabled;
+	}
+
+	/**
+	 * Add a dpn to the routine scan set! It gets polled as often as its obdRequest.frequency says. 
 	 * @param DPN
 	 */
 	public void addDPN (String DPN) {
-		if (!mDPNs.contains(DPN))
-			mDPNs.add(DPN);
+		if (!mScheduler.contains(DPN))
+			mScheduler.add(DPN, 0, PollScheduler.PRIORITY_NORMAL);
+	}
+
+	/**
+	 * Add a dpn to the routine scan set, or change how often it gets polled if it's already there. 
+	 * @param DPN
+	 * @param periodMillis - how often we'd like a fresh value. 0 to go by obdRequest.frequency. 
+	 * @param priority - PollScheduler.PRIORITY_NORMAL or more. When the link can't keep up, higher priority DPNs get a bigger share of it. 
+	 */
+	public void addDPN (String DPN, int periodMillis, int priority) {
+		mScheduler.add(DPN, periodMillis, priority);
+	}
+
+	/**
+	 * Set how much of the link's time the routine scan may use, 0.05 to 1. See PollScheduler.setBudget. 
+	 */
+	public void setLinkBudget (double budget) {
+		mScheduler.setBudget(budget);
 	}
 
 	/**
 	 * Remove all DPNs from the routine scan set. 
 	 */
 	public void removeAllDPNs () {
-		mDPNs.clear();
+		mScheduler.clear();
 	}
 
 	/**
@@ -154,10 +275,11 @@ public class RoutineScan {
 	 * @param DPN
 	 */
 	public void removeDPN (String DPN) {
-		mDPNs.remove(DPN);
+		mScheduler.remove(DPN);
 	}
 
 	public GeneralStats getStats () {
+		mgStats.merge("sched", mScheduler.getStats());
 		return mgStats;
 	}
 
@@ -0,0 +1,293 @@
+/**
+ * (C) 2011 libvoyager is licensed under a Creative Commons Attribution-NonCommercial 3.0 Unported License.
+ * Permissions beyond the scope of this license may be available at http://www.gtosoft.com. You can download,
+ * use, modify the code as long as you do not include it as part of commercial software.
+ */
+
+package com.gtosoft.libvoyager.util;
+
+import java.util.HashMap;
+import java.util.Iterator;
+
+import android.util.Log;
+
+import com.gtosoft.libvoyager.android.ELMCommandQueue;
+import com.gtosoft.libvoyager.db.DashDB;
+import com.gtosoft.libvoyager.session.OBD2Session;
+
+/**
+ * Which mode 01 PIDs the car supports, so we don't keep asking for ones it doesn't and sitting out an ELM timeout (NO DATA) every time.
+ *
+ * On connect we ask 0100, and each ECU answers with a 32 bit bitmap of PIDs 01-20. If the last bit (PID 20) is set, it supports 0120,
+ * which tells us about 21-40, and so on up to E0. We keep each ECU's bitmaps, and a PID counts as supported if any ECU supports it.
+ *
+ * Bitmaps get saved in the profiles table per VIN (type SUPPORTEDPIDS, subtype VIN, key ECU header, value 8 words in hex),
+ * so reconnecting to the same car skips the discovery.
+ *
+ * Until discovery has happened, everything counts as supported. Same goes for a range whose request failed (NO DATA, garbage) and 
+ * everything after it - we don't know about those, so they're left alone, and the bitmaps don't get saved so the next connect tries again.
+ * @author brad
+ */
+
+public class SupportedPIDs {
+
+	final boolean DEBUG = false;
+
+	public static final String PROFILE_TYPE = "SUPPORTEDPIDS";
+
+	// 0100, 0120, ... 01E0. 8 bitmaps of 32 PIDs.
+	static final int NUM_RANGES = 8;
+
+	DashDB ddb = null;
+
+	// VIN the bitmaps belong to. Blank if we don't know it.
+	String mVIN = "";
+
+	// ECU header -> its bitmaps, word 0 is PIDs 01-20 with PID 01 in the top bit.
+	HashMap<String,int[]> mhmByECU = new HashMap<String,int[]>();
+
+	// all ECUs' bitmaps OR'ed together. Null until discovery has happened. Replaced, never modified, so it can be read without locking.
+	volatile int [] mSupported = null;
+
+	GeneralStats mgStats = new GeneralStats();
+	int mDiscoveries = 0;
+	int mRestores = 0;
+	int mSkipped = 0;
+	int mFailedRanges = 0;
+
+	/**
+	 * Whatever sends the range requests for discover(). Normally the OBD2Session. 
+	 */
+	public interface Requester {
+		/**
+		 * @return - the raw response, up to the prompt. 
+		 */
+		public String obdCommand (String request);
+	}
+
+	public SupportedPIDs (DashDB d) {
+		ddb = d;
+	}
+
+	/**
+	 * Tell us which car we're connected to. If we already know its PIDs (from this session or from the profiles table) we're done,
+	 * otherwise whatever we had gets thrown out and isDiscovered() returns false until discover() has run.
+	 * @param VIN - the VIN, or blank if the car won't tell us.
+	 * @return - true if we know the supported PIDs for this car.
+	 */
+	public synchronized boolean setVIN (String VIN) {
+		if (VIN == null)
+			VIN = "";
+
+		if (VIN.length() > 0 && VIN.equals(mVIN) && mSupported != null)
+			return true;
+
+		mVIN = VIN;
+		mhmByECU.clear();
+		mSupported = null;
+
+		if (VIN.length() < 1)
+			return false;
+
+		HashMap<String,String> hmSaved = ddb.restoreHashmapFromStorage(PROFILE_TYPE, mVIN);
+		Iterator<String> i = hmSaved.keySet().iterator();
+		while (i.hasNext()) {
+			String hedr = i.next();
+			int [] words = fromHex(hmSaved.get(hedr));
+			if (words != null)
+				mhmByECU.put(hedr, words);
+		}
+
+		if (mhmByECU.size() < 1)
+			return false;
+
+		mSupported = union();
+		mRestores++;
+		if (DEBUG) msg ("VIN=" + VIN + " restored supported PIDs for " + mhmByECU.size() + " ECUs.");
+		return true;
+	}
+
+	/**
+	 * Walk the supported-PID ranges (0100, 0120, ...) for as long as some ECU says there's another one.
+	 * @return - true if at least one ECU answered 0100.
+	 */
+	public boolean discover (final OBD2Session sess) {
+		return discover(sess.getELMProtocolNumber(), new Requester() {
+			public String obdCommand (String request) {
+				return sess.obdCommand(request, ELMCommandQueue.PRIORITY_NORMAL);
+			}
+		});
+	}
+
+	/**
+	 * Same as discover(OBD2Session), with the requests going through the given requester. 
+	 * @param protocol - ELM protocol number, for the packet parser. 
+	 */
+	public boolean discover (int protocol, Requester req) {
+		OBDPacketParser opp = new OBDPacketParser(protocol);
+		OBDResponses r = new OBDResponses();
+		HashMap<String,int[]> hmFound = new HashMap<String,int[]>();
+
+		// first range nobody answered, even though somebody said to ask about it. NUM_RANGES if there wasn't one. 
+		int failedRange = NUM_RANGES;
+
+		for (int range=0;range<NUM_RANGES;range++) {
+			int pid = range * 0x20;
+			String request = "01" + hex2(pid);
+			String response = req.obdCommand(request);
+
+			opp.parse(0x01, pid, response, r);
+
+			// keep going only if somebody supports the next range.
+			boolean more = false;
+			boolean answered = false;
+			for (int i=0;i<r.size();i++) {
+				if (r.getLength(i) < 4)
+					continue;
+
+				int word = (r.getByte(i, 0) << 24) | (r.getByte(i, 1) << 16) | (r.getByte(i, 2) << 8) | r.getByte(i, 3);
+				int [] words = hmFound.get(r.getHeader(i));
+				if (words == null) {
+					words = new int[NUM_RANGES];
+					hmFound.put(r.getHeader(i), words);
+				}
+				words[range] = word;
+				answered = true;
+
+				if ((word & 1) != 0)
+					more = true;
+			}
+
+			if (DEBUG) msg ("discover(): " + request + " -> " + r);
+
+			// nothing usable came back. This range and the ones after it stay unknown. 
+			if (!answered) {
+				failedRange = range;
+				break;
+			}
+
+			if (!more)
+				break;
+		}
+
+		if (hmFound.size() < 1) {
+			if (DEBUG) msg ("discover(): nobody answered 0100. Leaving all PIDs enabled.");
+			return false;
+		}
+
+		synchronized (this) {
+			mhmByECU = hmFound;
+			int [] supported = union();
+			for (int j=failedRange;j<NUM_RANGES;j++)
+				supported[j] = -1;
+			mSupported = supported;
+			mDiscoveries++;
+
+			// only save a complete set of bitmaps, otherwise the failed range would count as unsupported on this car for good. 
+			if (failedRange < NUM_RANGES) {
+				mFailedRanges++;
+				if (DEBUG) msg ("discover(): range " + hex2(failedRange * 0x20) + " failed. Not saving the bitmaps for VIN " + mVIN);
+			} else if (mVIN.length() > 0) {
+				Iterator<String> i = mhmByECU.keySet().iterator();
+				while (i.hasNext()) {
+					String hedr = i.next();
+					ddb.setProfileValue(PROFILE_TYPE, mVIN, hedr, toHex(mhmByECU.get(hedr)));
+				}
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * @return - true once we know the supported PIDs, either from discover() or the profiles table.
+	 */
+	public boolean isDiscovered () {
+		return mSupported != null;
+	}
+
+	/**
+	 * @return - false if we know that no ECU supports the given mode 01 PID. True if it does, or it's not mode 01, or we don't know yet.
+	 */
+	public boolean isSupported (int mode, int pid) {
+		int [] supported = mSupported;
+		if (supported == null || mode != 0x01 || pid < 1 || pid % 0x20 == 0)
+			return true;
+
+		int bit = pid - 1;
+		if (bit / 32 >= supported.length)
+			return true;
+
+		return ((supported[bit / 32] >>> (31 - bit % 32)) & 1) != 0;
+	}
+
+	/**
+	 * Same as isSupported(int, int) for a prepared request. Counts the ones we turn away, for the stats.
+	 */
+	public boolean isSupported (PreparedRequest pr) {
+		if (isSupported(pr.mode, pr.pid))
+			return true;
+
+		mSkipped++;
+		return false;
+	}
+
+	private int [] union () {
+		int [] u = new int[NUM_RANGES];
+		Iterator<int[]> i = mhmByECU.values().iterator();
+		while (i.hasNext()) {
+			int [] words = i.next();
+			for (int j=0;j<NUM_RANGES;j++)
+				u[j] |= words[j];
+		}
+		return u;
+	}
+
+	private static String hex2 (int b) {
+		String s = Integer.toHexString(b).toUpperCase();
+		return (s.length() < 2) ? "0" + s : s;
+	}
+
+	static String toHex (int [] words) {
+		StringBuilder sb = new StringBuilder(words.length * 8);
+		for (int i=0;i<words.length;i++) {
+			String s = Integer.toHexString(words[i]).toUpperCase();
+			for (int j=s.length();j<8;j++)
+				sb.append('0');
+			sb.append(s);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return - the words, or null if s isn't NUM_RANGES words of hex.
+	 */
+	static int [] fromHex (String s) {
+		if (s == null || s.length() != NUM_RANGES * 8)
+			return null;
+
+		int [] words = new int[NUM_RANGES];
+		for (int i=0;i<s.length();i++) {
+			int n = CANFrame.nibble(s.charAt(i));
+			if (n < 0)
+				return null;
+			words[i / 8] = (words[i / 8] << 4) | n;
+		}
+		return words;
+	}
+
+	public synchronized GeneralStats getStats () {
+		mgStats.setStat("vin", mVIN);
+		mgStats.setStat("discovered", "" + isDiscovered());
+		mgStats.setStat("ecus", mhmByECU.size());
+		mgStats.setStat("discoveries", mDiscoveries);
+		mgStats.setStat("restores", mRestores);
+		mgStats.setStat("skipped", mSkipped);
+		mgStats.setStat("failedRanges", mFailedRanges);
+		return mgStats;
+	}
+
+	private void msg (String message) {
+		Log.d("SPID",message);
+	}
+}
@@ -0,0 +1,136 @@
+package com.gtosoft.libvoyager.test;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.gtosoft.libvoyager.util.BitExtractor;
+import com.gtosoft.libvoyager.util.CANFrame;
+import com.gtosoft.libvoyager.util.DPDecoderPlan;
+
+
+/**
+ * Checks BitExtractor against a slow bit-at-a-time version, for every start/length/byte order/signedness on a bunch of payloads.
+ */
+public class BitExtractorTest {
+
+	/**
+	 * Walks the bytes one bit at a time, the way you'd do it by hand.
+	 */
+	private long reference (byte [] data, int startBit, int length, int byteOrder, boolean signed) {
+		long v = 0;
+		for (int i=0;i<length;i++) {
+			if (byteOrder == BitExtractor.INTEL) {
+				// bit i of the value comes from intel bit startBit+i.
+				int pos = startBit + i;
+				int bit = (data[pos / 8] >> (pos % 8)) & 1;
+				v |= ((long) bit) << i;
+			} else {
+				// most significant bit first.
+				int pos = startBit + i;
+				int bit = (data[pos / 8] >> (7 - pos % 8)) & 1;
+				v = (v << 1) | bit;
+			}
+		}
+
+		if (signed && length < 64 && ((v >> (length - 1)) & 1) == 1)
+			v -= 1L << length;
+
+		return v;
+	}
+
+	private long pack (byte [] data) {
+		long p = 0;
+		for (int i=0;i<8;i++)
+			p |= ((long) (data[i] & 0xFF)) << (56 - 8 * i);
+		return p;
+	}
+
+	private void checkAll (byte [] data) {
+		long payload = pack(data);
+		for (int order=BitExtractor.MOTOROLA;order<=BitExtractor.INTEL;order++) {
+			for (int start=0;start<64;start++) {
+				for (int length=1;start+length<=64;length++) {
+					assertEquals("unsigned order=" + order + " " + start + "/" + length,
+							reference(data, start, length, order, false), BitExtractor.extract(payload, start, length, order, false));
+					assertEquals("signed order=" + order + " " + start + "/" + length,
+							reference(data, start, length, order, true), BitExtractor.extract(payload, start, length, order, true));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testAgainstReference() throws Exception {
+		Random r = new Random(12345);
+		byte [] data = new byte[8];
+
+		// the edges: all zeros, all ones, alternating, one bit set.
+		checkAll(data);
+		for (int i=0;i<8;i++) data[i] = (byte) 0xFF;
+		checkAll(data);
+		for (int i=0;i<8;i++) data[i] = (byte) 0xAA;
+		checkAll(data);
+		for (int bit=0;bit<64;bit++) {
+			for (int i=0;i<8;i++) data[i] = 0;
+			data[bit / 8] = (byte) (1 << (bit % 8));
+			checkAll(data);
+		}
+
+		for (int n=0;n<200;n++) {
+			r.nextBytes(data);
+			checkAll(data);
+		}
+	}// end of testAgainstReference.
+
+	@Test
+	public void testKnownValues() throws Exception {
+		long payload = 0x12345678ABCDEF01L;
+
+		assertEquals(0x1234, BitExtractor.extract(payload, 0, 16, BitExtractor.MOTOROLA, false));
+		assertEquals(0x3412, BitExtractor.extract(payload, 0, 16, BitExtractor.INTEL, false));
+		assertEquals(0x01, BitExtractor.extract(payload, 56, 8, BitExtractor.MOTOROLA, false));
+		assertEquals(0x01EF, BitExtractor.extract(payload, 48, 16, BitExtractor.INTEL, false));
+		assertEquals(payload, BitExtractor.extract(payload, 0, 64, BitExtractor.MOTOROLA, false));
+		assertEquals(Long.reverseBytes(payload), BitExtractor.extract(payload, 0, 64, BitExtractor.INTEL, false));
+
+		// 8 bytes with the top bit set, which used to overflow.
+		payload = 0xFFFFFFFFFFFFFFFEL;
+		assertEquals(0xFFFFFFFFFFFFFFFEL, BitExtractor.extract(payload, 0, 64, BitExtractor.MOTOROLA, false));
+		assertEquals(-2, BitExtractor.extract(payload, 56, 8, BitExtractor.MOTOROLA, true));
+		assertEquals(254, BitExtractor.extract(payload, 56, 8, BitExtractor.MOTOROLA, false));
+	}
+
+	@Test
+	public void testMotorolaStartFromDBC() throws Exception {
+		// dbc 7 is the top of byte 0, dbc 0 the bottom of byte 0, dbc 15 the top of byte 1.
+		assertEquals(0, BitExtractor.motorolaStartFromDBC(7));
+		assertEquals(7, BitExtractor.motorolaStartFromDBC(0));
+		assertEquals(8, BitExtractor.motorolaStartFromDBC(15));
+		assertEquals(63, BitExtractor.motorolaStartFromDBC(56));
+	}
+
+	@Test
+	public void testPlanFlags() throws Exception {
+		CANFrame f = new CANFrame();
+		assertTrue(f.parse("7E8 FE FF 10 20"));
+
+		DPDecoderPlan plan = DPDecoderPlan.compile(0, "T", "", "0-15IS,INT");
+		assertTrue(plan.valid);
+		assertEquals(BitExtractor.INTEL, plan.byteOrder);
+		assertTrue(plan.signed);
+		assertEquals(-2, plan.extract(f));
+
+		plan = DPDecoderPlan.compile(0, "T", "", "0-15,INT");
+		assertEquals(0xFEFF, plan.extract(f));
+		assertEquals(2, plan.minBytes);
+
+		plan = DPDecoderPlan.compile(0, "T", "", "16-31I,INT");
+		assertEquals(0x2010, plan.extract(f));
+		assertEquals(4, plan.minBytes);
+
+		assertFalse(DPDecoderPlan.compile(0, "T", "", "60-67,INT").valid);
+	}
+}
@@ -0,0 +1,43 @@
+package com.gtosoft.libvoyager.test;
+
+import com.gtosoft.libvoyager.util.DecodePipeline;
+
+
+/**
+ * Frames per second through DecodePipeline with 1, 2 and 4 shards, doing the same decode work as DecodePipelineTest.
+ * Not a test - timings depend too much on the machine. Run it by hand and compare the shard counts:
+ *   java -cp <classes>:<junit> com.gtosoft.libvoyager.test.DecodePipelineBenchmark
+ */
+public class DecodePipelineBenchmark {
+
+	static final int [] SHARDS = {1, 2, 4};
+	static final int ROUNDS = 3;
+
+	/**
+	 * @return - frames per second.
+	 */
+	static double run (int numShards) throws InterruptedException {
+		DecodePipeline pipe = new DecodePipeline(numShards, 1024, new DecodePipelineTest.Checker(numShards), "bench");
+		pipe.start();
+
+		long start = System.nanoTime();
+		DecodePipelineTest.publishAll(pipe);
+		long elapsed = System.nanoTime() - start;
+		pipe.stop();
+
+		return DecodePipelineTest.NUM_FRAMES / (elapsed / 1e9);
+	}
+
+	public static void main (String [] args) throws InterruptedException {
+		// warm up.
+		run(1);
+
+		System.out.println(Runtime.getRuntime().availableProcessors() + " cores, " + DecodePipelineTest.NUM_FRAMES + " frames per run, best of " + ROUNDS);
+		for (int i=0;i<SHARDS.length;i++) {
+			double best = 0;
+			for (int j=0;j<ROUNDS;j++)
+				best = Math.max(best, run(SHARDS[i]));
+			System.out.println(SHARDS[i] + " shard(s): " + (long) best + " frames/s");
+		}
+	}
+}
@@ -0,0 +1,133 @@
+package com.gtosoft.libvoyager.test;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import com.gtosoft.libvoyager.util.CANFrame;
+import com.gtosoft.libvoyager.util.DPDecoderPlan;
+import com.gtosoft.libvoyager.util.DecodePipeline;
+
+
+/**
+ * Pushes a bunch of frames through DecodePipeline with 1, 2 and 4 shards doing roughly the decode work PIDDecoder does.
+ * Checks nothing gets lost or reordered within an ID. For frames per second, see DecodePipelineBenchmark.
+ */
+public class DecodePipelineTest {
+
+	static final int NUM_IDS 		= 64;
+	static final int NUM_FRAMES 	= 500000;
+
+	static final String [] FORMULAS = {
+		"0-15,DIV4",
+		"8-15,M=1&B=-40",
+		"16-31IS,M=1/10",
+		"24-31,INT",
+		"32-39,HEX",
+		"40-47,BIT",
+	};
+
+	/**
+	 * Per shard, a check that each ID's frames arrive in order, plus some decoding so the shards have something to do.
+	 */
+	static class Checker implements DecodePipeline.FrameHandler {
+		final DPDecoderPlan [] mPlans;
+		final long [][] mLastSeq;
+		final AtomicLong [] mOutOfOrder;
+		final double [] mSink;
+
+		Checker (int numShards) {
+			mPlans = new DPDecoderPlan[FORMULAS.length];
+			for (int i=0;i<FORMULAS.length;i++)
+				mPlans[i] = DPDecoderPlan.compile(i, "DP" + i, "", FORMULAS[i]);
+
+			mLastSeq 	= new long[numShards][NUM_IDS];
+			mOutOfOrder = new AtomicLong[numShards];
+			mSink 		= new double[numShards];
+			for (int i=0;i<numShards;i++) {
+				Arrays.fill(mLastSeq[i], -1);
+				mOutOfOrder[i] = new AtomicLong(0);
+			}
+		}
+
+		public void onFrame (CANFrame f, int shard) {
+			// the sequence number rides in the low 32 bits of the payload.
+			long seq = f.payload & 0xFFFFFFFFL;
+			if (seq <= mLastSeq[shard][f.id])
+				mOutOfOrder[shard].incrementAndGet();
+			mLastSeq[shard][f.id] = seq;
+
+			double sum = 0;
+			for (int i=0;i<mPlans.length;i++) {
+				DPDecoderPlan p = mPlans[i];
+				if (p.decoder.isNumeric())
+					sum += p.decoder.decodeValue(p, p.extract(f));
+				else
+					sum += p.decoder.decode(p, p.extract(f)).length();
+			}
+			mSink[shard] += sum;
+		}
+
+		long getOutOfOrder () {
+			long n = 0;
+			for (int i=0;i<mOutOfOrder.length;i++)
+				n += mOutOfOrder[i].get();
+			return n;
+		}
+	}
+
+	/**
+	 * Publish NUM_FRAMES frames, each ID's with increasing sequence numbers, and wait until they've all been handled.
+	 * The benchmark times this too, so it only does what it has to.
+	 */
+	static void publishAll (DecodePipeline pipe) throws InterruptedException {
+		Random r = new Random(1);
+		long [] seq = new long[NUM_IDS];
+		CANFrame f = new CANFrame();
+		f.dlc = 8;
+
+		for (int i=0;i<NUM_FRAMES;i++) {
+			f.id 		= r.nextInt(NUM_IDS);
+			f.payload 	= ((long) r.nextInt() << 32) | seq[f.id]++;
+			// a real reader would drop it - here we want all of them, so wait for room.
+			while (!pipe.publish(f))
+				Thread.yield();
+		}
+
+		while (pipe.getNumProcessed() < NUM_FRAMES)
+			Thread.sleep(1);
+	}
+
+	private void run (int numShards) throws InterruptedException {
+		Checker c = new Checker(numShards);
+		DecodePipeline pipe = new DecodePipeline(numShards, 1024, c, "test");
+		pipe.start();
+		publishAll(pipe);
+		pipe.stop();
+
+		assertEquals(NUM_FRAMES, pipe.getNumProcessed());
+		assertEquals(0, pipe.getQueueDepth());
+		assertEquals(0, c.getOutOfOrder());
+	}
+
+	@Test
+	public void testNoLossInOrder () throws InterruptedException {
+		run(1);
+		run(2);
+		run(4);
+	}
+
+	@Test
+	public void testSameIdSameShard () {
+		DecodePipeline pipe = new DecodePipeline(4, 16, null, "test");
+		for (int id=0;id<2048;id++) {
+			int shard = pipe.shardFor(CANFrame.key(id, false));
+			assertTrue(shard >= 0 && shard < 4);
+			assertEquals(shard, pipe.shardFor(CANFrame.key(id, false)));
+		}
+	}
+}
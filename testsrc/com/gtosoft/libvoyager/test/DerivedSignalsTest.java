@@ -0,0 +1,199 @@
+package com.gtosoft.libvoyager.test;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.gtosoft.libvoyager.db.DashDB;
+import com.gtosoft.libvoyager.util.CANFrame;
+import com.gtosoft.libvoyager.util.DPDecoderPlan;
+import com.gtosoft.libvoyager.util.DPValue;
+import com.gtosoft.libvoyager.util.EventCallback;
+import com.gtosoft.libvoyager.util.PIDDecoder;
+
+
+/**
+ * Derived datapoints (PIDDecoder.defineDerivedSignal), fed by sniffed frames: the built in VIN and SPEED, wildcard inputs
+ * showing up as they're decoded, loops, and removing one.
+ */
+public class DerivedSignalsTest {
+
+	// 11-bit header -> DPN and formula for each datapoint in it, in decode order.
+	final HashMap<Long,String [][]> mFrames = new HashMap<Long,String [][]>();
+
+	PIDDecoder mDecoder;
+
+	// every value that went out, in order.
+	final ArrayList<DPValue> mValues = new ArrayList<DPValue>();
+
+	private void frame (int id, String [][] datapoints) {
+		mFrames.put(CANFrame.key(id, false), datapoints);
+	}
+
+	/**
+	 * A DashDB with just our frames in it, and no storage.
+	 */
+	private DashDB db () {
+		return new DashDB(null) {
+			public DPDecoderPlan[] getDPSForHDR (String networkID, long headerKey) {
+				String [][] dps = mFrames.get(headerKey);
+				if (dps == null)
+					return null;
+
+				DPDecoderPlan [] plans = new DPDecoderPlan[dps.length];
+				for (int i=0;i<dps.length;i++)
+					plans[i] = DPDecoderPlan.compile(getDPNIndex(dps[i][0]), dps[i][0], "", dps[i][1]);
+				return plans;
+			}
+
+			public HashMap<String,Set<String>> getDPNCANIDsByNetworkID () {
+				return new HashMap<String,Set<String>>();
+			}
+
+			public void clearCachedNetworkIDData () {
+			}
+
+			public String getProfileValue (String proType, String proSubType, String proKey) {
+				return "";
+			}
+
+			public boolean setProfileValue (String proType, String proSubType, String proKey, String proValue) {
+				return true;
+			}
+		};
+	}
+
+	@Before
+	public void setUp () {
+		frame(0x4E1, new String [][] {{"VIN1OF2", "0-63,ASCII"}});
+		frame(0x4E2, new String [][] {{"VIN2OF2", "0-63,ASCII"}});
+		// the right non-driven wheel always comes last.
+		frame(0x3E9, new String [][] {{"SPEED_WHEEL_LND", "0-7,INT"}, {"SPEED_WHEEL_RND", "8-15,INT"}});
+		frame(0x3EB, new String [][] {{"SPEED_WHEEL_LD", "0-7,INT"}, {"SPEED_WHEEL_RD", "8-15,INT"}});
+		frame(0x0F1, new String [][] {{"BRAKE_PRESSURE_FL", "0-7,INT"}});
+		frame(0x0F2, new String [][] {{"BRAKE_PRESSURE_RR", "0-7,INT"}});
+
+		mDecoder = new PIDDecoder(db());
+		mDecoder.setNetworkID("01");
+		mDecoder.registerOnDPArrivedCallback(new EventCallback() {
+			public void onDPValueArrived (DPValue v) {
+				mValues.add(v);
+			}
+		});
+	}
+
+	/**
+	 * @return - the values that went out for the DPN, as text.
+	 */
+	private List<String> sent (String DPN) {
+		ArrayList<String> ret = new ArrayList<String>();
+		for (int i=0;i<mValues.size();i++)
+			if (mValues.get(i).DPN.equals(DPN))
+				ret.add(mValues.get(i).getText());
+		return ret;
+	}
+
+	private void decode (String m) {
+		assertTrue(m, mDecoder.decodeOneMessage(m));
+	}
+
+	@Test
+	public void testVIN () {
+		// second half first. Nothing until both are there.
+		decode("4E2 31 36 46 31 30 30 30 30");
+		assertEquals(0, sent("VIN").size());
+
+		decode("4E1 31 47 31 5A 54 35 31 38");
+		assertEquals(Arrays.asList("1G1ZT51816F10000"), sent("VIN"));
+		assertEquals("1G1ZT51816F10000", mDecoder.getCachedDataByName("VIN"));
+	}
+
+	@Test
+	public void testSpeedTrigger () {
+		decode("3EB 0A 14");
+		assertEquals(0, sent("SPEED").size());
+
+		// RND arrives, all four are there: (10 + 20 + 30 + 40) / 4.
+		decode("3E9 1E 28");
+		assertEquals(Arrays.asList("25.0"), sent("SPEED"));
+
+		// the driven wheels change, but that's not the trigger.
+		decode("3EB 32 3C");
+		assertEquals(1, sent("SPEED").size());
+		assertEquals("25.0", mDecoder.getCachedDataByName("SPEED"));
+
+		// (50 + 60 + 70 + 80) / 4
+		decode("3E9 46 50");
+		assertEquals(Arrays.asList("25.0", "65.0"), sent("SPEED"));
+	}
+
+	@Test
+	public void testWildcard () {
+		assertTrue(mDecoder.defineDerivedSignal("MAX_BRAKE_PRESSURE", "MAX(BRAKE_PRESSURE_*)", null));
+		// can't match itself.
+		assertFalse(mDecoder.defineDerivedSignal("BRAKE_PRESSURE_MAX", "MAX(BRAKE_PRESSURE_*)", null));
+
+		// only one of them so far, so that's the max.
+		decode("0F1 0A");
+		assertEquals(Arrays.asList("10.0"), sent("MAX_BRAKE_PRESSURE"));
+
+		// the second one joins in the first time it's decoded.
+		decode("0F2 05");
+		decode("0F1 03");
+		decode("0F2 07");
+		assertEquals(Arrays.asList("10.0", "10.0", "5.0", "7.0"), sent("MAX_BRAKE_PRESSURE"));
+	}
+
+	@Test
+	public void testLoop () {
+		assertTrue(mDecoder.defineDerivedSignal("A", "SUM(B)", null));
+		assertTrue(mDecoder.defineDerivedSignal("B", "SUM(BRAKE_PRESSURE_FL)", null));
+
+		// A -> B -> A. Refused, and B stays what it was.
+		assertFalse(mDecoder.defineDerivedSignal("B", "SUM(A)", null));
+		List<String> defs = Arrays.asList(mDecoder.getDerivedSignals());
+		assertTrue(defs.toString(), defs.contains("B=SUM(BRAKE_PRESSURE_FL)"));
+		assertFalse(defs.toString(), defs.contains("B=SUM(A)"));
+
+		// and still works, all the way through A.
+		decode("0F1 0A");
+		assertEquals(Arrays.asList("10.0"), sent("B"));
+		assertEquals(Arrays.asList("10.0"), sent("A"));
+
+		// it's the old B that's looked up by name, too.
+		assertTrue(mDecoder.removeDerivedSignal("B"));
+		assertFalse(Arrays.asList(mDecoder.getDerivedSignals()).toString().contains("B="));
+
+		// a brand new one that would loop doesn't get defined at all.
+		assertTrue(mDecoder.defineDerivedSignal("C", "SUM(C2)", null));
+		assertFalse(mDecoder.defineDerivedSignal("C2", "SUM(C)", null));
+		assertFalse(Arrays.asList(mDecoder.getDerivedSignals()).toString().contains("C2="));
+
+		// bad expressions.
+		assertFalse(mDecoder.defineDerivedSignal("D", "MEDIAN(A, B)", null));
+		assertFalse(mDecoder.defineDerivedSignal("D", "SUM(A, B)", "C"));
+		assertFalse(mDecoder.defineDerivedSignal("D", "SUM A", null));
+	}
+
+	@Test
+	public void testRemove () {
+		decode("3EB 0A 14");
+		decode("3E9 1E 28");
+		assertEquals(1, sent("SPEED").size());
+
+		assertTrue(mDecoder.removeDerivedSignal("SPEED"));
+		assertFalse(mDecoder.removeDerivedSignal("SPEED"));
+		assertFalse(Arrays.asList(mDecoder.getDerivedSignals()).toString().contains("SPEED="));
+
+		decode("3E9 46 50");
+		assertEquals(1, sent("SPEED").size());
+		assertEquals("25.0", mDecoder.getCachedDataByName("SPEED"));
+	}
+}
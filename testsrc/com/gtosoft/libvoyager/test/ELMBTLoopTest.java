@@ -0,0 +1,63 @@
+package com.gtosoft.libvoyager.test;
+
+import static org.junit.Assert.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.gtosoft.libvoyager.android.ELMBT;
+import com.gtosoft.libvoyager.emulator.ELMEmulator;
+import com.gtosoft.libvoyager.emulator.EmulatedECU;
+import com.gtosoft.libvoyager.transport.TCPTransport;
+
+
+/**
+ * AT command round trips through ELMBT over TCPTransport against a local ELMEmulator, with getATLoopCount().
+ * The old sleep-polling reads topped out at roughly 3 to 10 a second. The input reader thread does thousands, so
+ * anything under 100 means a read is waiting on a sleep or a timeout again.
+ */
+public class ELMBTLoopTest {
+
+	final int LOOP_SECONDS = 2;
+	final int MIN_ROUND_TRIPS_PER_SECOND = 100;
+	final int CONNECT_TIMEOUT_MILLIS = 10000;
+
+	ELMEmulator mEmu;
+	ELMBT mEBT;
+
+	@Before
+	public void setUp() throws Exception {
+		mEmu = new ELMEmulator();
+		mEmu.addECU(new EmulatedECU("7E8").setPID("0C", "1AF8"));
+		int port = mEmu.start(0);
+		assertTrue (port > 0);
+
+		mEBT = new ELMBT(new TCPTransport("127.0.0.1", port));
+		long start = System.currentTimeMillis();
+		while (!mEBT.isConnected() && System.currentTimeMillis() - start < CONNECT_TIMEOUT_MILLIS)
+			Thread.sleep(20);
+		assertTrue (mEBT.isConnected());
+
+		// connected doesn't mean the adapter is done with whatever ELMBT sends it on the way in. Wait until it answers.
+		while (!mEBT.sendATCommand("ATI").contains("ELM327") && System.currentTimeMillis() - start < CONNECT_TIMEOUT_MILLIS)
+			Thread.sleep(20);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		mEBT.shutdown();
+		mEmu.stop();
+	}
+
+	@Test
+	public void testATLoopCount() throws Exception {
+		// getATLoopCount() goes by whole uptime seconds, so time it ourselves.
+		long start = System.currentTimeMillis();
+		long loops = mEBT.getATLoopCount("ATI", LOOP_SECONDS);
+		long elapsed = System.currentTimeMillis() - start;
+
+		double perSecond = loops * 1000.0 / Math.max(elapsed, 1);
+		assertTrue ("only " + (long) perSecond + " round trips/s", perSecond > MIN_ROUND_TRIPS_PER_SECOND);
+	}
+}
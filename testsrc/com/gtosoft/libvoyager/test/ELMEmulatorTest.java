@@ -0,0 +1,147 @@
+package com.gtosoft.libvoyager.test;
+
+import static org.junit.Assert.*;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.gtosoft.libvoyager.emulator.ELMEmulator;
+import com.gtosoft.libvoyager.emulator.EmulatedECU;
+
+
+/**
+ * Talks to ELMEmulator over a real socket, the same way TCPTransport would.
+ */
+public class ELMEmulatorTest {
+
+	ELMEmulator mEmu;
+	Socket mSocket;
+	InputStream mIn;
+	OutputStream mOut;
+
+	@Before
+	public void setUp() throws Exception {
+		mEmu = new ELMEmulator();
+		mEmu.addECU(new EmulatedECU("7E8")
+				.setPID("0C", "1AF8")
+				.setPID("0D", "32")
+				.addDTC("P0133")
+				.setVIN("1G1ZT51816F100000"));
+		mEmu.addECU(new EmulatedECU("7E9")
+				.setPID("0C", "1AF8")
+				.setLatencyMillis(5));
+
+		int port = mEmu.start(0);
+		assertTrue (port > 0);
+
+		mSocket = new Socket("127.0.0.1", port);
+		mSocket.setSoTimeout(5000);
+		mIn = mSocket.getInputStream();
+		mOut = mSocket.getOutputStream();
+
+		// power-up banner.
+		readUntilPrompt();
+		send("ATE0");
+		send("ATH1");
+		send("ATST19");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		mSocket.close();
+		mEmu.stop();
+	}
+
+	private String readUntilPrompt() throws Exception {
+		StringBuilder sb = new StringBuilder();
+		int b;
+		while ((b = mIn.read()) >= 0) {
+			if (b == '>') break;
+			sb.append(b == '\r' ? '|' : (char) b);
+		}
+		return sb.toString();
+	}
+
+	private String send(String cmd) throws Exception {
+		mOut.write((cmd + "\r").getBytes("US-ASCII"));
+		mOut.flush();
+		return readUntilPrompt();
+	}
+
+	@Test
+	public void testATCommands() throws Exception {
+		assertTrue (send("ATI").contains("ELM327"));
+		assertTrue (send("ATZ").contains("ELM327"));
+		send("ATE0");
+		assertEquals ("A6", send("ATDPN").replace("|",""));
+		assertTrue (send("ATBOGUS").contains("?"));
+	}
+
+	@Test
+	public void testMode01MultiECU() throws Exception {
+		String resp = send("010C");
+		assertTrue (resp, resp.contains("7E8 04 41 0C 1A F8"));
+		assertTrue (resp, resp.contains("7E9 04 41 0C 1A F8"));
+
+		// with a count of one, only the first (fastest) ECU gets a word in.
+		resp = send("010C1");
+		assertTrue (resp, resp.contains("7E8 04 41 0C 1A F8"));
+		assertFalse (resp, resp.contains("7E9"));
+
+		// multi-PID request.
+		resp = send("010C0D");
+		assertTrue (resp, resp.contains("7E8 06 41 0C 1A F8 0D 32"));
+
+		assertTrue (send("0142").contains("NO DATA"));
+	}
+
+	@Test
+	public void testCompactAndNoHeaders() throws Exception {
+		send("ATS0");
+		assertTrue (send("010D").contains("7E803410D32"));
+		send("ATH0");
+		send("ATS1");
+		assertTrue (send("010D").contains("41 0D 32"));
+	}
+
+	@Test
+	public void testDTCsAndVIN() throws Exception {
+		assertTrue (send("03").contains("7E8 04 43 01 01 33"));
+		send("04");
+		assertTrue (send("03").contains("7E8 02 43 00"));
+
+		// VIN is 20 bytes: first frame plus two consecutive frames.
+		String resp = send("0902");
+		assertTrue (resp, resp.contains("7E8 10 14 49 02 01 31 47 31"));
+		assertTrue (resp, resp.contains("7E8 21 "));
+		assertTrue (resp, resp.contains("7E8 22 "));
+	}
+
+	@Test
+	public void testSniffReplay() throws Exception {
+		InputStream dump = getClass().getResourceAsStream("impalass.dmp");
+		assertNotNull (dump);
+		mEmu.loadCapture(dump);
+		mEmu.setBufferFullAfter(100);
+
+		String resp = send("ATMA");
+		assertTrue (resp, resp.contains("10 01 A0 C0 00 00"));
+		assertTrue (resp, resp.contains("BUFFER FULL"));
+
+		// anything typed during ATMA stops it.
+		mEmu.setBufferFullAfter(0);
+		mOut.write("ATMA\r".getBytes("US-ASCII"));
+		mOut.flush();
+		Thread.sleep(50);
+		mOut.write(' ');
+		mOut.flush();
+		resp = readUntilPrompt();
+		assertTrue (resp, resp.endsWith("STOPPED||"));
+	}
+
+}
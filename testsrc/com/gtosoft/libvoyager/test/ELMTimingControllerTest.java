@@ -0,0 +1,89 @@
+package com.gtosoft.libvoyager.test;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import com.gtosoft.libvoyager.android.ELMTimingController;
+
+
+/**
+ * ELMTimingController: which requests give latency samples, tightening ATST from the p99, and backing off when NO DATA climbs.
+ */
+public class ELMTimingControllerTest {
+
+	// requests per evaluation.
+	final int PERIOD = 50;
+
+	/**
+	 * One evaluation period of good answers, each taking the given time from send to prompt.
+	 */
+	private void period (ELMTimingController etc, int elapsedMillis, boolean countTerminated) {
+		for (int i=0;i<PERIOD;i++)
+			etc.recordResponse(elapsedMillis, countTerminated, false, false);
+	}
+
+	@Test
+	public void testTighten () {
+		ELMTimingController etc = new ELMTimingController();
+		assertEquals(205, etc.getTimeoutMillis());
+
+		// ECUs answer in 30ms. p99 * 1.5 + 15 = 60ms, but the first step only goes half way.
+		period(etc, 30, true);
+		assertEquals(30, etc.getPercentile(99));
+		assertEquals(102, etc.getTimeoutMillis());
+		assertArrayEquals(new String [] {"ATAT1", "ATST19"}, etc.takePendingCommands());
+		assertNull(etc.takePendingCommands());
+
+		// second step gets there, and it's tight enough for ATAT2.
+		period(etc, 30, true);
+		assertEquals(60, etc.getTimeoutMillis());
+		assertArrayEquals(new String [] {"ATAT2", "ATST0F"}, etc.takePendingCommands());
+
+		// nothing changed, nothing to send.
+		period(etc, 30, true);
+		assertEquals(60, etc.getTimeoutMillis());
+		assertNull(etc.takePendingCommands());
+	}
+
+	@Test
+	public void testAdaptiveTimingNotMeasured () {
+		ELMTimingController etc = new ELMTimingController();
+
+		// no response count digit: under ATAT1/ATAT2 the ELM cuts its wait after the last answer short, so 40ms from send to prompt
+		// says nothing about the ECU. None of these are latency samples, and the timeout stays put rather than collapsing.
+		for (int i=0;i<10;i++)
+			period(etc, 40, false);
+
+		assertEquals(-1, etc.getPercentile(99));
+		assertEquals(205, etc.getTimeoutMillis());
+		assertNull(etc.takePendingCommands());
+		assertEquals("" + 10 * PERIOD, etc.getStats().getStat("unmeasured"));
+		assertEquals("0", etc.getStats().getStat("samples"));
+	}
+
+	@Test
+	public void testBackOff () {
+		ELMTimingController etc = new ELMTimingController();
+		period(etc, 30, true);
+		period(etc, 30, true);
+		assertEquals(60, etc.getTimeoutMillis());
+		etc.takePendingCommands();
+
+		// one in five comes back NO DATA, way above the baseline of none. Double it and go back to ATAT1.
+		for (int i=0;i<PERIOD;i++)
+			etc.recordResponse(30, true, i % 5 == 0, false);
+		assertEquals(120, etc.getTimeoutMillis());
+		assertArrayEquals(new String [] {"ATAT1", "ATST1E"}, etc.takePendingCommands());
+		assertEquals("1", etc.getStats().getStat("backoffs"));
+
+		// then it's left alone for a while, even though the latencies say it could be tighter.
+		for (int i=0;i<10;i++)
+			period(etc, 30, true);
+		assertEquals(120, etc.getTimeoutMillis());
+		assertNull(etc.takePendingCommands());
+
+		period(etc, 30, true);
+		assertEquals(60, etc.getTimeoutMillis());
+	}
+}
@@ -0,0 +1,95 @@
+package com.gtosoft.libvoyager.test;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import com.gtosoft.libvoyager.util.DPValue;
+import com.gtosoft.libvoyager.util.LatestValueTable;
+
+
+/**
+ * LatestValueTable: plain puts and gets, and snapshots that have to hold together while another thread writes.
+ */
+public class LatestValueTableTest {
+
+	private DPValue val (String DPN, int i) {
+		return new DPValue(DPN, "" + i, i, System.currentTimeMillis());
+	}
+
+	@Test
+	public void testPutGet () {
+		LatestValueTable t = new LatestValueTable();
+		assertNull(t.get(3));
+		assertEquals(0, t.getSeq(3));
+		assertNull(t.get(-1));
+
+		long s1 = t.put(3, val("RPM", 800));
+		long s2 = t.put(200, val("SPEED", 55));
+		long s3 = t.put(3, val("RPM", 900));
+		assertTrue(s1 < s2 && s2 < s3);
+
+		assertEquals(900, t.get(3).getInt());
+		assertEquals(55, t.get(200).getInt());
+		assertEquals(s3, t.getSeq(3));
+		assertEquals(s3, t.getSeq());
+		assertEquals(2, t.size());
+
+		// out of range doesn't store anything.
+		assertEquals(0, t.put(t.capacity(), val("X", 1)));
+		assertEquals(0, t.put(-1, val("X", 1)));
+
+		LatestValueTable.Snapshot snap = t.snapshot(new int [] {200, 7, 3, -1});
+		assertTrue(snap.consistent);
+		assertEquals(55, snap.get(0).getInt());
+		assertNull(snap.get(1));
+		assertEquals(900, snap.get(2).getInt());
+		assertNull(snap.get(3));
+		assertEquals(s3, snap.seq);
+	}
+
+	/**
+	 * A writer bumps slot 0 then slot 1 to the same number, over and over. Any snapshot that says it's consistent
+	 * must have slot 0 equal to slot 1, or one ahead of it.
+	 */
+	@Test
+	public void testSnapshotConsistency () throws InterruptedException {
+		final LatestValueTable t = new LatestValueTable();
+		final int N = 200000;
+		t.put(0, val("A", 0));
+		t.put(1, val("B", 0));
+
+		Thread writer = new Thread() {
+			public void run () {
+				for (int i=1;i<=N;i++) {
+					t.put(0, val("A", i));
+					t.put(1, val("B", i));
+				}
+			}
+		};
+		writer.start();
+
+		int consistent = 0;
+		// read B before A, so a torn read would show A well ahead of B.
+		int [] indexes = {1, 0};
+		do {
+			LatestValueTable.Snapshot snap = t.snapshot(indexes);
+			if (!snap.consistent)
+				continue;
+			consistent++;
+			int b = snap.get(0).getInt();
+			int a = snap.get(1).getInt();
+			assertTrue("a=" + a + " b=" + b, a == b || a == b + 1);
+			assertTrue(snap.seqs[0] <= snap.seq && snap.seqs[1] <= snap.seq);
+		} while (writer.isAlive());
+		writer.join();
+
+		LatestValueTable.Snapshot last = t.snapshot(2);
+		assertTrue(last.consistent);
+		assertEquals(N, last.get(0).getInt());
+		assertEquals(N, last.get(1).getInt());
+
+		// readers get through even while the writer is hammering away.
+		assertTrue(consistent + " consistent snapshots", consistent > 0);
+	}
+}
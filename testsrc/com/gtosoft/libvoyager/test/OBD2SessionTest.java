@@ -0,0 +1,117 @@
+package com.gtosoft.libvoyager.test;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.gtosoft.libvoyager.android.ELMBT;
+import com.gtosoft.libvoyager.db.DashDB;
+import com.gtosoft.libvoyager.emulator.ELMEmulator;
+import com.gtosoft.libvoyager.emulator.EmulatedECU;
+import com.gtosoft.libvoyager.session.OBD2Session;
+import com.gtosoft.libvoyager.transport.TCPTransport;
+import com.gtosoft.libvoyager.util.PreparedRequest;
+import com.gtosoft.libvoyager.util.ResponseCountLearner;
+
+
+/**
+ * OBD2Session against ELMEmulator over TCPTransport: what happens on the way in to STATE_OBDCONNECTED.
+ */
+public class OBD2SessionTest {
+
+	final String VIN = "1G1ZT51816F100000";
+	final int CONNECT_TIMEOUT_MILLIS = 20000;
+
+	ELMEmulator mEmu;
+	ELMBT mEBT;
+	OBD2Session mSess;
+
+	// proType + "/" + proSubType, for every profile the session asked the DB for.
+	ArrayList<String> mRestored = new ArrayList<String>();
+
+	// both ECUs answer it, but we only listen to the transmission.
+	final PreparedRequest TCM_SPEED = new PreparedRequest("TCM_SPEED", "010D", "A", 1, "7E9");
+
+	/**
+	 * A DashDB with just the VIN and TCM_SPEED requests, and empty profiles.
+	 */
+	private DashDB db () {
+		return new DashDB(null) {
+			public PreparedRequest getPreparedRequest (String DPN) {
+				if (DPN.equals("VIN"))
+					return new PreparedRequest("VIN", "0902", "VIN", 17, null);
+				if (DPN.equals(TCM_SPEED.DPN))
+					return TCM_SPEED;
+				return null;
+			}
+
+			public HashMap<String,String> restoreHashmapFromStorage (String proType, String proSubType) {
+				synchronized (mRestored) {
+					mRestored.add(proType + "/" + proSubType);
+				}
+				return new HashMap<String,String>();
+			}
+
+			public boolean setProfileValue (String proType, String proSubType, String proKey, String proValue) {
+				return true;
+			}
+		};
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		mEmu = new ELMEmulator();
+		mEmu.addECU(new EmulatedECU("7E8").setPID("0C", "1AF8").setPID("0D", "32").setVIN(VIN));
+		mEmu.addECU(new EmulatedECU("7E9").setPID("0D", "31"));
+		int port = mEmu.start(0);
+		assertTrue (port > 0);
+
+		mEBT = new ELMBT(new TCPTransport("127.0.0.1", port));
+		mSess = new OBD2Session(mEBT, null, "", db());
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		mSess.shutdown();
+		mEBT.shutdown();
+		mEmu.stop();
+	}
+
+	private void waitForOBD() throws Exception {
+		long start = System.currentTimeMillis();
+		while (mSess.getCurrentState() != OBD2Session.STATE_OBDCONNECTED && System.currentTimeMillis() - start < CONNECT_TIMEOUT_MILLIS)
+			Thread.sleep(50);
+		assertEquals (OBD2Session.STATE_OBDCONNECTED, mSess.getCurrentState());
+	}
+
+	@Test
+	public void testVINOnConnect() throws Exception {
+		waitForOBD();
+
+		// the VIN request made on the way in got through, and the learner got the VIN and loaded that car's counts.
+		assertEquals (VIN, mSess.getResponseCounts().getStats().getStat("vin"));
+		synchronized (mRestored) {
+			assertTrue (mRestored.toString(), mRestored.contains(ResponseCountLearner.PROFILE_TYPE + "/" + VIN));
+		}
+	}
+
+	@Test
+	public void testFromHeaderResponseCount() throws Exception {
+		waitForOBD();
+
+		// two ECUs answer, one is kept. The ELM counts both, so that's what gets learned - and it sticks.
+		for (int i=0;i<6;i++) {
+			HashMap<String,String> responses = mSess.sendOBDRequestByName(TCM_SPEED.DPN);
+			assertEquals (1, responses.size());
+			assertEquals ("49", responses.get("7E9"));
+		}
+
+		assertEquals (2, mSess.getResponseCounts().getLearnedCount(TCM_SPEED.DPN));
+		assertEquals ("0", mSess.getResponseCounts().getStats().getStat("invalidations"));
+	}
+}
@@ -0,0 +1,119 @@
+package com.gtosoft.libvoyager.test;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.gtosoft.libvoyager.util.OBDBatchPlanner;
+import com.gtosoft.libvoyager.util.OBDPacketParser;
+import com.gtosoft.libvoyager.util.OBDResponses;
+import com.gtosoft.libvoyager.util.PreparedRequest;
+
+
+/**
+ * OBDBatchPlanner: grouping mode 01 DPNs into multi-PID requests, and splitting the parsed answer back out per DPN and ECU.
+ */
+public class OBDBatchPlannerTest {
+
+	PreparedRequest RPM 	= new PreparedRequest("RPM", "010C", "A*256,X+B,X/4", 2, null);
+	PreparedRequest SPEED 	= new PreparedRequest("SPEED", "010D", "A", 1, null);
+	PreparedRequest COOLANT = new PreparedRequest("TEMP_COOLANT", "0105", "A-40", 1, null);
+	PreparedRequest VIN 	= new PreparedRequest("VIN", "0902", "VIN", 17, null);
+
+	private OBDBatchPlanner.Batch plan (PreparedRequest ... requests) {
+		ArrayList<PreparedRequest> leftovers = new ArrayList<PreparedRequest>();
+		ArrayList<OBDBatchPlanner.Batch> batches = new OBDBatchPlanner().plan(Arrays.asList(requests), leftovers);
+		assertEquals(1, batches.size());
+		return batches.get(0);
+	}
+
+	@Test
+	public void testPlan () {
+		ArrayList<PreparedRequest> leftovers = new ArrayList<PreparedRequest>();
+		PreparedRequest speed2 = new PreparedRequest("SPEED_KPH", "010D", "A", 1, null);
+		ArrayList<OBDBatchPlanner.Batch> batches = new OBDBatchPlanner().plan(Arrays.asList(RPM, VIN, SPEED, COOLANT, speed2), leftovers);
+
+		assertEquals(1, batches.size());
+		assertEquals("010C0D05", batches.get(0).getRequest());
+		assertEquals(Arrays.asList("RPM", "SPEED", "TEMP_COOLANT"), batches.get(0).DPNs);
+		assertSame(SPEED, batches.get(0).getPreparedRequest(1));
+		// not mode 01, and a second DPN for the same PID.
+		assertEquals(Arrays.asList(VIN, speed2), leftovers);
+	}
+
+	@Test
+	public void testSplit () {
+		OBDBatchPlanner obp = new OBDBatchPlanner();
+		OBDPacketParser opp = new OBDPacketParser(OBDPacketParser.PROTOCOL_ISO15765_4CAN11500);
+		OBDResponses r = new OBDResponses();
+		OBDBatchPlanner.Batch b = plan(RPM, SPEED, COOLANT);
+
+		// the engine answers all three over two frames, the transmission just has speed.
+		String response = "010C0D05|7E8 10 08 41 0C 1A F8 0D 32 |7E9 03 41 0D 31 |7E8 21 05 5A 00 00 00 00 00 ||>";
+		assertEquals(2, opp.parse(0x01, -1, response, r));
+		assertTrue(obp.split(b, r));
+
+		assertEquals(1, b.getResponses(0).size());
+		assertEquals("7E8", b.getResponses(0).getHeader(0));
+		assertEquals("1A F8", b.getResponses(0).getHexBytes(0));
+
+		assertEquals(2, b.getResponses(1).size());
+		assertEquals("32", b.getResponses(1).getHexBytes(0));
+		assertEquals("7E9", b.getResponses(1).getHeader(1));
+		assertEquals("31", b.getResponses(1).getHexBytes(1));
+
+		assertEquals("5A", b.getResponses(2).getHexBytes(0));
+
+		// decoded with the prepared request's compiled formula.
+		assertEquals("1726.0000", b.getPreparedRequest(0).decode(opp.getProtocolNum(), response, b.getResponses(0), 0));
+
+		// same batch again: last time's answers don't hang around.
+		assertEquals(1, opp.parse(0x01, -1, "010C0D05|7E8 03 41 0D 33 ||>", r));
+		assertTrue(obp.split(b, r));
+		assertEquals(0, b.getResponses(0).size());
+		assertEquals("33", b.getResponses(1).getHexBytes(0));
+	}
+
+	@Test
+	public void testFromHeader () {
+		OBDPacketParser opp = new OBDPacketParser(OBDPacketParser.PROTOCOL_ISO15765_4CAN11500);
+		OBDResponses r = new OBDResponses();
+
+		// only the transmission's speed counts.
+		PreparedRequest tcmSpeed = new PreparedRequest("SPEED", "010D", "A", 1, "7E9");
+		OBDBatchPlanner.Batch b = plan(RPM, tcmSpeed);
+
+		opp.parse(0x01, -1, "010C0D|7E8 06 41 0C 1A F8 0D 32 |7E9 03 41 0D 31 ||>", r);
+		assertTrue(new OBDBatchPlanner().split(b, r));
+		assertEquals(1, b.getResponses(0).size());
+		assertEquals(1, b.getResponses(1).size());
+		assertEquals("31", b.getResponses(1).getHexBytes(0));
+	}
+
+	@Test
+	public void testSplitFailures () {
+		OBDBatchPlanner obp = new OBDBatchPlanner();
+		OBDPacketParser opp = new OBDPacketParser(OBDPacketParser.PROTOCOL_ISO15765_4CAN11500);
+		OBDResponses r = new OBDResponses();
+		OBDBatchPlanner.Batch b = plan(RPM, SPEED, COOLANT);
+
+		// the consecutive frame went missing.
+		opp.parse(0x01, -1, "010C0D05|7E8 10 08 41 0C 1A F8 0D 32 ||>", r);
+		assertFalse(obp.split(b, r));
+
+		// a consecutive frame out of sequence doesn't get glued on.
+		opp.parse(0x01, -1, "010C0D05|7E8 10 08 41 0C 1A F8 0D 32 |7E8 22 05 5A 00 00 00 00 00 ||>", r);
+		assertFalse(obp.split(b, r));
+
+		// a PID we didn't ask for.
+		opp.parse(0x01, -1, "010C0D05|7E8 03 41 11 33 ||>", r);
+		assertFalse(obp.split(b, r));
+
+		// not enough bytes left for RPM.
+		opp.parse(0x01, -1, "010C0D05|7E8 03 41 0C 1A ||>", r);
+		assertFalse(obp.split(b, r));
+	}
+}
@@ -0,0 +1,175 @@
+package com.gtosoft.libvoyager.test;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+import com.gtosoft.libvoyager.util.GTOMath;
+import com.gtosoft.libvoyager.util.OBDFormula;
+
+
+/**
+ * Checks the compiled OBD formulas against the old BigDecimal string-substitution version (GTOMath.mathFormula),
+ * for every formula in the obdRequest table of assets/schema.sql, over every value of the bytes each formula uses.
+ */
+public class OBDFormulaTest {
+
+	// formulas that aren't math.
+	final String [] SPECIAL = {"VIN", "DTC", "BINARY"};
+
+	/**
+	 * @return - formula -> number of data bytes, for every math formula in the obdRequest table.
+	 */
+	private LinkedHashMap<String,Integer> loadFormulas () throws IOException {
+		File f = new File("assets/schema.sql");
+		if (!f.exists())
+			f = new File("../assets/schema.sql");
+		assertTrue("Can't find assets/schema.sql from " + new File(".").getAbsolutePath(), f.exists());
+
+		// INSERT INTO "obdRequest" VALUES(id,scannable,'dataPointName','dataShortName','request','formula',... numDataBytes is the 13th field.
+		Pattern field = Pattern.compile("'(?:[^']|'')*'|NULL|-?[0-9.]+");
+		LinkedHashMap<String,Integer> formulas = new LinkedHashMap<String,Integer>();
+
+		BufferedReader in = new BufferedReader(new FileReader(f));
+		String line;
+		while ((line = in.readLine()) != null) {
+			if (!line.startsWith("INSERT INTO \"obdRequest\""))
+				continue;
+
+			Matcher m = field.matcher(line.substring(line.indexOf('(') + 1));
+			String [] fields = new String[16];
+			int n = 0;
+			while (n < fields.length && m.find())
+				fields[n++] = m.group();
+			assertEquals("Odd obdRequest row: " + line, 16, n);
+
+			if (fields[5].equals("NULL"))
+				continue;
+			String formula = fields[5].substring(1, fields[5].length() - 1);
+
+			boolean special = false;
+			for (int i=0;i<SPECIAL.length;i++)
+				if (formula.equals(SPECIAL[i]))
+					special = true;
+			if (special)
+				continue;
+
+			formulas.put(formula, Integer.valueOf(fields[12]));
+		}
+		in.close();
+
+		assertTrue("Didn't find any formulas", formulas.size() > 10);
+		return formulas;
+	}
+
+	/**
+	 * @return - true if any step but the last comes out negative, which the old version never could handle.
+	 */
+	private boolean negativeBeforeLastStep (String formula, int [] bytes) {
+		String [] steps = formula.split(",");
+		String prefix = "";
+		for (int i=0;i<steps.length - 1;i++) {
+			prefix = (i == 0) ? steps[0] : prefix + "," + steps[i];
+			if (OBDFormula.compile(prefix).evaluateValue(bytes) < 0)
+				return true;
+		}
+		return false;
+	}
+
+	@Test
+	public void testAgainstBigDecimal () throws IOException {
+		LinkedHashMap<String,Integer> formulas = loadFormulas();
+		Random r = new Random(1);
+
+		long compared = 0;
+		long skipped = 0;
+		for (String formula : formulas.keySet()) {
+			OBDFormula f = GTOMath.getCompiledFormula(formula);
+			assertNotNull("Didn't compile: " + formula, f);
+
+			int numBytes = Math.max(formulas.get(formula), f.bytesNeeded);
+			assertTrue(formula + " needs " + f.bytesNeeded + " bytes", f.bytesNeeded <= numBytes);
+
+			// every value of the last two bytes the formula uses. Anything before those gets random values.
+			int low = Math.max(0, f.bytesNeeded - 2);
+			int combos = 1 << (8 * (f.bytesNeeded - low));
+			int [] bytes = new int[numBytes];
+			String [] variables = new String[numBytes];
+
+			for (int c=0;c<combos;c++) {
+				for (int i=0;i<numBytes;i++)
+					bytes[i] = r.nextInt(256);
+				for (int i=low;i<f.bytesNeeded;i++)
+					bytes[i] = (c >> (8 * (f.bytesNeeded - 1 - i))) & 0xFF;
+				for (int i=0;i<numBytes;i++)
+					variables[i] = "" + bytes[i];
+
+				if (negativeBeforeLastStep(formula, bytes)) {
+					skipped++;
+					continue;
+				}
+
+				String expected = GTOMath.mathFormula(variables, formula);
+				String actual = f.evaluate(bytes);
+				if (!expected.equals(actual))
+					fail(formula + " bytes=" + Arrays.toString(bytes) + " expected=" + expected + " got=" + actual);
+				compared++;
+			}
+		}
+
+		// the schema has a couple of dozen distinct formulas, most over two bytes, so this ought to be over a million. 
+		// Not many should get skipped for going negative part way through.
+		assertTrue(formulas.size() + " formulas", formulas.size() >= 20);
+		assertTrue(compared + " results compared", compared >= 1000000);
+		assertTrue(skipped + " skipped", skipped < compared / 10);
+	}
+
+	@Test
+	public void testDecodeAutoDetect () {
+		assertEquals("6910.0000", GTOMath.decodeAutoDetect(0, "010C", "A*256,X+B,X/4", "", "6B F8"));
+		assertEquals("1726.0000", GTOMath.decodeAutoDetect(0, "010C", "A*256,X+B,X/4", "", "1A F8"));
+		assertEquals("50", GTOMath.decodeAutoDetect(0, "0105", "A-40", "", "5A"));
+		assertEquals("-40", GTOMath.decodeAutoDetect(0, "0105", "A-40", "", "0"));
+		// not enough bytes, not hex.
+		assertEquals("", GTOMath.decodeAutoDetect(0, "010C", "A*256,X+B,X/4", "", "1A"));
+		assertEquals("", GTOMath.decodeAutoDetect(0, "010C", "A*256,X+B,X/4", "", "1A ZZ"));
+	}
+
+	@Test
+	public void testExpressions () {
+		int [] bytes = {0x10, 0x20, 0x80, 0x00};
+
+		// precedence, parentheses, unary minus.
+		assertEquals("544", OBDFormula.compile("A*32+B").evaluate(bytes));
+		assertEquals("1024", OBDFormula.compile("A*(32+B)").evaluate(bytes));
+		assertEquals("-16", OBDFormula.compile("-A").evaluate(bytes));
+		assertEquals("32", OBDFormula.compile("B - -0").evaluate(bytes));
+		assertEquals("40.0000", OBDFormula.compile("(C*256+D)/32768*100-60").evaluate(bytes));
+		assertEquals(40.0, OBDFormula.compile("(C*256+D)/32768*100-60").evaluateValue(bytes), 1e-9);
+
+		// negatives part way through, which the BigDecimal version turned into 0.
+		assertEquals("-100.0000", OBDFormula.compile("A-128,X*100,X/128").evaluate(new int [] {0}));
+
+		// same decimal places as BigDecimal would have.
+		assertEquals("13.28125", OBDFormula.compile("A*0.78125").evaluate(new int [] {17}));
+		assertEquals("0.0040", OBDFormula.compile("A/256").evaluate(new int [] {1}));
+		assertEquals("0.3922", OBDFormula.compile("A*100,X/255").evaluate(new int [] {1}));
+
+		// no good.
+		assertNull(OBDFormula.compile("A*"));
+		assertNull(OBDFormula.compile("(A"));
+		assertNull(OBDFormula.compile("A,Z"));
+		assertEquals("", OBDFormula.compile("A/B").evaluate(new int [] {1, 0}));
+		assertEquals("", OBDFormula.compile("A*256+B").evaluate(new int [] {1}));
+	}
+}
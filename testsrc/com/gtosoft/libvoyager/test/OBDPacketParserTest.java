@@ -0,0 +1,245 @@
+package com.gtosoft.libvoyager.test;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+
+import org.junit.Test;
+
+import com.gtosoft.libvoyager.util.CANFrame;
+import com.gtosoft.libvoyager.util.GTOMath;
+import com.gtosoft.libvoyager.util.OBDPacketParser;
+import com.gtosoft.libvoyager.util.OBDResponses;
+import com.gtosoft.libvoyager.util.PreparedRequest;
+
+
+/**
+ * OBDPacketParser.parse: multiple ECUs, 11 and 29-bit CAN, multi-frame responses, the non-CAN protocols, compact (ATS0) lines,
+ * and reuse of the result. Plus PreparedRequest, which feeds it.
+ */
+public class OBDPacketParserTest {
+
+	@Test
+	public void testCAN11 () {
+		OBDPacketParser opp = new OBDPacketParser(OBDPacketParser.PROTOCOL_ISO15765_4CAN11500);
+		OBDResponses r = new OBDResponses();
+
+		assertEquals(2, opp.parse("010C", "010C|7E8 04 41 0C 1A F8 |7E9 04 41 0C 0B 00 ||>", r));
+		assertEquals("7E8", r.getHeader(0));
+		assertEquals(CANFrame.key(0x7E8, false), r.getECU(0));
+		assertEquals("1A F8", r.getHexBytes(0));
+		assertEquals("0B 00", r.getHexBytes(1));
+		assertEquals(1, r.indexOf(CANFrame.key(0x7E9, false)));
+		assertEquals("1726.0000", GTOMath.decodeAutoDetect(6, "010C", "A*256,X+B,X/4", "", r, 0));
+		assertEquals("704.0000", GTOMath.decodeAutoDetect(6, "010C", "A*256,X+B,X/4", "", r, 1));
+
+		// a negative response and some noise get left out.
+		assertEquals(1, opp.parse("01 0D", "01 0D|SEARCHING...|7E8 03 41 0D 37 |7EA 03 7F 01 12 ||>", r));
+		assertEquals("37", r.getHexBytes(0));
+
+		assertEquals(0, opp.parse("010D", "010D|NO DATA||>", r));
+	}
+
+	@Test
+	public void testCAN29 () {
+		OBDPacketParser opp = new OBDPacketParser(OBDPacketParser.PROTOCOL_ISO15765_4CAN29500);
+		OBDResponses r = new OBDResponses();
+
+		assertEquals(1, opp.parse("010D", "010D|18 DA F1 10 03 41 0D 33 ||>", r));
+		assertEquals("18 DA F1 10", r.getHeader(0));
+		assertEquals(CANFrame.key(0x18DAF110, true), r.getECU(0));
+		assertEquals("33", r.getHexBytes(0));
+	}
+
+	@Test
+	public void testMultiFrame () {
+		OBDPacketParser opp = new OBDPacketParser(OBDPacketParser.PROTOCOL_ISO15765_4CAN11500);
+		OBDResponses r = new OBDResponses();
+
+		// VIN: the item count byte comes off, and so does the padding on the last frame.
+		String response = "0902|7E8 10 14 49 02 01 31 47 31 |7E8 21 4A 43 35 34 34 34 52 |7E8 22 37 32 35 32 33 36 37 ||>";
+		assertEquals(1, opp.parse("0902", response, r));
+		assertTrue(r.isComplete(0));
+		assertEquals(17, r.getLength(0));
+		assertEquals("1G1JC5444R7252367", GTOMath.getAsVIN(r.getHexBytes(0)));
+
+		// lose the middle frame. What we got stays, but it's not complete.
+		response = "0902|7E8 10 14 49 02 01 31 47 31 |7E8 22 37 32 35 32 33 36 37 ||>";
+		assertEquals(1, opp.parse("0902", response, r));
+		assertFalse(r.isComplete(0));
+		assertEquals(3, r.getLength(0));
+
+		// two ECUs, frames interleaved.
+		response = "03|7E8 10 0E 43 06 01 00 02 00 |7E9 04 43 01 01 01 |7E8 21 03 00 43 00 82 00 C1 |7E8 22 00 00 00 00 00 00 00 ||>";
+		assertEquals(2, opp.parse("03", response, r));
+		assertEquals("01 00 02 00 03 00 43 00 82 00 C1 00", r.getHexBytes(0));
+		assertEquals("01 01", r.getHexBytes(1));
+	}
+
+	@Test
+	public void testNonCAN () {
+		OBDPacketParser opp = new OBDPacketParser(OBDPacketParser.PROTOCOL_ISO14230_4KWP);
+		OBDResponses r = new OBDResponses();
+
+		// one ECU, two lines, and the checksum comes off each.
+		String response = "03|87 F1 10 43 01 00 02 00 03 00 D1 |87 F1 10 43 43 00 82 00 C1 00 51 |87 F1 18 43 01 01 00 00 00 00 D5 ||>";
+		assertEquals(2, opp.parse("03", response, r));
+		assertEquals("87 F1 10", r.getHeader(0));
+		assertEquals("01 00 02 00 03 00 43 00 82 00 C1 00", r.getHexBytes(0));
+		assertEquals("01 01 00 00 00 00", r.getHexBytes(1));
+
+		assertEquals(1, opp.parse("010C", "010C|48 6B 10 41 0C 1A F8 C4 ||>", r));
+		assertEquals("1A F8", r.getHexBytes(0));
+
+		// headers off - nothing we can attribute.
+		assertEquals(0, opp.parse("03", "03|43 00 00 00 00 00 00 ||>", r));
+	}
+
+	/**
+	 * What the ELM would have sent with spaces off: the spaces come out of each line that's nothing but hex bytes. 
+	 */
+	private static String compact (String response) {
+		StringBuilder sb = new StringBuilder();
+		String [] lines = response.split("\\|", -1);
+		for (int i=0;i<lines.length;i++) {
+			if (i > 0) sb.append('|');
+			if (lines[i].matches("[0-9A-F ]+") && lines[i].trim().length() > 0)
+				sb.append(lines[i].replace(" ", ""));
+			else
+				sb.append(lines[i]);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Parse the response spaced and compact, and check both come out the same. 
+	 * @return - the number of ECUs. 
+	 */
+	private int assertSameParse (int protocol, String request, String response) {
+		OBDPacketParser opp = new OBDPacketParser(protocol);
+		OBDResponses spaced = new OBDResponses();
+		OBDResponses compact = new OBDResponses();
+
+		String compactResponse = compact(response);
+		assertFalse(compactResponse, compactResponse.equals(response));
+
+		int n = opp.parse(request, response, spaced);
+		assertEquals(compactResponse, n, opp.parse(request, compactResponse, compact));
+		for (int i=0;i<n;i++) {
+			assertEquals(compactResponse, spaced.getHeader(i), compact.getHeader(i));
+			assertEquals(compactResponse, spaced.getECU(i), compact.getECU(i));
+			assertEquals(compactResponse, spaced.getHexBytes(i), compact.getHexBytes(i));
+			assertEquals(compactResponse, spaced.isComplete(i), compact.isComplete(i));
+		}
+		return n;
+	}
+
+	@Test
+	public void testCompact () {
+		final int CAN11 = OBDPacketParser.PROTOCOL_ISO15765_4CAN11500;
+		final int CAN29 = OBDPacketParser.PROTOCOL_ISO15765_4CAN29500;
+		final int KWP = OBDPacketParser.PROTOCOL_ISO14230_4KWP;
+
+		assertEquals(2, assertSameParse(CAN11, "010C", "010C|7E8 04 41 0C 1A F8 |7E9 04 41 0C 0B 00 ||>"));
+		assertEquals(1, assertSameParse(CAN11, "01 0D", "01 0D|SEARCHING...|7E8 03 41 0D 37 |7EA 03 7F 01 12 ||>"));
+		assertEquals(1, assertSameParse(CAN11, "2211A6", "7E8 04 62 11 A6 03 ||>"));
+		assertEquals(1, assertSameParse(CAN29, "010D", "010D|18 DA F1 10 03 41 0D 33 ||>"));
+		assertEquals(2, assertSameParse(KWP, "03", "03|87 F1 10 43 01 00 02 00 03 00 D1 |87 F1 10 43 43 00 82 00 C1 00 51 |87 F1 18 43 01 01 00 00 00 00 D5 ||>"));
+		assertEquals(1, assertSameParse(KWP, "010C", "010C|48 6B 10 41 0C 1A F8 C4 ||>"));
+
+		// multi-frame: whole, missing the middle frame, and two ECUs interleaved. 
+		assertEquals(1, assertSameParse(CAN11, "0902", "0902|7E8 10 14 49 02 01 31 47 31 |7E8 21 4A 43 35 34 34 34 52 |7E8 22 37 32 35 32 33 36 37 ||>"));
+		assertEquals(1, assertSameParse(CAN11, "0902", "0902|7E8 10 14 49 02 01 31 47 31 |7E8 22 37 32 35 32 33 36 37 ||>"));
+		assertEquals(2, assertSameParse(CAN11, "03", "03|7E8 10 0E 43 06 01 00 02 00 |7E9 04 43 01 01 01 |7E8 21 03 00 43 00 82 00 C1 |7E8 22 00 00 00 00 00 00 00 ||>"));
+		assertEquals(1, assertSameParse(CAN29, "0902", "18 DA F1 10 10 14 49 02 01 31 47 31 |18 DA F1 10 21 4A 43 35 34 34 34 52 |18 DA F1 10 22 37 32 35 32 33 36 37 ||>"));
+
+		// a batch request, whose compact echo is all hex too. 
+		assertEquals(1, assertSameParse(CAN11, "01 0C 0D 05 11 0F", "010C0D05110F|7E8 10 0E 41 0C 1A F8 0D 00 |7E8 21 05 5A 11 26 0F 3C 00 ||>"));
+
+		OBDPacketParser opp = new OBDPacketParser(CAN29);
+		OBDResponses r = new OBDResponses();
+		assertEquals(1, opp.parse("0902", "18DAF1101014490201314731|18DAF110214A433534343452|18DAF1102237323532333637||>", r));
+		assertEquals("18 DA F1 10", r.getHeader(0));
+		assertEquals("1G1JC5444R7252367", GTOMath.getAsVIN(r.getHexBytes(0)));
+	}
+
+	@Test
+	public void testCompactSniff () throws Exception {
+		// every frame of the capture, spaced and compact. 
+		BufferedReader in = new BufferedReader(new InputStreamReader(getClass().getResourceAsStream("impalass.dmp"), "US-ASCII"));
+		CANFrame spaced = new CANFrame();
+		CANFrame compact = new CANFrame();
+		int frames = 0;
+		String line;
+		while ((line = in.readLine()) != null) {
+			if (line.startsWith("#") || line.trim().length() == 0)
+				continue;
+
+			assertTrue(line, spaced.parse(line));
+			assertTrue(line, compact.parseCompact(line.replace(" ", "")));
+			assertEquals(line, spaced.key(), compact.key());
+			assertEquals(line, spaced.dlc, compact.dlc);
+			assertEquals(line, spaced.payload, compact.payload);
+			frames++;
+		}
+		in.close();
+		assertTrue(frames > 40);
+	}
+
+	@Test
+	public void testReuse () {
+		OBDPacketParser opp = new OBDPacketParser(OBDPacketParser.PROTOCOL_ISO15765_4CAN11500);
+		OBDResponses r = new OBDResponses();
+
+		opp.parse("010C", "010C|7E8 04 41 0C 1A F8 |7E9 04 41 0C 0B 00 ||>", r);
+		String h0 = r.getHeader(0);
+		byte [] p0 = r.getPayload(0);
+
+		// same ECUs, same order: same header strings, same buffers.
+		opp.parse("010C", "010C|7E8 04 41 0C 1B 00 |7E9 04 41 0C 0C 00 ||>", r);
+		assertSame(h0, r.getHeader(0));
+		assertSame(p0, r.getPayload(0));
+		assertEquals(0x1B, r.getByte(0, 0));
+
+		// more ECUs than the buffer started out with.
+		StringBuilder sb = new StringBuilder("0105|");
+		for (int i=0;i<8;i++)
+			sb.append("7E" + i + " 03 41 05 " + (50 + i) + " |");
+		sb.append("|>");
+		assertEquals(8, opp.parse("0105", sb.toString(), r));
+		assertEquals("7E7", r.getHeader(7));
+		assertEquals(0x57, r.getByte(7, 0));
+	}
+
+	@Test
+	public void testPreparedRequest () {
+		OBDPacketParser opp = new OBDPacketParser(OBDPacketParser.PROTOCOL_ISO15765_4CAN11500);
+		OBDResponses r = new OBDResponses();
+
+		PreparedRequest pr = new PreparedRequest("RPM", "010C", "A*256,X+B,X/4", 2, null);
+		assertEquals(PreparedRequest.KIND_MATH, pr.kind);
+		assertEquals(0x01, pr.mode);
+		assertEquals(0x0C, pr.pid);
+		assertEquals(-1, pr.fromHeader);
+		assertEquals("010C", pr.getRequest(0));
+		assertEquals("010C2", pr.getRequest(2));
+		assertSame(pr.getRequest(2), pr.getRequest(2));
+
+		assertEquals(2, opp.parse(pr.mode, pr.pid, "010C|7E8 04 41 0C 1A F8 |7E9 04 41 0C 0B 00 ||>", r));
+		assertEquals("1726.0000", pr.decode(6, "", r, 0));
+		assertEquals("704.0000", pr.decode(6, "", r, 1));
+
+		pr = new PreparedRequest("TEMP", "2211A6", "B*256", 1, "7E8");
+		assertEquals(0x22, pr.mode);
+		assertEquals(0x11, pr.pid);
+		assertEquals(CANFrame.key(0x7E8, false), pr.fromHeader);
+
+		// the low byte of the PID is A.
+		assertEquals(1, opp.parse(pr.mode, pr.pid, "2211A6|7E8 04 62 11 A6 03 ||>", r));
+		assertEquals("768", pr.decode(6, "", r, 0));
+
+		assertEquals(PreparedRequest.KIND_AT, new PreparedRequest("VOLTS", "ATRV", null, 0, null).kind);
+		assertEquals(PreparedRequest.KIND_VIN, new PreparedRequest("VIN", "0902", "VIN", 17, null).kind);
+	}
+}
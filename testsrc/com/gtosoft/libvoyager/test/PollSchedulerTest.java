@@ -0,0 +1,122 @@
+package com.gtosoft.libvoyager.test;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import com.gtosoft.libvoyager.util.PollScheduler;
+
+
+/**
+ * PollScheduler: earliest deadline first, and sharing out the link when it can't keep up.
+ */
+public class PollSchedulerTest {
+
+	@Test
+	public void testPeriodFromFrequency () {
+		assertEquals(250, PollScheduler.periodFromFrequency(1));
+		assertEquals(2500, PollScheduler.periodFromFrequency(10));
+		assertEquals(PollScheduler.MAX_PERIOD_MILLIS, PollScheduler.periodFromFrequency(9999));
+		assertEquals(PollScheduler.DEFAULT_PERIOD_MILLIS, PollScheduler.periodFromFrequency(0));
+	}
+
+	@Test
+	public void testDeadlines () {
+		PollScheduler ps = new PollScheduler();
+		ArrayList<String> due = new ArrayList<String>();
+
+		ps.add("RPM", 250, PollScheduler.PRIORITY_NORMAL);
+		ps.add("TEMP_COOLANT", 2500, PollScheduler.PRIORITY_NORMAL);
+
+		// new DPNs are due right away.
+		assertEquals(2, ps.getDue(1000, due));
+		ps.polled("RPM", 1000, 20);
+		ps.polled("TEMP_COOLANT", 1000, 20);
+
+		assertEquals(0, ps.getDue(1100, due));
+		assertEquals(1250, ps.getNextDue());
+
+		// polled late: the next deadline is still one period after the last one, not after the poll.
+		assertEquals(1, ps.getDue(1300, due));
+		assertEquals("RPM", due.get(0));
+		ps.polled("RPM", 1300, 20);
+		assertEquals(1500, ps.getNextDue());
+
+		// at 3600 both are due, and RPM's deadline (1750) is earlier than coolant's (3500).
+		ps.polled("RPM", 1500, 20);
+		assertEquals(2, ps.getDue(3600, due));
+		assertEquals("RPM", due.get(0));
+		assertEquals("TEMP_COOLANT", due.get(1));
+
+		// way behind: no catching up with a burst, it's just due now.
+		assertTrue(ps.remove("TEMP_COOLANT"));
+		ps.polled("RPM", 9000, 20);
+		assertEquals(9000, ps.getNextDue());
+
+		ps.remove("RPM");
+		assertEquals(Long.MAX_VALUE, ps.getNextDue());
+	}
+
+	@Test
+	public void testBudget () {
+		PollScheduler ps = new PollScheduler();
+		ps.setBudget(1.0);
+
+		// each wants 100ms every 250ms, 40% of the link. Two of them fit.
+		ps.add("RPM", 250, PollScheduler.PRIORITY_NORMAL);
+		ps.add("SPEED", 250, PollScheduler.PRIORITY_NORMAL);
+		ps.polled("RPM", 1000, 100);
+		ps.polled("SPEED", 1000, 100);
+		assertEquals(250, ps.getPeriod("RPM"));
+		assertEquals(250, ps.getPeriod("SPEED"));
+
+		// four of them want 160%. Everybody slows down the same.
+		ps.add("TPS", 250, PollScheduler.PRIORITY_NORMAL);
+		ps.add("IMAP", 250, PollScheduler.PRIORITY_NORMAL);
+		ps.polled("TPS", 1000, 100);
+		ps.polled("IMAP", 1000, 100);
+		assertEquals(400, ps.getPeriod("RPM"));
+		assertEquals(400, ps.getPeriod("IMAP"));
+
+		// RPM gets three times the share. That's 120% of the link, more than it asked for,
+		// so it gets its target and the others split the 60% that's left.
+		ps.add("RPM", 250, 3);
+		assertEquals(250, ps.getPeriod("RPM"));
+		assertEquals(500, ps.getPeriod("SPEED"));
+		assertEquals(500, ps.getPeriod("TPS"));
+
+		// priority 2: RPM gets 2/5 of the link, 2x each of the others (1/5 each).
+		ps.add("RPM", 250, 2);
+		assertEquals(250, ps.getPeriod("RPM"));
+		ps.setBudget(0.5);
+		assertEquals(500, ps.getPeriod("RPM"));
+		assertEquals(1000, ps.getPeriod("SPEED"));
+
+		// the unsupported ones sit out and stop counting against the budget.
+		ps.skipped("TPS", 2000);
+		ps.skipped("IMAP", 2000);
+		assertEquals(2, ps.getSkippedCount());
+		ArrayList<String> due = new ArrayList<String>();
+		ps.getDue(11999, due);
+		assertFalse(due.contains("TPS"));
+		ps.getDue(12000, due);
+		assertTrue(due.contains("TPS"));
+		assertEquals(300, ps.getPeriod("RPM"));
+		assertEquals(600, ps.getPeriod("SPEED"));
+	}
+
+	@Test
+	public void testStats () {
+		PollScheduler ps = new PollScheduler();
+		ps.add("RPM", 250, PollScheduler.PRIORITY_NORMAL);
+		for (int i=0;i<5;i++)
+			ps.polled("RPM", 1000 + i * 500, 40);
+
+		assertEquals("4.0", ps.getStats().getStat("RPM.targetHz"));
+		assertEquals("2.0", ps.getStats().getStat("RPM.achievedHz"));
+		assertEquals("40", ps.getStats().getStat("RPM.costMs"));
+		assertEquals("false", ps.getStats().getStat("saturated"));
+	}
+}
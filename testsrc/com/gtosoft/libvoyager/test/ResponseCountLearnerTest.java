@@ -0,0 +1,97 @@
+package com.gtosoft.libvoyager.test;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+
+import org.junit.Test;
+
+import com.gtosoft.libvoyager.db.DashDB;
+import com.gtosoft.libvoyager.util.PreparedRequest;
+import com.gtosoft.libvoyager.util.ResponseCountLearner;
+
+
+/**
+ * ResponseCountLearner: counts follow the car they were learned on.
+ */
+public class ResponseCountLearnerTest {
+
+	final String VIN1 = "1G1JC5444R7252367";
+	final String VIN2 = "2G1WF52E859000000";
+
+	PreparedRequest SPEED 	= new PreparedRequest("SPEED", "010D", "A", 1, null);
+	PreparedRequest VIN 	= new PreparedRequest("VIN", "0902", "VIN", 17, null);
+
+	/**
+	 * A DashDB whose profiles table is a hashmap (key = subtype + "/" + key).
+	 */
+	private DashDB profiles (final HashMap<String,String> hmProfiles) {
+		return new DashDB(null) {
+			public HashMap<String,String> restoreHashmapFromStorage (String proType, String proSubType) {
+				HashMap<String,String> ret = new HashMap<String,String>();
+				for (String k : hmProfiles.keySet())
+					if (k.startsWith(proSubType + "/"))
+						ret.put(k.substring(proSubType.length() + 1), hmProfiles.get(k));
+				return ret;
+			}
+
+			public boolean setProfileValue (String proType, String proSubType, String proKey, String proValue) {
+				hmProfiles.put(proSubType + "/" + proKey, proValue);
+				return true;
+			}
+		};
+	}
+
+	private void learn (ResponseCountLearner rcl, PreparedRequest pr, int responses) {
+		for (int i=0;i<3;i++)
+			rcl.observe(pr, false, responses, false);
+	}
+
+	@Test
+	public void testLearn () {
+		HashMap<String,String> hmProfiles = new HashMap<String,String>();
+		ResponseCountLearner rcl = new ResponseCountLearner(profiles(hmProfiles));
+
+		// two in a row isn't enough.
+		rcl.observe(SPEED, false, 2, false);
+		rcl.observe(SPEED, false, 2, false);
+		assertSame(SPEED.request, rcl.decorate(SPEED));
+		rcl.observe(SPEED, false, 2, false);
+		assertEquals("010D2", rcl.decorate(SPEED));
+
+		// the VIN takes more than one frame, so the ELM's count wouldn't be the ECU count.
+		learn(rcl, VIN, 1);
+		assertEquals(0, rcl.getLearnedCount("VIN"));
+		assertSame(VIN.request, rcl.decorate(VIN));
+
+		// a counted request that comes back short: forget it.
+		rcl.observe(SPEED, true, 1, false);
+		assertEquals(0, rcl.getLearnedCount("SPEED"));
+		assertSame(SPEED.request, rcl.decorate(SPEED));
+	}
+
+	@Test
+	public void testVINChange () {
+		HashMap<String,String> hmProfiles = new HashMap<String,String>();
+		ResponseCountLearner rcl = new ResponseCountLearner(profiles(hmProfiles));
+
+		// learned before we knew the VIN: goes with the first car.
+		learn(rcl, SPEED, 1);
+		rcl.setVIN(VIN1);
+		assertEquals("1", hmProfiles.get(VIN1 + "/SPEED"));
+		assertEquals(1, rcl.getLearnedCount("SPEED"));
+
+		// a different car: nothing carries over, and nothing gets written under its VIN.
+		rcl.setVIN(VIN2);
+		assertEquals(0, rcl.getLearnedCount("SPEED"));
+		assertNull(hmProfiles.get(VIN2 + "/SPEED"));
+		assertSame(SPEED.request, rcl.decorate(SPEED));
+
+		learn(rcl, SPEED, 2);
+		assertEquals("2", hmProfiles.get(VIN2 + "/SPEED"));
+
+		// back to the first car: its own count comes back from the profiles.
+		rcl.setVIN(VIN1);
+		assertEquals(1, rcl.getLearnedCount("SPEED"));
+	}
+}
@@ -0,0 +1,250 @@
+package com.gtosoft.libvoyager.test;
+
+import static org.junit.Assert.*;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.gtosoft.libvoyager.db.DashDB;
+import com.gtosoft.libvoyager.emulator.ELMEmulator;
+import com.gtosoft.libvoyager.emulator.EmulatedECU;
+import com.gtosoft.libvoyager.util.OBDPacketParser;
+import com.gtosoft.libvoyager.util.SupportedPIDs;
+
+
+/**
+ * SupportedPIDs: discovering the 0100 bitmaps from an emulated car, saving them in and reading them back out of the profiles table, 
+ * and which PIDs that lets through.
+ */
+public class SupportedPIDsTest {
+
+	final String VIN = "1G1JC5444R7252367";
+
+	ELMEmulator mEmu = null;
+	Socket mSocket = null;
+
+	@After
+	public void tearDown() throws Exception {
+		if (mSocket != null) mSocket.close();
+		if (mEmu != null) mEmu.stop();
+	}
+
+	/**
+	 * A DashDB whose profiles table is a hashmap.
+	 */
+	private DashDB profiles (final HashMap<String,String> hmSaved) {
+		return new DashDB(null) {
+			public HashMap<String,String> restoreHashmapFromStorage (String proType, String proSubType) {
+				HashMap<String,String> ret = new HashMap<String,String>();
+				if (proType.equals(SupportedPIDs.PROFILE_TYPE) && proSubType.equals(VIN))
+					ret.putAll(hmSaved);
+				return ret;
+			}
+
+			public boolean setProfileValue (String proType, String proSubType, String proKey, String proValue) {
+				if (proType.equals(SupportedPIDs.PROFILE_TYPE) && proSubType.equals(VIN))
+					hmSaved.put(proKey, proValue);
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Start the emulator with the given ECUs and hand back a requester that talks to it over a socket, the way ELMBT would. 
+	 * Every request it sends goes in the given list. 
+	 */
+	private SupportedPIDs.Requester emulate (final ArrayList<String> requests, EmulatedECU ... ecus) throws Exception {
+		mEmu = new ELMEmulator();
+		for (int i=0;i<ecus.length;i++)
+			mEmu.addECU(ecus[i]);
+
+		mSocket = new Socket("127.0.0.1", mEmu.start(0));
+		mSocket.setSoTimeout(5000);
+		final InputStream in = mSocket.getInputStream();
+		final OutputStream out = mSocket.getOutputStream();
+
+		SupportedPIDs.Requester req = new SupportedPIDs.Requester() {
+			public String obdCommand (String request) {
+				requests.add(request);
+				try {
+					out.write((request + "\r").getBytes("US-ASCII"));
+					out.flush();
+					return readUntilPrompt(in);
+				} catch (Exception e) {
+					return "";
+				}
+			}
+		};
+
+		// power-up banner, then no echo and headers on.
+		readUntilPrompt(in);
+		req.obdCommand("ATE0");
+		req.obdCommand("ATH1");
+		requests.clear();
+		return req;
+	}
+
+	private static String readUntilPrompt (InputStream in) throws Exception {
+		StringBuilder sb = new StringBuilder();
+		int b;
+		while ((b = in.read()) >= 0 && b != '>')
+			sb.append(b == '\r' ? '|' : (char) b);
+		return sb.toString();
+	}
+
+	/**
+	 * An ECU that says it supports the given range (through the "more" bit of the range before it), but answers it with NO DATA. 
+	 */
+	private EmulatedECU noDataOn (String header, final String rangeRequest) {
+		return new EmulatedECU(header) {
+			public String getResponse (String request) {
+				if (request.equalsIgnoreCase(rangeRequest))
+					return null;
+				return super.getResponse(request);
+			}
+		};
+	}
+
+	@Test
+	public void testDiscover () throws Exception {
+		HashMap<String,String> hmSaved = new HashMap<String,String>();
+		ArrayList<String> requests = new ArrayList<String>();
+
+		// the engine has PIDs in the first three ranges, the transmission just one in the first.
+		SupportedPIDs.Requester req = emulate(requests,
+				new EmulatedECU("7E8").setPID("0C", "1AF8").setPID("0D", "32").setPID("21", "0000").setPID("46", "20"),
+				new EmulatedECU("7E9").setPID("0A", "00"));
+
+		SupportedPIDs sp = new SupportedPIDs(profiles(hmSaved));
+		assertFalse(sp.setVIN(VIN));
+		assertTrue(sp.discover(OBDPacketParser.PROTOCOL_ISO15765_4CAN11500, req));
+		assertTrue(sp.isDiscovered());
+
+		// 0100 says ask about 0120, 0120 says ask about 0140, and 0140 says that's it.
+		assertEquals(Arrays.asList("0100", "0120", "0140"), requests);
+
+		// both ECUs count.
+		assertTrue(sp.isSupported(0x01, 0x0C));
+		assertTrue(sp.isSupported(0x01, 0x0D));
+		assertTrue(sp.isSupported(0x01, 0x0A));
+		assertFalse(sp.isSupported(0x01, 0x0B));
+		assertTrue(sp.isSupported(0x01, 0x21));
+		assertFalse(sp.isSupported(0x01, 0x22));
+		assertTrue(sp.isSupported(0x01, 0x46));
+		assertFalse(sp.isSupported(0x01, 0x47));
+		assertFalse(sp.isSupported(0x01, 0x61));
+
+		// saved per ECU. The transmission didn't answer 0120, so that word's blank for it.
+		assertEquals("00180001" + "80000001" + "04000000" + "0000000000000000000000000000000000000000", hmSaved.get("7E8"));
+		assertEquals("00400000" + "00000000" + "00000000" + "0000000000000000000000000000000000000000", hmSaved.get("7E9"));
+
+		// next connect to the same car gets them back without asking.
+		SupportedPIDs sp2 = new SupportedPIDs(profiles(hmSaved));
+		assertTrue(sp2.setVIN(VIN));
+		assertFalse(sp2.isSupported(0x01, 0x47));
+		assertTrue(sp2.isSupported(0x01, 0x0A));
+	}
+
+	@Test
+	public void testDiscoverNoData () throws Exception {
+		HashMap<String,String> hmSaved = new HashMap<String,String>();
+		ArrayList<String> requests = new ArrayList<String>();
+
+		// 0100 says there's a 0120, but asking for it gets NO DATA.
+		SupportedPIDs.Requester req = emulate(requests,
+				noDataOn("7E8", "0120").setPID("0C", "1AF8").setPID("21", "0000").setPID("46", "20"));
+
+		SupportedPIDs sp = new SupportedPIDs(profiles(hmSaved));
+		sp.setVIN(VIN);
+		assertTrue(sp.discover(OBDPacketParser.PROTOCOL_ISO15765_4CAN11500, req));
+		assertEquals(Arrays.asList("0100", "0120"), requests);
+
+		// the first range is known.
+		assertTrue(sp.isSupported(0x01, 0x0C));
+		assertFalse(sp.isSupported(0x01, 0x0B));
+
+		// the failed range, and the ones after it, aren't turned away.
+		assertTrue(sp.isSupported(0x01, 0x21));
+		assertTrue(sp.isSupported(0x01, 0x22));
+		assertTrue(sp.isSupported(0x01, 0x46));
+		assertTrue(sp.isSupported(0x01, 0x61));
+		assertEquals("1", sp.getStats().getStat("failedRanges"));
+
+		// and nothing got saved, so the next connect asks again rather than writing those PIDs off for good.
+		assertTrue(hmSaved.isEmpty());
+		assertFalse(new SupportedPIDs(profiles(hmSaved)).setVIN(VIN));
+	}
+
+	@Test
+	public void testDiscoverNoAnswer () throws Exception {
+		HashMap<String,String> hmSaved = new HashMap<String,String>();
+		ArrayList<String> requests = new ArrayList<String>();
+		SupportedPIDs.Requester req = emulate(requests, noDataOn("7E8", "0100").setPID("0C", "1AF8"));
+
+		SupportedPIDs sp = new SupportedPIDs(profiles(hmSaved));
+		sp.setVIN(VIN);
+		assertFalse(sp.discover(OBDPacketParser.PROTOCOL_ISO15765_4CAN11500, req));
+		assertEquals(Arrays.asList("0100"), requests);
+		assertFalse(sp.isDiscovered());
+		assertTrue(sp.isSupported(0x01, 0x0B));
+		assertTrue(hmSaved.isEmpty());
+	}
+
+	@Test
+	public void testRestore () {
+		HashMap<String,String> hmSaved = new HashMap<String,String>();
+		// 0100 -> BE 1F B8 13 (01,03-07,0C-11,13-15,1C,1F,20), 0120 -> 80 00 00 00 (21 only).
+		hmSaved.put("7E8", "BE1FB813" + "80000000" + "000000000000000000000000000000000000000000000000");
+		// the transmission adds 0A.
+		hmSaved.put("7E9", "00400000" + "00000000" + "000000000000000000000000000000000000000000000000");
+
+		SupportedPIDs sp = new SupportedPIDs(profiles(hmSaved));
+		assertTrue(sp.isSupported(0x01, 0x02));
+		assertFalse(sp.isDiscovered());
+
+		assertTrue(sp.setVIN(VIN));
+		assertTrue(sp.isDiscovered());
+
+		assertTrue(sp.isSupported(0x01, 0x01));
+		assertFalse(sp.isSupported(0x01, 0x02));
+		assertTrue(sp.isSupported(0x01, 0x0C));
+		assertTrue(sp.isSupported(0x01, 0x0A));
+		assertFalse(sp.isSupported(0x01, 0x0B));
+		assertFalse(sp.isSupported(0x01, 0x12));
+		assertTrue(sp.isSupported(0x01, 0x1F));
+		assertTrue(sp.isSupported(0x01, 0x21));
+		assertFalse(sp.isSupported(0x01, 0x22));
+
+		// the range PIDs themselves, other modes, and oddballs always go through.
+		assertTrue(sp.isSupported(0x01, 0x40));
+		assertTrue(sp.isSupported(0x01, 0x00));
+		assertTrue(sp.isSupported(0x22, 0x11));
+		assertTrue(sp.isSupported(0x03, -1));
+
+		// same car again: nothing to do.
+		assertTrue(sp.setVIN(VIN));
+
+		// a car we've never seen: back to letting everything through until discovery.
+		assertFalse(sp.setVIN("2G1WF52E859000000"));
+		assertFalse(sp.isDiscovered());
+		assertTrue(sp.isSupported(0x01, 0x02));
+	}
+
+	@Test
+	public void testBadProfile () {
+		HashMap<String,String> hmSaved = new HashMap<String,String>();
+		hmSaved.put("7E8", "BE1FB813");
+		hmSaved.put("7E9", "not hex at all, but it's the right length, 64 characters long!!!");
+
+		SupportedPIDs sp = new SupportedPIDs(profiles(hmSaved));
+		assertFalse(sp.setVIN(VIN));
+		assertTrue(sp.isSupported(0x01, 0x02));
+	}
+}